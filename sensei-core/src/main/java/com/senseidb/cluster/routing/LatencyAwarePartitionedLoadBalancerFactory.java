@@ -0,0 +1,238 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+package com.senseidb.cluster.routing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import com.linkedin.norbert.cluster.InvalidClusterException;
+import com.linkedin.norbert.javacompat.cluster.Node;
+import com.linkedin.norbert.javacompat.network.Endpoint;
+import com.linkedin.norbert.javacompat.network.PartitionedLoadBalancer;
+import com.linkedin.norbert.javacompat.network.PartitionedLoadBalancerFactory;
+import com.senseidb.plugin.SenseiPlugin;
+import com.senseidb.plugin.SenseiPluginRegistry;
+
+/**
+ * Routes requests to the replicas that are expected to answer fastest.
+ * <p>
+ * Without a route parameter, each partition goes to the cheaper of two randomly chosen replicas
+ * (power of two choices), where the cost of a node is its average response time multiplied by its
+ * outstanding requests, both as tracked by {@link NodeLoadTracker} from the response times the
+ * broker measures for every node.
+ * A replica already picked for another partition of the same request is reused to keep the fan-out
+ * low. Requests with a route parameter always go to the same replicas while the cluster does not
+ * change.
+ * <p>
+ * Can be configured as the router factory of the broker:
+ * <pre>
+ * sensei.search.router.factory.class=com.senseidb.cluster.routing.LatencyAwarePartitionedLoadBalancerFactory
+ * sensei.search.router.factory.decay=0.3
+ * </pre>
+ */
+public class LatencyAwarePartitionedLoadBalancerFactory implements PartitionedLoadBalancerFactory<String>, SenseiPlugin
+{
+  /**
+   * Route parameters starting with this prefix are generated by the broker for requests without
+   * a route parameter, and are not routed sticky.
+   */
+  public static final String RANDOM_ROUTE_PARAM_PREFIX = "\u0000";
+
+  public static final String DECAY = "decay";
+
+  private final HashProvider _hashProvider = new MD5HashProvider();
+  private NodeLoadTracker _loadTracker;
+
+  public LatencyAwarePartitionedLoadBalancerFactory()
+  {
+    this(new NodeLoadTracker());
+  }
+
+  public LatencyAwarePartitionedLoadBalancerFactory(NodeLoadTracker loadTracker)
+  {
+    _loadTracker = loadTracker;
+  }
+
+  @Override
+  public void init(Map<String, String> config, SenseiPluginRegistry pluginRegistry)
+  {
+    if (config.containsKey(DECAY))
+      _loadTracker = new NodeLoadTracker(Double.parseDouble(config.get(DECAY)));
+  }
+
+  @Override
+  public void start()
+  {
+  }
+
+  @Override
+  public void stop()
+  {
+  }
+
+  public NodeLoadTracker getLoadTracker()
+  {
+    return _loadTracker;
+  }
+
+  @Override
+  public PartitionedLoadBalancer<String> newLoadBalancer(Set<Endpoint> endpoints) throws InvalidClusterException
+  {
+    return new LatencyAwarePartitionedLoadBalancer(endpoints, _loadTracker, _hashProvider);
+  }
+
+  @Override
+  public Integer getNumPartitions(Set<Endpoint> endpoints)
+  {
+    Set<Integer> partitions = new HashSet<Integer>();
+    for (Endpoint endpoint : endpoints)
+    {
+      partitions.addAll(endpoint.getNode().getPartitionIds());
+    }
+    return partitions.size();
+  }
+
+  static class LatencyAwarePartitionedLoadBalancer implements PartitionedLoadBalancer<String>
+  {
+    private final Map<Integer, List<Node>> _replicas = new HashMap<Integer, List<Node>>();
+    private final List<Node> _nodes = new ArrayList<Node>();
+    private final NodeLoadTracker _loadTracker;
+    private final HashProvider _hashProvider;
+    private final Random _random = new Random();
+
+    LatencyAwarePartitionedLoadBalancer(Set<Endpoint> endpoints, NodeLoadTracker loadTracker, HashProvider hashProvider)
+    {
+      _loadTracker = loadTracker;
+      _hashProvider = hashProvider;
+      for (Endpoint endpoint : endpoints)
+      {
+        if (!endpoint.canServeRequests())
+          continue;
+        Node node = endpoint.getNode();
+        _nodes.add(node);
+        for (Integer partition : node.getPartitionIds())
+        {
+          List<Node> replicas = _replicas.get(partition);
+          if (replicas == null)
+          {
+            replicas = new ArrayList<Node>();
+            _replicas.put(partition, replicas);
+          }
+          replicas.add(node);
+        }
+      }
+      // sticky routing must not depend on the iteration order of the endpoints
+      Comparator<Node> byId = new Comparator<Node>()
+      {
+        @Override
+        public int compare(Node n1, Node n2)
+        {
+          return n1.getId() < n2.getId() ? -1 : (n1.getId() == n2.getId() ? 0 : 1);
+        }
+      };
+      Collections.sort(_nodes, byId);
+      for (List<Node> replicas : _replicas.values())
+      {
+        Collections.sort(replicas, byId);
+      }
+    }
+
+    private boolean isSticky(String id)
+    {
+      return id != null && !id.startsWith(RANDOM_ROUTE_PARAM_PREFIX);
+    }
+
+    private Node choose(List<Node> candidates, String id)
+    {
+      if (candidates == null || candidates.isEmpty())
+        return null;
+      int size = candidates.size();
+      if (isSticky(id))
+        return candidates.get((int) (_hashProvider.hash(id) % size));
+      if (size == 1)
+        return candidates.get(0);
+      int i = _random.nextInt(size);
+      int j = _random.nextInt(size - 1);
+      if (j >= i)
+        ++j;
+      Node first = candidates.get(i);
+      Node second = candidates.get(j);
+      return _loadTracker.getCost(first.getId()) <= _loadTracker.getCost(second.getId()) ? first : second;
+    }
+
+    @Override
+    public Node nextNode(String id)
+    {
+      return choose(_nodes, id);
+    }
+
+    @Override
+    public Set<Node> nodesForPartitionedId(String id)
+    {
+      return nodesForOneReplica(id).keySet();
+    }
+
+    @Override
+    public Map<Node, Set<Integer>> nodesForOneReplica(String id)
+    {
+      return nodesForPartitions(id, _replicas.keySet());
+    }
+
+    @Override
+    public Map<Node, Set<Integer>> nodesForPartitions(String id, Set<Integer> partitions)
+    {
+      Map<Node, Set<Integer>> routes = new HashMap<Node, Set<Integer>>();
+      for (Integer partition : partitions)
+      {
+        List<Node> replicas = _replicas.get(partition);
+        if (replicas == null)
+          continue;
+        Node node = null;
+        if (!isSticky(id))
+        {
+          for (Node replica : replicas)
+          {
+            if (routes.containsKey(replica))
+            {
+              node = replica;
+              break;
+            }
+          }
+        }
+        if (node == null)
+          node = choose(replicas, id);
+        Set<Integer> nodePartitions = routes.get(node);
+        if (nodePartitions == null)
+        {
+          nodePartitions = new HashSet<Integer>();
+          routes.put(node, nodePartitions);
+        }
+        nodePartitions.add(partition);
+      }
+      return routes;
+    }
+  }
+}
@@ -0,0 +1,136 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+package com.senseidb.cluster.routing;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps the number of outstanding requests and an exponentially weighted moving average of the
+ * response time of every node, as observed by the broker.
+ */
+public class NodeLoadTracker
+{
+  public static final double DEFAULT_DECAY = 0.3;
+
+  private final double _decay;
+  private final ConcurrentMap<Integer, NodeLoad> _loads = new ConcurrentHashMap<Integer, NodeLoad>();
+
+  public NodeLoadTracker()
+  {
+    this(DEFAULT_DECAY);
+  }
+
+  /**
+   * @param decay weight of the latest response time in the moving average
+   */
+  public NodeLoadTracker(double decay)
+  {
+    if (decay <= 0 || decay > 1)
+    {
+      throw new IllegalArgumentException("decay must be in (0, 1]: " + decay);
+    }
+    _decay = decay;
+  }
+
+  private NodeLoad getNodeLoad(int nodeId)
+  {
+    NodeLoad load = _loads.get(nodeId);
+    if (load == null)
+    {
+      load = new NodeLoad();
+      NodeLoad existing = _loads.putIfAbsent(nodeId, load);
+      if (existing != null)
+        load = existing;
+    }
+    return load;
+  }
+
+  public void requestSent(int nodeId)
+  {
+    NodeLoad load = getNodeLoad(nodeId);
+    synchronized (load)
+    {
+      ++load.outstanding;
+    }
+  }
+
+  public void responseReceived(int nodeId, long millis)
+  {
+    NodeLoad load = getNodeLoad(nodeId);
+    synchronized (load)
+    {
+      if (load.outstanding > 0)
+        --load.outstanding;
+      load.responseTime = load.sampled ? load.responseTime + _decay * (millis - load.responseTime) : millis;
+      load.sampled = true;
+    }
+  }
+
+  /**
+   * Called for a request that was not answered, e.g. one that failed or lost against another replica,
+   * the response time is left as it is
+   */
+  public void requestCancelled(int nodeId)
+  {
+    NodeLoad load = getNodeLoad(nodeId);
+    synchronized (load)
+    {
+      if (load.outstanding > 0)
+        --load.outstanding;
+    }
+  }
+
+  public int getOutstanding(int nodeId)
+  {
+    NodeLoad load = getNodeLoad(nodeId);
+    synchronized (load)
+    {
+      return load.outstanding;
+    }
+  }
+
+  public double getResponseTime(int nodeId)
+  {
+    NodeLoad load = getNodeLoad(nodeId);
+    synchronized (load)
+    {
+      return load.responseTime;
+    }
+  }
+
+  /**
+   * @return the expected time a new request to the node takes, nodes without samples cost 0
+   */
+  public double getCost(int nodeId)
+  {
+    NodeLoad load = getNodeLoad(nodeId);
+    synchronized (load)
+    {
+      return load.responseTime * (load.outstanding + 1);
+    }
+  }
+
+  private static final class NodeLoad
+  {
+    int outstanding;
+    double responseTime;
+    boolean sampled;
+  }
+}
@@ -90,6 +90,12 @@ public interface SenseiConfParams {
     public static final String SERVER_BROKER_TIMEOUT = "sensei.broker.timeout";
     public static final String ALLOW_PARTIAL_MERGE = "sensei.broker.allowPartialMerge";
     public static final String SERVER_BROKER_REQUEST_CUSTOMIZER_FACTORY = "sensei.broker.request.customizer.factory";
+    public static final String SERVER_BROKER_RESULT_CACHE = "sensei.broker.result.cache";
+    public static final String SERVER_BROKER_HEDGE_PERCENTILE = "sensei.broker.hedge.percentile";
+    public static final String SERVER_BROKER_HEDGE_MIN_DELAY = "sensei.broker.hedge.minDelay";
+    public static final String SERVER_BROKER_HEDGE_MIN_SAMPLES = "sensei.broker.hedge.minSamples";
+    public static final String SERVER_BROKER_HEDGE_REFRESH_INTERVAL = "sensei.broker.hedge.refreshInterval";
+    public static final String SERVER_BROKER_BQL_CACHE_SIZE = "sensei.broker.bql.cacheSize";
 
 
     public static final String SENSEI_BROKER_POLL_INTERVAL = "sensei.broker.pollInterval";
@@ -100,6 +106,18 @@ public interface SenseiConfParams {
     public static final String SERVER_SEARCH_ROUTER_FACTORY = "sensei.search.router.factory";
     public static final String SENSEI_SEARCH_SERIALIZER = "sensei.search.serializer";
 
+    public static final String SENSEI_SEARCH_THREAD_POOL_SIZE = "sensei.search.threadPoolSize";
+    public static final String SENSEI_SEARCH_QUEUE_SIZE = "sensei.search.queueSize";
+    public static final String SENSEI_SEARCH_TIMEOUT = "sensei.search.timeout";
+    public static final String SENSEI_SEARCH_MAX_SEGMENT_SLICES = "sensei.search.maxSegmentSlices";
+    public static final String SENSEI_SEARCH_MIN_SLICE_DOCS = "sensei.search.minSliceDocs";
+    public static final String SENSEI_SEARCH_PARALLEL_MAP = "sensei.search.parallelMap";
+    public static final String SENSEI_SEARCH_CACHE_MAX_ENTRIES = "sensei.search.cache.maxEntries";
+    public static final String SENSEI_SEARCH_CACHE_MAX_BYTES = "sensei.search.cache.maxBytes";
+    public static final String SENSEI_SEARCH_CACHE_MAX_AGE = "sensei.search.cache.maxAge";
+    public static final String SENSEI_SEARCH_FILTER_CACHE_MAX_BYTES = "sensei.search.filterCache.maxBytes";
+    public static final String SENSEI_SEARCH_FILTER_CACHE_ADMISSION_THRESHOLD = "sensei.search.filterCache.admissionThreshold";
+
     public static final String SENSEI_SEARCH_INVERTED_INDEX_PENALTY = "sensei.search.inverted.penalty";
 
     public static final String SENSEI_INDEX_PRUNER = "sensei.index.pruner";
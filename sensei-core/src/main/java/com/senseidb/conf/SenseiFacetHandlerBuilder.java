@@ -187,7 +187,7 @@ public class SenseiFacetHandlerBuilder {
         return new RangeFacetHandler(name, fieldName, termListFactory, predefinedRanges);
     }
 
-    private static LinkedList<String> buildPredefinedRanges(Map<String, List<String>> paramMap) {
+    public static LinkedList<String> buildPredefinedRanges(Map<String, List<String>> paramMap) {
         LinkedList<String> predefinedRanges = new LinkedList<String>();
         if (paramMap != null) {
             List<String> rangeList = paramMap.get("range");
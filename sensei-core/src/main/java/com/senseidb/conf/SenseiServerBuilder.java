@@ -106,6 +106,7 @@ import com.senseidb.search.node.impl.DefaultJsonQueryBuilderFactory;
 import com.senseidb.search.plugin.PluggableSearchEngineManager;
 import com.senseidb.search.query.RetentionFilterFactory;
 import com.senseidb.search.query.TimeRetentionFilter;
+import com.senseidb.search.query.filters.SegmentFilterCache;
 import com.senseidb.search.relevance.CustomRelevanceFunction.CustomRelevanceFunctionFactory;
 import com.senseidb.search.relevance.ExternalRelevanceDataStorage;
 import com.senseidb.search.relevance.ExternalRelevanceDataStorage.RelevanceObjPlugin;
@@ -118,6 +119,8 @@ import com.senseidb.servlet.DefaultSenseiJSONServlet;
 import com.senseidb.servlet.SenseiConfigServletContextListener;
 import com.senseidb.servlet.SenseiHttpInvokerServiceServlet;
 import com.senseidb.svc.impl.AbstractSenseiCoreService;
+import com.senseidb.svc.impl.SenseiResultCache;
+import com.senseidb.svc.impl.SenseiSearchScheduler;
 import com.senseidb.util.HDFSIndexCopier;
 import com.senseidb.util.NetUtil;
 import com.senseidb.util.SenseiUncaughtExceptionHandler;
@@ -534,7 +537,29 @@ public class SenseiServerBuilder implements SenseiConfParams {
         SenseiIndexPruner indexPruner = pluginRegistry.getBeanByFullPrefix(SENSEI_INDEX_PRUNER, SenseiIndexPruner.class);
         if (indexPruner != null) {
             senseiCore.setIndexPruner(indexPruner);
+            if (indexPruner instanceof SenseiIndexReaderDecorator.BoboListener) {
+                decorator.addBoboListener((SenseiIndexReaderDecorator.BoboListener) indexPruner);
+            }
+        }
+        SenseiSearchScheduler searchScheduler = new SenseiSearchScheduler(
+                _senseiConf.getInt(SENSEI_SEARCH_THREAD_POOL_SIZE, SenseiSearchScheduler.DEFAULT_THREAD_POOL_SIZE),
+                _senseiConf.getInt(SENSEI_SEARCH_QUEUE_SIZE, SenseiSearchScheduler.DEFAULT_QUEUE_SIZE),
+                _senseiConf.getLong(SENSEI_SEARCH_TIMEOUT, SenseiSearchScheduler.DEFAULT_TIMEOUT),
+                _senseiConf.getInt(SENSEI_SEARCH_MAX_SEGMENT_SLICES, SenseiSearchScheduler.DEFAULT_MAX_SEGMENT_SLICES),
+                _senseiConf.getInt(SENSEI_SEARCH_MIN_SLICE_DOCS, SenseiSearchScheduler.DEFAULT_MIN_SLICE_DOCS));
+        searchScheduler.setParallelMap(_senseiConf.getBoolean(SENSEI_SEARCH_PARALLEL_MAP, SenseiSearchScheduler.DEFAULT_PARALLEL_MAP));
+        senseiCore.setSearchScheduler(searchScheduler);
+        int resultCacheMaxEntries = _senseiConf.getInt(SENSEI_SEARCH_CACHE_MAX_ENTRIES, SenseiResultCache.DEFAULT_MAX_ENTRIES);
+        if (resultCacheMaxEntries > 0) {
+            senseiCore.setResultCache(new SenseiResultCache(
+                    resultCacheMaxEntries,
+                    _senseiConf.getLong(SENSEI_SEARCH_CACHE_MAX_BYTES, SenseiResultCache.DEFAULT_MAX_BYTES),
+                    _senseiConf.getLong(SENSEI_SEARCH_CACHE_MAX_AGE, SenseiResultCache.DEFAULT_MAX_AGE),
+                    zoieConfig.getVersionComparator()));
         }
+        SegmentFilterCache.getInstance().configure(
+                _senseiConf.getLong(SENSEI_SEARCH_FILTER_CACHE_MAX_BYTES, SegmentFilterCache.DEFAULT_MAX_BYTES),
+                _senseiConf.getInt(SENSEI_SEARCH_FILTER_CACHE_ADMISSION_THRESHOLD, SegmentFilterCache.DEFAULT_ADMISSION_THRESHOLD));
         if (pluggableSearchEngineManager != null) {
             senseiCore.setPluggableSearchEngineManager(pluggableSearchEngineManager);
         }
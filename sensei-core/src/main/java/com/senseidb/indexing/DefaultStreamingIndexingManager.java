@@ -21,6 +21,7 @@ package com.senseidb.indexing;
 import com.senseidb.metrics.MetricFactory;
 import java.util.Collection;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
@@ -38,6 +39,7 @@ import org.json.JSONObject;
 import proj.zoie.api.DataConsumer;
 import proj.zoie.api.DataConsumer.DataEvent;
 import proj.zoie.api.DataProvider;
+import proj.zoie.api.DocIDMapper;
 import proj.zoie.api.Zoie;
 import proj.zoie.api.ZoieException;
 import proj.zoie.api.ZoieIndexReader;
@@ -75,6 +77,10 @@ public class DefaultStreamingIndexingManager implements SenseiIndexingManager<JS
 
   private static final String EVENT_CREATED_TIMESTAMP_FIELD = "eventCreatedTimestampField";
 
+  private static final String UPDATE_THREADS = "updateThreads";
+
+  private static final String UPDATE_CACHE_SIZE = "updateCacheSize";
+
   private Meter _providerBatchSizeMeter;
   private Meter _eventMeter;
   private Meter _updateBatchSizeMeter;
@@ -97,6 +103,7 @@ public class DefaultStreamingIndexingManager implements SenseiIndexingManager<JS
   private final Comparator<String> _versionComparator;
   private final PluggableSearchEngineManager pluggableSearchEngineManager;
   private SenseiPluginRegistry pluginRegistry;
+  private PartialUpdateMerger _updateMerger;
 
 
 	public DefaultStreamingIndexingManager(SenseiSchema schema,Configuration senseiConfig, 
@@ -156,6 +163,8 @@ public class DefaultStreamingIndexingManager implements SenseiIndexingManager<JS
 		int maxPartitionId = _myconfig.getInt(MAX_PARTITION_ID)+1;
 		String uidField = _senseiSchema.getUidField();
 		DataDispatcher consumer = new DataDispatcher(maxPartitionId,uidField);
+		_updateMerger = new PartialUpdateMerger(uidField, _senseiSchema.getSrcDataField(),
+		    _myconfig.getInt(UPDATE_CACHE_SIZE, 1000), _myconfig.getInt(UPDATE_THREADS, 4));
 
 		_zoieSystemMap = zoieSystemMap;
 
@@ -216,6 +225,9 @@ public class DefaultStreamingIndexingManager implements SenseiIndexingManager<JS
 	  if (_dataProvider!=null){
 	    _dataProvider.stop();
 	  }
+	  if (_updateMerger != null) {
+	    _updateMerger.shutdown();
+	  }
     if (_providerBatchSizeMeter != null) {
       _providerBatchSizeMeter.stop();
     }
@@ -286,10 +298,8 @@ public class DefaultStreamingIndexingManager implements SenseiIndexingManager<JS
       }
     }
 
-    private JSONObject rewriteData(JSONObject obj, int partNum)
+    private JSONObject unwrapEvent(JSONObject obj, String type)
     {
-      String type = obj.optString(SenseiSchema.EVENT_TYPE_FIELD, null);
-
       JSONObject event = obj.optJSONObject(SenseiSchema.EVENT_FIELD);
       if (event == null)
         event = obj;
@@ -306,70 +316,78 @@ public class DefaultStreamingIndexingManager implements SenseiIndexingManager<JS
       }
 
       reportIndexingLatency(event);
+      return event;
+    }
 
-      if (SenseiSchema.EVENT_TYPE_UPDATE.equalsIgnoreCase(type))
+    /**
+     * Reads the sources of updated documents, each partition's index readers are taken once per batch.
+     * A uid is located with the uid to docid mappers of the readers, the same hash lookup the uid
+     * filters use, so a reader without the document costs one probe, and the stored source is only
+     * read from the reader holding the document.
+     */
+    private class IndexSourceLookup implements PartialUpdateMerger.SourceLookup
+    {
+      private final Map<Integer, List<ZoieIndexReader<BoboIndexReader>>> _readers =
+          new HashMap<Integer, List<ZoieIndexReader<BoboIndexReader>>>();
+
+      @Override
+      public void open(int partition)
       {
-        Zoie<BoboIndexReader, JSONObject> zoie = _zoieSystemMap.get(partNum);
-        List<ZoieIndexReader<BoboIndexReader>> readers;
+        if (_readers.containsKey(partition))
+          return;
+        List<ZoieIndexReader<BoboIndexReader>> readers = null;
         try
         {
-          readers = zoie.getIndexReaders();
+          readers = _zoieSystemMap.get(partition).getIndexReaders();
         }
         catch(Exception e)
         {
           logger.error(e.getMessage(), e);
-          return null;
         }
+        _readers.put(partition, readers);
+      }
 
+      @Override
+      public JSONObject read(int partition, long uid) throws Exception
+      {
+        List<ZoieIndexReader<BoboIndexReader>> readers = _readers.get(partition);
         if (readers == null)
-        {
-          logger.error("Cannot found original doc for and update event: " + obj);
           return null;
-        }
-        try
+
+        byte[] src = null;
+        for (ZoieIndexReader<BoboIndexReader> reader : readers)
         {
-          byte[] src = null;
-          long uid = Long.parseLong(event.getString(_senseiSchema.getUidField()));
-          for (ZoieIndexReader<BoboIndexReader> reader : readers)
-          {            
+          if (reader.getDocIDMaper().getDocID(uid) != DocIDMapper.NOT_FOUND)
+          {
             src = reader.getStoredValue(uid);
             if (src != null)
               break;
-          }          
-          byte[] data = null;
-
-          if (_senseiSchema.isCompressSrcData())
-            data = DefaultJsonSchemaInterpreter.decompress(src);
-          else
-            data = src;
-
-          if (data == null)
-          {
-            logger.error("Cannot found original doc for and update event: " + obj);
-            return null;
           }
-
-          JSONObject newEvent = new FastJSONObject(new String(data, "UTF-8"));
-          Iterator<String> keys = event.keys();
-          while(keys.hasNext())
-          {
-            String key = keys.next();
-            newEvent.put(key, event.get(key));
-          }
-          event = newEvent;
         }
-        catch (Exception e)
-        {
-          logger.error(e.getMessage(), e);
+        if (src == null)
           return null;
-        }
-        finally
+        byte[] data = null;
+
+        if (_senseiSchema.isCompressSrcData())
+          data = DefaultJsonSchemaInterpreter.decompress(src);
+        else
+          data = src;
+
+        if (data == null)
+          return null;
+        return new FastJSONObject(new String(data, "UTF-8"));
+      }
+
+      @Override
+      public void close()
+      {
+        for (Map.Entry<Integer, List<ZoieIndexReader<BoboIndexReader>>> entry : _readers.entrySet())
         {
-          zoie.returnIndexReaders(readers);
+          if (entry.getValue() != null)
+            _zoieSystemMap.get(entry.getKey()).returnIndexReaders(entry.getValue());
         }
+        _readers.clear();
       }
-
-      return event;
     }
 
     @Override
@@ -380,6 +398,9 @@ public class DefaultStreamingIndexingManager implements SenseiIndexingManager<JS
       _eventMeter.mark(_dataProvider.getEventCount());
 
       try{
+        PartialUpdateMerger.Batch updates = _updateMerger.newBatch();
+        // the raw update events only reach the partition events once they are merged
+        Map<Integer, List<DataEvent<JSONObject>>> routedEvents = new HashMap<Integer, List<DataEvent<JSONObject>>>();
         for(DataEvent<JSONObject> dataEvt : data){
           JSONObject obj = dataEvt.getData();
 
@@ -393,24 +414,48 @@ public class DefaultStreamingIndexingManager implements SenseiIndexingManager<JS
           }
 
           int routeToPart = _shardingStrategy.caculateShard(_maxPartitionId, obj);
-          Collection<DataEvent<JSONObject>> partDataSet = _dataCollectorMap.get(routeToPart);
-          if (partDataSet != null)
+          if (_dataCollectorMap.containsKey(routeToPart))
           {
+            List<DataEvent<JSONObject>> partDataSet = routedEvents.get(routeToPart);
+            if (partDataSet == null)
+            {
+              partDataSet = new LinkedList<DataEvent<JSONObject>>();
+              routedEvents.put(routeToPart, partDataSet);
+            }
             JSONObject rewrited = obj;
             if (pluggableSearchEngineManager != null && !pluggableSearchEngineManager.acceptEventsForAllPartitions()) {
               rewrited = pluggableSearchEngineManager.update(obj, dataEvt.getVersion());
             }
-            rewrited = rewriteData(obj, routeToPart);
-            if (rewrited != null)
+            String type = obj.optString(SenseiSchema.EVENT_TYPE_FIELD, null);
+            rewrited = unwrapEvent(obj, type);
+            if (SenseiSchema.EVENT_TYPE_UPDATE.equalsIgnoreCase(type))
+            {
+              // merged with its source after the whole batch is routed
+              updates.addUpdate(routeToPart, dataEvt, rewrited);
+            }
+            else
             {
-              
+              updates.addEvent(routeToPart, rewrited, type);
               if (rewrited != obj)
                 dataEvt = new DataEvent<JSONObject>(rewrited, dataEvt.getVersion(), dataEvt.getWeight());
-              partDataSet.add(dataEvt);
             }
+            partDataSet.add(dataEvt);
           }
         }
 
+        if (updates.hasUpdates())
+        {
+          updates.merge(new IndexSourceLookup());
+          for (List<DataEvent<JSONObject>> partDataSet : routedEvents.values())
+          {
+            updates.apply(partDataSet);
+          }
+        }
+        for (Map.Entry<Integer, List<DataEvent<JSONObject>>> entry : routedEvents.entrySet())
+        {
+          _dataCollectorMap.get(entry.getKey()).addAll(entry.getValue());
+        }
+
         long indexSize = 0;
         long now = System.currentTimeMillis();
         boolean measureIndexSize = now - _lastMeasureTime > MEASURE_INTERVAL ? true : false;
@@ -449,6 +494,9 @@ public class DefaultStreamingIndexingManager implements SenseiIndexingManager<JS
           if (measureIndexSize)
             _indexSizeMeter.mark(indexSize);
         }
+
+        if (updates.hasUpdates())
+          updates.publish();
       }
       catch(Exception e){
         throw new ZoieException(e.getMessage(),e);
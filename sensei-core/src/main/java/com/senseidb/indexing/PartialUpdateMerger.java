@@ -0,0 +1,428 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+package com.senseidb.indexing;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.util.NamedThreadFactory;
+import org.json.JSONObject;
+
+import proj.zoie.api.DataConsumer.DataEvent;
+
+import com.senseidb.conf.SenseiSchema;
+import com.senseidb.metrics.MetricFactory;
+import com.senseidb.metrics.MetricsConstants;
+import com.senseidb.util.JSONUtil.FastJSONObject;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.Timer;
+
+/**
+ * Merges partial update events with the source documents they update.
+ * <p>
+ * The update events of a batch are grouped by uid. The updates of one uid are merged in order, each
+ * one on the result of the previous one, or on the document added earlier in the same batch, so
+ * that updates are not lost before the batch is indexed. The sources of recently updated documents
+ * are kept in a small LRU cache, the other sources are read from the index once per uid and batch.
+ * The cache only takes the merged sources of a batch once the batch is indexed.
+ * The uids of a batch are merged by a pool of worker threads, the dispatching thread only waits for
+ * the results.
+ */
+public class PartialUpdateMerger
+{
+  private static final Logger logger = Logger.getLogger(PartialUpdateMerger.class);
+
+  /**
+   * Reads the stored source documents of a batch
+   */
+  public interface SourceLookup
+  {
+    /**
+     * Called by the dispatching thread for every partition read by the batch, before any read
+     */
+    void open(int partition) throws Exception;
+
+    /**
+     * Returns the stored source of the document, or null if not found. May be called concurrently.
+     */
+    JSONObject read(int partition, long uid) throws Exception;
+
+    /**
+     * Called by the dispatching thread once the batch is merged
+     */
+    void close();
+  }
+
+  private final String _uidField;
+  private final String _srcDataField;
+  private final LinkedHashMap<Long, JSONObject> _recentSources;
+  private final ExecutorService _executor;
+  private final int _threads;
+
+  private final Meter _cacheHitMeter;
+  private final Meter _cacheMissMeter;
+  private final Timer _lookupTimer;
+
+  /**
+   * @param cacheSize the number of recently updated sources kept, 0 to disable the cache
+   * @param threads the number of threads merging updates, 1 to merge on the dispatching thread
+   */
+  public PartialUpdateMerger(String uidField, String srcDataField, final int cacheSize, int threads)
+  {
+    _uidField = uidField;
+    _srcDataField = srcDataField;
+    _recentSources = new LinkedHashMap<Long, JSONObject>(16, 0.75f, true)
+    {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Long, JSONObject> eldest)
+      {
+        return size() > cacheSize;
+      }
+    };
+    _threads = Math.max(1, threads);
+    if (_threads > 1)
+    {
+      _executor = new ThreadPoolExecutor(_threads,
+                                         _threads,
+                                         60,
+                                         TimeUnit.SECONDS,
+                                         new LinkedBlockingQueue<Runnable>(),
+                                         new NamedThreadFactory("update-merger"));
+      ((ThreadPoolExecutor) _executor).allowCoreThreadTimeOut(true);
+    }
+    else
+    {
+      _executor = null;
+    }
+
+    _cacheHitMeter = MetricFactory.newMeter(new MetricName(MetricsConstants.Domain, "meter", "update-source-cache-hit", "indexing-manager"),
+                                            "updates",
+                                            TimeUnit.SECONDS);
+    _cacheMissMeter = MetricFactory.newMeter(new MetricName(MetricsConstants.Domain, "meter", "update-source-cache-miss", "indexing-manager"),
+                                             "updates",
+                                             TimeUnit.SECONDS);
+    _lookupTimer = MetricFactory.newTimer(new MetricName(MetricsConstants.Domain, "timer", "update-source-lookup-time", "indexing-manager"),
+                                          TimeUnit.MILLISECONDS,
+                                          TimeUnit.SECONDS);
+  }
+
+  public Batch newBatch()
+  {
+    return new Batch();
+  }
+
+  public void shutdown()
+  {
+    if (_executor != null)
+    {
+      _executor.shutdownNow();
+    }
+  }
+
+  int getCacheSize()
+  {
+    return _recentSources.size();
+  }
+
+  private long getUid(JSONObject event)
+  {
+    String uid = event.optString(_uidField, null);
+    if (uid == null)
+      return Long.MIN_VALUE;
+    try
+    {
+      return Long.parseLong(uid);
+    }
+    catch (NumberFormatException e)
+    {
+      return Long.MIN_VALUE;
+    }
+  }
+
+  /**
+   * Returns the source stored for the indexed event, the same document read back from the index
+   */
+  private JSONObject toSource(JSONObject event) throws Exception
+  {
+    String srcData = _srcDataField == null ? null : event.optString(_srcDataField, null);
+    return srcData == null ? event : new FastJSONObject(srcData);
+  }
+
+  private static JSONObject copy(JSONObject obj) throws Exception
+  {
+    JSONObject ret = new FastJSONObject();
+    Iterator<String> keys = obj.keys();
+    while (keys.hasNext())
+    {
+      String key = keys.next();
+      ret.put(key, obj.get(key));
+    }
+    return ret;
+  }
+
+  private static class PendingUpdate
+  {
+    final DataEvent<JSONObject> _dataEvt;
+    final JSONObject _event;
+    JSONObject _merged;
+
+    PendingUpdate(DataEvent<JSONObject> dataEvt, JSONObject event)
+    {
+      _dataEvt = dataEvt;
+      _event = event;
+    }
+  }
+
+  /**
+   * The events of one uid in a batch, from the last event replacing the whole document
+   */
+  private static class UidUpdates
+  {
+    final int _partition;
+    final long _uid;
+    // the event replacing the document, or a private copy of a cached source
+    final JSONObject _base;
+    // whether the base is an event, that is converted to its source before merging
+    final boolean _baseIsEvent;
+    // whether the source is read from the index
+    final boolean _lookup;
+    final List<PendingUpdate> _updates = new ArrayList<PendingUpdate>();
+    JSONObject _source;
+
+    UidUpdates(int partition, long uid, JSONObject base, boolean baseIsEvent, boolean lookup)
+    {
+      _partition = partition;
+      _uid = uid;
+      _base = base;
+      _baseIsEvent = baseIsEvent;
+      _lookup = lookup;
+    }
+  }
+
+  public class Batch
+  {
+    private final Map<Long, UidUpdates> _lastUpdates = new HashMap<Long, UidUpdates>();
+    private final List<UidUpdates> _updates = new ArrayList<UidUpdates>();
+    private final IdentityHashMap<DataEvent<JSONObject>, PendingUpdate> _pending = new IdentityHashMap<DataEvent<JSONObject>, PendingUpdate>();
+
+    /**
+     * Adds an event that is not an update. Later updates of its uid in the batch are merged on it.
+     */
+    public void addEvent(int partition, JSONObject event, String type)
+    {
+      if (SenseiSchema.EVENT_TYPE_SKIP.equalsIgnoreCase(type))
+        return;
+      long uid = getUid(event);
+      if (uid == Long.MIN_VALUE)
+        return;
+      _recentSources.remove(uid);
+      boolean deleted = SenseiSchema.EVENT_TYPE_DELETE.equalsIgnoreCase(type);
+      _lastUpdates.put(uid, new UidUpdates(partition, uid, deleted ? null : event, !deleted, false));
+    }
+
+    /**
+     * Adds an update event, the data event is kept in the partition events until {@link #apply} is called.
+     */
+    public void addUpdate(int partition, DataEvent<JSONObject> dataEvt, JSONObject event)
+    {
+      long uid = getUid(event);
+      UidUpdates updates = _lastUpdates.get(uid);
+      if (updates == null || updates._partition != partition)
+      {
+        JSONObject cached = _recentSources.get(uid);
+        if (cached != null)
+        {
+          _cacheHitMeter.mark();
+          updates = new UidUpdates(partition, uid, cached, false, false);
+        }
+        else
+        {
+          _cacheMissMeter.mark();
+          updates = new UidUpdates(partition, uid, null, false, true);
+        }
+        _lastUpdates.put(uid, updates);
+      }
+      if (updates._updates.isEmpty())
+        _updates.add(updates);
+
+      PendingUpdate update = new PendingUpdate(dataEvt, event);
+      updates._updates.add(update);
+      _pending.put(dataEvt, update);
+    }
+
+    public boolean hasUpdates()
+    {
+      return !_pending.isEmpty();
+    }
+
+    /**
+     * Merges the updates of the batch, reading the sources that are not cached with the lookup.
+     * The cached sources of the merged uids are dropped until {@link #publish} is called.
+     */
+    public void merge(SourceLookup lookup) throws Exception
+    {
+      try
+      {
+        for (UidUpdates updates : _updates)
+        {
+          if (updates._lookup)
+            lookup.open(updates._partition);
+        }
+
+        if (_executor == null || _updates.size() == 1)
+        {
+          merge(lookup, 0, 1);
+        }
+        else
+        {
+          List<Future<Object>> futures = new ArrayList<Future<Object>>(_threads);
+          for (int i = 0; i < _threads; ++i)
+          {
+            final int first = i;
+            final SourceLookup sourceLookup = lookup;
+            futures.add(_executor.submit(new Callable<Object>()
+            {
+              @Override
+              public Object call() throws Exception
+              {
+                merge(sourceLookup, first, _threads);
+                return null;
+              }
+            }));
+          }
+          for (Future<Object> future : futures)
+          {
+            future.get();
+          }
+        }
+      }
+      finally
+      {
+        lookup.close();
+      }
+
+      // the cached sources are stale once the batch is indexed, and if the indexing fails
+      for (UidUpdates updates : _lastUpdates.values())
+      {
+        _recentSources.remove(updates._uid);
+      }
+    }
+
+    /**
+     * Caches the merged sources, to be called once the merged events are indexed
+     */
+    public void publish()
+    {
+      // only the last events of every uid are left in the cache
+      for (UidUpdates updates : _lastUpdates.values())
+      {
+        if (updates._source != null)
+          _recentSources.put(updates._uid, updates._source);
+      }
+    }
+
+    private void merge(final SourceLookup lookup, int first, int step)
+    {
+      for (int i = first; i < _updates.size(); i += step)
+      {
+        final UidUpdates updates = _updates.get(i);
+        try
+        {
+          JSONObject source;
+          if (updates._lookup)
+          {
+            source = _lookupTimer.time(new Callable<JSONObject>()
+            {
+              @Override
+              public JSONObject call() throws Exception
+              {
+                return lookup.read(updates._partition, updates._uid);
+              }
+            });
+          }
+          else if (updates._baseIsEvent)
+            source = toSource(updates._base);
+          else
+            source = updates._base;
+
+          for (PendingUpdate update : updates._updates)
+          {
+            if (source == null)
+            {
+              logger.error("Cannot found original doc for and update event: " + update._event);
+              continue;
+            }
+
+            JSONObject merged = copy(source);
+            Iterator<String> keys = update._event.keys();
+            while (keys.hasNext())
+            {
+              String key = keys.next();
+              merged.put(key, update._event.get(key));
+            }
+            update._merged = merged;
+            source = toSource(merged);
+          }
+
+          // the merged events are handed to the indexing, the cache keeps its own copy
+          if (source != null && _lastUpdates.get(updates._uid) == updates)
+            updates._source = copy(source);
+        }
+        catch (Exception e)
+        {
+          logger.error(e.getMessage(), e);
+        }
+      }
+    }
+
+    /**
+     * Replaces the update events of the partition events by the merged ones, the updates that could
+     * not be merged are removed.
+     */
+    public void apply(List<DataEvent<JSONObject>> events)
+    {
+      ListIterator<DataEvent<JSONObject>> it = events.listIterator();
+      while (it.hasNext())
+      {
+        DataEvent<JSONObject> dataEvt = it.next();
+        PendingUpdate update = _pending.get(dataEvt);
+        if (update == null)
+          continue;
+        if (update._merged == null)
+          it.remove();
+        else
+          it.set(new DataEvent<JSONObject>(update._merged, dataEvt.getVersion(), dataEvt.getWeight()));
+      }
+    }
+  }
+}
@@ -0,0 +1,264 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+package com.senseidb.indexing;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.regex.Pattern;
+
+import org.apache.lucene.index.IndexReader;
+
+import com.browseengine.bobo.api.BoboIndexReader;
+import com.browseengine.bobo.api.BrowseSelection;
+import com.browseengine.bobo.api.BrowseSelection.ValueOperation;
+import com.browseengine.bobo.facets.FacetHandler;
+import com.browseengine.bobo.facets.data.FacetDataCache;
+import com.browseengine.bobo.facets.data.TermIntList;
+import com.browseengine.bobo.facets.data.TermLongList;
+import com.browseengine.bobo.facets.data.TermValueList;
+import com.browseengine.bobo.facets.filter.FacetRangeFilter;
+import com.browseengine.bobo.facets.impl.MultiValueFacetHandler;
+import com.browseengine.bobo.facets.impl.RangeFacetHandler;
+import com.browseengine.bobo.facets.impl.SimpleFacetHandler;
+import com.senseidb.metrics.MetricFactory;
+import com.senseidb.metrics.MetricsConstants;
+import com.senseidb.plugin.SenseiPlugin;
+import com.senseidb.plugin.SenseiPluginRegistry;
+import com.senseidb.search.node.SenseiIndexReaderDecorator;
+import com.senseidb.search.req.SenseiRequest;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.MetricName;
+
+/**
+ * Skips the segments that can't match the request selections, using the per segment column statistics. The numeric facets keep
+ * the min and max term of the segment, the term selections are checked against the sorted term dictionary of the facet data.
+ * The range selections on the other facets, e.g. the dates, are looked up in the term dictionary as well.
+ * The statistics are computed as soon as Zoie opens a new segment reader after a flush or a merge and are shared by all
+ * the reader copies of the same segment.<br>
+ * The pruner is configured with sensei.index.pruner.class, optionally restricted to the comma separated list of facets
+ * in sensei.index.pruner.facets
+ */
+public class SegmentStatisticsIndexPruner implements SenseiIndexPruner, SenseiIndexReaderDecorator.BoboListener, SenseiPlugin {
+  private static final String FACETS = "facets";
+  private static final Pattern RANGE_PATTERN = Pattern.compile("[\\[(].* TO .*[\\])]");
+
+  private final Map<Object, SegmentStatistics> statisticsCache = Collections.synchronizedMap(new WeakHashMap<Object, SegmentStatistics>());
+  private Set<String> facets;
+
+  private final Counter processedReadersCount;
+  private final Counter filteredReadersCount;
+
+  public SegmentStatisticsIndexPruner() {
+    processedReadersCount = MetricFactory.newCounter(new MetricName(MetricsConstants.Domain, "segmentStatisticsIndexPruner", "processedReaderCount"));
+    filteredReadersCount = MetricFactory.newCounter(new MetricName(MetricsConstants.Domain, "segmentStatisticsIndexPruner", "filteredReaderCount"));
+  }
+
+  /**
+   * The min and max values of the numeric facets within a single segment
+   */
+  public static class SegmentStatistics {
+    private final Map<String, long[]> minMax = new HashMap<String, long[]>();
+
+    public SegmentStatistics(BoboIndexReader reader) {
+      for (String name : reader.getFacetHandlerMap().keySet()) {
+        Object facetData = reader.getFacetData(name);
+        if (!(facetData instanceof FacetDataCache)) {
+          continue;
+        }
+        Object valArray = ((FacetDataCache) facetData).valArray;
+        if (valArray instanceof TermLongList) {
+          long[] elements = ((TermLongList) valArray).getElements();
+          minMax.put(name, elements.length < 2 ? new long[] {Long.MAX_VALUE, Long.MIN_VALUE} : new long[] {elements[1], elements[elements.length - 1]});
+        } else if (valArray instanceof TermIntList) {
+          int[] elements = ((TermIntList) valArray).getElements();
+          minMax.put(name, elements.length < 2 ? new long[] {Long.MAX_VALUE, Long.MIN_VALUE} : new long[] {elements[1], elements[elements.length - 1]});
+        }
+      }
+    }
+
+    /**
+     * @return the {min, max} pair, or null if the facet is not numeric. For the empty segment min is greater than max
+     */
+    public long[] getMinMax(String facetName) {
+      return minMax.get(facetName);
+    }
+  }
+
+  public SegmentStatistics getStatistics(BoboIndexReader reader) {
+    Object key = reader.getCoreCacheKey();
+    SegmentStatistics statistics = statisticsCache.get(key);
+    if (statistics == null) {
+      statistics = new SegmentStatistics(reader);
+      statisticsCache.put(key, statistics);
+    }
+    return statistics;
+  }
+
+  @Override
+  public void indexCreated(BoboIndexReader boboIndexReader) {
+    getStatistics(boboIndexReader);
+  }
+
+  @Override
+  public void indexDeleted(IndexReader indexReader) {
+    // the other copies of the segment might still be in use, the entry goes away together with the segment core
+  }
+
+  @Override
+  public IndexReaderSelector getReaderSelector(SenseiRequest req) {
+    final BrowseSelection[] selections = req.getSelections();
+    return new IndexReaderSelector() {
+      @Override
+      public boolean isSelected(BoboIndexReader reader) throws IOException {
+        if (selections == null || selections.length == 0) {
+          return true;
+        }
+        processedReadersCount.inc();
+        SegmentStatistics statistics = null;
+        for (BrowseSelection selection : selections) {
+          if (facets != null && !facets.contains(selection.getFieldName())) {
+            continue;
+          }
+          if (statistics == null) {
+            statistics = getStatistics(reader);
+          }
+          if (!mayMatch(reader, statistics, selection)) {
+            filteredReadersCount.inc();
+            return false;
+          }
+        }
+        return true;
+      }
+    };
+  }
+
+  private static boolean mayMatch(BoboIndexReader reader, SegmentStatistics statistics, BrowseSelection selection) {
+    String[] values = selection.getValues();
+    if (values == null || values.length == 0) {
+      return true;
+    }
+    String name = selection.getFieldName();
+    FacetHandler<?> handler = reader.getFacetHandler(name);
+    if (!(handler instanceof SimpleFacetHandler || handler instanceof MultiValueFacetHandler || handler instanceof RangeFacetHandler)) {
+      return true;
+    }
+    Object facetData = reader.getFacetData(name);
+    if (!(facetData instanceof FacetDataCache)) {
+      return true;
+    }
+    boolean isAnd = selection.getSelectionOperation() == ValueOperation.ValueOperationAnd;
+    for (String value : values) {
+      boolean present = mayContain(statistics.getMinMax(name), (FacetDataCache) facetData, handler, value);
+      if (isAnd && !present) {
+        return false;
+      }
+      if (!isAnd && present) {
+        return true;
+      }
+    }
+    return isAnd;
+  }
+
+  private static boolean mayContain(long[] minMax, FacetDataCache facetData, FacetHandler<?> handler, String value) {
+    try {
+      if (RANGE_PATTERN.matcher(value).matches()) {
+        String[] rangeStrings = FacetRangeFilter.getRangeStrings(value);
+        if (minMax != null) {
+          try {
+            return minMax[1] >= getLowerBound(rangeStrings) && minMax[0] <= getUpperBound(rangeStrings);
+          } catch (NumberFormatException ex) {
+            // the bounds are formatted, e.g. the dates, parse them with the facet's own term list
+          }
+        }
+        return mayContainRange(facetData.valArray, rangeStrings);
+      }
+      if (handler instanceof RangeFacetHandler) {
+        return true;
+      }
+      return facetData.valArray.indexOf(value) >= 0;
+    } catch (RuntimeException ex) {
+      // the value can't be parsed in the facet's format, let the filter deal with it
+      return true;
+    }
+  }
+
+  private static long getLowerBound(String[] rangeStrings) {
+    if ("*".equals(rangeStrings[0])) {
+      return Long.MIN_VALUE;
+    }
+    long start = Long.parseLong(rangeStrings[0]);
+    return "true".equals(rangeStrings[2]) ? start : start + 1;
+  }
+
+  private static long getUpperBound(String[] rangeStrings) {
+    if ("*".equals(rangeStrings[1])) {
+      return Long.MAX_VALUE;
+    }
+    long end = Long.parseLong(rangeStrings[1]);
+    return "true".equals(rangeStrings[3]) ? end : end - 1;
+  }
+
+  /**
+   * Looks the range bounds up in the sorted term dictionary, so that any term type, including the dates, is compared in its own format.
+   * The first term of the dictionary is the placeholder for the docs without a value
+   */
+  private static boolean mayContainRange(TermValueList<?> valArray, String[] rangeStrings) {
+    int start = 1;
+    if (!"*".equals(rangeStrings[0])) {
+      int index = valArray.indexOf(rangeStrings[0]);
+      start = index < 0 ? -(index + 1) : ("true".equals(rangeStrings[2]) ? index : index + 1);
+    }
+    int end = valArray.size() - 1;
+    if (!"*".equals(rangeStrings[1])) {
+      int index = valArray.indexOf(rangeStrings[1]);
+      end = index < 0 ? -(index + 1) - 1 : ("true".equals(rangeStrings[3]) ? index : index - 1);
+    }
+    return Math.max(start, 1) <= Math.min(end, valArray.size() - 1);
+  }
+
+  @Override
+  public void sort(List<BoboIndexReader> readers) {
+    // do nothing
+  }
+
+  @Override
+  public void init(Map<String, String> config, SenseiPluginRegistry pluginRegistry) {
+    String facetList = config.get(FACETS);
+    if (facetList != null && facetList.trim().length() > 0) {
+      facets = new HashSet<String>();
+      for (String facet : facetList.split(",")) {
+        facets.add(facet.trim());
+      }
+    }
+  }
+
+  @Override
+  public void start() {
+  }
+
+  @Override
+  public void stop() {
+  }
+}
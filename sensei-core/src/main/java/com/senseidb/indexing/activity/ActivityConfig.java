@@ -27,11 +27,21 @@ public class ActivityConfig  {
   private int flushBufferMaxDelayInSeconds = 15;
   private int purgeJobFrequencyInSeconds = 0;
   private int undeletableBufferSize = 500;
+  private boolean offHeap = false;
+  private boolean writeAheadLog = false;
+  private int writeAheadLogCheckpointSizeInMb = 64;
+  private int purgeJobChunkSize = PurgeUnusedActivitiesJob.DEFAULT_CHUNK_SIZE;
+  private int purgeJobPauseBetweenChunksInMillis = 0;
   public  ActivityConfig(SenseiPluginRegistry pluginRegistry) {
     flushBufferSize = getInt(pluginRegistry.getConfiguration(), "flushBufferSize", 50000);
     flushBufferMaxDelayInSeconds = getInt(pluginRegistry.getConfiguration(), "flushBufferMaxDelayInSeconds", 15);
     purgeJobFrequencyInSeconds = getInt(pluginRegistry.getConfiguration(), "purgeJobFrequencyInMinutes", 0);
     undeletableBufferSize = getInt(pluginRegistry.getConfiguration(), "undeletableBufferSize", 500);
+    offHeap = pluginRegistry.getConfiguration().getBoolean("sensei.activity.config.offHeap", false);
+    writeAheadLog = pluginRegistry.getConfiguration().getBoolean("sensei.activity.config.writeAheadLog", false);
+    writeAheadLogCheckpointSizeInMb = getInt(pluginRegistry.getConfiguration(), "writeAheadLogCheckpointSizeInMb", 64);
+    purgeJobChunkSize = getInt(pluginRegistry.getConfiguration(), "purgeJobChunkSize", PurgeUnusedActivitiesJob.DEFAULT_CHUNK_SIZE);
+    purgeJobPauseBetweenChunksInMillis = getInt(pluginRegistry.getConfiguration(), "purgeJobPauseBetweenChunksInMillis", 0);
     
   }
   public ActivityConfig() {
@@ -53,5 +63,50 @@ public class ActivityConfig  {
   public int getUndeletableBufferSize() {
     return undeletableBufferSize;
   }
+  /**
+   * If true, the activity values are read and written directly against the memory mapped files instead of the on-heap arrays
+   */
+  public boolean isOffHeap() {
+    return offHeap;
+  }
+  public void setOffHeap(boolean offHeap) {
+    this.offHeap = offHeap;
+  }
+  /**
+   * If true, the updates of all the activity files are group committed to the single {@link ActivityWriteAheadLog} instead of syncing every file on each flush
+   */
+  public boolean isWriteAheadLog() {
+    return writeAheadLog;
+  }
+  public void setWriteAheadLog(boolean writeAheadLog) {
+    this.writeAheadLog = writeAheadLog;
+  }
+  /**
+   * The size of the log segment, after which the column files are synced and the log is discarded
+   */
+  public int getWriteAheadLogCheckpointSizeInMb() {
+    return writeAheadLogCheckpointSizeInMb;
+  }
+  public void setWriteAheadLogCheckpointSizeInMb(int writeAheadLogCheckpointSizeInMb) {
+    this.writeAheadLogCheckpointSizeInMb = writeAheadLogCheckpointSizeInMb;
+  }
+  /**
+   * The max number of uids the purge job checks against the index readers at once
+   */
+  public int getPurgeJobChunkSize() {
+    return purgeJobChunkSize;
+  }
+  public void setPurgeJobChunkSize(int purgeJobChunkSize) {
+    this.purgeJobChunkSize = purgeJobChunkSize;
+  }
+  /**
+   * The pause between the purge job chunks. If 0, the job just yields
+   */
+  public int getPurgeJobPauseBetweenChunksInMillis() {
+    return purgeJobPauseBetweenChunksInMillis;
+  }
+  public void setPurgeJobPauseBetweenChunksInMillis(int purgeJobPauseBetweenChunksInMillis) {
+    this.purgeJobPauseBetweenChunksInMillis = purgeJobPauseBetweenChunksInMillis;
+  }
   
 }
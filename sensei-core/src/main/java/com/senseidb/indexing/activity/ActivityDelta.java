@@ -0,0 +1,109 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+package com.senseidb.indexing.activity;
+
+/**
+ * Pre-parsed increment of the activity value, the counterpart of the "+n" and "-n" strings. The activity values add it to the current value
+ * instead of replacing it
+ */
+public final class ActivityDelta extends Number {
+  private static final long serialVersionUID = 1L;
+  public static final ActivityDelta ZERO = new ActivityDelta(0L, 0d, true);
+
+  private final long longDelta;
+  private final double doubleDelta;
+  private final boolean integral;
+
+  private ActivityDelta(long longDelta, double doubleDelta, boolean integral) {
+    this.longDelta = longDelta;
+    this.doubleDelta = doubleDelta;
+    this.integral = integral;
+  }
+
+  public static ActivityDelta valueOf(long delta) {
+    return delta == 0 ? ZERO : new ActivityDelta(delta, delta, true);
+  }
+
+  public static ActivityDelta valueOf(double delta) {
+    return new ActivityDelta((long) delta, delta, false);
+  }
+
+  /**
+   * Converts the "+n" and "-n" strings to the deltas, the other values are returned as they are
+   */
+  public static Object parse(Object value) {
+    if (!(value instanceof String)) {
+      return value;
+    }
+    String valStr = (String) value;
+    if (valStr.length() < 2 || (valStr.charAt(0) != '+' && valStr.charAt(0) != '-')) {
+      return value;
+    }
+    String number = valStr.charAt(0) == '+' ? valStr.substring(1) : valStr;
+    try {
+      return valueOf(Long.parseLong(number));
+    } catch (NumberFormatException e) {
+      return valueOf(Double.parseDouble(number));
+    }
+  }
+
+  /**
+   * @return false if the delta was parsed from or created with a floating point number
+   */
+  public boolean isIntegral() {
+    return integral;
+  }
+
+  /**
+   * The int and long columns use it instead of {@link #longValue()}, so that "+1.5" is rejected the same way as Long.parseLong does
+   * instead of being truncated
+   * @throws NumberFormatException if the delta is not integral
+   */
+  public long integralValue() {
+    if (!integral) {
+      throw new NumberFormatException("For input string: \"" + this + "\"");
+    }
+    return longDelta;
+  }
+
+  @Override
+  public int intValue() {
+    return (int) longDelta;
+  }
+
+  @Override
+  public long longValue() {
+    return longDelta;
+  }
+
+  @Override
+  public float floatValue() {
+    return (float) doubleDelta;
+  }
+
+  @Override
+  public double doubleValue() {
+    return doubleDelta;
+  }
+
+  @Override
+  public String toString() {
+    return (doubleDelta >= 0 ? "+" : "") + (doubleDelta == longDelta ? String.valueOf(longDelta) : String.valueOf(doubleDelta));
+  }
+}
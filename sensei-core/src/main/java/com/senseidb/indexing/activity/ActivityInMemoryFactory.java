@@ -45,6 +45,10 @@ public class ActivityInMemoryFactory extends ActivityPersistenceFactory {
   protected CompositeActivityStorage getCompositeStorage() {
     return null;
   }
+  @Override
+  public ActivityWriteAheadLog getWriteAheadLog() {
+    return null;
+  }
   private static class InMemoryAggregatesMetadata extends AggregatesMetadata {
     private volatile int currentTime = 0;
 
@@ -39,6 +39,7 @@ public class ActivityPersistenceFactory {
  
 
   private Metadata metadata;
+  private ActivityWriteAheadLog writeAheadLog;
   private static String indexDirPath;
 
 
@@ -69,18 +70,38 @@ public class ActivityPersistenceFactory {
   
 
   protected CompositeActivityStorage getCompositeStorage() {
+    //the log should be replayed before any of the files is read
+    ActivityWriteAheadLog writeAheadLog = getWriteAheadLog();
     CompositeActivityStorage ret = new CompositeActivityStorage(indexDirPath);
     ret.init();
+    if (writeAheadLog != null) {
+      ret.setWriteAheadLog(writeAheadLog);
+    }
     return ret;
   }
   
  
 
   public ActivityPrimitivesStorage getActivivityPrimitivesStorage(String fieldName) {
+    ActivityWriteAheadLog writeAheadLog = getWriteAheadLog();
     ActivityPrimitivesStorage activityPrimitivesStorage = new ActivityPrimitivesStorage(fieldName, indexDirPath);
     activityPrimitivesStorage.init();
+    if (writeAheadLog != null) {
+      activityPrimitivesStorage.setWriteAheadLog(writeAheadLog);
+    }
     return activityPrimitivesStorage;
   }
+
+  /**
+   * Returns the log shared by all the activity files of the index, or null if it's disabled. The log is replayed on the first call
+   */
+  public synchronized ActivityWriteAheadLog getWriteAheadLog() {
+    if (writeAheadLog == null && activityConfig.isWriteAheadLog()) {
+      writeAheadLog = new ActivityWriteAheadLog(indexDirPath, activityConfig.getWriteAheadLogCheckpointSizeInMb() * 1024L * 1024L);
+      writeAheadLog.init();
+    }
+    return writeAheadLog;
+  }
   
   public AggregatesMetadata createAggregatesMetadata(String fieldName) {
     AggregatesMetadata ret = new AggregatesMetadata();
@@ -30,6 +30,12 @@ public interface ActivityValues {
 	 * @return true, if its advisable to flush changes to disk
 	 */
 	public boolean update(int index, Object value);
+	/**
+	 * Makes sure that the element with the given index can be updated without growing the underlying storage
+	 * @param index
+	 * @return the capacity, all the elements below it can be updated without growing the underlying storage
+	 */
+	public int ensureCapacity(int index);
 	/**
 	 * Deletes the corresponding element
 	 * @param index
@@ -0,0 +1,448 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+package com.senseidb.indexing.activity;
+
+import com.senseidb.metrics.MetricFactory;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+import com.senseidb.indexing.activity.CompositeActivityStorage.Update;
+import com.senseidb.metrics.MetricsConstants;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.Timer;
+
+/**
+ * Sequential append-only log, shared by all the activity columns and the uid index. The updates of one flush are collected into a group, that is
+ * written and fsynced once on commit. Only then the column files are updated without being synced, so that a column never gets ahead of the
+ * committed version, and they stay unsynced until the background checkpoint syncs them and
+ * deletes the log segments, that were completed before the checkpoint started. On startup the committed groups are replayed into the column files.
+ * <br> Each group is stored as [length][payload][crc32], so that a group, torn by a crash, is detected and skipped
+ */
+public class ActivityWriteAheadLog {
+  public static final String SEGMENT_PREFIX = "activity.wal.";
+  private static final byte INT_RECORD = 1;
+  private static final byte LONG_RECORD = 2;
+  private static final byte FLOAT_RECORD = 3;
+  private static final int GROUP_OVERHEAD = 12;
+  private static Logger logger = Logger.getLogger(ActivityWriteAheadLog.class);
+
+  /**
+   * The storage, whose file updates are logged. It is synced by the checkpoint
+   */
+  public static interface Checkpointable {
+    public void sync();
+  }
+
+  private final File dir;
+  private final long checkpointSize;
+  private final List<Checkpointable> storages = new CopyOnWriteArrayList<Checkpointable>();
+  private final ExecutorService checkpointExecutor = Executors.newSingleThreadExecutor();
+  private final AtomicBoolean checkpointInProgress = new AtomicBoolean(false);
+  private final Timer commitTimer;
+  private final ByteArrayOutputStream pendingBytes = new ByteArrayOutputStream();
+  private final DataOutputStream pending = new DataOutputStream(pendingBytes);
+  private int pendingBatches;
+  private final List<Runnable> pendingWrites = new ArrayList<Runnable>();
+  private long segmentNumber;
+  private FileOutputStream segment;
+  private long segmentSize;
+  private volatile boolean closed = false;
+
+  public ActivityWriteAheadLog(String indexDir, long checkpointSize) {
+    this.dir = new File(indexDir);
+    this.checkpointSize = checkpointSize;
+    commitTimer = MetricFactory.newTimer(new MetricName(MetricsConstants.Domain,
+                                                        "timer",
+                                                        "activityLogCommit-time",
+                                                        "ActivityWriteAheadLog"), TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Replays the committed groups left by the previous run into the column files and the metadata, and starts a new segment
+   */
+  public synchronized void init() {
+    try {
+      if (!dir.exists()) {
+        dir.mkdirs();
+      }
+      File[] segments = listSegments();
+      if (segments.length > 0) {
+        replay(segments);
+        for (File segmentFile : segments) {
+          deleteSegment(segmentFile);
+        }
+        segmentNumber = getSegmentNumber(segments[segments.length - 1]) + 1;
+      }
+      openSegment();
+    } catch (IOException e) {
+      logger.error(e.getMessage(), e);
+      throw new RuntimeException(e);
+    }
+  }
+
+  public void register(Checkpointable storage) {
+    storages.add(storage);
+  }
+
+  public synchronized void appendFieldUpdates(String fileName, List<AtomicFieldUpdate> updates) {
+    if (updates.isEmpty()) {
+      return;
+    }
+    try {
+      pending.writeUTF(fileName);
+      pending.writeInt(updates.size());
+      for (AtomicFieldUpdate update : updates) {
+        if (update instanceof AtomicFieldUpdate.IntFieldUpdate) {
+          pending.writeByte(INT_RECORD);
+          pending.writeInt(update.index);
+          pending.writeInt(((AtomicFieldUpdate.IntFieldUpdate) update).value);
+        } else if (update instanceof AtomicFieldUpdate.LongFieldUpdate) {
+          pending.writeByte(LONG_RECORD);
+          pending.writeInt(update.index);
+          pending.writeLong(((AtomicFieldUpdate.LongFieldUpdate) update).value);
+        } else if (update instanceof AtomicFieldUpdate.FloatFieldUpdate) {
+          pending.writeByte(FLOAT_RECORD);
+          pending.writeInt(update.index);
+          pending.writeFloat(((AtomicFieldUpdate.FloatFieldUpdate) update).value);
+        } else {
+          throw new UnsupportedOperationException("The update type is not supported - " + update.getClass());
+        }
+      }
+      pendingBatches++;
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public synchronized void appendIndexUpdates(String fileName, List<Update> updates) {
+    if (updates.isEmpty()) {
+      return;
+    }
+    try {
+      pending.writeUTF(fileName);
+      pending.writeInt(updates.size());
+      for (Update update : updates) {
+        pending.writeByte(LONG_RECORD);
+        pending.writeInt(update.index);
+        pending.writeLong(update.value);
+      }
+      pendingBatches++;
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Registers the write of the appended updates to the column file. It runs once the group, the updates belong to, is fsynced
+   */
+  public synchronized void appendWrite(Runnable write) {
+    pendingWrites.add(write);
+  }
+
+  /**
+   * Writes all the updates appended since the previous commit as one group, together with the version and the document count, and fsyncs the log.
+   * Starts the background checkpoint, once the current segment exceeds the checkpoint size
+   */
+  public void commit(final String version, final int count) {
+    boolean checkpointNeeded;
+    try {
+      checkpointNeeded = commitTimer.time(new Callable<Boolean>() {
+        @Override
+        public Boolean call() throws Exception {
+          return writeGroup(version, count);
+        }
+      });
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+    if (checkpointNeeded && checkpointInProgress.compareAndSet(false, true)) {
+      checkpointExecutor.submit(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            checkpoint();
+          } catch (Exception e) {
+            logger.error("Failure to checkpoint the activity log", e);
+          } finally {
+            checkpointInProgress.set(false);
+          }
+        }
+      });
+    }
+  }
+
+  private synchronized boolean writeGroup(String version, int count) throws IOException {
+    if (closed) {
+      throw new IllegalStateException("The activity log is closed");
+    }
+    ByteArrayOutputStream groupBytes = new ByteArrayOutputStream(pendingBytes.size() + 64);
+    DataOutputStream group = new DataOutputStream(groupBytes);
+    group.writeBoolean(version != null);
+    if (version != null) {
+      group.writeUTF(version);
+    }
+    group.writeInt(count);
+    group.writeInt(pendingBatches);
+    pendingBytes.writeTo(group);
+    group.flush();
+    byte[] payload = groupBytes.toByteArray();
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    ByteBuffer record = ByteBuffer.allocate(payload.length + GROUP_OVERHEAD);
+    record.putInt(payload.length);
+    record.put(payload);
+    record.putLong(crc.getValue());
+    segment.write(record.array());
+    segment.getFD().sync();
+    segmentSize += record.capacity();
+    pendingBytes.reset();
+    pendingBatches = 0;
+    // the columns are written under the lock, so that the checkpoint can't delete the group before they are
+    for (Runnable write : pendingWrites) {
+      try {
+        write.run();
+      } catch (Exception e) {
+        logger.error("Failure to write the committed updates to the column file", e);
+      }
+    }
+    pendingWrites.clear();
+    return segmentSize >= checkpointSize;
+  }
+
+  /**
+   * Switches to the new segment, syncs the column files and deletes the segments, whose updates are now persisted by the column files
+   */
+  protected void checkpoint() throws IOException {
+    File[] obsoleteSegments;
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      segment.close();
+      obsoleteSegments = listSegments();
+      segmentNumber++;
+      openSegment();
+    }
+    for (Checkpointable storage : storages) {
+      storage.sync();
+    }
+    for (File segmentFile : obsoleteSegments) {
+      deleteSegment(segmentFile);
+    }
+  }
+
+  /**
+   * Syncs the column files and deletes the log. Should be called before the storages are closed
+   */
+  public void close() {
+    checkpointExecutor.shutdown();
+    try {
+      checkpointExecutor.awaitTermination(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      try {
+        segment.close();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+    for (Checkpointable storage : storages) {
+      storage.sync();
+    }
+    for (File segmentFile : listSegments()) {
+      deleteSegment(segmentFile);
+    }
+  }
+
+  public boolean isClosed() {
+    return closed;
+  }
+
+  private void replay(File[] segments) throws IOException {
+    Map<String, RandomAccessFile> files = new HashMap<String, RandomAccessFile>();
+    String version = null;
+    int count = 0;
+    int groupCount = 0;
+    try {
+      for (File segmentFile : segments) {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segmentFile)));
+        try {
+          byte[] payload;
+          while ((payload = readGroup(in, segmentFile)) != null) {
+            DataInputStream group = new DataInputStream(new ByteArrayInputStream(payload));
+            version = group.readBoolean() ? group.readUTF() : null;
+            count = group.readInt();
+            int batches = group.readInt();
+            for (int i = 0; i < batches; i++) {
+              String fileName = group.readUTF();
+              RandomAccessFile file = files.get(fileName);
+              if (file == null) {
+                file = new RandomAccessFile(new File(dir, fileName), "rw");
+                files.put(fileName, file);
+              }
+              int size = group.readInt();
+              for (int j = 0; j < size; j++) {
+                byte type = group.readByte();
+                long index = group.readInt();
+                switch (type) {
+                  case INT_RECORD:
+                    file.seek(index * 4);
+                    file.writeInt(group.readInt());
+                    break;
+                  case LONG_RECORD:
+                    file.seek(index * 8);
+                    file.writeLong(group.readLong());
+                    break;
+                  case FLOAT_RECORD:
+                    file.seek(index * 4);
+                    file.writeFloat(group.readFloat());
+                    break;
+                  default:
+                    throw new IllegalStateException("Unknown record type " + type + " in the activity log " + segmentFile);
+                }
+              }
+            }
+            groupCount++;
+          }
+        } finally {
+          in.close();
+        }
+      }
+      for (RandomAccessFile file : files.values()) {
+        file.getFD().sync();
+      }
+    } finally {
+      for (RandomAccessFile file : files.values()) {
+        file.close();
+      }
+    }
+    if (groupCount > 0) {
+      Metadata metadata = new Metadata(dir.getPath());
+      metadata.init();
+      metadata.update(version, count);
+      logger.info("Replayed " + groupCount + " groups of the activity log. Version = " + version + ", Documents = " + count);
+    }
+  }
+
+  /**
+   * Returns the payload of the next group, or null if the segment ends or the group is incomplete
+   */
+  private static byte[] readGroup(DataInputStream in, File segmentFile) throws IOException {
+    int length;
+    try {
+      length = in.readInt();
+    } catch (EOFException e) {
+      return null;
+    }
+    try {
+      if (length < 0 || length > segmentFile.length()) {
+        throw new EOFException();
+      }
+      byte[] payload = new byte[length];
+      in.readFully(payload);
+      long checksum = in.readLong();
+      CRC32 crc = new CRC32();
+      crc.update(payload);
+      if (crc.getValue() != checksum) {
+        logger.warn("The activity log " + segmentFile + " contains a corrupted group. The rest of the segment is skipped");
+        return null;
+      }
+      return payload;
+    } catch (EOFException e) {
+      logger.warn("The activity log " + segmentFile + " ends with an incomplete group, that is skipped");
+      return null;
+    }
+  }
+
+  private void openSegment() throws IOException {
+    segment = new FileOutputStream(new File(dir, SEGMENT_PREFIX + segmentNumber), true);
+    segmentSize = 0;
+  }
+
+  private File[] listSegments() {
+    File[] ret = dir.listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File file) {
+        if (!file.getName().startsWith(SEGMENT_PREFIX)) {
+          return false;
+        }
+        try {
+          getSegmentNumber(file);
+          return true;
+        } catch (NumberFormatException e) {
+          return false;
+        }
+      }
+    });
+    if (ret == null) {
+      return new File[0];
+    }
+    Arrays.sort(ret, new Comparator<File>() {
+      @Override
+      public int compare(File o1, File o2) {
+        long number1 = getSegmentNumber(o1);
+        long number2 = getSegmentNumber(o2);
+        return number1 < number2 ? -1 : (number1 == number2 ? 0 : 1);
+      }
+    });
+    return ret;
+  }
+
+  private static long getSegmentNumber(File segmentFile) {
+    return Long.parseLong(segmentFile.getName().substring(SEGMENT_PREFIX.length()));
+  }
+
+  private static void deleteSegment(File segmentFile) {
+    if (!segmentFile.delete()) {
+      logger.warn("Couldn't delete the activity log segment " + segmentFile);
+    }
+  }
+}
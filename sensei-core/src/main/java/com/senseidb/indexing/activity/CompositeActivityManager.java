@@ -47,6 +47,7 @@ import proj.zoie.api.ZoieSegmentReader;
 import com.browseengine.bobo.api.BoboIndexReader;
 import com.browseengine.bobo.facets.FacetHandler;
 import com.senseidb.conf.SenseiConfParams;
+import com.senseidb.conf.SenseiFacetHandlerBuilder;
 import com.senseidb.conf.SenseiSchema;
 import com.senseidb.conf.SenseiSchema.FacetDefinition;
 import com.senseidb.conf.SenseiSchema.FieldDefinition;
@@ -297,8 +298,11 @@ public class CompositeActivityManager implements PluggableSearchEngine {
     }
     SenseiIndexReaderDecorator decorator = senseiCore.getDecorator();
     decorator.addBoboListener(boboIndexTracker);
-    int purgeJobFrequencyInMinutes = activityPersistenceFactory.getActivityConfig().getPurgeJobFrequencyInMinutes();
+    ActivityConfig activityConfig = activityPersistenceFactory.getActivityConfig();
+    int purgeJobFrequencyInMinutes = activityConfig.getPurgeJobFrequencyInMinutes();
     purgeUnusedActivitiesJob = new PurgeUnusedActivitiesJob(activityValues, senseiCore, purgeJobFrequencyInMinutes * 60 * 1000);
+    purgeUnusedActivitiesJob.setChunkSize(activityConfig.getPurgeJobChunkSize());
+    purgeUnusedActivitiesJob.setPauseBetweenChunksInMillis(activityConfig.getPurgeJobPauseBetweenChunksInMillis());
     purgeUnusedActivitiesJob.start();
     
   }
@@ -343,6 +347,7 @@ public class CompositeActivityManager implements PluggableSearchEngine {
         continue;
       }
       ActivityValues activityValues = getActivityValues().getActivityValuesMap().get(facet.column);
+      List<String> predefinedRanges = SenseiFacetHandlerBuilder.buildPredefinedRanges(facet.params);
 
       if ("aggregated-range".equals(facet.type)) {
         if (!(activityValues instanceof TimeAggregatedActivityValues)) {
@@ -351,12 +356,12 @@ public class CompositeActivityManager implements PluggableSearchEngine {
         TimeAggregatedActivityValues aggregatedActivityValues = (TimeAggregatedActivityValues) activityValues;
         for (String time : facet.params.get("time")) {
           String name = facet.name + ":" + time;
-          ret.add(ActivityRangeFacetHandler.valueOf(name, facet.column, this, (ActivityIntValues)aggregatedActivityValues.getValuesMap().get(time)));
+          ret.add(ActivityRangeFacetHandler.valueOf(name, facet.column, this, (ActivityIntValues)aggregatedActivityValues.getValuesMap().get(time), predefinedRanges));
         }
-        ret.add(ActivityRangeFacetHandler.valueOf(facet.name, facet.column, this, (ActivityIntValues)aggregatedActivityValues.getDefaultIntValues()));
+        ret.add(ActivityRangeFacetHandler.valueOf(facet.name, facet.column, this, (ActivityIntValues)aggregatedActivityValues.getDefaultIntValues(), predefinedRanges));
       } else if ("range".equals(facet.type)){
 
-        ret.add(ActivityRangeFacetHandler.valueOf(facet.name, facet.column, this, getActivityValues().getActivityValues(facet.column)));
+        ret.add(ActivityRangeFacetHandler.valueOf(facet.name, facet.column, this, getActivityValues().getActivityValues(facet.column), predefinedRanges));
 
       } else {
         throw new UnsupportedOperationException("The facet " + facet.name + "should be of type either aggregated-range or range");
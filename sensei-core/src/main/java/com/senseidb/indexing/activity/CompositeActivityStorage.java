@@ -19,13 +19,21 @@
 package com.senseidb.indexing.activity;
 
 import com.senseidb.metrics.MetricFactory;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.LongBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -37,8 +45,13 @@ import com.senseidb.metrics.MetricsConstants;
 import com.yammer.metrics.core.MetricName;
 import com.yammer.metrics.core.Timer;
 
-public class CompositeActivityStorage {
+public class CompositeActivityStorage implements ActivityWriteAheadLog.Checkpointable {
   private static final int BYTES_IN_LONG = 8;
+  private static final String FILE_NAME = "activity.indexes";
+  private static final int PARALLEL_LOAD_THRESHOLD = 100000;
+  private static final int MAX_CHUNK_SIZE = 1 << 26;
+  private static final int LOAD_BLOCK_SIZE = 8192;
+  private static final int LOAD_THREADS = Runtime.getRuntime().availableProcessors();
   private static Logger logger = Logger.getLogger(CompositeActivityStorage.class);
   private RandomAccessFile storedFile;  
   private final String indexDir;
@@ -47,6 +60,7 @@ public class CompositeActivityStorage {
   private long fileLength; 
   private boolean activateMemoryMappedBuffers = false;
   private final Timer timer;
+  private volatile ActivityWriteAheadLog writeAheadLog;
 
   public CompositeActivityStorage(String indexDir) {   
     this.indexDir = indexDir;
@@ -63,7 +77,7 @@ public class CompositeActivityStorage {
       if (!dir.exists()) {
         dir.mkdirs();
       }
-      File file = new File(dir,  "activity.indexes");
+      File file = new File(dir, FILE_NAME);
       if (!file.exists()) {
         file.createNewFile();
       }
@@ -78,8 +92,23 @@ public class CompositeActivityStorage {
     }
   }
 
-  public synchronized void flush(List<Update> updates) {
-    Assert.state(storedFile != null, "The FileStorage is not initialized");    
+  public void flush(final List<Update> updates) {
+    Assert.state(storedFile != null, "The FileStorage is not initialized");
+    ActivityWriteAheadLog writeAheadLog = this.writeAheadLog;
+    if (writeAheadLog == null) {
+      write(updates, true);
+      return;
+    }
+    // the file is written once the log group is committed and synced by the log checkpoint
+    writeAheadLog.appendIndexUpdates(FILE_NAME, updates);
+    writeAheadLog.appendWrite(new Runnable() {
+      @Override
+      public void run() {
+        write(updates, false);
+      }
+    });
+  }
+  private synchronized void write(List<Update> updates, boolean sync) {
     try {
       for (Update update : updates) {       
          ensureCapacity(update.index * BYTES_IN_LONG + BYTES_IN_LONG);        
@@ -90,12 +119,30 @@ public class CompositeActivityStorage {
            storedFile.writeLong(update.value); 
          }
       }
+      if (sync) {
+        if (activateMemoryMappedBuffers) {
+          buffer.force();
+        }
+        storedFile.getFD().sync();
+      }
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+  /**
+   * Persists the updates, that were written without syncing the file
+   */
+  public synchronized void sync() {
+    Assert.state(storedFile != null, "The FileStorage is not initialized");
+    if (closed) {
+      return;
+    }
+    try {
       if (activateMemoryMappedBuffers) {
         buffer.force();
       }
-        storedFile.getFD().sync();
-      
-    } catch (Exception e) {
+      storedFile.getFD().sync();
+    } catch (IOException e) {
       throw new RuntimeException(e);
     }
   }
@@ -152,24 +199,10 @@ public class CompositeActivityStorage {
                 int newCount = (int)(fileLength / BYTES_IN_LONG);
                 metadata.update(metadata.version, newCount);
               }
-              for (int i = 0; i < metadata.count; i++) {
-                long value;
-                if (activateMemoryMappedBuffers) {
-                  value = buffer.getLong(i * BYTES_IN_LONG);
-                } else {
-                  storedFile.seek(i * BYTES_IN_LONG);
-                  value = storedFile.readLong();
-                }           
-               
-                
-                if (value != Long.MIN_VALUE) {
-                  activityValues.uidToArrayIndex.put(value, i);
-                } else {
-                  activityValues.deletedIndexes.add(i);
-                }
-              }
+              loadIndexes(activityValues, metadata.count);
             }
             activityValues.indexSize = new AtomicInteger(activityValues.uidToArrayIndex.size() + activityValues.deletedIndexes.size());
+            activityValues.reusableIndexes = activityValues.deletedIndexes.size();
           } catch (Exception e) {
             throw new RuntimeException(e);
           }
@@ -182,10 +215,74 @@ public class CompositeActivityStorage {
    
   }
   
+  /**
+   * Reads the uids of the first count records. The range is split into chunks, each chunk is mapped and bulk read by its own thread, 
+   * that puts the uids into the presized uid map
+   */
+  private void loadIndexes(final CompositeActivityValues activityValues, int count) throws Exception {
+    if (count == 0) {
+      return;
+    }
+    int chunkCount = count < PARALLEL_LOAD_THRESHOLD ? 1 : Math.max(LOAD_THREADS, (count + MAX_CHUNK_SIZE - 1) / MAX_CHUNK_SIZE);
+    int chunkSize = (count + chunkCount - 1) / chunkCount;
+    List<Callable<IntList>> tasks = new ArrayList<Callable<IntList>>(chunkCount);
+    for (int start = 0; start < count; start += chunkSize) {
+      final int chunkStart = start;
+      final int chunkEnd = Math.min(count, start + chunkSize);
+      tasks.add(new Callable<IntList>() {
+        @Override
+        public IntList call() throws Exception {
+          return loadChunk(activityValues.uidToArrayIndex, chunkStart, chunkEnd);
+        }
+      });
+    }
+    if (tasks.size() == 1) {
+      activityValues.deletedIndexes.addAll(tasks.get(0).call());
+      return;
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(LOAD_THREADS, tasks.size()));
+    try {
+      // the chunks are merged in order, so the deleted indexes stay sorted
+      for (Future<IntList> future : executor.invokeAll(tasks)) {
+        activityValues.deletedIndexes.addAll(future.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * @return the deleted indexes of the chunk
+   */
+  private IntList loadChunk(StripedLong2IntMap uidToArrayIndex, int start, int end) throws IOException {
+    IntList deletedIndexes = new IntArrayList();
+    LongBuffer uids = storedFile.getChannel().map(MapMode.READ_ONLY, (long) start * BYTES_IN_LONG, (long) (end - start) * BYTES_IN_LONG).asLongBuffer();
+    long[] block = new long[Math.min(LOAD_BLOCK_SIZE, end - start)];
+    int index = start;
+    while (uids.hasRemaining()) {
+      int length = Math.min(block.length, uids.remaining());
+      uids.get(block, 0, length);
+      for (int i = 0; i < length; i++, index++) {
+        if (block[i] != Long.MIN_VALUE) {
+          // the chunks are loaded concurrently, so the latest index of the duplicate uid should win regardless of the order
+          uidToArrayIndex.putMax(block[i], index);
+        } else {
+          deletedIndexes.add(index);
+        }
+      }
+    }
+    return deletedIndexes;
+  }
+
   public boolean isClosed() {
     return closed;
   }  
 
+  public void setWriteAheadLog(ActivityWriteAheadLog writeAheadLog) {
+    this.writeAheadLog = writeAheadLog;
+    writeAheadLog.register(this);
+  }
+
   public static class Update {
     public int index;   
     public long value;
@@ -21,8 +21,6 @@ package com.senseidb.indexing.activity;
 import com.senseidb.metrics.MetricFactory;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.ints.IntList;
-import it.unimi.dsi.fastutil.longs.Long2IntMap;
-import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
 
 import java.util.ArrayList;
 import java.util.Collection;
@@ -36,6 +34,7 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -62,7 +61,11 @@ import com.yammer.metrics.core.MetricName;
  * to keep track of uid to array index mapping, persisted and in memory
  * versions. The the document gets into the system, the class will find/create
  * uid to index mapping, and change the activity values for the activity fields
- * found in the document
+ * found in the document<br>
+ * The updates of different uids run concurrently, they share the read lock of the globalLock and are serialized per uid by the
+ * {@link StripedLong2IntMap} stripe monitor. The write lock is taken only to grow the underlying values, to delete documents and to swap
+ * the pending batches on flush. The pending batches are striped by index and the version is advanced with a CAS, so that the writers of
+ * different docs don't share a monitor
  * 
  */
 public class CompositeActivityValues {
@@ -75,15 +78,24 @@ public class CompositeActivityValues {
 
   protected Map<String, ActivityValues> valuesMap = new ConcurrentHashMap<String, ActivityValues>();
   protected volatile String lastVersion = "";
-  protected Long2IntMap uidToArrayIndex = new Long2IntOpenHashMap();
+  protected StripedLong2IntMap uidToArrayIndex = new StripedLong2IntMap(DEFAULT_INITIAL_CAPACITY);
   protected ReadWriteLock globalLock = new ReentrantReadWriteLock();
   protected ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
   protected IntList deletedIndexes = new IntArrayList(2000);
+  // the size of deletedIndexes, read without the lock, so that new uids only take it if there is an index to reuse
+  volatile int reusableIndexes;
   protected CompositeActivityStorage activityStorage;
   protected UpdateBatch<Update> updateBatch;
   protected RecentlyAddedUids recentlyAddedUids;
   protected AtomicInteger indexSize;
   protected volatile Metadata metadata;
+  protected ActivityWriteAheadLog writeAheadLog;
+  /**
+   * All the indexes below the capacity can be updated without growing the underlying activity values
+   */
+  protected volatile int capacity;
+  private static final AtomicReferenceFieldUpdater<CompositeActivityValues, String> LAST_VERSION =
+      AtomicReferenceFieldUpdater.newUpdater(CompositeActivityValues.class, String.class, "lastVersion");
 
   private volatile boolean closed;
   private ActivityConfig activityConfig;
@@ -110,13 +122,16 @@ public class CompositeActivityValues {
   }
 
   public void init(int count) {
-    uidToArrayIndex = new Long2IntOpenHashMap(count);
+    uidToArrayIndex = new StripedLong2IntMap(count);
     indexSize = new AtomicInteger(0);
   }
 
   public void updateVersion(String version) {
-    if (versionComparator.compare(lastVersion, version) < 0) {
-      lastVersion = version;
+    while (true) {
+      String current = lastVersion;
+      if (versionComparator.compare(current, version) >= 0 || LAST_VERSION.compareAndSet(this, current, version)) {
+        return;
+      }
     }
   }
 
@@ -129,36 +144,47 @@ public class CompositeActivityValues {
       return -1;
     }
     if (map.isEmpty()) {
-      lastVersion = version;
+      updateVersion(version);
       return -1;
     }
     int index = -1;
-
-    Lock writeLock = globalLock.writeLock();
     boolean needToFlush = false;
-    try {
-      writeLock.lock();
-      totalUpdatesCounter.inc();
-      if (uidToArrayIndex.containsKey(uid)) {
-        index = uidToArrayIndex.get(uid);
-      } else {
-        insertedDocumentsCounter.inc();
-        synchronized (deletedIndexes) {
-          if (deletedIndexes.size() > 0) {
-            index = deletedIndexes.removeInt(deletedIndexes.size() - 1);
-          } else {
-            index = indexSize.getAndIncrement();
+    while (true) {
+      Lock readLock = globalLock.readLock();
+      readLock.lock();
+      try {
+        synchronized (uidToArrayIndex.getLock(uid)) {
+          index = uidToArrayIndex.get(uid);
+          boolean allocated = index == -1;
+          if (allocated) {
+            insertedDocumentsCounter.inc();
+            if (reusableIndexes > 0) {
+              synchronized (deletedIndexes) {
+                if (deletedIndexes.size() > 0) {
+                  index = deletedIndexes.removeInt(deletedIndexes.size() - 1);
+                  reusableIndexes = deletedIndexes.size();
+                }
+              }
+            }
+            if (index == -1) {
+              index = indexSize.getAndIncrement();
+            }
+            uidToArrayIndex.put(uid, index);
+            recentlyAddedUids.add(uid);
+            needToFlush = updateBatch.addFieldUpdate(index, new Update(index, uid));
+          }
+          if (index < capacity) {
+            totalUpdatesCounter.inc();
+            boolean currentUpdate = updateActivities(map, index, allocated);
+            needToFlush = needToFlush || currentUpdate;
+            updateVersion(version);
+            break;
           }
         }
-        uidToArrayIndex.put(uid, index);
-        recentlyAddedUids.add(uid);
-        needToFlush = updateBatch.addFieldUpdate(new Update(index, uid));
+      } finally {
+        readLock.unlock();
       }
-      boolean currentUpdate = updateActivities(map, index);
-      needToFlush = needToFlush || currentUpdate;
-      lastVersion = version;
-    } finally {
-      writeLock.unlock();
+      ensureCapacity(index);
     }
     if (needToFlush) {
       flush();
@@ -166,6 +192,26 @@ public class CompositeActivityValues {
     return index;
   }
 
+  /**
+   * Grows all the activity values, so that the index can be updated under the read lock
+   */
+  private void ensureCapacity(int index) {
+    Lock writeLock = globalLock.writeLock();
+    writeLock.lock();
+    try {
+      if (index < capacity) {
+        return;
+      }
+      int newCapacity = Integer.MAX_VALUE;
+      for (ActivityValues activityValues : valuesMap.values()) {
+        newCapacity = Math.min(newCapacity, activityValues.ensureCapacity(index));
+      }
+      capacity = newCapacity;
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
   public ActivityPrimitiveValues getActivityValues(String fieldName) {
     ActivityValues activityValues = valuesMap.get(fieldName);
     if (activityValues == null) {
@@ -185,14 +231,17 @@ public class CompositeActivityValues {
     }
   }
 
-  private boolean updateActivities(Map<String, Object> map, int index) {
+  /**
+   * @param allocated whether the index was just given to the uid, then the absent fields are reset to zero, otherwise they are left as they are
+   */
+  private boolean updateActivities(Map<String, Object> map, int index, boolean allocated) {
     boolean needToFlush = false;
     for (ActivityValues activityIntValues : valuesMap.values()) {
       Object value = map.get(activityIntValues.getFieldName());
       if (value != null) {
-        needToFlush = needToFlush | activityIntValues.update(index, value);
-      } else {
-        needToFlush = needToFlush | activityIntValues.update(index, "+0");
+        needToFlush = needToFlush | activityIntValues.update(index, ActivityDelta.parse(value));
+      } else if (allocated) {
+        needToFlush = needToFlush | activityIntValues.update(index, ActivityDelta.ZERO);
       }
     }
     return needToFlush;
@@ -216,15 +265,15 @@ public class CompositeActivityValues {
       Lock writeLock = globalLock.writeLock();
       try {
         writeLock.lock();
-        if (!uidToArrayIndex.containsKey(uid)) {
+        int index = uidToArrayIndex.remove(uid);
+        if (index == -1) {
           continue;
         }
         deletedDocumentsCounter.inc();
-        int index = uidToArrayIndex.remove(uid);
         for (ActivityValues activityIntValues : valuesMap.values()) {
           activityIntValues.delete(index);
         }
-        needToFlush = needToFlush | pendingDeletes.addFieldUpdate(new Update(index, Long.MIN_VALUE));
+        needToFlush = needToFlush | pendingDeletes.addFieldUpdate(index, new Update(index, Long.MIN_VALUE));
       } finally {
         writeLock.unlock();
       }
@@ -298,12 +347,25 @@ public class CompositeActivityValues {
     if (closed || activityStorage == null) {
       return;
     }
-    final boolean flushDeletesNeeded = pendingDeletes.updates.size() > 0;
+    Lock writeLock = globalLock.writeLock();
+    writeLock.lock();
+    try {
+      prepareFlush();
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Swaps the pending batches, should be called under the write lock, so that no update is lost in the batch being persisted
+   */
+  private void prepareFlush() {
+    final boolean flushDeletesNeeded = !pendingDeletes.isEmpty();
     final UpdateBatch<Update> batchToDelete = (flushDeletesNeeded) ? pendingDeletes : null;
     if (flushDeletesNeeded) {
       pendingDeletes = new UpdateBatch<Update>(activityConfig);
     }
-    final boolean flushUpdatesNeeded = updateBatch.updates.size() > 0 || versionComparator.compare(lastVersion, metadata.version) != 0;
+    final boolean flushUpdatesNeeded = !updateBatch.isEmpty() || versionComparator.compare(lastVersion, metadata.version) != 0;
     if (!flushUpdatesNeeded && !flushDeletesNeeded) {
       return;
     }
@@ -324,19 +386,21 @@ public class CompositeActivityValues {
           return;
         }
         if (flushUpdatesNeeded) {
-          activityStorage.flush(batchToPersist.updates);
+          activityStorage.flush(batchToPersist.getUpdates());
         }
         if (flushDeletesNeeded) {
-          Collections.reverse(batchToDelete.updates);
-          activityStorage.flush(batchToDelete.updates);
+          List<Update> deletes = new ArrayList<Update>(batchToDelete.getUpdates());
+          Collections.reverse(deletes);
+          activityStorage.flush(deletes);
           synchronized (deletedIndexes) {
-            for (Update update : batchToDelete.updates) {
+            for (Update update : deletes) {
               deletedIndexes.add(update.index);
             }
+            reusableIndexes = deletedIndexes.size();
           }
         }
         int count = 0;
-        globalLock.readLock().lock();
+        globalLock.writeLock().lock();
         try {
           synchronized (deletedIndexes) {
             count = uidToArrayIndex.size() + deletedIndexes.size();
@@ -347,11 +411,15 @@ public class CompositeActivityValues {
             logger.info("Flush compositeActivityValues. Documents = " + uidToArrayIndex.size() + ", Deletes = " + deletedIndexes.size());
           }
         } finally {
-          globalLock.readLock().unlock();
+          globalLock.writeLock().unlock();
         }
         for (Runnable runnable : underlyingFlushes) {
           runnable.run();
         }
+        if (writeAheadLog != null) {
+          // the flushes above only appended to the log, the files are written once the group is fsynced
+          writeAheadLog.commit(version, count);
+        }
         metadata.update(version, count);
       }
     });
@@ -366,6 +434,9 @@ public class CompositeActivityValues {
     } catch (InterruptedException e) {
       Thread.currentThread().interrupt();
     }
+    if (writeAheadLog != null) {
+      writeAheadLog.close();
+    }
     if (activityStorage != null) {
       activityStorage.close();
     }
@@ -383,17 +454,7 @@ public class CompositeActivityValues {
         ret[i] = -1;
         continue;
       }
-      Lock lock = globalLock.readLock();
-      try {
-        lock.lock();
-        if (!uidToArrayIndex.containsKey(uid)) {
-          ret[i] = -1;
-        } else {
-          ret[i] = uidToArrayIndex.get(uid);
-        }
-      } finally {
-        lock.unlock();
-      }
+      ret[i] = uidToArrayIndex.get(uid);
     }
     return ret;
   }
@@ -403,53 +464,29 @@ public class CompositeActivityValues {
   }
 
   public int getIntValueByUID(long uid, String column) {
-    Lock lock = globalLock.readLock();
-    try {
-      lock.lock();
-      if (!uidToArrayIndex.containsKey(uid)) {
-        return Integer.MIN_VALUE;
-      }
-      return ((ActivityIntValues) getActivityValues(column)).getIntValue(uidToArrayIndex.get(uid));
-    } finally {
-      lock.unlock();
+    int index = uidToArrayIndex.get(uid);
+    if (index == -1) {
+      return Integer.MIN_VALUE;
     }
+    return ((ActivityIntValues) getActivityValues(column)).getIntValue(index);
   }
 
   public float getFloatValueByUID(long uid, String column) {
-    Lock lock = globalLock.readLock();
-    try {
-      lock.lock();
-      if (!uidToArrayIndex.containsKey(uid)) {
-        return Float.MIN_VALUE;
-      }
-      return ((ActivityFloatValues) getActivityValues(column)).getFloatValue(uidToArrayIndex.get(uid));
-    } finally {
-      lock.unlock();
+    int index = uidToArrayIndex.get(uid);
+    if (index == -1) {
+      return Float.MIN_VALUE;
     }
+    return ((ActivityFloatValues) getActivityValues(column)).getFloatValue(index);
   }
   public long getLongValueByUID(long uid, String column) {
-      Lock lock = globalLock.readLock();
-      try {
-        lock.lock();
-        if (!uidToArrayIndex.containsKey(uid)) {
-          return Long.MIN_VALUE;
-        }
-        return ((ActivityLongValues) getActivityValues(column)).getLongValue(uidToArrayIndex.get(uid));
-      } finally {
-        lock.unlock();
+      int index = uidToArrayIndex.get(uid);
+      if (index == -1) {
+        return Long.MIN_VALUE;
       }
+      return ((ActivityLongValues) getActivityValues(column)).getLongValue(index);
     }
   public int getIndexByUID(long uid) {
-    Lock lock = globalLock.readLock();
-    try {
-      lock.lock();
-      if (!uidToArrayIndex.containsKey(uid)) {
-        return -1;
-      }
-      return uidToArrayIndex.get(uid);
-    } finally {
-      lock.unlock();
-    }
+    return uidToArrayIndex.get(uid);
   }
 
   public static CompositeActivityValues createCompositeValues(ActivityPersistenceFactory activityPersistenceFactory,
@@ -457,6 +494,7 @@ public class CompositeActivityValues {
       Comparator<String> versionComparator) {
     CompositeActivityValues ret = new CompositeActivityValues();
     CompositeActivityStorage persistentColumnManager = activityPersistenceFactory.getCompositeStorage();
+    ret.writeAheadLog = activityPersistenceFactory.getWriteAheadLog();
 
     ret.metadata = activityPersistenceFactory.getMetadata();
 
@@ -18,10 +18,9 @@
  */
 package com.senseidb.indexing.activity;
 
-import it.unimi.dsi.fastutil.longs.LongIterator;
-
 import java.io.IOException;
 import java.lang.management.ManagementFactory;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.List;
 import java.util.Set;
@@ -51,6 +50,7 @@ import com.yammer.metrics.core.Timer;
 
 public class PurgeUnusedActivitiesJob implements Runnable, PurgeUnusedActivitiesJobMBean {
   private final static Logger logger = Logger.getLogger(PurgeUnusedActivitiesJob.class);
+  public static final int DEFAULT_CHUNK_SIZE = 10000;
   
   private final CompositeActivityValues compositeActivityValues;
   private static Timer timer = Metrics.newTimer(new MetricName(PurgeUnusedActivitiesJob.class, "purgeUnusedActivityIndexes"), TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
@@ -60,6 +60,12 @@ public class PurgeUnusedActivitiesJob implements Runnable, PurgeUnusedActivities
   protected ScheduledExecutorService executorService = Executors.newSingleThreadScheduledExecutor();
 
   private final long frequencyInMillis;
+  private volatile int chunkSize = DEFAULT_CHUNK_SIZE;
+  private volatile long pauseBetweenChunksInMillis = 0;
+  private volatile boolean running;
+  private volatile int totalUids;
+  private volatile int processedUids;
+  private volatile int purgedUids;
 
   private SenseiCore senseiCore;
   public PurgeUnusedActivitiesJob(CompositeActivityValues compositeActivityValues, SenseiCore senseiCore, long frequencyInMillis) {
@@ -99,21 +105,40 @@ public class PurgeUnusedActivitiesJob implements Runnable, PurgeUnusedActivities
       logger.error(e.getMessage(), e);
     }
   }
-  public int purgeUnusedActivityIndexes() {
+  /**
+   * Walks over the activity uids stripe by stripe in chunks of at most chunkSize uids. Each chunk is probed against the uid mappers
+   * of the current segment readers, the readers are acquired per chunk, and the job yields between the chunks, so neither the memory footprint
+   * nor the time the readers are held grows with the size of the activity index
+   */
+  public synchronized int purgeUnusedActivityIndexes() {
     logger.info("Starting the purgeUnusedActivitiesJob");
-    long[] keys;
+    StripedLong2IntMap uidToArrayIndex = compositeActivityValues.uidToArrayIndex;
+    totalUids = uidToArrayIndex.size();
+    processedUids = 0;
+    purgedUids = 0;
+    running = true;
     try {
-      compositeActivityValues.globalLock.readLock().lock();
-      keys = new long[compositeActivityValues.uidToArrayIndex.size()];
-      LongIterator iterator = compositeActivityValues.uidToArrayIndex.keySet().iterator();
-      int i = 0;
-      while (iterator.hasNext()) {
-        keys[i++] = iterator.nextLong();
+      for (int stripe = 0; stripe < uidToArrayIndex.getStripeCount() && !Thread.currentThread().isInterrupted(); stripe++) {
+        long[] keys = uidToArrayIndex.keys(stripe);
+        for (int offset = 0; offset < keys.length && !Thread.currentThread().isInterrupted(); offset += chunkSize) {
+          int length = Math.min(chunkSize, keys.length - offset);
+          purgedUids += purgeChunk(offset == 0 && length == keys.length ? keys : Arrays.copyOfRange(keys, offset, offset + length));
+          processedUids += length;
+          pauseBetweenChunks();
+        }
       }
-    }  finally {
-        compositeActivityValues.globalLock.readLock().unlock();
-    }     
-    int bitSetLength = keys.length;
+    } finally {
+      running = false;
+    }
+    if (purgedUids == 0) {
+      logger.info("purgeUnusedActivitiesJob found  no activities to purge");
+      return 0;
+    }
+    logger.info("purgeUnusedActivitiesJob found  " + purgedUids + " activities to purge");
+    foundActivitiesToPurge.inc(purgedUids);
+    return purgedUids;
+  }
+  private int purgeChunk(long[] keys) {
     BitSet foundSet = new BitSet(keys.length); 
     for (int partition : senseiCore.getPartitions()) {
       IndexReaderFactory<ZoieIndexReader<BoboIndexReader>> zoie =  senseiCore.getIndexReaderFactory(partition);
@@ -133,17 +158,17 @@ public class PurgeUnusedActivitiesJob implements Runnable, PurgeUnusedActivities
         }
       } catch (IOException e) {
         logger.error(e.getMessage(), e);
+        return 0;
       } finally {
         if (indexReaders != null) {
           zoie.returnIndexReaders(indexReaders);
         }        
       }
     }
-    int recovered = compositeActivityValues.recentlyAddedUids.markRecentAsFoundInBitSet(keys, foundSet, bitSetLength);
+    int recovered = compositeActivityValues.recentlyAddedUids.markRecentAsFoundInBitSet(keys, foundSet, keys.length);
     recentUidsSavedFromPurge.inc(recovered);
     int found = foundSet.cardinality();
     if (found == keys.length) {
-      logger.info("purgeUnusedActivitiesJob found  no activities to purge");
       return 0;
     }
     long[] notFound = new long[keys.length - found];   
@@ -155,10 +180,44 @@ public class PurgeUnusedActivitiesJob implements Runnable, PurgeUnusedActivities
       }
     }
     compositeActivityValues.delete(notFound);
-    logger.info("purgeUnusedActivitiesJob found  " + notFound.length + " activities to purge");
-    foundActivitiesToPurge.inc(notFound.length);
     return notFound.length;
   }
+  private void pauseBetweenChunks() {
+    if (pauseBetweenChunksInMillis <= 0) {
+      Thread.yield();
+      return;
+    }
+    try {
+      Thread.sleep(pauseBetweenChunksInMillis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+  public void setChunkSize(int chunkSize) {
+    if (chunkSize <= 0) {
+      throw new IllegalArgumentException("The chunk size should be positive - " + chunkSize);
+    }
+    this.chunkSize = chunkSize;
+  }
+  public void setPauseBetweenChunksInMillis(long pauseBetweenChunksInMillis) {
+    this.pauseBetweenChunksInMillis = pauseBetweenChunksInMillis;
+  }
+  @Override
+  public boolean isRunning() {
+    return running;
+  }
+  @Override
+  public int getTotalUids() {
+    return totalUids;
+  }
+  @Override
+  public int getProcessedUids() {
+    return processedUids;
+  }
+  @Override
+  public int getPurgedUids() {
+    return purgedUids;
+  }
   public static long extractFrequency(SenseiPluginRegistry pluginRegistry) {
     int minutes = pluginRegistry.getConfiguration().getInt(SenseiConfParams.SENSEI_INDEX_ACTIVITY_PURGE_FREQUENCY_MINUTES, 0);
     if (minutes != 0) {
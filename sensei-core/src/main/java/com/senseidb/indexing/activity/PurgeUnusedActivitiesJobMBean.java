@@ -20,4 +20,20 @@ package com.senseidb.indexing.activity;
 
 public interface PurgeUnusedActivitiesJobMBean {
   public int purgeUnusedActivityIndexes();
+  /**
+   * @return true while the purge is in progress
+   */
+  public boolean isRunning();
+  /**
+   * @return the number of activity uids at the start of the current or the last purge
+   */
+  public int getTotalUids();
+  /**
+   * @return the number of uids already checked by the current or the last purge
+   */
+  public int getProcessedUids();
+  /**
+   * @return the number of uids purged so far by the current or the last purge
+   */
+  public int getPurgedUids();
 }
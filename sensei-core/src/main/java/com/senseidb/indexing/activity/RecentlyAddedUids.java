@@ -37,9 +37,6 @@ public class RecentlyAddedUids {
     elems.add(uid);
   }
   public synchronized int markRecentAsFoundInBitSet(long[] uids, BitSet found, int bitSetLength) {
-    if (found.length() == 0) {
-      return 0;
-    }
     int ret = 0;
     int index = 0;
     while (true) {
@@ -0,0 +1,138 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+package com.senseidb.indexing.activity;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+
+/**
+ * Lock striped uid to array index map. The uids are spread over a fixed number of open addressing maps, each one guarded by its own monitor,
+ * so that the updates of different uids don't contend on the same lock. {@link #getLock(long)} exposes the stripe monitor, 
+ * so the callers can make the lookup and the activity update for the same uid atomic.<br>
+ * Returns -1 for the missing keys
+ */
+public class StripedLong2IntMap {
+  private static final int STRIPE_SHIFT = 6;
+  private static final int STRIPE_COUNT = 1 << STRIPE_SHIFT;
+  private final Long2IntOpenHashMap[] stripes = new Long2IntOpenHashMap[STRIPE_COUNT];
+
+  public StripedLong2IntMap(int expectedSize) {
+    int stripeSize = Math.max(16, expectedSize / STRIPE_COUNT);
+    for (int i = 0; i < STRIPE_COUNT; i++) {
+      stripes[i] = new Long2IntOpenHashMap(stripeSize);
+      stripes[i].defaultReturnValue(-1);
+    }
+  }
+
+  private Long2IntOpenHashMap stripe(long key) {
+    return stripes[(int) ((key * 0x9E3779B97F4A7C15L) >>> (64 - STRIPE_SHIFT))];
+  }
+
+  public Object getLock(long key) {
+    return stripe(key);
+  }
+
+  public int get(long key) {
+    Long2IntOpenHashMap stripe = stripe(key);
+    synchronized (stripe) {
+      return stripe.get(key);
+    }
+  }
+
+  public boolean containsKey(long key) {
+    Long2IntOpenHashMap stripe = stripe(key);
+    synchronized (stripe) {
+      return stripe.containsKey(key);
+    }
+  }
+
+  public int put(long key, int value) {
+    Long2IntOpenHashMap stripe = stripe(key);
+    synchronized (stripe) {
+      return stripe.put(key, value);
+    }
+  }
+
+  /**
+   * Puts the value only if it's greater than the current one
+   */
+  public void putMax(long key, int value) {
+    Long2IntOpenHashMap stripe = stripe(key);
+    synchronized (stripe) {
+      if (stripe.get(key) < value) {
+        stripe.put(key, value);
+      }
+    }
+  }
+
+  public int remove(long key) {
+    Long2IntOpenHashMap stripe = stripe(key);
+    synchronized (stripe) {
+      return stripe.remove(key);
+    }
+  }
+
+  public int size() {
+    int size = 0;
+    for (Long2IntOpenHashMap stripe : stripes) {
+      synchronized (stripe) {
+        size += stripe.size();
+      }
+    }
+    return size;
+  }
+
+  public int getStripeCount() {
+    return STRIPE_COUNT;
+  }
+
+  /**
+   * @return the snapshot of the keys that belong to the given stripe. Allows to walk over the map in chunks of roughly size()/getStripeCount() keys
+   */
+  public long[] keys(int stripe) {
+    synchronized (stripes[stripe]) {
+      long[] ret = new long[stripes[stripe].size()];
+      LongIterator iterator = stripes[stripe].keySet().iterator();
+      int j = 0;
+      while (iterator.hasNext()) {
+        ret[j++] = iterator.nextLong();
+      }
+      return ret;
+    }
+  }
+
+  /**
+   * @return the snapshot of all the keys. The concurrent modifications of the different stripes might be partially visible
+   */
+  public long[] keys() {
+    long[][] stripeKeys = new long[STRIPE_COUNT][];
+    int size = 0;
+    for (int i = 0; i < STRIPE_COUNT; i++) {
+      stripeKeys[i] = keys(i);
+      size += stripeKeys[i].length;
+    }
+    long[] ret = new long[size];
+    int offset = 0;
+    for (long[] keys : stripeKeys) {
+      System.arraycopy(keys, 0, ret, offset, keys.length);
+      offset += keys.length;
+    }
+    return ret;
+  }
+}
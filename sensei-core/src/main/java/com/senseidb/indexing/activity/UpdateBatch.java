@@ -20,35 +20,70 @@ package com.senseidb.indexing.activity;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Keeps track of all the changes not yet persisted
+ * Keeps track of all the changes not yet persisted. The updates might be added concurrently, they are striped by the array index,
+ * so that the writers of different docs don't contend, while the updates of the same doc keep their order
  * @author vzhabiuk
  *
  * @param <T>
  */
 public class UpdateBatch<T> {
+  private static final int STRIPES = 16;
   int batchSize = 50000;
-  protected volatile List<T> updates = new ArrayList<T>(2000);
+  private final List<T>[] stripes;
+  private final AtomicInteger size = new AtomicInteger();
+  private volatile List<T> updates;
   long delay = 15 * 1000;
   long time = System.currentTimeMillis();
+  @SuppressWarnings("unchecked")
   private UpdateBatch() {
+    stripes = new List[STRIPES];
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new ArrayList<T>(2000 / STRIPES);
+    }
   }
   public UpdateBatch(ActivityConfig activityConfig) {
+    this();
     batchSize = activityConfig.getFlushBufferSize();
     delay = activityConfig.getFlushBufferMaxDelayInSeconds() * 1000;
   }
-  public boolean addFieldUpdate(T fieldUpdate) {
-    updates.add(fieldUpdate);
-    if (flushNeeded()) {
-      return true;
+  /**
+   * @param index the array index the update belongs to
+   * @return true if the batch needs to be flushed
+   */
+  public boolean addFieldUpdate(int index, T fieldUpdate) {
+    List<T> stripe = stripes[index & (STRIPES - 1)];
+    synchronized (stripe) {
+      stripe.add(fieldUpdate);
     }
-    return false;
+    size.incrementAndGet();
+    return flushNeeded();
   }
   public boolean flushNeeded() {
-    return updates.size() >= batchSize || ((System.currentTimeMillis() - time) > delay && !updates.isEmpty());
+    int currentSize = size.get();
+    return currentSize >= batchSize || ((System.currentTimeMillis() - time) > delay && currentSize > 0);
+  }
+  public int size() {
+    return size.get();
   }
+  public boolean isEmpty() {
+    return size.get() == 0;
+  }
+  /**
+   * Should be called only once no more updates are added, e.g. after the batch was swapped on flush
+   */
   public List<T> getUpdates() {
+    if (updates == null) {
+      List<T> ret = new ArrayList<T>(size.get());
+      for (List<T> stripe : stripes) {
+        synchronized (stripe) {
+          ret.addAll(stripe);
+        }
+      }
+      updates = ret;
+    }
     return updates;
   }
 }
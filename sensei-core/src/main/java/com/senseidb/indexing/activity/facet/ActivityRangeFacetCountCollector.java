@@ -0,0 +1,240 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+package com.senseidb.indexing.activity.facet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.browseengine.bobo.api.BrowseFacet;
+import com.browseengine.bobo.api.FacetIterator;
+import com.browseengine.bobo.api.FacetSpec;
+import com.browseengine.bobo.facets.FacetCountCollector;
+import com.browseengine.bobo.util.BigIntArray;
+import com.browseengine.bobo.util.BigSegmentedArray;
+import com.senseidb.indexing.activity.primitives.ActivityFloatValues;
+import com.senseidb.indexing.activity.primitives.ActivityIntValues;
+import com.senseidb.indexing.activity.primitives.ActivityLongValues;
+import com.senseidb.indexing.activity.primitives.ActivityPrimitiveValues;
+
+/**
+ * Counts hits per predefined range over an activity column. The ranges are parsed once into primitive bounds,
+ * so collecting a doc is a lookup in the precomputed indexes array followed by a primitive comparison per range
+ * @author vzhabiuk
+ *
+ */
+public class ActivityRangeFacetCountCollector implements FacetCountCollector {
+  private final String name;
+  private final int[] indexes;
+  private final String[] ranges;
+  private final int[] counts;
+  private final FacetSpec facetSpec;
+  private final ActivityIntValues intValues;
+  private final ActivityFloatValues floatValues;
+  private final ActivityLongValues longValues;
+  private final int[] intStarts;
+  private final int[] intEnds;
+  private final long[] longStarts;
+  private final long[] longEnds;
+
+  public ActivityRangeFacetCountCollector(String name, ActivityPrimitiveValues activityValues, int[] indexes, List<String> ranges, FacetSpec facetSpec) {
+    this.name = name;
+    this.indexes = indexes;
+    this.facetSpec = facetSpec;
+    this.ranges = ranges.toArray(new String[ranges.size()]);
+    counts = new int[this.ranges.length];
+    intValues = activityValues instanceof ActivityIntValues ? (ActivityIntValues) activityValues : null;
+    floatValues = activityValues instanceof ActivityFloatValues ? (ActivityFloatValues) activityValues : null;
+    longValues = activityValues instanceof ActivityLongValues ? (ActivityLongValues) activityValues : null;
+    if (longValues != null) {
+      intStarts = null;
+      intEnds = null;
+      longStarts = new long[this.ranges.length];
+      longEnds = new long[this.ranges.length];
+      for (int i = 0; i < this.ranges.length; i++) {
+        long[] range = ActivityRangeFacetHandler.parseRawLong(this.ranges[i]);
+        longStarts[i] = range[0];
+        longEnds[i] = range[1];
+      }
+    } else {
+      longStarts = null;
+      longEnds = null;
+      intStarts = new int[this.ranges.length];
+      intEnds = new int[this.ranges.length];
+      for (int i = 0; i < this.ranges.length; i++) {
+        int[] range = ActivityRangeFacetHandler.parseRaw(this.ranges[i]);
+        intStarts[i] = range[0];
+        intEnds[i] = range[1];
+      }
+    }
+  }
+
+  public void collect(int docid) {
+    int index = indexes[docid];
+    if (index == -1) {
+      return;
+    }
+    if (intValues != null) {
+      int value = intValues.getIntValue(index);
+      if (value == Integer.MIN_VALUE) {
+        return;
+      }
+      for (int i = 0; i < counts.length; i++) {
+        if (value >= intStarts[i] && value < intEnds[i]) {
+          counts[i]++;
+        }
+      }
+    } else if (longValues != null) {
+      long value = longValues.getLongValue(index);
+      if (value == Long.MIN_VALUE) {
+        return;
+      }
+      for (int i = 0; i < counts.length; i++) {
+        if (value >= longStarts[i] && value < longEnds[i]) {
+          counts[i]++;
+        }
+      }
+    } else {
+      float value = floatValues.getFloatValue(index);
+      if (value == Float.MIN_VALUE) {
+        return;
+      }
+      for (int i = 0; i < counts.length; i++) {
+        if (value >= intStarts[i] && value < intEnds[i]) {
+          counts[i]++;
+        }
+      }
+    }
+  }
+
+  public void collectAll() {
+    for (int i = 0; i < indexes.length; i++) {
+      collect(i);
+    }
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public BigSegmentedArray getCountDistribution() {
+    BigIntArray distribution = new BigIntArray(counts.length);
+    for (int i = 0; i < counts.length; i++) {
+      distribution.add(i, counts[i]);
+    }
+    return distribution;
+  }
+
+  public BrowseFacet getFacet(String value) {
+    int i = indexOf(value);
+    if (i == -1) {
+      return null;
+    }
+    return createFacet(i);
+  }
+
+  public int getFacetHitsCount(Object value) {
+    int i = indexOf(value);
+    return i == -1 ? 0 : counts[i];
+  }
+
+  public List<BrowseFacet> getFacets() {
+    int minHitCount = facetSpec != null ? facetSpec.getMinHitCount() : 1;
+    int maxCount = facetSpec != null ? facetSpec.getMaxCount() : 0;
+    List<BrowseFacet> ret = new ArrayList<BrowseFacet>(counts.length);
+    for (int i = 0; i < counts.length; i++) {
+      if (counts[i] >= minHitCount) {
+        ret.add(createFacet(i));
+      }
+    }
+    if (facetSpec != null && facetSpec.getOrderBy() == FacetSpec.FacetSortSpec.OrderHitsDesc) {
+      Collections.sort(ret, new Comparator<BrowseFacet>() {
+        public int compare(BrowseFacet f1, BrowseFacet f2) {
+          return f2.getFacetValueHitCount() - f1.getFacetValueHitCount();
+        }
+      });
+    }
+    if (maxCount > 0 && ret.size() > maxCount) {
+      return new ArrayList<BrowseFacet>(ret.subList(0, maxCount));
+    }
+    return ret;
+  }
+
+  public void close() {
+  }
+
+  public FacetIterator iterator() {
+    return new FacetIterator() {
+      private int position = -1;
+
+      public boolean hasNext() {
+        return position + 1 < counts.length;
+      }
+
+      public Comparable next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        position++;
+        facet = ranges[position];
+        count = counts[position];
+        return facet;
+      }
+
+      public Comparable next(int minHits) {
+        while (++position < counts.length) {
+          if (counts[position] >= minHits) {
+            facet = ranges[position];
+            count = counts[position];
+            return facet;
+          }
+        }
+        facet = null;
+        count = 0;
+        return null;
+      }
+
+      public String format(Object val) {
+        return String.valueOf(val);
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException("remove() method not supported for Facet Iterators");
+      }
+    };
+  }
+
+  private BrowseFacet createFacet(int i) {
+    BrowseFacet facet = new BrowseFacet();
+    facet.setValue(ranges[i]);
+    facet.setFacetValueHitCount(counts[i]);
+    return facet;
+  }
+
+  private int indexOf(Object value) {
+    for (int i = 0; i < ranges.length; i++) {
+      if (ranges[i].equals(value)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
@@ -20,7 +20,10 @@ package com.senseidb.indexing.activity.facet;
 
 import java.io.IOException;
 import java.text.DecimalFormat;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Properties;
 
 import org.apache.lucene.index.IndexReader;
@@ -34,6 +37,7 @@ import com.browseengine.bobo.api.BrowseSelection;
 import com.browseengine.bobo.api.FacetSpec;
 import com.browseengine.bobo.docidset.EmptyDocIdSet;
 import com.browseengine.bobo.docidset.RandomAccessDocIdSet;
+import com.browseengine.bobo.facets.FacetCountCollector;
 import com.browseengine.bobo.facets.FacetCountCollectorSource;
 import com.browseengine.bobo.facets.FacetHandler;
 import com.browseengine.bobo.facets.filter.FacetRangeFilter;
@@ -66,17 +70,26 @@ public class ActivityRangeFacetHandler extends FacetHandler<int[]> {
   private final ActivityPrimitiveValues activityValues;
 
   protected final CompositeActivityManager compositeActivityManager;
+
+  private final List<String> predefinedRanges;
   
   public ActivityRangeFacetHandler(String facetName, String fieldName, CompositeActivityManager compositeActivityManager, ActivityPrimitiveValues activityValues) {
+    this(facetName, fieldName, compositeActivityManager, activityValues, Collections.<String>emptyList());
+  }
+  public ActivityRangeFacetHandler(String facetName, String fieldName, CompositeActivityManager compositeActivityManager, ActivityPrimitiveValues activityValues, List<String> predefinedRanges) {
     super(facetName, new HashSet<String>());
     this.compositeActivityManager = compositeActivityManager;
     this.activityValues = activityValues;   
+    this.predefinedRanges = predefinedRanges;
   }
   public static FacetHandler valueOf(String facetName, String fieldName, CompositeActivityManager compositeActivityManager, ActivityPrimitiveValues activityValues) {
+    return valueOf(facetName, fieldName, compositeActivityManager, activityValues, Collections.<String>emptyList());
+  }
+  public static FacetHandler valueOf(String facetName, String fieldName, CompositeActivityManager compositeActivityManager, ActivityPrimitiveValues activityValues, List<String> predefinedRanges) {
    if (isSynchronized) {
-     return new SynchronizedActivityRangeFacetHandler(facetName, fieldName, compositeActivityManager, activityValues);
+     return new SynchronizedActivityRangeFacetHandler(facetName, fieldName, compositeActivityManager, activityValues, predefinedRanges);
    }
-   return new ActivityRangeFacetHandler(facetName, fieldName, compositeActivityManager, activityValues);
+   return new ActivityRangeFacetHandler(facetName, fieldName, compositeActivityManager, activityValues, predefinedRanges);
 
   }
  
@@ -100,10 +113,10 @@ public class ActivityRangeFacetHandler extends FacetHandler<int[]> {
         if (value == null || value.isEmpty()) {
           return  EmptyDocIdSet.getInstance();
         }
-        final int[] intArray = activityValues instanceof ActivityIntValues ? ((ActivityIntValues) activityValues).getFieldValues() : null;
-        final float[] floatArray = activityValues instanceof ActivityFloatValues ? ((ActivityFloatValues) activityValues).getFieldValues() : null;
-        final long[] longArray = activityValues instanceof ActivityLongValues ? ((ActivityLongValues) activityValues).getFieldValues() : null;
-        if (longArray == null) {
+        final ActivityIntValues intValues = activityValues instanceof ActivityIntValues ? (ActivityIntValues) activityValues : null;
+        final ActivityFloatValues floatValues = activityValues instanceof ActivityFloatValues ? (ActivityFloatValues) activityValues : null;
+        final ActivityLongValues longValues = activityValues instanceof ActivityLongValues ? (ActivityLongValues) activityValues : null;
+        if (longValues == null) {
             int[] range = parseRaw(value);
             final int startValue = range[0];
             final int endValue = range[1];
@@ -113,26 +126,26 @@ public class ActivityRangeFacetHandler extends FacetHandler<int[]> {
             return new RandomAccessDocIdSet() {          
                 @Override
                 public DocIdSetIterator iterator() throws IOException {
-                    if (intArray != null) {
-                      return new ActivityRangeIntFilterIterator(intArray, indexes, startValue, endValue);           
+                    if (intValues != null) {
+                      return new ActivityRangeIntFilterIterator(intValues, indexes, startValue, endValue);           
                     } else {
-                      return new ActivityRangeFloatFilterIterator(floatArray, indexes, startValue, endValue); 
+                      return new ActivityRangeFloatFilterIterator(floatValues, indexes, startValue, endValue); 
                     }
                 }
                 @Override
                 public boolean get(int docId) {           
                   if (indexes[docId] == -1) return false;
-                  if (intArray != null) {
-                    int val = intArray[indexes[docId]]; 
+                  if (intValues != null) {
+                    int val = intValues.getIntValue(indexes[docId]); 
                     return val >= startValue && val < endValue && val != Integer.MIN_VALUE;
                   }
-                  float val = floatArray[indexes[docId]]; 
+                  float val = floatValues.getFloatValue(indexes[docId]); 
                   return val >= startValue && val < endValue && val != Integer.MIN_VALUE;      
                  
                 }
               };
         } else {
-            final long[] longRange = longArray != null ?  parseRawLong(value) : null;
+            final long[] longRange = longValues != null ?  parseRawLong(value) : null;
             final long startValue = longRange[0];
             final long endValue = longRange[1];
             if (startValue >= endValue) {
@@ -141,13 +154,13 @@ public class ActivityRangeFacetHandler extends FacetHandler<int[]> {
         return new RandomAccessDocIdSet() {          
           @Override
           public DocIdSetIterator iterator() throws IOException {
-                  return new ActivityRangeLongFilterIterator(longArray, indexes, startValue, endValue);  
+                  return new ActivityRangeLongFilterIterator(longValues, indexes, startValue, endValue);  
           }
           
           @Override
           public boolean get(int docId) {           
             if (indexes[docId] == -1) return false;
-                long val = longArray[indexes[docId]]; 
+                long val = longValues.getLongValue(indexes[docId]); 
                 return val >= startValue && val < endValue && val != Long.MIN_VALUE;
           }
         };
@@ -156,15 +169,39 @@ public class ActivityRangeFacetHandler extends FacetHandler<int[]> {
     };
   }
 
+  /**
+   * Counts hits per range. The ranges are the predefined ones from the schema, or the selection values if the facet doesn't define any
+   */
   @Override
-  public FacetCountCollectorSource getFacetCountCollectorSource(BrowseSelection sel, FacetSpec fspec) {
-   throw new UnsupportedOperationException("Facets on activity columns are unsupported");
+  public FacetCountCollectorSource getFacetCountCollectorSource(BrowseSelection sel, final FacetSpec fspec) {
+    List<String> ranges = predefinedRanges;
+    if (ranges.isEmpty() && sel != null && sel.getValues().length > 0) {
+      ranges = Arrays.asList(sel.getValues());
+    }
+    if (ranges.isEmpty()) {
+      throw new UnsupportedOperationException("Facets on the activity column " + _name + " require either predefined ranges or range selections");
+    }
+    final List<String> facetRanges = ranges;
+    return new FacetCountCollectorSource() {
+      @Override
+      public FacetCountCollector getFacetCountCollector(BoboIndexReader reader, int docBase) {
+        final int[] indexes = (int[]) reader.getFacetData(_name);
+        return new ActivityRangeFacetCountCollector(_name, activityValues, indexes, facetRanges, fspec);
+      }
+    };
   }  
   
   @Override
   public Object[] getRawFieldValues(BoboIndexReader reader, int id) {    
     final int[] indexes = (int[]) ((BoboIndexReader)reader).getFacetData(_name);
-    return indexes[id] != -1 ? new Object[] {activityValues.getValue(indexes[id])} : EMPTY_OBJ_ARR;
+    if (indexes[id] == -1) return EMPTY_OBJ_ARR;
+    if (activityValues instanceof ActivityIntValues) {
+      return new Object[] {((ActivityIntValues) activityValues).getIntValue(indexes[id])};
+    }
+    if (activityValues instanceof ActivityLongValues) {
+      return new Object[] {((ActivityLongValues) activityValues).getLongValue(indexes[id])};
+    }
+    return new Object[] {((ActivityFloatValues) activityValues).getFloatValue(indexes[id])};
   }
   
   public int getIntActivityValue(int[] facetData, int id) {
@@ -172,40 +209,45 @@ public class ActivityRangeFacetHandler extends FacetHandler<int[]> {
     if (id < 0 || id >= facetData.length) {
       return Integer.MIN_VALUE;
     }
-    return facetData[id] != -1 ? ((ActivityIntValues)activityValues).fieldValues[facetData[id]] : Integer.MIN_VALUE;
+    return facetData[id] != -1 ? ((ActivityIntValues)activityValues).getIntValue(facetData[id]) : Integer.MIN_VALUE;
   }
   public long getLongActivityValue(int[] facetData, int id) {
 
       if (id < 0 || id >= facetData.length) {
         return Long.MIN_VALUE;
       }
-      return facetData[id] != -1 ? ((ActivityLongValues)activityValues).fieldValues[facetData[id]] : Long.MIN_VALUE;
+      return facetData[id] != -1 ? ((ActivityLongValues)activityValues).getLongValue(facetData[id]) : Long.MIN_VALUE;
     }
   public float getFloatActivityValue(int[] facetData, int id) {
     if (id < 0 || id >= facetData.length) {
       return Integer.MIN_VALUE;
     }
 
-    return facetData[id] != -1 ? ((ActivityFloatValues)activityValues).fieldValues[facetData[id]] : Float.MIN_VALUE;
+    return facetData[id] != -1 ? ((ActivityFloatValues)activityValues).getFloatValue(facetData[id]) : Float.MIN_VALUE;
   }
   @Override
   public String[] getFieldValues(BoboIndexReader reader, int id) {   
     final int[] indexes = (int[]) ((BoboIndexReader)reader).getFacetData(_name); 
     if ( indexes[id] == -1) return EMPTY_STRING_ARR;
-    Number value = activityValues.getValue(indexes[id]);
-    if (value.intValue() == Integer.MIN_VALUE || value.floatValue() == Float.MIN_VALUE || value.longValue() == Long.MIN_VALUE) {
-      return EMPTY_STRING_ARR;
+    if (activityValues instanceof ActivityIntValues) {
+      int value = ((ActivityIntValues) activityValues).getIntValue(indexes[id]);
+      return value == Integer.MIN_VALUE ? EMPTY_STRING_ARR : new String[] {formatter.get().format(value)};
+    }
+    if (activityValues instanceof ActivityLongValues) {
+      long value = ((ActivityLongValues) activityValues).getLongValue(indexes[id]);
+      return value == Long.MIN_VALUE ? EMPTY_STRING_ARR : new String[] {formatter.get().format(value)};
     }
-    return new String[] {formatter.get().format(value)} ;
+    float value = ((ActivityFloatValues) activityValues).getFloatValue(indexes[id]);
+    return value == Float.MIN_VALUE ? EMPTY_STRING_ARR : new String[] {formatter.get().format(value)};
   }
 
   @Override
   public DocComparatorSource getDocComparatorSource() {
-    final int[] intArray = activityValues instanceof ActivityIntValues ? ((ActivityIntValues) activityValues).getFieldValues() : null;
-    final float[] floatArray = activityValues instanceof ActivityFloatValues ? ((ActivityFloatValues) activityValues).getFieldValues() : null;
-    final long[] longArray = activityValues instanceof ActivityLongValues ? ((ActivityLongValues) activityValues).getFieldValues() : null;
+    final ActivityIntValues intValues = activityValues instanceof ActivityIntValues ? (ActivityIntValues) activityValues : null;
+    final ActivityFloatValues floatValues = activityValues instanceof ActivityFloatValues ? (ActivityFloatValues) activityValues : null;
+    final ActivityLongValues longValues = activityValues instanceof ActivityLongValues ? (ActivityLongValues) activityValues : null;
     
-    if (intArray != null)
+    if (intValues != null)
     return new DocComparatorSource() {
       @Override
       public DocComparator getComparator(IndexReader reader, int docbase)
@@ -214,19 +256,19 @@ public class ActivityRangeFacetHandler extends FacetHandler<int[]> {
         return new DocComparator() {
           @Override
           public Comparable<Integer> value(ScoreDoc doc) {           
-              return indexes[doc.doc] != -1 ? intArray[indexes[doc.doc]] : 0;           
+              return indexes[doc.doc] != -1 ? intValues.getIntValue(indexes[doc.doc]) : 0;           
           }
 
           @Override
           public int compare(ScoreDoc doc1, ScoreDoc doc2) {  
-            int val1 = indexes[doc1.doc] != -1 ? intArray[indexes[doc1.doc]] : 0; 
-            int val2 = indexes[doc2.doc] != -1 ? intArray[indexes[doc2.doc]] : 0;            
+            int val1 = indexes[doc1.doc] != -1 ? intValues.getIntValue(indexes[doc1.doc]) : 0; 
+            int val2 = indexes[doc2.doc] != -1 ? intValues.getIntValue(indexes[doc2.doc]) : 0;            
             return (val1<val2 ? -1 : (val1==val2 ? 0 : 1));
           }
         };
       }
     };
-    if (longArray != null)
+    if (longValues != null)
         return new DocComparatorSource() {
         @Override
         public DocComparator getComparator(IndexReader reader, int docbase)
@@ -235,13 +277,13 @@ public class ActivityRangeFacetHandler extends FacetHandler<int[]> {
           return new DocComparator() {
             @Override
             public Comparable<Long> value(ScoreDoc doc) {           
-                return indexes[doc.doc] != -1 ? longArray[indexes[doc.doc]] : 0;           
+                return indexes[doc.doc] != -1 ? longValues.getLongValue(indexes[doc.doc]) : 0;           
             }
 
             @Override
             public int compare(ScoreDoc doc1, ScoreDoc doc2) {  
-              long val1 = indexes[doc1.doc] != -1 ? longArray[indexes[doc1.doc]] : 0; 
-              long val2 = indexes[doc2.doc] != -1 ? longArray[indexes[doc2.doc]] : 0;            
+              long val1 = indexes[doc1.doc] != -1 ? longValues.getLongValue(indexes[doc1.doc]) : 0; 
+              long val2 = indexes[doc2.doc] != -1 ? longValues.getLongValue(indexes[doc2.doc]) : 0;            
               return (val1<val2 ? -1 : (val1==val2 ? 0 : 1));
             }
           };
@@ -256,13 +298,13 @@ public class ActivityRangeFacetHandler extends FacetHandler<int[]> {
         return new DocComparator() {
           @Override
           public Comparable<Float> value(ScoreDoc doc) {           
-              return indexes[doc.doc] != -1 ? floatArray[indexes[doc.doc]] : 0;           
+              return indexes[doc.doc] != -1 ? floatValues.getFloatValue(indexes[doc.doc]) : 0;           
           }
 
           @Override
           public int compare(ScoreDoc doc1, ScoreDoc doc2) {  
-            float val1 = indexes[doc1.doc] != -1 ? floatArray[indexes[doc1.doc]] : 0; 
-            float val2 = indexes[doc2.doc] != -1 ? floatArray[indexes[doc2.doc]] : 0;            
+            float val1 = indexes[doc1.doc] != -1 ? floatValues.getFloatValue(indexes[doc1.doc]) : 0; 
+            float val2 = indexes[doc2.doc] != -1 ? floatValues.getFloatValue(indexes[doc2.doc]) : 0;            
             return (val1<val2 ? -1 : (val1==val2 ? 0 : 1));
           }
         };
@@ -19,6 +19,7 @@
 package com.senseidb.indexing.activity.facet;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.Properties;
 
 import org.apache.lucene.index.IndexReader;
@@ -50,6 +51,11 @@ public class SynchronizedActivityRangeFacetHandler extends ActivityRangeFacetHan
       ActivityPrimitiveValues activityPrimitiveValues) {
     super(facetName, fieldName, compositeActivityManager, activityPrimitiveValues);
   }
+
+  public SynchronizedActivityRangeFacetHandler(String facetName, String fieldName, CompositeActivityManager compositeActivityManager,
+      ActivityPrimitiveValues activityPrimitiveValues, List<String> predefinedRanges) {
+    super(facetName, fieldName, compositeActivityManager, activityPrimitiveValues, predefinedRanges);
+  }
   public static class BoboIndexTrackerInMemory extends BoboIndexTracker {
    
   @Override
@@ -20,8 +20,11 @@ package com.senseidb.indexing.activity.primitives;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
+import java.util.Arrays;
 
+import com.senseidb.indexing.activity.ActivityDelta;
 import com.senseidb.indexing.activity.AtomicFieldUpdate;
 
 public class ActivityFloatValues extends ActivityPrimitiveValues {
@@ -39,8 +42,8 @@ public float[] fieldValues;
     if (fieldValues[index] == Float.MIN_VALUE) {
       fieldValues[index] = 0;
     }
-    setValue(fieldValues, value, index);
-    return updateBatch.addFieldUpdate(AtomicFieldUpdate.valueOf(index, fieldValues[index]));
+    fieldValues[index] = computeValue(fieldValues[index], value);
+    return updateBatch.addFieldUpdate(index, AtomicFieldUpdate.valueOf(index, fieldValues[index]));
   }
 
   protected ActivityFloatValues() {
@@ -54,42 +57,53 @@ public float[] fieldValues;
     return fieldValues[index];
   }
 
-  private synchronized void ensureCapacity(int currentArraySize) {
-    if (fieldValues.length == 0) {
-      this.fieldValues = new float[50000];
-      return;
+  /**
+   * Makes sure that the element with the given index can be updated
+   */
+  public int ensureCapacity(int index) {
+    if (fieldValues.length - index >= 2) {
+      return fieldValues.length - 1;
     }
-    if (fieldValues.length - currentArraySize < 2) {
-      int newSize = fieldValues.length < 10000000 ? fieldValues.length * 2 : (int) (fieldValues.length * 1.5);
+    synchronized (this) {
+      if (fieldValues.length - index >= 2) {
+        return fieldValues.length - 1;
+      }
+      int newSize = fieldValues.length == 0 ? 50000 : fieldValues.length;
+      while (newSize - index < 2) {
+        newSize = newSize < 10000000 ? newSize * 2 : (int) (newSize * 1.5);
+      }
       float[] newFieldValues = new float[newSize];
       System.arraycopy(fieldValues, 0, newFieldValues, 0, fieldValues.length);
       this.fieldValues = newFieldValues;
+      return newSize - 1;
     }
   }
 
   /**
-   * value might be int or long or String. +n, -n  operations are supported
-   * @param fieldValues
+   * value might be int or long or String. +n, -n  operations and the {@link ActivityDelta} are supported
+   * @param currentValue
    * @param value
-   * @param index
    */
-  private static void setValue(float[] fieldValues, Object value, int index) {
+  protected static float computeValue(float currentValue, Object value) {
     if (value == null) {
-      return;
+      return currentValue;
+    }
+    if (value instanceof ActivityDelta) {
+      return currentValue + ((ActivityDelta) value).floatValue();
     }
      if (value instanceof Number) {
-      fieldValues[index] = ((Number) value).floatValue();
+      return ((Number) value).floatValue();
     } else if (value instanceof String) {
       String valStr = (String) value;
       if (valStr.isEmpty()) {
-        return;
+        return currentValue;
       }
       if (valStr.startsWith("+")) {
-        fieldValues[index] = fieldValues[index] + Float.parseFloat(valStr.substring(1));
+        return currentValue + Float.parseFloat(valStr.substring(1));
       } else if (valStr.startsWith("-")) {
-        fieldValues[index] = fieldValues[index] + Float.parseFloat(valStr);
+        return currentValue + Float.parseFloat(valStr);
       } else {
-        fieldValues[index] = Float.parseFloat(valStr);
+        return Float.parseFloat(valStr);
       }
     } else {
       throw new UnsupportedOperationException(
@@ -101,17 +115,22 @@ public float[] fieldValues;
     return fieldValues;
   }
 
+  /**
+   * Copies the values of the docs in the [fromIndex, toIndex) range
+   */
+  public float[] getFieldValues(int fromIndex, int toIndex) {
+    return Arrays.copyOfRange(fieldValues, fromIndex, toIndex);
+  }
+
   public void setFieldValues(float[] fieldValues) {
     this.fieldValues = fieldValues;
   }
   @Override 
   public void initFieldValues(int count, MappedByteBuffer  buffer) {
-     for (int i = 0; i < count; i++) {
-       float value;
-         value = buffer.getFloat(i * 4);
-       fieldValues[i] = value;
-     }
-   }
+    ByteBuffer view = buffer.duplicate();
+    view.clear();
+    view.asFloatBuffer().get(fieldValues, 0, count);
+  }
    @Override
    public void initFieldValues(int count, RandomAccessFile storedFile) {
      for (int i = 0; i < count; i++) {
@@ -128,7 +147,7 @@ public float[] fieldValues;
    @Override
    public void delete(int index) {
      fieldValues[index] = Float.MIN_VALUE;
-     updateBatch.addFieldUpdate(AtomicFieldUpdate.valueOf(index, fieldValues[index]));   
+     updateBatch.addFieldUpdate(index, AtomicFieldUpdate.valueOf(index, fieldValues[index]));   
    }
   @Override
   public int getFieldSizeInBytes() {
@@ -20,8 +20,11 @@ package com.senseidb.indexing.activity.primitives;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
+import java.util.Arrays;
 
+import com.senseidb.indexing.activity.ActivityDelta;
 import com.senseidb.indexing.activity.AtomicFieldUpdate;
 
 
@@ -44,8 +47,8 @@ public class ActivityIntValues extends ActivityPrimitiveValues  {
     if (fieldValues[index] == Integer.MIN_VALUE) {
       fieldValues[index] = 0;
     }
-    setValue(fieldValues, value, index);
-    return updateBatch.addFieldUpdate(AtomicFieldUpdate.valueOf(index, fieldValues[index]));
+    fieldValues[index] = computeValue(fieldValues[index], value);
+    return updateBatch.addFieldUpdate(index, AtomicFieldUpdate.valueOf(index, fieldValues[index]));
   }
 
   protected ActivityIntValues() {
@@ -59,44 +62,55 @@ public class ActivityIntValues extends ActivityPrimitiveValues  {
     return fieldValues[index];
   }
 
-  private synchronized void ensureCapacity(int currentArraySize) {
-    if (fieldValues.length == 0) {
-      this.fieldValues = new int[50000];
-      return;
+  /**
+   * Makes sure that the element with the given index can be updated
+   */
+  public int ensureCapacity(int index) {
+    if (fieldValues.length - index >= 2) {
+      return fieldValues.length - 1;
     }
-    if (fieldValues.length - currentArraySize < 2) {
-      int newSize = fieldValues.length < 10000000 ? fieldValues.length * 2 : (int) (fieldValues.length * 1.5);
+    synchronized (this) {
+      if (fieldValues.length - index >= 2) {
+        return fieldValues.length - 1;
+      }
+      int newSize = fieldValues.length == 0 ? 50000 : fieldValues.length;
+      while (newSize - index < 2) {
+        newSize = newSize < 10000000 ? newSize * 2 : (int) (newSize * 1.5);
+      }
       int[] newFieldValues = new int[newSize];
       System.arraycopy(fieldValues, 0, newFieldValues, 0, fieldValues.length);
       this.fieldValues = newFieldValues;
+      return newSize - 1;
     }
   }
 
   /**
-   * value might be int or long or String. +n, -n  operations are supported
-   * @param fieldValues
+   * value might be int or long or String. +n, -n  operations and the {@link ActivityDelta} are supported
+   * @param currentValue
    * @param value
-   * @param index
    */
-  private static void setValue(int[] fieldValues, Object value, int index) {
+  protected static int computeValue(int currentValue, Object value) {
     if (value == null) {
-      return;
+      return currentValue;
+    }
+    if (value instanceof ActivityDelta) {
+      return currentValue + (int) ((ActivityDelta) value).integralValue();
     }
     if (value instanceof Integer) {
-      fieldValues[index] = (Integer) value;
+      return (Integer) value;
     } else if (value instanceof Long) {
-      fieldValues[index] = ((Long) value).intValue();
+      return ((Long) value).intValue();
     } else if (value instanceof String) {
       String valStr = (String) value;
       if (valStr.isEmpty()) {
-        return;
+        return currentValue;
       }
       if (valStr.startsWith("+")) {
-        fieldValues[index] = fieldValues[index] + Integer.parseInt(valStr.substring(1));
+        return currentValue + Integer.parseInt(valStr.substring(1));
       } else if (valStr.startsWith("-")) {
-        fieldValues[index] = fieldValues[index] + Integer.parseInt(valStr);
+        return currentValue + Integer.parseInt(valStr);
       } else {
-        fieldValues[index] = Integer.parseInt(valStr);
+        return Integer.parseInt(valStr);
       }
     } else {
       throw new UnsupportedOperationException(
@@ -108,17 +122,22 @@ public class ActivityIntValues extends ActivityPrimitiveValues  {
     return fieldValues;
   }
 
+  /**
+   * Copies the values of the docs in the [fromIndex, toIndex) range
+   */
+  public int[] getFieldValues(int fromIndex, int toIndex) {
+    return Arrays.copyOfRange(fieldValues, fromIndex, toIndex);
+  }
+
   public void setFieldValues(int[] fieldValues) {
     this.fieldValues = fieldValues;
   }
   @Override 
   public void initFieldValues(int count, MappedByteBuffer  buffer) {
-     for (int i = 0; i < count; i++) {
-       int value;
-         value = buffer.getInt(i * 4);
-       fieldValues[i] = value;
-     }
-   }
+    ByteBuffer view = buffer.duplicate();
+    view.clear();
+    view.asIntBuffer().get(fieldValues, 0, count);
+  }
    @Override
    public void initFieldValues(int count, RandomAccessFile storedFile) {
      for (int i = 0; i < count; i++) {
@@ -135,7 +154,7 @@ public class ActivityIntValues extends ActivityPrimitiveValues  {
    @Override
    public void delete(int index) {
      fieldValues[index] = Integer.MIN_VALUE;
-     updateBatch.addFieldUpdate(AtomicFieldUpdate.valueOf(index, fieldValues[index]));     
+     updateBatch.addFieldUpdate(index, AtomicFieldUpdate.valueOf(index, fieldValues[index]));     
    }
   @Override
   public int getFieldSizeInBytes() {
@@ -0,0 +1,105 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+package com.senseidb.indexing.activity.primitives;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * Exposes the activity .data file as a sequence of fixed size memory mapped segments. The values are read and written directly
+ * against the mapped file, growing the file maps an extra segment instead of copying the existing values.<br>
+ * The segment size is a multiple of every field size, so a single value never spans two segments.
+ */
+public class ActivityMappedSegments {
+  public static final int SEGMENT_SHIFT = 22;
+  public static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+  private static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+  private final FileChannel channel;
+  private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+  public ActivityMappedSegments(FileChannel channel) {
+    this.channel = channel;
+  }
+
+  /**
+   * Makes sure that the byte at the given offset is mapped
+   */
+  public void ensureCapacity(long offset) {
+    int segmentIndex = (int) (offset >>> SEGMENT_SHIFT);
+    if (segmentIndex < segments.length) {
+      return;
+    }
+    synchronized (this) {
+      MappedByteBuffer[] current = segments;
+      if (segmentIndex < current.length) {
+        return;
+      }
+      MappedByteBuffer[] newSegments = new MappedByteBuffer[segmentIndex + 1];
+      System.arraycopy(current, 0, newSegments, 0, current.length);
+      try {
+        for (int i = current.length; i < newSegments.length; i++) {
+          newSegments[i] = channel.map(MapMode.READ_WRITE, (long) i * SEGMENT_SIZE, SEGMENT_SIZE);
+        }
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      segments = newSegments;
+    }
+  }
+
+  public long getCapacityInBytes() {
+    return (long) segments.length * SEGMENT_SIZE;
+  }
+
+  public int getInt(long offset) {
+    return segments[(int) (offset >>> SEGMENT_SHIFT)].getInt((int) (offset & SEGMENT_MASK));
+  }
+
+  public void putInt(long offset, int value) {
+    segments[(int) (offset >>> SEGMENT_SHIFT)].putInt((int) (offset & SEGMENT_MASK), value);
+  }
+
+  public long getLong(long offset) {
+    return segments[(int) (offset >>> SEGMENT_SHIFT)].getLong((int) (offset & SEGMENT_MASK));
+  }
+
+  public void putLong(long offset, long value) {
+    segments[(int) (offset >>> SEGMENT_SHIFT)].putLong((int) (offset & SEGMENT_MASK), value);
+  }
+
+  public float getFloat(long offset) {
+    return segments[(int) (offset >>> SEGMENT_SHIFT)].getFloat((int) (offset & SEGMENT_MASK));
+  }
+
+  public void putFloat(long offset, float value) {
+    segments[(int) (offset >>> SEGMENT_SHIFT)].putFloat((int) (offset & SEGMENT_MASK), value);
+  }
+
+  /**
+   * Writes the dirty pages of all the segments to the disk
+   */
+  public void force() {
+    for (MappedByteBuffer segment : segments) {
+      segment.force();
+    }
+  }
+}
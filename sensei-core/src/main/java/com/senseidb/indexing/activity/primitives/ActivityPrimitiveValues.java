@@ -20,6 +20,7 @@ package com.senseidb.indexing.activity.primitives;
 
 import java.io.RandomAccessFile;
 import java.nio.MappedByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 
@@ -40,6 +41,9 @@ public abstract class ActivityPrimitiveValues implements ActivityValues {
 
   protected volatile UpdateBatch<AtomicFieldUpdate> updateBatch;
   private ActivityConfig activityConfig;
+  protected ActivityMappedSegments mappedSegments;
+  private final AtomicInteger unsyncedUpdates = new AtomicInteger();
+  private volatile long lastSyncTime = System.currentTimeMillis();
 
 
   public ActivityPrimitiveValues() {
@@ -63,6 +67,9 @@ public abstract class ActivityPrimitiveValues implements ActivityValues {
     if (activityFieldStore.isClosed()) {
       throw new IllegalStateException("The activityFile is closed");
     }
+    if (mappedSegments != null) {
+      return prepareMappedFlush();
+    }
     final UpdateBatch<AtomicFieldUpdate> oldBatch = updateBatch;
 
     updateBatch = new UpdateBatch<AtomicFieldUpdate>(activityConfig);
@@ -81,6 +88,40 @@ public abstract class ActivityPrimitiveValues implements ActivityValues {
     };
   }
 
+  /**
+   * The off-heap values are already in the mapped file, so the flush only needs to sync it to the disk
+   */
+  private Runnable prepareMappedFlush() {
+    unsyncedUpdates.set(0);
+    lastSyncTime = System.currentTimeMillis();
+    return new Runnable() {
+      public void run() {
+        try {
+          if (activityFieldStore.isClosed()) {
+            throw new IllegalStateException("The activityFile is closed");
+          }
+          activityFieldStore.sync();
+        } catch (Exception ex) {
+          logger.error("Failure to sync the field values of the field " + fieldName, ex);
+        }
+      }
+    };
+  }
+
+  protected void initMappedSegments(int capacity) {
+    mappedSegments = activityFieldStore.getMappedSegments();
+    mappedSegments.ensureCapacity((long) capacity * getFieldSizeInBytes());
+  }
+
+  /**
+   * Counterpart of the {@link UpdateBatch#addFieldUpdate(int, Object)} for the off-heap values
+   * @return true if the mapped file needs to be synced
+   */
+  protected boolean registerMappedUpdate() {
+    return unsyncedUpdates.incrementAndGet() >= activityConfig.getFlushBufferSize()
+        || System.currentTimeMillis() - lastSyncTime > activityConfig.getFlushBufferMaxDelayInSeconds() * 1000L;
+  }
+
   @Override
   public void close() {
     if (activityFieldStore != null) {
@@ -108,15 +149,16 @@ public abstract class ActivityPrimitiveValues implements ActivityValues {
   public static ActivityPrimitiveValues createActivityPrimitiveValues(ActivityPersistenceFactory activityPersistenceFactory, Class<?> type,
       String fieldName, int count) {
     ActivityPrimitiveValues values = null;
+    ActivityPrimitivesStorage primitivesStorage = activityPersistenceFactory.getActivivityPrimitivesStorage(fieldName);
+    boolean offHeap = primitivesStorage != null && activityPersistenceFactory.getActivityConfig().isOffHeap();
     if (type == int.class) {
-      values = new ActivityIntValues();
+      values = offHeap ? new MappedActivityIntValues() : new ActivityIntValues();
     } else if (type == float.class || type == double.class) {
-      values = new ActivityFloatValues();
+      values = offHeap ? new MappedActivityFloatValues() : new ActivityFloatValues();
     } else if (type == long.class) {
-        values = new ActivityLongValues();
+        values = offHeap ? new MappedActivityLongValues() : new ActivityLongValues();
       } else
       throw new UnsupportedOperationException("Class " + type + " is not supported");
-    ActivityPrimitivesStorage primitivesStorage = activityPersistenceFactory.getActivivityPrimitivesStorage(fieldName);
     values.fieldName = fieldName;
 
     values.activityConfig = activityPersistenceFactory.getActivityConfig();
@@ -31,6 +31,7 @@ import java.util.concurrent.TimeUnit;
 import org.apache.log4j.Logger;
 import org.springframework.util.Assert;
 
+import com.senseidb.indexing.activity.ActivityWriteAheadLog;
 import com.senseidb.indexing.activity.AtomicFieldUpdate;
 import com.senseidb.metrics.MetricsConstants;
 import com.yammer.metrics.core.MetricName;
@@ -40,7 +41,7 @@ import com.yammer.metrics.core.Timer;
  * Allows to persist ActivityIntValues into the file. The persistence is asynchronous via {@link ActivityIntValues#prepareFlush()}
  *
  */
-public class ActivityPrimitivesStorage {
+public class ActivityPrimitivesStorage implements ActivityWriteAheadLog.Checkpointable {
   public static final double INIT_GROWTH_RATIO = 1.5;
   //public static final int BYTES_IN_INT = 4;
   public static final int LENGTH_THRESHOLD = 1000000;
@@ -56,6 +57,8 @@ public class ActivityPrimitivesStorage {
   private boolean activateMemoryMappedBuffers = true;
   private final Timer timer;
   private String fileName;
+  private ActivityMappedSegments mappedSegments;
+  private volatile ActivityWriteAheadLog writeAheadLog;
   
   public ActivityPrimitivesStorage(String fieldName, String indexDir) {
     this.fieldName = fieldName;
@@ -85,8 +88,23 @@ public class ActivityPrimitivesStorage {
     }
   }
 
-  public synchronized void flush(List<AtomicFieldUpdate> updates) {
-    Assert.state(storedFile != null, "The FileStorage is not initialized");    
+  public void flush(final List<AtomicFieldUpdate> updates) {
+    Assert.state(storedFile != null, "The FileStorage is not initialized");
+    ActivityWriteAheadLog writeAheadLog = this.writeAheadLog;
+    if (writeAheadLog == null) {
+      write(updates, true);
+      return;
+    }
+    // the file is written once the log group is committed and synced by the log checkpoint
+    writeAheadLog.appendFieldUpdates(fileName + ".data", updates);
+    writeAheadLog.appendWrite(new Runnable() {
+      @Override
+      public void run() {
+        write(updates, false);
+      }
+    });
+  }
+  private synchronized void write(List<AtomicFieldUpdate> updates, boolean sync) {
     try {
       for (AtomicFieldUpdate update : updates) {       
          ensureCapacity((update.index + 1) * update.getFieldSizeInBytes());        
@@ -96,16 +114,21 @@ public class ActivityPrimitivesStorage {
            update.update(storedFile, update.index * update.getFieldSizeInBytes());
          }
       }
-      if (activateMemoryMappedBuffers) {
-        buffer.force();
+      if (sync) {
+        if (activateMemoryMappedBuffers) {
+          buffer.force();
+        }
+        storedFile.getFD().sync();
       }
-      storedFile.getFD().sync(); 
-     
     } catch (Exception e) {
       throw new RuntimeException(e);
     }
   }
   private void ensureCapacity(int i) {
+    if (mappedSegments != null) {
+      mappedSegments.ensureCapacity(i);
+      return;
+    }
     try {
       if (fileLength > i + 100) {
         return;
@@ -124,11 +147,46 @@ public class ActivityPrimitivesStorage {
       throw new RuntimeException(e);
     }
   }
+  /**
+   * Returns the off-heap view over the .data file, that is used by the values reading and writing the file directly
+   */
+  public synchronized ActivityMappedSegments getMappedSegments() {
+    Assert.state(storedFile != null, "The FileStorage is not initialized");
+    if (mappedSegments == null) {
+      mappedSegments = new ActivityMappedSegments(storedFile.getChannel());
+    }
+    return mappedSegments;
+  }
+
+  /**
+   * Persists the values, that were written either directly to the mapped segments or by the unsynced flushes
+   */
+  public synchronized void sync() {
+    Assert.state(storedFile != null, "The FileStorage is not initialized");
+    if (closed) {
+      return;
+    }
+    try {
+      if (activateMemoryMappedBuffers) {
+        buffer.force();
+      }
+      if (mappedSegments != null) {
+        mappedSegments.force();
+      }
+      storedFile.getFD().sync();
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
   public synchronized void close() {
     try {
       if (activateMemoryMappedBuffers) {
         buffer.force();
       }
+      if (mappedSegments != null) {
+        mappedSegments.force();
+      }
       storedFile.close();
       closed = true;
     } catch (IOException e) {
@@ -177,5 +235,10 @@ public class ActivityPrimitivesStorage {
     return closed;
   }  
 
+  public void setWriteAheadLog(ActivityWriteAheadLog writeAheadLog) {
+    this.writeAheadLog = writeAheadLog;
+    writeAheadLog.register(this);
+  }
+
   
 }
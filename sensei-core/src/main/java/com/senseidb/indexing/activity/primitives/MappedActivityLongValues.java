@@ -0,0 +1,119 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+package com.senseidb.indexing.activity.primitives;
+
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Off-heap version of the {@link ActivityLongValues}. The values are read and written directly against the memory mapped .data file,
+ * so nothing needs to be loaded on startup. Only a range of the values can be copied with {@link #getFieldValues(int, int)}, the single values are read with {@link #getLongValue(int)}
+ */
+public class MappedActivityLongValues extends ActivityLongValues {
+
+  protected MappedActivityLongValues() {
+  }
+
+  @Override
+  public void init(int capacity) {
+    initMappedSegments(capacity);
+  }
+
+  @Override
+  public boolean update(int index, Object value) {
+    ensureCapacity(index);
+    long offset = (long) index * 8;
+    long currentValue = mappedSegments.getLong(offset);
+    if (currentValue == Long.MIN_VALUE) {
+      currentValue = 0;
+    }
+    mappedSegments.putLong(offset, computeValue(currentValue, value));
+    return registerMappedUpdate();
+  }
+
+  @Override
+  public int ensureCapacity(int index) {
+    mappedSegments.ensureCapacity((long) (index + 2) * 8);
+    return (int) Math.min(Integer.MAX_VALUE, mappedSegments.getCapacityInBytes() / 8 - 2);
+  }
+
+  @Override
+  public long getLongValue(int index) {
+    return mappedSegments.getLong((long) index * 8);
+  }
+
+  /**
+   * Not available, as it would copy the whole mapped file onto the heap. Use {@link #getFieldValues(int, int)} instead
+   */
+  @Override
+  public long[] getFieldValues() {
+    throw new UnsupportedOperationException("The values are kept off-heap, only a range of them can be copied");
+  }
+
+  /**
+   * Copies the mapped values of the docs in the [fromIndex, toIndex) range, changing the array does not change the values
+   */
+  @Override
+  public long[] getFieldValues(int fromIndex, int toIndex) {
+    long[] values = new long[toIndex - fromIndex];
+    long end = Math.min((long) toIndex, mappedSegments.getCapacityInBytes() / 8);
+    for (int i = fromIndex; i < end; i++) {
+      values[i - fromIndex] = mappedSegments.getLong((long) i * 8);
+    }
+    return values;
+  }
+
+  /**
+   * Writes the values into the mapped file
+   */
+  @Override
+  public void setFieldValues(long[] fieldValues) {
+    if (fieldValues.length == 0) {
+      return;
+    }
+    ensureCapacity(fieldValues.length - 1);
+    for (int i = 0; i < fieldValues.length; i++) {
+      mappedSegments.putLong((long) i * 8, fieldValues[i]);
+    }
+    registerMappedUpdate();
+  }
+
+  @Override
+  public void initFieldValues(int count, MappedByteBuffer buffer) {
+    // the values are already in the mapped segments
+  }
+
+  @Override
+  public void initFieldValues(int count, RandomAccessFile storedFile) {
+    // the values are already in the mapped segments
+  }
+
+  @Override
+  public void delete(int index) {
+    ensureCapacity(index);
+    long offset = (long) index * 8;
+    mappedSegments.putLong(offset, Long.MIN_VALUE);
+    registerMappedUpdate();
+  }
+
+  @Override
+  public Number getValue(int index) {
+    return getLongValue(index);
+  }
+}
@@ -19,6 +19,9 @@
 package com.senseidb.indexing.activity.time;
 
 import com.senseidb.metrics.MetricFactory;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import it.unimi.dsi.fastutil.ints.IntSet;
+
 import java.util.concurrent.Callable;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -26,15 +29,18 @@ import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 
+import com.senseidb.indexing.activity.ActivityDelta;
 import com.senseidb.indexing.activity.ActivityPersistenceFactory.AggregatesMetadata;
 import com.senseidb.indexing.activity.time.TimeAggregatedActivityValues.IntValueHolder;
+import com.senseidb.indexing.activity.time.TimeAggregatedActivityValues.TimeHitsHolder;
 import com.senseidb.metrics.MetricsConstants;
 import com.yammer.metrics.core.MetricName;
 import com.yammer.metrics.core.Timer;
 
 /**
  * Operates on top of TimeAggregatedActivityValues. 
- * It is executed every 30 seceonds. 
+ * It is executed every 30 seceonds. Only the docs, whose activities cross one of the aggregate periods since the previous run, are visited. 
+ * They are looked up in the {@link ExpirationTimeWheel}. The docs loaded on startup are scheduled right after the previous run, without estimating their hits. 
  * Updates the activity values for the time aggregates based on the current time. For example is the activity 5m count is 10, 
  * and one of the activity updates came into the system more than 5 mins ago, 
  * it will substract the stale activity value from ten and assign the result to the  5m time aggregated count
@@ -91,47 +97,82 @@ public class AggregatesUpdateJob implements Runnable {
     if (currentTime <= aggregatesMetadata.getLastUpdatedTime()) {
       return;
     }
-    currentCount = 0;;
-    for (int i = 0; i <= timeAggregatedActivityValues.maxIndex; i++) {
-      synchronized (timeAggregatedActivityValues.timeActivities.getLock(i)) {
-        if (!timeAggregatedActivityValues.timeActivities.isSet(i)) {
-          continue;
-        }
-        IntContainer activities = timeAggregatedActivityValues.timeActivities.getActivities(i);
-        IntContainer times = timeAggregatedActivityValues.timeActivities.getTimes(i);
-        int[] updateTempValues = new int[timeAggregatedActivityValues.intActivityValues.length];
-        updateActivityValues(timeAggregatedActivityValues.intActivityValues, activities, times, currentTime, i, updateTempValues);        
-      }      
-    }    
+    currentCount = 0;
+    int processedCount = 0;
+    int[] updateTempValues = new int[timeAggregatedActivityValues.intActivityValues.length];
+    IntSet expiringIndexes = timeAggregatedActivityValues.expirationTimeWheel.drain(aggregatesMetadata.getLastUpdatedTime(), currentTime);
+    IntIterator iterator = expiringIndexes.iterator();
+    while (iterator.hasNext()) {
+      processedCount += updateActivityValues(iterator.nextInt(), currentTime, updateTempValues);
+    }
     aggregatesMetadata.updateTime(currentTime);
-    logger.info("Finished the AggregatesUpdateJob. Updated " + currentCount + " records");
+    logger.info("Finished the AggregatesUpdateJob. Visited " + processedCount + " docs, updated " + currentCount + " records");
   }
- 
-  private final void updateActivityValues(IntValueHolder[] intActivityValues, IntContainer activities, IntContainer times, int currentTime, int index, int[] updateTempValues) {       
-    int minimumAggregateIndex = 0;
-    for (int activityIndex = 0; activityIndex < activities.getSize(); activityIndex++) { 
-      //the activity is current. As they are sorted in the ascending order, we can stop now
-      if (times.size() != activities.size()) {
-        throw new IllegalStateException("activities.size = " + activities.getSize() + ", times.size() = " + times.size());
+
+  /**
+   * Visits the doc drained from the time wheel. The entry might be a leftover of the deleted doc 
+   * or a duplicate, so the doc is only updated, if one of its activities crossed an aggregate period since the previous run
+   * @return 1 if the doc had any time hits
+   */
+  private int updateActivityValues(int index, int currentTime, int[] updateTempValues) {
+    TimeHitsHolder timeActivities = timeAggregatedActivityValues.timeActivities;
+    synchronized (timeAggregatedActivityValues.getUpdateLock(index)) {
+      if (!timeActivities.isSet(index)) {
+        return 0;
+      }
+      TimeHits hits = timeActivities.getHits(index);
+      int nextExpirationTime = getNextExpirationTime(timeAggregatedActivityValues.intActivityValues, hits, aggregatesMetadata.getLastUpdatedTime());
+      if (nextExpirationTime > currentTime) {
+        // nothing to subtract yet. Scheduling the same time again is harmless, as the drained indexes are distinct
+        if (nextExpirationTime != Integer.MAX_VALUE) {
+          timeAggregatedActivityValues.expirationTimeWheel.schedule(index, nextExpirationTime);
+        }
+        return 0;
       }
-      if (times.size() == 0) {
-        continue;
+      updateActivityValues(timeAggregatedActivityValues.intActivityValues, hits, currentTime, index, updateTempValues);
+      if (hits.size() > 0) {
+        timeAggregatedActivityValues.expirationTimeWheel.schedule(index, getNextExpirationTime(timeAggregatedActivityValues.intActivityValues, hits, currentTime));
+      }
+      return 1;
+    }
+  }
+
+  /**
+   * @return the earliest time, when one of the activities will leave one of the aggregate periods
+   */
+  private static int getNextExpirationTime(IntValueHolder[] intActivityValues, TimeHits hits, int currentTime) {
+    int ret = Integer.MAX_VALUE;
+    for (IntValueHolder intValueHolder : intActivityValues) {
+      for (int i = 0; i < hits.size(); i++) {
+        int expirationTime = hits.getTime(i) + intValueHolder.timeInMinutes;
+        if (expirationTime > currentTime) {
+          ret = Math.min(ret, expirationTime);
+          break;
+        }
       }
-      if (currentTime - times.get(activityIndex) < intActivityValues[intActivityValues.length - 1].timeInMinutes) {
+    }
+    return ret;
+  }
+
+  private final void updateActivityValues(IntValueHolder[] intActivityValues, TimeHits hits, int currentTime, int index, int[] updateTempValues) {       
+    int minimumAggregateIndex = 0;
+    for (int activityIndex = 0; activityIndex < hits.size(); activityIndex++) { 
+      //the activity is current. As they are sorted in the ascending order, we can stop now
+      if (currentTime - hits.getTime(activityIndex) < intActivityValues[intActivityValues.length - 1].timeInMinutes) {
         break;
       }
       for (int aggregateIndex = intActivityValues.length - 1; aggregateIndex >= minimumAggregateIndex; aggregateIndex--) {
         IntValueHolder intValueHolder = intActivityValues[aggregateIndex];        
-        int currentElapsedTime = currentTime - times.get(activityIndex);
+        int currentElapsedTime = currentTime - hits.getTime(activityIndex);
         //activity is current 
         if (currentElapsedTime < intValueHolder.timeInMinutes) {
           minimumAggregateIndex = aggregateIndex + 1;
           break;
         }
-        int previousElapsedTime = aggregatesMetadata.getLastUpdatedTime() - times.get(activityIndex);
+        int previousElapsedTime = aggregatesMetadata.getLastUpdatedTime() - hits.getTime(activityIndex);
         //activity is not current against the current time, but was current for the previous run
         if (currentElapsedTime >= intValueHolder.timeInMinutes && previousElapsedTime < intValueHolder.timeInMinutes) {
-          int activityValue = activities.get(activityIndex); 
+          int activityValue = hits.getActivity(activityIndex); 
           if (activityValue != 0) {
             updateTempValues[aggregateIndex] += activityValue;
             currentCount++;
@@ -142,23 +183,23 @@ public class AggregatesUpdateJob implements Runnable {
     for (int i = 0; i < updateTempValues.length; i++) {
       int updateValue = updateTempValues[i];
       if (updateValue != 0) {
-        synchronized (intActivityValues[i].activityIntValues.getFieldValues()) {
-         intActivityValues[i].activityIntValues.update(index, updateValue > 0 ? String.valueOf(-updateValue) : "+" + String.valueOf(updateValue));
-       }
-       updateTempValues[i] = 0;
+        // the job runs outside of the composite's read lock, so it still has to exclude the array growth in ensureCapacity
+        synchronized (intActivityValues[i].activityIntValues) {
+          intActivityValues[i].activityIntValues.update(index, ActivityDelta.valueOf(updateValue > 0 ? -updateValue : updateValue));
+        }
+        updateTempValues[i] = 0;
       }
     }
     //remove outdated activities
     while (true) {
-      if (times.size() == 0) {
+      if (hits.size() == 0) {
         break;
       }
-      int time = times.peekFirst();
+      int time = hits.getTime(0);
       int elapsedTime = currentTime - time;
       if (elapsedTime >= intActivityValues[0].timeInMinutes) {
-        times.removeFirst();
-        activities.removeFirst();
-        if (times.size() == 0) {
+        hits.removeFirst();
+        if (hits.size() == 0) {
           timeAggregatedActivityValues.timeActivities.reset(index);
         }
       } else {
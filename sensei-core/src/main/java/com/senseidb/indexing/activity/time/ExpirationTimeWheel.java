@@ -0,0 +1,65 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+package com.senseidb.indexing.activity.time;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+
+/**
+ * Hashed time wheel with one minute slots, that keeps the indexes of the docs, that have an activity crossing one of the aggregate periods at the given minute.
+ * The wheel covers the longest aggregate period, so the doc scheduled a full lap later is only visited earlier than needed, 
+ * which is harmless as the {@link AggregatesUpdateJob} just reschedules it
+ */
+public class ExpirationTimeWheel {
+  private final IntArrayList[] slots;
+  private final int mask;
+
+  public ExpirationTimeWheel(int periodInMinutes) {
+    int size = Integer.highestOneBit(Math.max(64, periodInMinutes + 1)) << 1;
+    slots = new IntArrayList[size];
+    mask = size - 1;
+  }
+
+  public synchronized void schedule(int index, int timeInMinutes) {
+    int slot = timeInMinutes & mask;
+    if (slots[slot] == null) {
+      slots[slot] = new IntArrayList(4);
+    }
+    slots[slot].add(index);
+  }
+
+  /**
+   * Removes and returns the distinct indexes of the docs, scheduled in the (fromTime, toTime] interval
+   */
+  public synchronized IntSet drain(int fromTime, int toTime) {
+    IntSet ret = new IntOpenHashSet();
+    int minutes = Math.min(toTime - fromTime, slots.length);
+    for (int time = toTime - minutes + 1; time <= toTime; time++) {
+      IntArrayList slot = slots[time & mask];
+      if (slot != null) {
+        for (int i = 0; i < slot.size(); i++) {
+          ret.add(slot.getInt(i));
+        }
+        slots[time & mask] = null;
+      }
+    }
+    return ret;
+  }
+}
@@ -23,10 +23,12 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import com.senseidb.indexing.activity.ActivityPersistenceFactory.AggregatesMetadata;
 import com.senseidb.indexing.activity.primitives.ActivityIntValues;
 import com.senseidb.indexing.activity.primitives.ActivityPrimitiveValues;
+import com.senseidb.indexing.activity.ActivityDelta;
 import com.senseidb.indexing.activity.ActivityPersistenceFactory;
 import com.senseidb.indexing.activity.ActivityValues;
 
@@ -58,10 +60,13 @@ public class TimeAggregatedActivityValues implements ActivityValues {
 	protected Map<String, ActivityIntValues> valuesMap = new HashMap<String, ActivityIntValues>();
 	protected IntValueHolder[] intActivityValues;
 	protected TimeHitsHolder timeActivities;
+	protected ExpirationTimeWheel expirationTimeWheel;
 	public volatile int maxIndex;
   private AggregatesMetadata aggregatesMetadata;
   private AggregatesUpdateJob aggregatesUpdateJob;  
   protected ActivityIntValues defaultIntValues;
+  private static final int LOCK_STRIPES = 1024;
+  private final Object[] updateLocks = new Object[LOCK_STRIPES];
   
   private TimeAggregatedActivityValues(String fieldName, List<String> times, int count,  ActivityPersistenceFactory activityPersistenceFactory) {
 		this.fieldName = fieldName;
@@ -78,10 +83,20 @@ public class TimeAggregatedActivityValues implements ActivityValues {
 		Arrays.sort(intActivityValues);
 		maxIndex = count;
 		aggregatesMetadata = activityPersistenceFactory.createAggregatesMetadata(fieldName);
-		
+		for (int i = 0; i < LOCK_STRIPES; i++) {
+		  updateLocks[i] = new Object();
+		}
 	}
 	protected synchronized static void initTimeHits(TimeHitsHolder timeActivities, IntValueHolder[] intActivityValues, int count, int lastUpdatedTime) {
     for (int index = 0; index < count; index++) {
+      initDocTimeHits(timeActivities, intActivityValues, lastUpdatedTime, index);
+    }
+  }
+
+  /**
+   * Estimates the time hits of a single doc from its persisted aggregates
+   */
+  private static void initDocTimeHits(TimeHitsHolder timeActivities, IntValueHolder[] intActivityValues, int lastUpdatedTime, int index) {
       int activitiesCount = 0;
       for (int j = 0; j < intActivityValues.length; j++) {
         int value = intActivityValues[j].activityIntValues.getIntValue(index);
@@ -92,11 +107,10 @@ public class TimeAggregatedActivityValues implements ActivityValues {
         activitiesCount += value;        
       }
       if (activitiesCount == 0) {
-        continue;
+        return;
       }
       int length = Math.min(activitiesCount, intActivityValues[0].timeInMinutes);
-      IntContainer times = new IntContainer(length);
-      IntContainer activities = new IntContainer(length);
+      TimeHits hits = new TimeHits(length);
       for (int j = 0; j < intActivityValues.length - 1; j++) {
         int value = intActivityValues[j].activityIntValues.getIntValue(index);
         int time = intActivityValues[j].timeInMinutes;
@@ -105,20 +119,16 @@ public class TimeAggregatedActivityValues implements ActivityValues {
           break;
         }
         activitiesCount += value;
-        fillTimeHits(times, activities, value - intActivityValues[j + 1].activityIntValues.getIntValue(index), lastUpdatedTime - time + 1, time - intActivityValues[j + 1].timeInMinutes);
+        fillTimeHits(hits, value - intActivityValues[j + 1].activityIntValues.getIntValue(index), lastUpdatedTime - time + 1, time - intActivityValues[j + 1].timeInMinutes);
       }
-      fillTimeHits(times, activities, intActivityValues[intActivityValues.length - 1].activityIntValues.getIntValue(index), lastUpdatedTime - intActivityValues[intActivityValues.length - 1].timeInMinutes + 1, intActivityValues[intActivityValues.length - 1].timeInMinutes);
-      timeActivities.activities[index] = activities;
-      timeActivities.times[index] = times;
-    }
-    
+      fillTimeHits(hits, intActivityValues[intActivityValues.length - 1].activityIntValues.getIntValue(index), lastUpdatedTime - intActivityValues[intActivityValues.length - 1].timeInMinutes + 1, intActivityValues[intActivityValues.length - 1].timeInMinutes);
+      timeActivities.hits[index] = hits;
   }
   
-  private static void fillTimeHits(IntContainer times, IntContainer activities, int activityCount, int startTime, int periodInMinutes) {
+  private static void fillTimeHits(TimeHits hits, int activityCount, int startTime, int periodInMinutes) {
     int length = java.lang.Math.min(periodInMinutes, activityCount);
     if (length == 1) {
-      activities.add(activityCount);
-      times.add(startTime + periodInMinutes / 2);
+      hits.add(startTime + periodInMinutes / 2, activityCount);
     } else if (length > 1) {
       int activityIncrement = activityCount / length;
       int timeIncrement = periodInMinutes / length;
@@ -126,11 +136,10 @@ public class TimeAggregatedActivityValues implements ActivityValues {
       int timeOffset = startTime;
       for (int i = 0; i < length; i++) {
         if (i == 0) {
-          activities.add(activityIncrementDelta + activityIncrement);
+          hits.add(timeOffset, activityIncrementDelta + activityIncrement);
         } else {
-          activities.add(activityIncrement);
+          hits.add(timeOffset, activityIncrement);
         }
-        times.add(timeOffset);
         timeOffset += timeIncrement;
       }
     }
@@ -149,10 +158,29 @@ public class TimeAggregatedActivityValues implements ActivityValues {
 			default : throw new UnsupportedOperationException("Only m, h, d, w are supported in the end of the time String");
 		}
 	}
+	/**
+	 * Schedules the loaded docs with activity right after the last run of the {@link AggregatesUpdateJob}, 
+	 * without estimating their time hits. The job materializes them and reschedules the ones, that don't expire yet
+	 */
+	private void scheduleLoadedDocs(int count) {
+	  if (intActivityValues.length == 0) {
+	    return;
+	  }
+	  int time = aggregatesMetadata.getLastUpdatedTime() + 1;
+	  ActivityIntValues longestAggregate = intActivityValues[0].activityIntValues;
+	  for (int index = 0; index < count; index++) {
+	    int value = longestAggregate.getIntValue(index);
+	    if (value != 0 && value != Integer.MIN_VALUE) {
+	      expirationTimeWheel.schedule(index, time);
+	    }
+	  }
+	}
 	@Override
 	public void init(int capacity) {
 		timeActivities = new TimeHitsHolder(capacity);
-		initTimeHits(timeActivities, intActivityValues, capacity, aggregatesMetadata.getLastUpdatedTime());
+		timeActivities.initLazily(intActivityValues, capacity, aggregatesMetadata.getLastUpdatedTime());
+		expirationTimeWheel = new ExpirationTimeWheel(intActivityValues.length > 0 ? intActivityValues[0].timeInMinutes : 0);
+		scheduleLoadedDocs(Math.min(maxIndex, capacity));
 		aggregatesUpdateJob = new AggregatesUpdateJob(this, aggregatesMetadata);
 		aggregatesUpdateJob.start();
 	}
@@ -164,34 +192,43 @@ public class TimeAggregatedActivityValues implements ActivityValues {
 		  maxIndex = index;
 		}	
 		int valueInt = getIntValue(value);
-		String valueStr = valueInt > 0 ? "+" + valueInt : String.valueOf(valueInt);
+		ActivityDelta delta = ActivityDelta.valueOf(valueInt);
 		int currentTime = Clock.getCurrentTimeInMinutes();
-		synchronized (defaultIntValues) {
-		  needToFlush = needToFlush | defaultIntValues.update(index, value);
-		}
 		timeActivities.ensureCapacity(index);
-		synchronized (timeActivities.getLock(index)) {
+		synchronized (getUpdateLock(index)) {
+		  needToFlush = needToFlush | defaultIntValues.update(index, value);
 			if (!timeActivities.isSet(index)) {
-				timeActivities.setActivities(index, new IntContainer(1));
-				timeActivities.setTime(index, new IntContainer(1));
-			}		
-			if (timeActivities.getTimes(index).getSize() > 0 && timeActivities.getTimes(index).peekLast() == currentTime) {
-			  timeActivities.getActivities(index).add(timeActivities.getActivities(index).removeLast() + valueInt);
-			} else {
-			  timeActivities.getTimes(index).add(currentTime);
-			  timeActivities.getActivities(index).add(valueInt);
+				timeActivities.setHits(index, new TimeHits(1));
 			}
-		}
-		for (IntValueHolder intValueHolder : intActivityValues) {			
-			  synchronized (intValueHolder.activityIntValues) {
-			    needToFlush = needToFlush | intValueHolder.activityIntValues.update(index, valueStr);
+			TimeHits hits = timeActivities.getHits(index);
+			if (hits.size() > 0 && hits.getLastTime() == currentTime) {
+			  hits.addToLast(valueInt);
+			} else {
+			  hits.add(currentTime, valueInt);
+			  if (intActivityValues.length > 0) {
+			    // the new bucket leaves the shortest aggregate first, the longer ones are rescheduled by the AggregatesUpdateJob
+			    expirationTimeWheel.schedule(index, currentTime + intActivityValues[intActivityValues.length - 1].timeInMinutes);
 			  }
+			}
+			for (IntValueHolder intValueHolder : intActivityValues) {
+			  needToFlush = needToFlush | intValueHolder.activityIntValues.update(index, delta);
+			}
 		}
 		return needToFlush;
 	}
+
+	/**
+	 * The default values, the time hits and all the aggregates of a doc are updated under the same lock. 
+	 * The locks are striped by index, so that the updates of the different docs don't contend
+	 */
+	protected Object getUpdateLock(int index) {
+	  return updateLocks[index & (LOCK_STRIPES - 1)];
+	}
   private int getIntValue(Object value) {
     int valueInt;
-    if (value instanceof Number) {
+    if (value instanceof ActivityDelta) {
+      valueInt = (int) ((ActivityDelta) value).integralValue();
+    } else if (value instanceof Number) {
 		  valueInt = ((Number) value).intValue();
 		} else if (value instanceof String) {
 		  if (value.toString().startsWith("+")) {
@@ -205,17 +242,22 @@ public class TimeAggregatedActivityValues implements ActivityValues {
     return valueInt;
   }
 
+	@Override
+	public int ensureCapacity(int index) {
+	  int capacity = defaultIntValues.ensureCapacity(index);
+	  for (IntValueHolder intValueHolder : intActivityValues) {
+	    capacity = Math.min(capacity, intValueHolder.activityIntValues.ensureCapacity(index));
+	  }
+	  return Math.min(capacity, timeActivities.ensureCapacity(index));
+	}
+
 	@Override
 	public void delete(int index) {	  
-	  synchronized (defaultIntValues) {  
+	  synchronized (getUpdateLock(index)) {
 	    defaultIntValues.delete(index);
-	  }
-	  for (IntValueHolder intValueHolder : intActivityValues) {	 
-	    synchronized (intValueHolder.activityIntValues) {
+	    for (IntValueHolder intValueHolder : intActivityValues) {	 
 	      intValueHolder.activityIntValues.delete(index);	   
 	    }
-    }
-	  synchronized (timeActivities.getLock(index)) {
 	    timeActivities.reset(index);
 	  }
 	}
@@ -289,53 +331,88 @@ public class TimeAggregatedActivityValues implements ActivityValues {
 	 *}</pre>
 	 */
 	public static class TimeHitsHolder {
-		private IntContainer[] times;
-		private IntContainer[] activities;
+		private TimeHits[] hits;
+		private IntValueHolder[] lazyActivityValues;
+		private int lazyLastUpdatedTime;
+		private int lazyCount;
+		private AtomicLongArray materialized;
 		public TimeHitsHolder(int capacity) {
-			times = new IntContainer[capacity];
-			activities = new IntContainer[capacity];
+			hits = new TimeHits[capacity];
+		}
+		/**
+		 * Defers the estimation of the time hits of the first count docs, till the doc is accessed for the first time. 
+		 * This way the startup doesn't need to iterate over all the docs and time aggregates
+		 */
+		public synchronized void initLazily(IntValueHolder[] intActivityValues, int count, int lastUpdatedTime) {
+		  lazyActivityValues = intActivityValues;
+		  lazyLastUpdatedTime = lastUpdatedTime;
+		  materialized = new AtomicLongArray((count + 63) >>> 6);
+		  lazyCount = count;
 		}
-		public IntContainer getTimes(int index) {
-			return times[index];
+		/**
+		 * Checked without the lock. The bit is set only after the hits of the doc are estimated, 
+		 * so a reader that sees the bit also sees the hits
+		 */
+		private boolean isMaterialized(int index) {
+		  return index >= lazyCount || (materialized.get(index >>> 6) & (1L << index)) != 0;
 		}
-		public IntContainer getActivities(int index) {
-			return activities[index];
+		/**
+		 * Is always called under the holder's monitor, so the word can't be overwritten concurrently
+		 */
+		private void markMaterialized(int index) {
+		  materialized.set(index >>> 6, materialized.get(index >>> 6) | (1L << index));
+		}
+		private void materialize(int index) {
+		  if (isMaterialized(index)) {
+		    return;
+		  }
+		  synchronized (this) {
+		    if (isMaterialized(index)) {
+		      return;
+		    }
+		    initDocTimeHits(this, lazyActivityValues, lazyLastUpdatedTime, index);
+		    markMaterialized(index);
+		  }
+		}
+		public TimeHits getHits(int index) {
+		  materialize(index);
+			return hits[index];
 		}
 		public boolean isSet(int index) {
-			return activities[index] != null;
+		  materialize(index);
+			return hits[index] != null;
 		}
 		public void reset(int index) {
-		 if (activities.length <= index) {
+		 if (hits.length <= index) {
 		   return;
 		 }
-		 activities[index] = null;
-		 times[index] = null;
-		}
-		public void setTime(int index, IntContainer time) {
-			ensureCapacity(index);
-			times[index] = time;
+		 if (!isMaterialized(index)) {
+		   synchronized (this) {
+		     markMaterialized(index);
+		   }
+		 }
+		 hits[index] = null;
 		}
-		public void setActivities(int index, IntContainer activity) {
+		public void setHits(int index, TimeHits timeHits) {
 			ensureCapacity(index);
-			activities[index] = activity;
+			hits[index] = timeHits;
 		}
-		public Object getLock(int index) {
-			return activities[index] != null ? activities[index] : this;
-		}
-		public void ensureCapacity(int currentArraySize) {
-		    if (times.length == 0) {
-		    	times = new IntContainer[50000];
-		    	activities = new IntContainer[50000];
-		      return;
+		public int ensureCapacity(int currentArraySize) {
+		    if (hits.length - currentArraySize >= 2) {
+		      return hits.length - 1;
 		    }
-		    if (times.length - currentArraySize < 2) {
-		      int newSize = times.length < 10000000 ? times.length * 2 : (int) (times.length * 1.5);
-		      IntContainer[] newFieldValues = new IntContainer[newSize];
-		      System.arraycopy(times, 0, newFieldValues, 0, times.length);
-		      times = newFieldValues;
-		      newFieldValues = new IntContainer[newSize];
-		      System.arraycopy(activities, 0, newFieldValues, 0, activities.length);
-		      activities = newFieldValues;
+		    synchronized (this) {
+		      if (hits.length - currentArraySize >= 2) {
+		        return hits.length - 1;
+		      }
+		      int newSize = hits.length == 0 ? 50000 : hits.length;
+		      while (newSize - currentArraySize < 2) {
+		        newSize = newSize < 10000000 ? newSize * 2 : (int) (newSize * 1.5);
+		      }
+		      TimeHits[] newHits = new TimeHits[newSize];
+		      System.arraycopy(hits, 0, newHits, 0, hits.length);
+		      hits = newHits;
+		      return newSize - 1;
 		    }
 		  }
 	}
@@ -0,0 +1,107 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+package com.senseidb.indexing.activity.time;
+
+import java.util.Arrays;
+
+/**
+ * Ring buffer of the (time, activity) pairs of a single doc, sorted by time. The pairs are stored interleaved in one array, 
+ * the expired pairs are removed from the head without shifting the rest
+ */
+public class TimeHits {
+  private static final int[] EMPTY_ARR = new int[0];
+  private static final int MIN_CAPACITY = 2;
+  private int[] pairs;
+  private int head = 0;
+  private int size = 0;
+
+  public TimeHits(int capacity) {
+    pairs = capacity == 0 ? EMPTY_ARR : new int[2 * roundUpToPowerOfTwo(capacity)];
+  }
+
+  public int size() {
+    return size;
+  }
+  public int getTime(int i) {
+    return pairs[2 * slot(i)];
+  }
+  public int getActivity(int i) {
+    return pairs[2 * slot(i) + 1];
+  }
+  public int getLastTime() {
+    return getTime(size - 1);
+  }
+  public void add(int time, int activity) {
+    if (2 * size == pairs.length) {
+      resize(Math.max(MIN_CAPACITY, size * 2));
+    }
+    int slot = slot(size);
+    pairs[2 * slot] = time;
+    pairs[2 * slot + 1] = activity;
+    size++;
+  }
+  public void addToLast(int activity) {
+    pairs[2 * slot(size - 1) + 1] += activity;
+  }
+  public void removeFirst() {
+    if (size == 0) {
+      throw new IllegalStateException("The collection is empty");
+    }
+    head = slot(1);
+    size--;
+    if (size > 0 && size * 4 <= pairs.length / 2 && pairs.length / 2 > MIN_CAPACITY) {
+      resize(pairs.length / 4);
+    }
+  }
+  public int[] getTimes() {
+    int[] ret = new int[size];
+    for (int i = 0; i < size; i++) {
+      ret[i] = getTime(i);
+    }
+    return ret;
+  }
+  public int[] getActivities() {
+    int[] ret = new int[size];
+    for (int i = 0; i < size; i++) {
+      ret[i] = getActivity(i);
+    }
+    return ret;
+  }
+
+  private int slot(int i) {
+    return (head + i) & (pairs.length / 2 - 1);
+  }
+  private void resize(int capacity) {
+    int[] newPairs = new int[2 * capacity];
+    for (int i = 0; i < size; i++) {
+      newPairs[2 * i] = getTime(i);
+      newPairs[2 * i + 1] = getActivity(i);
+    }
+    pairs = newPairs;
+    head = 0;
+  }
+  private static int roundUpToPowerOfTwo(int capacity) {
+    int ret = Integer.highestOneBit(capacity);
+    return ret == capacity ? ret : ret << 1;
+  }
+  @Override
+  public String toString() {
+    return "times=" + Arrays.toString(getTimes()) + ", activities=" + Arrays.toString(getActivities());
+  }
+}
@@ -19,6 +19,7 @@
 package com.senseidb.metrics;
 
 import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
 import com.yammer.metrics.core.Histogram;
 import com.yammer.metrics.core.Meter;
 import com.yammer.metrics.core.MetricName;
@@ -93,6 +94,13 @@ public final class MetricFactory {
     return getRegistry().newHistogram(metricName, biased);
   }
 
+  /**
+   * @see MetricsRegistry#newGauge(com.yammer.metrics.core.MetricName, com.yammer.metrics.core.Gauge)
+   */
+  public static <T> Gauge<T> newGauge(MetricName metricName, Gauge<T> gauge) {
+    return getRegistry().newGauge(metricName, gauge);
+  }
+
   /**
    * Returns a {@link MetricsRegistry}. It will start this factory if it is not started.
    */
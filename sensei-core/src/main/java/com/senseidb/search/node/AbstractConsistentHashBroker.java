@@ -28,25 +28,39 @@ import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
 import it.unimi.dsi.fastutil.ints.IntSet;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.commons.lang.RandomStringUtils;
 import org.apache.log4j.Logger;
 
 import com.linkedin.norbert.NorbertException;
+import com.linkedin.norbert.cluster.InvalidClusterException;
 import com.linkedin.norbert.javacompat.cluster.Node;
+import com.linkedin.norbert.javacompat.network.Endpoint;
+import com.linkedin.norbert.javacompat.network.PartitionedLoadBalancer;
+import com.linkedin.norbert.javacompat.network.PartitionedLoadBalancerFactory;
 import com.linkedin.norbert.javacompat.network.PartitionedNetworkClient;
 import com.linkedin.norbert.javacompat.network.RequestBuilder;
 import com.linkedin.norbert.network.ResponseIterator;
 import com.linkedin.norbert.network.Serializer;
 import com.linkedin.norbert.network.common.ExceptionIterator;
 import com.linkedin.norbert.network.common.PartialIterator;
+import com.linkedin.norbert.network.NoNodesAvailableException;
 import com.linkedin.norbert.network.common.TimeoutIterator;
+import com.senseidb.cluster.routing.LatencyAwarePartitionedLoadBalancerFactory;
+import com.senseidb.cluster.routing.NodeLoadTracker;
 import com.senseidb.metrics.MetricFactory;
 import com.senseidb.metrics.MetricsConstants;
 import com.senseidb.search.req.AbstractSenseiRequest;
@@ -79,6 +93,16 @@ public abstract class AbstractConsistentHashBroker<REQUEST extends AbstractSense
   private final Meter _searchCounter;
   private final Meter _errorMeter;
   private final Meter _emptyMeter;
+
+  private volatile SenseiBrokerResultCache _resultCache;
+  private volatile SenseiRequestHedger _requestHedger;
+  private volatile NodeLoadTracker _loadTracker;
+  private volatile PartitionedLoadBalancerFactory<String> _loadBalancerFactory;
+  private volatile PartitionedLoadBalancer<String> _loadBalancer;
+  protected volatile Set<Node> _nodes = Collections.EMPTY_SET;
+
+  // how long the gathering thread sleeps between two polls of the sub-requests sent to single nodes
+  private static final long POLL_INTERVAL_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
   
   /**
    * @param networkClient
@@ -156,7 +180,7 @@ public abstract class AbstractConsistentHashBroker<REQUEST extends AbstractSense
       return _totalTimer.time(new Callable<RESULT>(){
     	@Override
   		public RESULT call() throws Exception {
-          return doBrowse(_networkClient, req, _partitions); 	  
+          return cachedBrowse(req);
     	}
       });
     } 
@@ -167,6 +191,159 @@ public abstract class AbstractConsistentHashBroker<REQUEST extends AbstractSense
     }
   }
 
+  /**
+   * Serves the request from the result cache if one is set and the request can be cached, scatters
+   * it otherwise.
+   */
+  private RESULT cachedBrowse(final REQUEST req) throws Exception
+  {
+    SenseiBrokerResultCache resultCache = _resultCache;
+    Object key = resultCache == null ? null : getResultCacheKey(req);
+    if (key == null)
+    {
+      return doBrowse(_networkClient, req, _partitions);
+    }
+    // brokers of different clusters may share a cache
+    return resultCache.get(Arrays.asList(this, key), new SenseiBrokerResultCache.Loader<RESULT>()
+    {
+      @Override
+      public RESULT load() throws Exception
+      {
+        return doBrowse(_networkClient, req, _partitions);
+      }
+
+      @Override
+      public boolean isCacheable(RESULT result)
+      {
+        return isResultCacheable(result);
+      }
+
+      @Override
+      public byte[] toBytes(RESULT result)
+      {
+        return getResultCacheSerializer().responseToBytes(result);
+      }
+
+      @Override
+      public RESULT fromBytes(byte[] bytes)
+      {
+        return getResultCacheSerializer().responseFromBytes(bytes);
+      }
+    });
+  }
+
+  public void setResultCache(SenseiBrokerResultCache resultCache)
+  {
+    _resultCache = resultCache;
+  }
+
+  public SenseiBrokerResultCache getResultCache()
+  {
+    return _resultCache;
+  }
+
+  public void setRequestHedger(SenseiRequestHedger requestHedger)
+  {
+    _requestHedger = requestHedger;
+  }
+
+  public SenseiRequestHedger getRequestHedger()
+  {
+    return _requestHedger;
+  }
+
+  /**
+   * Sets the factory of the load balancer the network client routes with. The broker routes the
+   * sub-requests it sends to single nodes with its own load balancer from the same factory.
+   */
+  public void setLoadBalancerFactory(PartitionedLoadBalancerFactory<String> loadBalancerFactory)
+  {
+    _loadBalancerFactory = loadBalancerFactory;
+    updateLoadBalancer(_nodes);
+  }
+
+  public PartitionedLoadBalancerFactory<String> getLoadBalancerFactory()
+  {
+    return _loadBalancerFactory;
+  }
+
+  /**
+   * Rebuilds the load balancer of the broker for the current nodes of the cluster.
+   */
+  protected void updateLoadBalancer(Set<Node> nodes)
+  {
+    PartitionedLoadBalancerFactory<String> loadBalancerFactory = _loadBalancerFactory;
+    if (loadBalancerFactory == null || nodes.isEmpty())
+    {
+      _loadBalancer = null;
+      return;
+    }
+    Set<Endpoint> endpoints = new HashSet<Endpoint>();
+    for (Node node : nodes)
+    {
+      endpoints.add(new NodeEndpoint(node));
+    }
+    try
+    {
+      _loadBalancer = loadBalancerFactory.newLoadBalancer(endpoints);
+    }
+    catch (InvalidClusterException e)
+    {
+      logger.error("unable to create the load balancer, sub-requests are scattered by the network client", e);
+      _loadBalancer = null;
+    }
+  }
+
+  /**
+   * @return whether the sub-requests are sent to single nodes and gathered by the broker, rather
+   *         than scattered by the network client, which is needed to hedge them or to time the
+   *         response of every node for the load tracker
+   */
+  protected boolean isGatheredPerNode()
+  {
+    return (_requestHedger != null || _loadTracker != null) && _loadBalancer != null;
+  }
+
+  /**
+   * Sets the tracker the response times of the nodes are reported to, e.g. the one of a
+   * {@link LatencyAwarePartitionedLoadBalancerFactory}.
+   */
+  public void setLoadTracker(NodeLoadTracker loadTracker)
+  {
+    _loadTracker = loadTracker;
+  }
+
+  public NodeLoadTracker getLoadTracker()
+  {
+    return _loadTracker;
+  }
+
+  /**
+   * Returns the key the result of a request is cached under, or null if the request must always be
+   * scattered. The key must implement equals and hashCode and must not change when the request does.
+   */
+  protected Object getResultCacheKey(REQUEST req)
+  {
+    return null;
+  }
+
+  /**
+   * @return whether a merged result may be served to other requests
+   */
+  protected boolean isResultCacheable(RESULT result)
+  {
+    return false;
+  }
+
+  /**
+   * Returns the serializer merged results are cached with. It must preserve every field of a merged
+   * result, the one of the network client is used by default.
+   */
+  protected Serializer<REQUEST, RESULT> getResultCacheSerializer()
+  {
+    return _serializer;
+  }
+
   /**
    * Merge results on the client/broker side. It likely works differently from
    * the one in the search node.
@@ -179,10 +356,19 @@ public abstract class AbstractConsistentHashBroker<REQUEST extends AbstractSense
    */
   public abstract RESULT mergeResults(REQUEST request, List<RESULT> resultList);
 
+  /**
+   * Called on the gathering thread as soon as a node result arrives, before it is added to the results
+   * received so far, so that a part of the merge can overlap with the wait for the slower nodes.
+   *
+   * @param received the results received before this one
+   */
+  protected void resultReceived(REQUEST request, RESULT result, List<RESULT> received) {
+  }
+
   protected String getRouteParam(REQUEST req) {
     String param = req.getRouteParam();
     if (param == null) {
-      return RandomStringUtils.random(4);
+      return LatencyAwarePartitionedLoadBalancerFactory.RANDOM_ROUTE_PARAM_PREFIX + RandomStringUtils.random(4);
     }
     else {
       return param;
@@ -246,12 +432,12 @@ public abstract class AbstractConsistentHashBroker<REQUEST extends AbstractSense
 
   protected List<RESULT> doCall(final REQUEST req) throws ExecutionException {
     List<RESULT> resultList = new ArrayList<RESULT>();
+    final boolean perNode = isGatheredPerNode();
 
-    // only instantiate if debug logging is enabled
-    final List<StringBuilder> timingLogLines = logger.isDebugEnabled() ? new LinkedList<StringBuilder>() : null;
+    // only instantiate if debug logging is enabled, the per node gathering logs the lines itself
+    final List<StringBuilder> timingLogLines = isTimingLogged(req) && !perNode ? new LinkedList<StringBuilder>() : null;
     
-    ResponseIterator<RESULT> responseIterator =
-        buildIterator(_networkClient.sendRequestToOneReplica(getRouteParam(req), new RequestBuilder<Integer, REQUEST>() {
+    RequestBuilder<Integer, REQUEST> requestBuilder = new RequestBuilder<Integer, REQUEST>() {
           @Override
           public REQUEST apply(Node node, Set<Integer> nodePartitions) {
             // TODO: Cloning is yucky per http://www.artima.com/intv/bloch13.html
@@ -266,12 +452,14 @@ public abstract class AbstractConsistentHashBroker<REQUEST extends AbstractSense
             REQUEST customizedRequest = customizeRequest(clone);
             return customizedRequest;
           }
-        }, _serializer));
+        };
 
-    while(responseIterator.hasNext()) {
-      resultList.add(responseIterator.next());
+    if (perNode) {
+      return doPerNodeCall(req, requestBuilder);
     }
 
+    resultList.addAll(scatter(req, requestBuilder));
+
     if (timingLogLines != null) {
       // this means debug logging was enabled, complete the timing log lines and log them
       int i = 0;
@@ -279,15 +467,353 @@ public abstract class AbstractConsistentHashBroker<REQUEST extends AbstractSense
         // we are assuming the request builder gets called in the same order as the response
         // iterator is built, otherwise the loglines would be out of sync between req & res
         if (i < resultList.size()) {
-          logger.debug(buildLogLineForResult(logLine, resultList.get(i++)));
+          logTiming(buildLogLineForResult(logLine, resultList.get(i++)).toString());
         }
       }
-      logger.debug(String.format("There are %d responses", resultList.size()));
+      logTiming(String.format("There are %d responses", resultList.size()));
     }
 
     return resultList;
   }
 
+  /**
+   * @return whether the sub-requests and the time every node took are logged for the request
+   */
+  protected boolean isTimingLogged(REQUEST req) {
+    return logger.isDebugEnabled();
+  }
+
+  protected void logTiming(String logLine) {
+    logger.debug(logLine);
+  }
+
+  /**
+   * Sends the sub-requests to one replica of every partition and gathers the responses.
+   */
+  protected List<RESULT> scatter(REQUEST req, final RequestBuilder<Integer, REQUEST> requestBuilder) throws ExecutionException {
+    ResponseIterator<RESULT> responseIterator =
+        buildIterator(_networkClient.sendRequestToOneReplica(getRouteParam(req), requestBuilder, _serializer));
+
+    List<RESULT> resultList = new ArrayList<RESULT>();
+    while(responseIterator.hasNext()) {
+      RESULT result = responseIterator.next();
+      resultReceived(req, result, resultList);
+      resultList.add(result);
+    }
+    return resultList;
+  }
+
+  /**
+   * Sends the sub-requests directly to the replicas chosen by the load balancer, and reports the
+   * response time of every node to the load tracker. If a request hedger is set, a sub-request
+   * that is not answered within the hedge delay of its node, or that fails, is sent once more to
+   * another replica of the same partitions, and the first response is used. The gathering thread
+   * polls the futures of the sub-requests itself, no thread waits for a single sub-request.
+   */
+  protected List<RESULT> doPerNodeCall(REQUEST req, RequestBuilder<Integer, REQUEST> requestBuilder) throws ExecutionException {
+    SenseiRequestHedger hedger = _requestHedger;
+    PartitionedLoadBalancer<String> loadBalancer = _loadBalancer;
+    Set<Node> nodes = _nodes;
+    long deadline = System.currentTimeMillis() + _timeout;
+
+    Map<Node, Set<Integer>> routes;
+    try {
+      routes = loadBalancer.nodesForPartitions(getRouteParam(req), _partitions);
+    }
+    catch (Exception e) {
+      throw new ExecutionException(e);
+    }
+    Set<Integer> missing = new HashSet<Integer>(_partitions);
+    for (Set<Integer> nodePartitions : routes.values()) {
+      missing.removeAll(nodePartitions);
+    }
+    if (!missing.isEmpty()) {
+      throw new ExecutionException(new NoNodesAvailableException("Unable to satisfy request, no node available for partitions " + missing));
+    }
+
+    boolean timingLogged = isTimingLogged(req);
+    List<HedgedCall> calls = new ArrayList<HedgedCall>(routes.size());
+    for (Map.Entry<Node, Set<Integer>> route : routes.entrySet()) {
+      HedgedCall call = new HedgedCall(route.getKey(), route.getValue(), timingLogged);
+      send(call, call.node, requestBuilder, hedger);
+      long delay = hedger == null ? Long.MAX_VALUE : hedger.getHedgeDelay(call.node);
+      call.hedgeAt = delay == Long.MAX_VALUE ? Long.MAX_VALUE : System.currentTimeMillis() + delay;
+      calls.add(call);
+    }
+
+    List<RESULT> resultList = new ArrayList<RESULT>(calls.size());
+    int pending = 0;
+    for (HedgedCall call : calls) {
+      if (call.outstanding == 0 && hedger != null) {
+        hedge(call, nodes, requestBuilder, hedger);
+      }
+      if (call.outstanding == 0) {
+        // the sub-request could not even be sent
+        call.done = true;
+      }
+      else {
+        ++pending;
+      }
+    }
+    try {
+      while (pending > 0) {
+        long now = System.currentTimeMillis();
+        if (now >= deadline) {
+          break;
+        }
+        boolean progress = false;
+        long wakeUp = deadline;
+        for (HedgedCall call : calls) {
+          if (call.done) {
+            continue;
+          }
+          if (call.hedgeNode == null && call.hedgeAt <= now) {
+            hedge(call, nodes, requestBuilder, hedger);
+          }
+          // a failed sub-request may be hedged while the list is walked
+          for (int i = 0; i < call.sent.size(); ++i) {
+            SentRequest sent = call.sent.get(i);
+            if (sent.finished || !sent.future.isDone()) {
+              continue;
+            }
+            progress = true;
+            --call.outstanding;
+            if (received(sent, now)) {
+              call.done = true;
+              call.error = null;
+              if (sent.node != call.node) {
+                hedger.markHedgeWon();
+              }
+              if (sent.logLine != null) {
+                logTiming(buildLogLineForResult(sent.logLine, sent.result).toString());
+              }
+              resultReceived(req, sent.result, resultList);
+              resultList.add(sent.result);
+              break;
+            }
+            call.error = sent.error;
+            if (call.hedgeNode == null && hedger != null) {
+              hedge(call, nodes, requestBuilder, hedger);
+            }
+            if (call.outstanding == 0) {
+              call.done = true;
+              break;
+            }
+          }
+          if (call.done) {
+            --pending;
+          }
+          else if (call.hedgeNode == null && call.hedgeAt != Long.MAX_VALUE) {
+            wakeUp = Math.min(wakeUp, call.hedgeAt);
+          }
+        }
+        if (!progress && pending > 0) {
+          // sleep until the next poll, or until the earliest sub-request is due to be hedged
+          LockSupport.parkNanos(Math.min(POLL_INTERVAL_NANOS, TimeUnit.MILLISECONDS.toNanos(Math.max(0, wakeUp - now))));
+          if (Thread.interrupted()) {
+            Thread.currentThread().interrupt();
+            throw new ExecutionException(new InterruptedException());
+          }
+        }
+      }
+    }
+    finally {
+      long now = System.currentTimeMillis();
+      for (HedgedCall call : calls) {
+        call.cancel(now);
+      }
+    }
+
+    for (HedgedCall call : calls) {
+      if (!call.done) {
+        call.error = new TimeoutException("node " + call.node.getId() + " did not respond within " + _timeout + "ms");
+      }
+      if (call.error != null) {
+        logger.error("Error calling partitions " + call.partitions, call.error);
+        if (!allowPartialMerge()) {
+          throw new ExecutionException(call.error);
+        }
+      }
+    }
+    if (timingLogged) {
+      logTiming(String.format("There are %d responses", resultList.size()));
+    }
+    return resultList;
+  }
+
+  /**
+   * Sends the sub-request of a call once more to the fastest other replica of its partitions, if
+   * there is one.
+   */
+  private void hedge(HedgedCall call, Set<Node> nodes, RequestBuilder<Integer, REQUEST> requestBuilder, SenseiRequestHedger hedger) {
+    call.hedgeAt = Long.MAX_VALUE;
+    Node alternative = hedger.getAlternative(nodes, call.node, call.partitions);
+    if (alternative == null) {
+      return;
+    }
+    if (logger.isDebugEnabled()) {
+      logger.debug("hedging partitions " + call.partitions + " of node " + call.node.getId() + " to node " + alternative.getId());
+    }
+    call.hedgeNode = alternative;
+    send(call, alternative, requestBuilder, hedger);
+    hedger.markHedged();
+  }
+
+  /**
+   * Sends the sub-request of a call to a node, a request that cannot be sent is finished at once.
+   */
+  private void send(HedgedCall call, Node node, RequestBuilder<Integer, REQUEST> requestBuilder, SenseiRequestHedger hedger) {
+    NodeLoadTracker loadTracker = _loadTracker;
+    if (loadTracker != null) {
+      loadTracker.requestSent(node.getId());
+    }
+    SentRequest sent = new SentRequest(node, System.currentTimeMillis(), loadTracker, hedger);
+    try {
+      REQUEST request = requestBuilder.apply(node, call.partitions);
+      if (call.timingLogged) {
+        sent.logLine = buildLogLineForRequest(node, request);
+      }
+      sent.future = _networkClient.sendRequestToNode(request, node, _serializer);
+    }
+    catch (Exception e) {
+      sent.finished = true;
+      sent.error = e;
+      if (loadTracker != null) {
+        loadTracker.requestCancelled(node.getId());
+      }
+      call.error = e;
+      return;
+    }
+    ++call.outstanding;
+    call.sent.add(sent);
+  }
+
+  /**
+   * Takes the response of a completed sub-request and reports its response time.
+   *
+   * @return whether the node answered with a result
+   */
+  private boolean received(SentRequest sent, long now) {
+    sent.finished = true;
+    try {
+      sent.result = sent.future.get();
+    }
+    catch (ExecutionException e) {
+      sent.error = e.getCause();
+    }
+    catch (Exception e) {
+      sent.error = e;
+    }
+    if (sent.error == null) {
+      sent.report(now);
+    }
+    else if (sent.loadTracker != null) {
+      // a failure says nothing about how fast the node answers
+      sent.loadTracker.requestCancelled(sent.node.getId());
+    }
+    return sent.error == null;
+  }
+
+  /**
+   * A sub-request sent to one node. Only accessed by the gathering thread.
+   */
+  private final class SentRequest {
+    final Node node;
+    final long time;
+    final NodeLoadTracker loadTracker;
+    final SenseiRequestHedger hedger;
+    Future<RESULT> future;
+    StringBuilder logLine;
+    boolean finished;
+    RESULT result;
+    Throwable error;
+
+    SentRequest(Node node, long time, NodeLoadTracker loadTracker, SenseiRequestHedger hedger) {
+      this.node = node;
+      this.time = time;
+      this.loadTracker = loadTracker;
+      this.hedger = hedger;
+    }
+
+    /**
+     * Reports how long the node took to answer, or how long it was waited for in vain
+     */
+    void report(long now) {
+      long millis = now - time;
+      if (loadTracker != null) {
+        loadTracker.responseReceived(node.getId(), millis);
+      }
+      if (hedger != null) {
+        hedger.recordResponseTime(node, millis);
+      }
+    }
+  }
+
+  /**
+   * A sub-request sent to one replica and possibly hedged to another. Only accessed by the
+   * gathering thread.
+   */
+  private final class HedgedCall {
+    final Node node;
+    final Set<Integer> partitions;
+    final boolean timingLogged;
+    final List<SentRequest> sent = new ArrayList<SentRequest>(2);
+    long hedgeAt;
+    Node hedgeNode;
+    int outstanding;
+    Throwable error;
+    boolean done;
+
+    HedgedCall(Node node, Set<Integer> partitions, boolean timingLogged) {
+      this.node = node;
+      this.partitions = partitions;
+      this.timingLogged = timingLogged;
+    }
+
+    /**
+     * Cancels the sub-requests still outstanding. The ones that lost against the response of
+     * another replica are not sampled, the ones of a call nobody answered timed out.
+     */
+    void cancel(long now) {
+      for (SentRequest request : sent) {
+        if (request.finished) {
+          continue;
+        }
+        request.finished = true;
+        request.future.cancel(true);
+        if (done) {
+          if (request.loadTracker != null) {
+            request.loadTracker.requestCancelled(request.node.getId());
+          }
+        }
+        else {
+          request.report(now);
+        }
+      }
+    }
+  }
+
+  /**
+   * Presents a node of the cluster to a load balancer factory.
+   */
+  private static final class NodeEndpoint implements Endpoint {
+    private final Node _node;
+
+    NodeEndpoint(Node node) {
+      _node = node;
+    }
+
+    @Override
+    public Node getNode() {
+      return _node;
+    }
+
+    @Override
+    public boolean canServeRequests() {
+      return _node.isAvailable();
+    }
+  }
+
   protected StringBuilder buildLogLineForRequest(Node node, REQUEST clone) {
     return new StringBuilder()
         .append("Request to individual node - id:")
@@ -313,6 +839,9 @@ public abstract class AbstractConsistentHashBroker<REQUEST extends AbstractSense
   public void shutdown()
   {
     logger.info("shutting down broker...");
+    if (_requestHedger != null) {
+      _requestHedger.shutdown();
+    }
     if (_scatterTimer != null) {
       _scatterTimer.stop();
     }
@@ -0,0 +1,342 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+package com.senseidb.search.node;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.NotCompliantMBeanException;
+import javax.management.StandardMBean;
+
+import org.apache.log4j.Logger;
+
+import com.senseidb.jmx.JmxUtil;
+import com.senseidb.plugin.SenseiPlugin;
+import com.senseidb.plugin.SenseiPluginRegistry;
+
+/**
+ * LRU broker result cache. Since Sensei indexes in realtime, a cached result is served for at most
+ * maxAge milliseconds, which bounds how stale a cached result can be.
+ * <p>
+ * Can be configured as a plugin, e.g.
+ * <pre>
+ * sensei.broker.result.cache.class=com.senseidb.search.node.DefaultSenseiBrokerResultCache
+ * sensei.broker.result.cache.maxSize=10000
+ * sensei.broker.result.cache.maxAge=1000
+ * </pre>
+ */
+public class DefaultSenseiBrokerResultCache implements SenseiBrokerResultCache, SenseiBrokerResultCacheMBean, SenseiPlugin
+{
+  private static final Logger logger = Logger.getLogger(DefaultSenseiBrokerResultCache.class);
+
+  public static final String MAX_SIZE = "maxSize";
+  public static final String MAX_AGE = "maxAge";
+
+  public static final int DEFAULT_MAX_SIZE = 1000;
+  public static final long DEFAULT_MAX_AGE = 1000;
+
+  private volatile int _maxSize;
+  private volatile long _maxAge;
+
+  private final LinkedHashMap<Object, Entry> _entries = new LinkedHashMap<Object, Entry>(16, 0.75f, true);
+  private final ConcurrentMap<Object, Load<?>> _inflight = new ConcurrentHashMap<Object, Load<?>>();
+
+  private final AtomicLong _hits = new AtomicLong();
+  private final AtomicLong _misses = new AtomicLong();
+  private final AtomicLong _coalesced = new AtomicLong();
+  private final AtomicLong _evictions = new AtomicLong();
+
+  public DefaultSenseiBrokerResultCache()
+  {
+    this(DEFAULT_MAX_SIZE, DEFAULT_MAX_AGE);
+  }
+
+  /**
+   * @param maxSize maximum number of cached results
+   * @param maxAge time in milliseconds a result may be served from the cache
+   */
+  public DefaultSenseiBrokerResultCache(int maxSize, long maxAge)
+  {
+    _maxSize = maxSize;
+    _maxAge = maxAge;
+  }
+
+  @Override
+  public void init(Map<String, String> config, SenseiPluginRegistry pluginRegistry)
+  {
+    if (config.containsKey(MAX_SIZE))
+      _maxSize = Integer.parseInt(config.get(MAX_SIZE));
+    if (config.containsKey(MAX_AGE))
+      _maxAge = Long.parseLong(config.get(MAX_AGE));
+    try
+    {
+      JmxUtil.registerMBean(new StandardMBean(this, SenseiBrokerResultCacheMBean.class), "name", "broker-result-cache");
+    }
+    catch (NotCompliantMBeanException e)
+    {
+      logger.error(e.getMessage(), e);
+    }
+  }
+
+  @Override
+  public void start()
+  {
+  }
+
+  @Override
+  public void stop()
+  {
+    clear();
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public <RESULT> RESULT get(Object key, final Loader<RESULT> loader) throws Exception
+  {
+    byte[] cached = lookup(key);
+    if (cached != null)
+    {
+      _hits.incrementAndGet();
+      return loader.fromBytes(cached);
+    }
+
+    // the loading caller gets the loaded result, the requests coalesced with it a copy
+    Load<RESULT> load = new Load<RESULT>(key, loader);
+    Load<?> inflight = _inflight.putIfAbsent(key, load);
+    if (inflight != null)
+    {
+      if (!inflight.join())
+      {
+        // the load has just finished without us, its result is either cached by now or can't be shared
+        return get(key, loader);
+      }
+      _coalesced.incrementAndGet();
+      Loaded<RESULT> loaded = (Loaded<RESULT>) getResult(inflight.task);
+      if (loaded.result == null)
+        return null;
+      if (loaded.bytes == null)
+        // the result could not be serialized, the copy is loaded separately
+        return loader.load();
+      return loader.fromBytes(loaded.bytes);
+    }
+
+    _misses.incrementAndGet();
+    load.task.run();
+    Loaded<RESULT> loaded = getResult(load.task);
+    if (loaded.cacheable)
+    {
+      store(key, loaded.bytes);
+    }
+    return loaded.result;
+  }
+
+  private synchronized byte[] lookup(Object key)
+  {
+    Entry entry = _entries.get(key);
+    if (entry == null)
+      return null;
+    if (System.currentTimeMillis() - entry.created > _maxAge)
+    {
+      _entries.remove(key);
+      return null;
+    }
+    return entry.value;
+  }
+
+  private synchronized void store(Object key, byte[] value)
+  {
+    _entries.put(key, new Entry(value));
+    Iterator<Entry> iter = _entries.values().iterator();
+    while (_entries.size() > _maxSize && iter.hasNext())
+    {
+      iter.next();
+      iter.remove();
+      _evictions.incrementAndGet();
+    }
+  }
+
+  private static <T> T getResult(FutureTask<T> task) throws Exception
+  {
+    try
+    {
+      return task.get();
+    }
+    catch (ExecutionException e)
+    {
+      Throwable cause = e.getCause();
+      if (cause instanceof Exception)
+        throw (Exception) cause;
+      if (cause instanceof Error)
+        throw (Error) cause;
+      throw e;
+    }
+  }
+
+  @Override
+  public synchronized void clear()
+  {
+    _entries.clear();
+  }
+
+  @Override
+  public long getHitCount()
+  {
+    return _hits.get();
+  }
+
+  @Override
+  public long getMissCount()
+  {
+    return _misses.get();
+  }
+
+  @Override
+  public long getCoalescedCount()
+  {
+    return _coalesced.get();
+  }
+
+  @Override
+  public long getEvictionCount()
+  {
+    return _evictions.get();
+  }
+
+  @Override
+  public synchronized int getSize()
+  {
+    return _entries.size();
+  }
+
+  @Override
+  public int getMaxSize()
+  {
+    return _maxSize;
+  }
+
+  @Override
+  public long getMaxAge()
+  {
+    return _maxAge;
+  }
+
+  private static final class Entry
+  {
+    final byte[] value;
+    final long created;
+
+    Entry(byte[] value)
+    {
+      this.value = value;
+      this.created = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Single load shared by the coalesced requests. The result is serialized only if it is going to be
+   * cached or some request waits for a copy, the requests can join the load until it is loaded.
+   */
+  private final class Load<RESULT> implements Callable<Loaded<RESULT>>
+  {
+    final Object key;
+    final Loader<RESULT> loader;
+    final FutureTask<Loaded<RESULT>> task = new FutureTask<Loaded<RESULT>>(this);
+    private int waiters;
+    private boolean sealed;
+
+    Load(Object key, Loader<RESULT> loader)
+    {
+      this.key = key;
+      this.loader = loader;
+    }
+
+    /**
+     * @return false if the result is already loaded and no copy was made for the joining request
+     */
+    synchronized boolean join()
+    {
+      if (sealed)
+        return false;
+      waiters++;
+      return true;
+    }
+
+    /**
+     * @return whether there are requests waiting for a copy of the result
+     */
+    private synchronized boolean seal()
+    {
+      sealed = true;
+      return waiters > 0;
+    }
+
+    @Override
+    public Loaded<RESULT> call() throws Exception
+    {
+      RESULT result;
+      try
+      {
+        result = loader.load();
+      }
+      finally
+      {
+        _inflight.remove(key, this);
+      }
+      boolean shared = seal();
+      if (result == null)
+        return new Loaded<RESULT>(null, false, null);
+      boolean cacheable = loader.isCacheable(result);
+      byte[] bytes = null;
+      if (cacheable || shared)
+      {
+        try
+        {
+          bytes = loader.toBytes(result);
+        }
+        catch (Exception e)
+        {
+          logger.warn("Failed to serialize the result of " + key + ", it is not cached", e);
+          cacheable = false;
+        }
+      }
+      return new Loaded<RESULT>(result, cacheable, bytes);
+    }
+  }
+
+  private static final class Loaded<RESULT>
+  {
+    final RESULT result;
+    final boolean cacheable;
+    final byte[] bytes;
+
+    Loaded(RESULT result, boolean cacheable, byte[] bytes)
+    {
+      this.result = result;
+      this.cacheable = cacheable;
+      this.bytes = bytes;
+    }
+  }
+}
@@ -57,7 +57,6 @@ import com.browseengine.bobo.sort.DocComparator;
 import com.browseengine.bobo.sort.DocIDPriorityQueue;
 import com.browseengine.bobo.sort.SortCollector;
 import com.browseengine.bobo.sort.SortCollector.CollectorContext;
-import com.browseengine.bobo.util.ListMerger;
 import com.senseidb.search.req.ErrorType;
 import com.senseidb.search.req.SenseiError;
 import com.senseidb.search.req.SenseiHit;
@@ -158,7 +157,7 @@ public class ResultMerger
     public SenseiHit hit;
     public DocIDPriorityQueue queue;
     public Map<Object, MyScoreDoc>[] distinctMap;
-    public ArrayList<Iterator<SenseiHit>> iterList = new ArrayList<Iterator<SenseiHit>>();
+    public ArrayList<SenseiHit[]> groupHitsList = new ArrayList<SenseiHit[]>();
 
     public HitWithGroupQueue(SenseiHit hit, int maxPerGroup, int distinctLength)
     {
@@ -662,14 +661,14 @@ public class ResultMerger
     }
   }
 
-  public static List<Iterator<SenseiHit>> flattenHits(Collection<SenseiResult> results) {
-    List<Iterator<SenseiHit>> hitList = new ArrayList<Iterator<SenseiHit>>(results.size());
-
+  public static SenseiHit[][] extractHits(Collection<SenseiResult> results) {
+    SenseiHit[][] hits = new SenseiHit[results.size()][];
+    int i = 0;
     for (SenseiResult res : results)
     {
-      hitList.add(Arrays.asList(res.getSenseiHits()).iterator());
+      hits[i++] = res.getSenseiHits();
     }
-    return hitList;
+    return hits;
   }
 
   private static final int UNKNOWN_GROUP_VALUE_TYPE = 0;
@@ -697,7 +696,7 @@ public class ResultMerger
     createUniqueDocIds(results);
 
     // Extract the hits from the results
-    List<Iterator<SenseiHit>> hitLists = flattenHits(results);
+    SenseiHit[][] hitLists = extractHits(results);
 
     List<FacetAccessible>[] groupAccessibles = extractFacetAccessible(results);
 
@@ -724,9 +723,7 @@ public class ResultMerger
     SenseiHit[] hits;
     if (req.getGroupBy() == null || req.getGroupBy().length == 0)
     {
-      List<SenseiHit> mergedList = ListMerger.mergeLists(req.getOffset(), req.getCount(), hitLists
-          .toArray(new Iterator[hitLists.size()]), comparator);
-      hits = mergedList.toArray(new SenseiHit[mergedList.size()]);
+      hits = SenseiHitMerger.merge(hitLists, req.getOffset(), req.getCount(), comparator);
     }
     else
     {
@@ -734,7 +731,7 @@ public class ResultMerger
 
       PrimitiveLongArrayWrapper primitiveLongArrayWrapperTmp = new PrimitiveLongArrayWrapper(null);
 
-      Iterator<SenseiHit> mergedIter = ListMerger.mergeLists(hitLists, comparator);
+      Iterator<SenseiHit> mergedIter = new SenseiHitMerger(hitLists, comparator);
 
       List<SenseiHit> hitsList = null;
       if (!hasSortCollector)
@@ -826,8 +823,8 @@ public class ResultMerger
                 distinctSets[i].clear();
               }
             }
-            Iterator<SenseiHit> groupMergedIter = ListMerger.mergeLists(hwg.iterList
-                .toArray(new Iterator[hwg.iterList.size()]), comparator);
+            Iterator<SenseiHit> groupMergedIter = new SenseiHitMerger(hwg.groupHitsList
+                .toArray(new SenseiHit[hwg.groupHitsList.size()][]), comparator);
             List<SenseiHit> mergedList = new ArrayList<SenseiHit>(req.getMaxPerGroup());
             while (mergedList.size() < req.getMaxPerGroup() && groupMergedIter.hasNext())
             {
@@ -1529,7 +1526,7 @@ public class ResultMerger
 
                 hitWithGroupQueue = groupMaps[hit.getGroupPosition()].get(rawGroupValue);
                 if (hitWithGroupQueue != null)
-                  hitWithGroupQueue.iterList.add(Arrays.asList(hit.getSenseiGroupHits()).iterator());
+                  hitWithGroupQueue.groupHitsList.add(hit.getSenseiGroupHits());
               }
             }
           }
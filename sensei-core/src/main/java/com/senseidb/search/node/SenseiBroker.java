@@ -19,17 +19,20 @@
 package com.senseidb.search.node;
 
 import com.browseengine.bobo.api.FacetSpec;
+import com.browseengine.bobo.mapred.MapReduceResult;
 import com.linkedin.norbert.NorbertException;
 import com.linkedin.norbert.javacompat.cluster.ClusterClient;
 import com.linkedin.norbert.javacompat.cluster.Node;
 import com.linkedin.norbert.javacompat.network.PartitionedNetworkClient;
 import com.linkedin.norbert.javacompat.network.RequestBuilder;
-import com.linkedin.norbert.network.ResponseIterator;
 import com.linkedin.norbert.network.Serializer;
 import com.senseidb.conf.SenseiSchema;
 import com.senseidb.indexing.DefaultJsonSchemaInterpreter;
 import com.senseidb.metrics.MetricFactory;
 import com.senseidb.search.req.*;
+import com.senseidb.search.req.mapred.CombinerStage;
+import com.senseidb.search.req.mapred.SenseiMapReduce;
+import com.senseidb.svc.impl.CoreSenseiServiceImpl;
 import com.yammer.metrics.core.Counter;
 import com.yammer.metrics.core.MetricName;
 import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
@@ -56,6 +59,7 @@ public class SenseiBroker extends AbstractConsistentHashBroker<SenseiRequest, Se
   private final boolean allowPartialMerge;
   private final ClusterClient clusterClient;
   private final SenseiRequestCustomizerFactory requestCustomizerFactory;
+  private volatile boolean combineOnArrival = false;
   private final Counter numberOfNodesInTheCluster = MetricFactory.newCounter(new MetricName(SenseiBroker.class,
                                                                                             "numberOfNodesInTheCluster"));
   
@@ -166,18 +170,95 @@ public class SenseiBroker extends AbstractConsistentHashBroker<SenseiRequest, Se
     return res;
   }
 
+  /**
+   * The node level combine of the map reduce results is then run by the broker as the node results
+   * arrive, so the combiner of the map reduce function has to be associative. Off by default, like
+   * the parallel map of the nodes.
+   */
+  public void setCombineOnArrival(boolean combineOnArrival)
+  {
+    this.combineOnArrival = combineOnArrival;
+  }
+
+  public boolean isCombineOnArrival()
+  {
+    return combineOnArrival;
+  }
+
+  /**
+   * Combines the map reduce results on arrival, the final reduce then only has the single combined
+   * result to process. The map results of the first result are copied once, the copy accumulates the
+   * following ones, that are detached from their results.
+   */
+  @Override
+  protected void resultReceived(SenseiRequest request, SenseiResult result, List<SenseiResult> received)
+  {
+    if (!combineOnArrival)
+      return;
+    SenseiMapReduce mapReduceFunction = request.getMapReduceFunction();
+    MapReduceResult mapReduceResult = result.getMapReduceResult();
+    if (mapReduceFunction == null || mapReduceResult == null || mapReduceResult.getMapResults() == null)
+      return;
+    for (SenseiResult previous : received)
+    {
+      MapReduceResult combined = previous.getMapReduceResult();
+      if (combined != null && combined.getMapResults() != null)
+      {
+        List mapResults = combined.getMapResults();
+        mapResults.addAll(mapReduceResult.getMapResults());
+        combined.setMapResults(new ArrayList(mapReduceFunction.combine(mapResults, CombinerStage.nodeLevel)));
+        result.setMapReduceResult(null);
+        return;
+      }
+    }
+    // the deserialized list is not necessarily growable
+    mapReduceResult.setMapResults(new ArrayList(mapReduceResult.getMapResults()));
+  }
+
   @Override
   public SenseiResult getEmptyResultInstance()
   {
     return new SenseiResult();
   }
 
+  /**
+   * Keys cached results by the request as received. The request customizer is a function of the
+   * request, so it need not be applied to build the key.
+   */
+  @Override
+  protected Object getResultCacheKey(SenseiRequest req)
+  {
+    // map reduce functions do not implement equals, traced requests should reach the cluster
+    if (req.getMapReduceFunction() != null || req.isTrace())
+      return null;
+    return new SenseiRequestKey(req);
+  }
+
+  @Override
+  protected boolean isResultCacheable(SenseiResult result)
+  {
+    return result.getErrors().isEmpty();
+  }
+
+  /**
+   * Merged results carry fields the node responses do not, e.g. the recovered source data, so they
+   * are cached with java serialization.
+   */
+  @Override
+  protected Serializer<SenseiRequest, SenseiResult> getResultCacheSerializer()
+  {
+    return CoreSenseiServiceImpl.JAVA_SERIALIZER;
+  }
+
   protected List<SenseiResult> doCall(final SenseiRequest req) throws ExecutionException
   {
     List<SenseiResult> resultList = new ArrayList<SenseiResult>();
 
-    // only instantiate if debug logging is enabled
-    final List<StringBuilder> timingLogLines = req.isTrace() || logger.isDebugEnabled() ? new LinkedList<StringBuilder>() : null;
+    final boolean perNode = isGatheredPerNode();
+
+    final boolean timingLogged = isTimingLogged(req);
+    // only instantiate if debug logging is enabled, the per node gathering logs the lines itself
+    final List<StringBuilder> timingLogLines = timingLogged && !perNode ? new LinkedList<StringBuilder>() : null;
 
     final SenseiRequestCustomizer customizer;
     if (requestCustomizerFactory != null)
@@ -185,10 +266,21 @@ public class SenseiBroker extends AbstractConsistentHashBroker<SenseiRequest, Se
     else
       customizer = null;
 
-    ResponseIterator<SenseiResult> responseIterator =
-        buildIterator(_networkClient.sendRequestToOneReplica(getRouteParam(req), new RequestBuilder<Integer, SenseiRequest>() {
+    // Without a customizer and the log lines, the sub-requests differ only in their partitions,
+    // so the request is customized and encoded once for all the nodes
+    final SharedRequestEncoding sharedEncoding;
+    if (customizer == null && !timingLogged && SharedRequestEncoding.isSupportedBy(getSerializer()))
+      sharedEncoding = new SharedRequestEncoding(customizeRequest((SenseiRequest) req.clone(), null, null));
+    else
+      sharedEncoding = null;
+
+    RequestBuilder<Integer, SenseiRequest> requestBuilder = new RequestBuilder<Integer, SenseiRequest>() {
           @Override
           public SenseiRequest apply(Node node, Set<Integer> nodePartitions) {
+            if (sharedEncoding != null) {
+              return sharedEncoding.forPartitions(nodePartitions);
+            }
+
             // TODO: Cloning is yucky per http://www.artima.com/intv/bloch13.html
             SenseiRequest clone = (SenseiRequest) (((SenseiRequest) req).clone());
 
@@ -201,12 +293,14 @@ public class SenseiBroker extends AbstractConsistentHashBroker<SenseiRequest, Se
             SenseiRequest customizedRequest = customizeRequest(clone, customizer, nodePartitions);
             return customizedRequest;
           }
-        }, _serializer));
+        };
 
-    while(responseIterator.hasNext()) {
-      resultList.add(responseIterator.next());
+    if (perNode) {
+      return doPerNodeCall(req, requestBuilder);
     }
 
+    resultList.addAll(scatter(req, requestBuilder));
+
     if (timingLogLines != null) {
       // this means debug logging was enabled, complete the timing log lines and log them
       int i = 0;
@@ -214,18 +308,10 @@ public class SenseiBroker extends AbstractConsistentHashBroker<SenseiRequest, Se
         // we are assuming the request builder gets called in the same order as the response
         // iterator is built, otherwise the loglines would be out of sync between req & res
         if (i < resultList.size()) {
-          buildLogLineForResult(logLine, resultList.get(i++));
-          if (logger.isDebugEnabled())
-            logger.debug(logLine.toString());
-          else
-            logger.info(logLine.toString());
+          logTiming(buildLogLineForResult(logLine, resultList.get(i++)).toString());
         }
       }
-      String numResponses = String.format("There are %d responses", resultList.size());
-      if (logger.isDebugEnabled())
-        logger.debug(numResponses);
-      else
-        logger.info(numResponses);
+      logTiming(String.format("There are %d responses", resultList.size()));
     }
 
     return resultList;
@@ -298,6 +384,24 @@ public class SenseiBroker extends AbstractConsistentHashBroker<SenseiRequest, Se
     return request;
   }
 
+  /**
+   * Traced requests are logged even if debug logging is disabled
+   */
+  @Override
+  protected boolean isTimingLogged(SenseiRequest req)
+  {
+    return req.isTrace() || logger.isDebugEnabled();
+  }
+
+  @Override
+  protected void logTiming(String logLine)
+  {
+    if (logger.isDebugEnabled())
+      logger.debug(logLine);
+    else
+      logger.info(logLine);
+  }
+
   @Override
   protected StringBuilder buildLogLineForRequest(Node node, SenseiRequest req) {
     return super.buildLogLineForRequest(node, req).append(" - routeParam: ").append(req.getRouteParam());
@@ -314,8 +418,9 @@ public class SenseiBroker extends AbstractConsistentHashBroker<SenseiRequest, Se
 
   public void handleClusterConnected(Set<Node> nodes)
   {
-//    _loadBalancer = _loadBalancerFactory.newLoadBalancer(nodes);
     _partitions = getPartitions(nodes);
+    _nodes = nodes;
+    updateLoadBalancer(nodes);
     numberOfNodesInTheCluster.clear();
     numberOfNodesInTheCluster.inc(getNumberOfNodes());
     logger.info("handleClusterConnected(): Received the list of nodes from norbert " + nodes.toString());
@@ -326,13 +431,16 @@ public class SenseiBroker extends AbstractConsistentHashBroker<SenseiRequest, Se
   {
     logger.info("handleClusterDisconnected() called");
     _partitions = new IntOpenHashSet();
+    _nodes = Collections.EMPTY_SET;
+    updateLoadBalancer(_nodes);
   }
 
   public void handleClusterNodesChanged(Set<Node> nodes)
   {
 
-//    _loadBalancer = _loadBalancerFactory.newLoadBalancer(nodes);
     _partitions = getPartitions(nodes);
+    _nodes = nodes;
+    updateLoadBalancer(nodes);
     numberOfNodesInTheCluster.clear();
     numberOfNodesInTheCluster.inc(getNumberOfNodes());
     logger.info("handleClusterNodesChanged(): Received the list of nodes from norbert " + nodes.toString());
@@ -0,0 +1,55 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+package com.senseidb.search.node;
+
+/**
+ * Cache of merged broker results, consulted by {@link AbstractConsistentHashBroker} before a
+ * request is scattered to the cluster. Implementations are configured through the plugin registry
+ * under {@link com.senseidb.conf.SenseiConfParams#SERVER_BROKER_RESULT_CACHE}.
+ */
+public interface SenseiBrokerResultCache
+{
+  /**
+   * Loads a result on a cache miss. Results are shared serialized, so that every caller gets its
+   * own copy.
+   */
+  public interface Loader<RESULT>
+  {
+    RESULT load() throws Exception;
+
+    /**
+     * @return whether the loaded result may be served to other requests
+     */
+    boolean isCacheable(RESULT result);
+
+    byte[] toBytes(RESULT result);
+
+    RESULT fromBytes(byte[] bytes);
+  }
+
+  /**
+   * Returns the cached result for the key or loads it. Concurrent calls with equal keys share a
+   * single load, each of them gets its own copy of the result.
+   *
+   * @param key key of the request, must implement equals and hashCode
+   */
+  <RESULT> RESULT get(Object key, Loader<RESULT> loader) throws Exception;
+
+  void clear();
+}
@@ -47,6 +47,8 @@ import com.senseidb.indexing.SenseiIndexPruner.DefaultSenseiIndexPruner;
 import com.senseidb.jmx.JmxUtil;
 import com.senseidb.search.plugin.PluggableSearchEngineManager;
 import com.senseidb.search.req.SenseiSystemInfo;
+import com.senseidb.svc.impl.SenseiResultCache;
+import com.senseidb.svc.impl.SenseiSearchScheduler;
 
 
 public class SenseiCore{
@@ -63,6 +65,8 @@ public class SenseiCore{
   private SenseiSystemInfo _senseiSystemInfo;
   private volatile boolean _started;
   private SenseiIndexPruner _pruner;
+  private SenseiSearchScheduler _searchScheduler;
+  private volatile SenseiResultCache _resultCache;
 
   private PluggableSearchEngineManager pluggableSearchEngineManager;
 
@@ -94,6 +98,28 @@ public class SenseiCore{
 	  return _pruner == null ? new DefaultSenseiIndexPruner() : _pruner;
   }
   
+  public synchronized void setSearchScheduler(SenseiSearchScheduler searchScheduler){
+    _searchScheduler = searchScheduler;
+  }
+
+  public synchronized SenseiSearchScheduler getSearchScheduler(){
+    if (_searchScheduler == null){
+      _searchScheduler = new SenseiSearchScheduler();
+    }
+    return _searchScheduler;
+  }
+
+  public void setResultCache(SenseiResultCache resultCache){
+    _resultCache = resultCache;
+  }
+
+  /**
+   * @return the cache of merged search results, or null if result caching is disabled
+   */
+  public SenseiResultCache getResultCache(){
+    return _resultCache;
+  }
+  
   public int getNodeId(){
     return _id;
   }
@@ -0,0 +1,167 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+package com.senseidb.search.node;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.senseidb.search.req.SenseiHit;
+
+/**
+ * Streaming k-way merge over hit arrays that are each already sorted by the same comparator,
+ * e.g. the hits returned by the partitions of a node or by the nodes of a cluster.
+ * <p>
+ * The heap only holds the indexes of the arrays, so merging allocates nothing per hit, and
+ * {@link #merge(SenseiHit[][], int, int, Comparator)} stops as soon as offset+count hits
+ * have been taken instead of sorting everything that was returned.
+ */
+public final class SenseiHitMerger implements Iterator<SenseiHit>
+{
+  private static final SenseiHit[] EMPTY_HITS = new SenseiHit[0];
+
+  private final SenseiHit[][] _lists;
+  private final Comparator<SenseiHit> _comparator;
+  private final int[] _cursors;
+  private final int[] _heap;
+  private int _size;
+
+  public SenseiHitMerger(SenseiHit[][] lists, Comparator<SenseiHit> comparator)
+  {
+    _lists = lists;
+    _comparator = comparator;
+    _cursors = new int[lists.length];
+    _heap = new int[lists.length];
+    for (int i = 0; i < lists.length; ++i)
+    {
+      if (lists[i] == null)
+      {
+        lists[i] = EMPTY_HITS;
+      }
+      if (lists[i].length > 0)
+      {
+        _heap[_size++] = i;
+      }
+    }
+    for (int i = (_size >>> 1) - 1; i >= 0; --i)
+    {
+      siftDown(i);
+    }
+  }
+
+  /**
+   * Returns the hits in [offset, offset+count) of the merged order.
+   */
+  public static SenseiHit[] merge(SenseiHit[][] lists, int offset, int count, Comparator<SenseiHit> comparator)
+  {
+    long total = 0;
+    for (SenseiHit[] list : lists)
+    {
+      if (list != null)
+      {
+        total += list.length;
+      }
+    }
+    int len = (int) Math.max(0L, Math.min((long) count, total - offset));
+    if (len == 0)
+    {
+      return EMPTY_HITS;
+    }
+    SenseiHitMerger merger = new SenseiHitMerger(lists, comparator);
+    merger.skip(offset);
+    SenseiHit[] hits = new SenseiHit[len];
+    for (int i = 0; i < len; ++i)
+    {
+      hits[i] = merger.next();
+    }
+    return hits;
+  }
+
+  @Override
+  public boolean hasNext()
+  {
+    return _size > 0;
+  }
+
+  @Override
+  public SenseiHit next()
+  {
+    if (_size == 0)
+    {
+      throw new NoSuchElementException();
+    }
+    int top = _heap[0];
+    SenseiHit hit = _lists[top][_cursors[top]++];
+    if (_cursors[top] >= _lists[top].length)
+    {
+      _heap[0] = _heap[--_size];
+    }
+    if (_size > 0)
+    {
+      siftDown(0);
+    }
+    return hit;
+  }
+
+  /**
+   * Advances past the next n hits without returning them.
+   */
+  public void skip(int n)
+  {
+    for (int i = 0; i < n && _size > 0; ++i)
+    {
+      next();
+    }
+  }
+
+  @Override
+  public void remove()
+  {
+    throw new UnsupportedOperationException();
+  }
+
+  private boolean lessThan(int list1, int list2)
+  {
+    int cmp = _comparator.compare(_lists[list1][_cursors[list1]], _lists[list2][_cursors[list2]]);
+    // Ties go to the earlier list to keep the merge stable.
+    return cmp < 0 || (cmp == 0 && list1 < list2);
+  }
+
+  private void siftDown(int pos)
+  {
+    int list = _heap[pos];
+    int half = _size >>> 1;
+    while (pos < half)
+    {
+      int child = (pos << 1) + 1;
+      int right = child + 1;
+      if (right < _size && lessThan(_heap[right], _heap[child]))
+      {
+        child = right;
+      }
+      if (!lessThan(_heap[child], list))
+      {
+        break;
+      }
+      _heap[pos] = _heap[child];
+      pos = child;
+    }
+    _heap[pos] = list;
+  }
+}
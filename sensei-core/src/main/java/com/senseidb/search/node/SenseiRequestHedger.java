@@ -0,0 +1,222 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+package com.senseidb.search.node;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.linkedin.norbert.javacompat.cluster.Node;
+import com.senseidb.metrics.MetricFactory;
+import com.senseidb.metrics.MetricsConstants;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.stats.Snapshot;
+
+/**
+ * Decides when and where the broker re-sends a sub-request that is slow to answer.
+ * <p>
+ * The response times of every node are kept in a histogram biased towards recent samples. A
+ * sub-request that has not been answered after the configured percentile of its node's response
+ * time is sent again to another replica of the same partitions, and whichever answer arrives
+ * first is used. Nodes are not hedged until enough of their response times have been sampled.
+ * The hedge delay and median response time of every node are computed from its histogram every
+ * refresh interval, so that requests only read them.
+ */
+public class SenseiRequestHedger
+{
+  public static final long DEFAULT_MIN_DELAY = 10;
+  public static final int DEFAULT_MIN_SAMPLES = 100;
+  public static final long DEFAULT_REFRESH_INTERVAL = 1000;
+
+  private final double _percentile;
+  private final long _minDelay;
+  private final int _minSamples;
+
+  private final Map<Integer, NodeTimes> _nodeTimes = new ConcurrentHashMap<Integer, NodeTimes>();
+  private final Timer _refreshTimer;
+
+  private final Meter _hedgeMeter;
+  private final Meter _hedgeWonMeter;
+
+  /**
+   * @param percentile percentile of a node's response time after which its sub-request is hedged
+   * @param minDelay minimum time in milliseconds to wait before hedging a sub-request
+   * @param minSamples number of response times a node needs before its sub-requests are hedged
+   */
+  public SenseiRequestHedger(double percentile, long minDelay, int minSamples)
+  {
+    this(percentile, minDelay, minSamples, DEFAULT_REFRESH_INTERVAL);
+  }
+
+  /**
+   * @param percentile percentile of a node's response time after which its sub-request is hedged
+   * @param minDelay minimum time in milliseconds to wait before hedging a sub-request
+   * @param minSamples number of response times a node needs before its sub-requests are hedged
+   * @param refreshInterval time in milliseconds between two computations of the hedge delays
+   */
+  public SenseiRequestHedger(double percentile, long minDelay, int minSamples, long refreshInterval)
+  {
+    if (percentile <= 0 || percentile > 1)
+    {
+      throw new IllegalArgumentException("percentile must be in (0, 1]: " + percentile);
+    }
+    _percentile = percentile;
+    _minDelay = minDelay;
+    _minSamples = minSamples;
+    _hedgeMeter = MetricFactory.newMeter(new MetricName(MetricsConstants.Domain, "meter", "hedge-sent", "broker"),
+                                         "requests",
+                                         TimeUnit.SECONDS);
+    _hedgeWonMeter = MetricFactory.newMeter(new MetricName(MetricsConstants.Domain, "meter", "hedge-won", "broker"),
+                                            "requests",
+                                            TimeUnit.SECONDS);
+    _refreshTimer = new Timer("hedge-delay-refresh", true);
+    _refreshTimer.schedule(new TimerTask()
+    {
+      @Override
+      public void run()
+      {
+        refresh();
+      }
+    }, refreshInterval, refreshInterval);
+  }
+
+  private NodeTimes getNodeTimes(int nodeId)
+  {
+    NodeTimes times = _nodeTimes.get(nodeId);
+    if (times == null)
+    {
+      synchronized (_nodeTimes)
+      {
+        times = _nodeTimes.get(nodeId);
+        if (times == null)
+        {
+          times = new NodeTimes(MetricFactory.newHistogram(new MetricName(MetricsConstants.Domain, "histogram", "node-time-" + nodeId, "broker"), true));
+          _nodeTimes.put(nodeId, times);
+        }
+      }
+    }
+    return times;
+  }
+
+  public void recordResponseTime(Node node, long millis)
+  {
+    getNodeTimes(node.getId()).histogram.update(millis);
+  }
+
+  /**
+   * Recomputes the hedge delay and median response time of every node from its histogram.
+   */
+  public void refresh()
+  {
+    for (NodeTimes times : _nodeTimes.values())
+    {
+      if (times.histogram.count() == 0)
+        continue;
+      Snapshot snapshot = times.histogram.getSnapshot();
+      times.median = snapshot.getMedian();
+      times.hedgeDelay = times.histogram.count() < _minSamples ? Long.MAX_VALUE : Math.max(_minDelay, (long) snapshot.getValue(_percentile));
+    }
+  }
+
+  /**
+   * @return time in milliseconds after which an unanswered sub-request sent to the node is hedged,
+   *         or Long.MAX_VALUE if the node has not been sampled enough yet
+   */
+  public long getHedgeDelay(Node node)
+  {
+    return getNodeTimes(node.getId()).hedgeDelay;
+  }
+
+  /**
+   * @return the node other than the given one that serves all the partitions and has the lowest
+   *         median response time, or null if there is none
+   */
+  public Node getAlternative(Set<Node> nodes, Node node, Set<Integer> partitions)
+  {
+    Node alternative = null;
+    double best = Double.MAX_VALUE;
+    for (Node candidate : getAvailableNodes(nodes))
+    {
+      if (candidate.getId() == node.getId() || !candidate.getPartitionIds().containsAll(partitions))
+        continue;
+      double median = getNodeTimes(candidate.getId()).median;
+      if (alternative == null || median < best)
+      {
+        alternative = candidate;
+        best = median;
+      }
+    }
+    return alternative;
+  }
+
+  public void markHedged()
+  {
+    _hedgeMeter.mark();
+  }
+
+  public void markHedgeWon()
+  {
+    _hedgeWonMeter.mark();
+  }
+
+  public void shutdown()
+  {
+    _refreshTimer.cancel();
+  }
+
+  private static List<Node> getAvailableNodes(Set<Node> nodes)
+  {
+    List<Node> sorted = new ArrayList<Node>(nodes.size());
+    for (Node node : nodes)
+    {
+      if (node.isAvailable())
+        sorted.add(node);
+    }
+    Collections.sort(sorted, new Comparator<Node>()
+    {
+      @Override
+      public int compare(Node n1, Node n2)
+      {
+        return n1.getId() < n2.getId() ? -1 : (n1.getId() == n2.getId() ? 0 : 1);
+      }
+    });
+    return sorted;
+  }
+
+  private static final class NodeTimes
+  {
+    final Histogram histogram;
+    volatile long hedgeDelay = Long.MAX_VALUE;
+    volatile double median;
+
+    NodeTimes(Histogram histogram)
+    {
+      this.histogram = histogram;
+    }
+  }
+}
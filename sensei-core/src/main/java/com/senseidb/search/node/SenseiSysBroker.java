@@ -56,8 +56,6 @@ public class SenseiSysBroker extends AbstractConsistentHashBroker<SenseiRequest,
   private final Comparator<String> _versionComparator;
   private final boolean allowPartialMerge;
 
-  protected Set<Node> _nodes = Collections.EMPTY_SET;
-
   public SenseiSysBroker(PartitionedNetworkClient<String> networkClient,
                          ClusterClient clusterClient,
                          Comparator<String> versionComparator,
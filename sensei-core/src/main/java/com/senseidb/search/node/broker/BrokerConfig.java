@@ -23,14 +23,19 @@ import com.linkedin.norbert.javacompat.network.NetworkClientConfig;
 import com.linkedin.norbert.javacompat.network.PartitionedLoadBalancerFactory;
 import com.linkedin.norbert.network.Serializer;
 import com.senseidb.cluster.client.SenseiNetworkClient;
+import com.senseidb.cluster.routing.LatencyAwarePartitionedLoadBalancerFactory;
+import com.senseidb.cluster.routing.SenseiPartitionedLoadBalancerFactory;
 import com.senseidb.conf.SenseiConfParams;
 import com.senseidb.plugin.SenseiPluginRegistry;
 import com.senseidb.search.node.SenseiBroker;
+import com.senseidb.search.node.SenseiBrokerResultCache;
+import com.senseidb.search.node.SenseiRequestHedger;
 import com.senseidb.search.node.SenseiSysBroker;
 import com.senseidb.search.req.SenseiRequest;
 import com.senseidb.search.req.SenseiRequestCustomizerFactory;
 import com.senseidb.search.req.SenseiResult;
 import com.senseidb.servlet.SenseiConfigServletContextListener;
+import com.senseidb.svc.impl.SenseiSearchScheduler;
 import org.apache.commons.configuration.Configuration;
 
 import java.util.Comparator;
@@ -56,6 +61,9 @@ public class BrokerConfig {
   private SenseiBroker senseiBroker;
   private SenseiSysBroker senseiSysBroker;
   private SenseiRequestCustomizerFactory requestCustomizerFactory;
+  private SenseiBrokerResultCache resultCache;
+  private SenseiRequestHedger requestHedger;
+  private boolean combineOnArrival;
   protected long brokerTimeout;
 
   
@@ -81,8 +89,19 @@ public class BrokerConfig {
     staleRequestCleanupFrequencyMins = senseiConf.getInt(SenseiConfigServletContextListener.SENSEI_CONF_NC_STALE_CLEANUP_FREQ_MINS, 10);
     allowPartialMerge = senseiConf.getBoolean(SenseiConfParams.ALLOW_PARTIAL_MERGE, true); 
     brokerTimeout = senseiConf.getLong(SenseiConfParams.SERVER_BROKER_TIMEOUT, 8000);
-    if (pluginRegistry != null)
+    // the map results are combined on arrival only if the map reduce functions are trusted with the parallel map
+    combineOnArrival = senseiConf.getBoolean(SenseiConfParams.SENSEI_SEARCH_PARALLEL_MAP, SenseiSearchScheduler.DEFAULT_PARALLEL_MAP);
+    double hedgePercentile = senseiConf.getDouble(SenseiConfParams.SERVER_BROKER_HEDGE_PERCENTILE, 0);
+    if (hedgePercentile > 0) {
+      requestHedger = new SenseiRequestHedger(hedgePercentile,
+                                              senseiConf.getLong(SenseiConfParams.SERVER_BROKER_HEDGE_MIN_DELAY, SenseiRequestHedger.DEFAULT_MIN_DELAY),
+                                              senseiConf.getInt(SenseiConfParams.SERVER_BROKER_HEDGE_MIN_SAMPLES, SenseiRequestHedger.DEFAULT_MIN_SAMPLES),
+                                              senseiConf.getLong(SenseiConfParams.SERVER_BROKER_HEDGE_REFRESH_INTERVAL, SenseiRequestHedger.DEFAULT_REFRESH_INTERVAL));
+    }
+    if (pluginRegistry != null) {
       requestCustomizerFactory = pluginRegistry.getBeanByFullPrefix(SenseiConfParams.SERVER_BROKER_REQUEST_CUSTOMIZER_FACTORY, SenseiRequestCustomizerFactory.class);
+      resultCache = pluginRegistry.getBeanByFullPrefix(SenseiConfParams.SERVER_BROKER_RESULT_CACHE, SenseiBrokerResultCache.class);
+    }
   }
 
   public void init() {
@@ -112,6 +131,14 @@ public class BrokerConfig {
 
   public SenseiBroker buildSenseiBroker() {
     senseiBroker = new SenseiBroker(networkClient, clusterClient, allowPartialMerge, serializer, brokerTimeout, requestCustomizerFactory);
+    senseiBroker.setResultCache(resultCache);
+    senseiBroker.setRequestHedger(requestHedger);
+    senseiBroker.setCombineOnArrival(combineOnArrival);
+    // the same routing as the network client, see SenseiNetworkClient
+    senseiBroker.setLoadBalancerFactory(loadBalancerFactory != null ? loadBalancerFactory : new SenseiPartitionedLoadBalancerFactory(50));
+    if (loadBalancerFactory instanceof LatencyAwarePartitionedLoadBalancerFactory) {
+      senseiBroker.setLoadTracker(((LatencyAwarePartitionedLoadBalancerFactory) loadBalancerFactory).getLoadTracker());
+    }
     return senseiBroker;
   }
   public SenseiSysBroker buildSysSenseiBroker(Comparator<String> versionComparator) {   
@@ -0,0 +1,415 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+package com.senseidb.search.query.filters;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+
+/**
+ * Immutable compressed doc id set, split into blocks of 65536 docs like a roaring bitmap. A block with up to 4096 docs
+ * keeps the sorted low 16 bits of the doc ids, a denser block keeps a plain 8KB bitmap, so the set never takes more
+ * than 2 bytes per doc or 1 bit per doc in the segment. Two sets can be intersected or merged block by block
+ * without iterating over the docs.
+ */
+public class CompressedDocIdSet extends DocIdSet {
+  private static final int BLOCK_SHIFT = 16;
+  private static final int BLOCK_MASK = (1 << BLOCK_SHIFT) - 1;
+  private static final int MAX_ARRAY_SIZE = 4096;
+  private static final int BITMAP_WORDS = (1 << BLOCK_SHIFT) / 64;
+
+  public static final CompressedDocIdSet EMPTY = new CompressedDocIdSet(new int[0], new Object[0], new int[0]);
+
+  // the high bits of the non empty blocks, in the increasing order
+  private final int[] keys;
+  // either char[] of the sorted low bits or long[] bitmap
+  private final Object[] blocks;
+  private final int[] cardinalities;
+  private final int cardinality;
+
+  private CompressedDocIdSet(int[] keys, Object[] blocks, int[] cardinalities) {
+    this.keys = keys;
+    this.blocks = blocks;
+    this.cardinalities = cardinalities;
+    int total = 0;
+    for (int blockCardinality : cardinalities) {
+      total += blockCardinality;
+    }
+    cardinality = total;
+  }
+
+  /**
+   * Collects all the docs of the iterator
+   */
+  public static CompressedDocIdSet build(DocIdSetIterator iterator) throws IOException {
+    if (iterator == null) {
+      return EMPTY;
+    }
+    Builder builder = new Builder();
+    int doc;
+    while ((doc = iterator.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+      builder.add(doc);
+    }
+    return builder.build();
+  }
+
+  /**
+   * Replaces all the compressed sets in the list with the single AND or OR of them, keeping the position of the first one.
+   * The other sets are left as they are
+   */
+  public static List<DocIdSet> combine(List<DocIdSet> docIdSets, boolean isAnd) {
+    CompressedDocIdSet combined = null;
+    int position = -1;
+    int compressedCount = 0;
+    for (int i = 0; i < docIdSets.size(); i++) {
+      DocIdSet docIdSet = docIdSets.get(i);
+      if (docIdSet instanceof CompressedDocIdSet) {
+        CompressedDocIdSet compressed = (CompressedDocIdSet) docIdSet;
+        if (combined == null) {
+          combined = compressed;
+          position = i;
+        } else {
+          combined = isAnd ? combined.and(compressed) : combined.or(compressed);
+        }
+        compressedCount++;
+      }
+    }
+    if (compressedCount < 2) {
+      return docIdSets;
+    }
+    List<DocIdSet> ret = new ArrayList<DocIdSet>(docIdSets.size() - compressedCount + 1);
+    for (int i = 0; i < docIdSets.size(); i++) {
+      if (i == position) {
+        ret.add(combined);
+      } else if (!(docIdSets.get(i) instanceof CompressedDocIdSet)) {
+        ret.add(docIdSets.get(i));
+      }
+    }
+    return ret;
+  }
+
+  public int cardinality() {
+    return cardinality;
+  }
+
+  /**
+   * @return the estimated heap size of the set
+   */
+  public long sizeInBytes() {
+    long size = 64 + keys.length * 32L;
+    for (Object block : blocks) {
+      size += block instanceof char[] ? ((char[]) block).length * 2L : BITMAP_WORDS * 8L;
+    }
+    return size;
+  }
+
+  @Override
+  public boolean isCacheable() {
+    return true;
+  }
+
+  public CompressedDocIdSet and(CompressedDocIdSet other) {
+    int[] newKeys = new int[Math.min(keys.length, other.keys.length)];
+    Object[] newBlocks = new Object[newKeys.length];
+    int[] newCardinalities = new int[newKeys.length];
+    int count = 0;
+    int i = 0, j = 0;
+    while (i < keys.length && j < other.keys.length) {
+      if (keys[i] < other.keys[j]) {
+        i++;
+      } else if (keys[i] > other.keys[j]) {
+        j++;
+      } else {
+        Object block = and(blocks[i], other.blocks[j]);
+        int blockCardinality = cardinality(block);
+        if (blockCardinality > 0) {
+          newKeys[count] = keys[i];
+          newBlocks[count] = block;
+          newCardinalities[count] = blockCardinality;
+          count++;
+        }
+        i++;
+        j++;
+      }
+    }
+    return new CompressedDocIdSet(Arrays.copyOf(newKeys, count), Arrays.copyOf(newBlocks, count), Arrays.copyOf(newCardinalities, count));
+  }
+
+  public CompressedDocIdSet or(CompressedDocIdSet other) {
+    int[] newKeys = new int[keys.length + other.keys.length];
+    Object[] newBlocks = new Object[newKeys.length];
+    int[] newCardinalities = new int[newKeys.length];
+    int count = 0;
+    int i = 0, j = 0;
+    while (i < keys.length || j < other.keys.length) {
+      if (j == other.keys.length || (i < keys.length && keys[i] < other.keys[j])) {
+        newKeys[count] = keys[i];
+        newBlocks[count] = blocks[i];
+        newCardinalities[count] = cardinalities[i];
+        i++;
+      } else if (i == keys.length || keys[i] > other.keys[j]) {
+        newKeys[count] = other.keys[j];
+        newBlocks[count] = other.blocks[j];
+        newCardinalities[count] = other.cardinalities[j];
+        j++;
+      } else {
+        Object block = or(blocks[i], other.blocks[j]);
+        newKeys[count] = keys[i];
+        newBlocks[count] = block;
+        newCardinalities[count] = cardinality(block);
+        i++;
+        j++;
+      }
+      count++;
+    }
+    return new CompressedDocIdSet(Arrays.copyOf(newKeys, count), Arrays.copyOf(newBlocks, count), Arrays.copyOf(newCardinalities, count));
+  }
+
+  private static int cardinality(Object block) {
+    if (block instanceof char[]) {
+      return ((char[]) block).length;
+    }
+    int ret = 0;
+    for (long word : (long[]) block) {
+      ret += Long.bitCount(word);
+    }
+    return ret;
+  }
+
+  private static Object and(Object block1, Object block2) {
+    if (block1 instanceof char[] && block2 instanceof char[]) {
+      char[] array1 = (char[]) block1;
+      char[] array2 = (char[]) block2;
+      char[] ret = new char[Math.min(array1.length, array2.length)];
+      int count = 0;
+      int i = 0, j = 0;
+      while (i < array1.length && j < array2.length) {
+        if (array1[i] < array2[j]) {
+          i++;
+        } else if (array1[i] > array2[j]) {
+          j++;
+        } else {
+          ret[count++] = array1[i];
+          i++;
+          j++;
+        }
+      }
+      return Arrays.copyOf(ret, count);
+    }
+    if (block1 instanceof char[] || block2 instanceof char[]) {
+      char[] array = (char[]) (block1 instanceof char[] ? block1 : block2);
+      long[] bitmap = (long[]) (block1 instanceof char[] ? block2 : block1);
+      char[] ret = new char[array.length];
+      int count = 0;
+      for (char value : array) {
+        if ((bitmap[value >>> 6] & (1L << value)) != 0) {
+          ret[count++] = value;
+        }
+      }
+      return Arrays.copyOf(ret, count);
+    }
+    long[] bitmap1 = (long[]) block1;
+    long[] bitmap2 = (long[]) block2;
+    long[] ret = new long[BITMAP_WORDS];
+    int count = 0;
+    for (int i = 0; i < BITMAP_WORDS; i++) {
+      ret[i] = bitmap1[i] & bitmap2[i];
+      count += Long.bitCount(ret[i]);
+    }
+    return count > MAX_ARRAY_SIZE ? ret : toArray(ret, count);
+  }
+
+  private static Object or(Object block1, Object block2) {
+    long[] ret = new long[BITMAP_WORDS];
+    set(ret, block1);
+    set(ret, block2);
+    int count = 0;
+    for (long word : ret) {
+      count += Long.bitCount(word);
+    }
+    return count > MAX_ARRAY_SIZE ? ret : toArray(ret, count);
+  }
+
+  private static void set(long[] bitmap, Object block) {
+    if (block instanceof char[]) {
+      for (char value : (char[]) block) {
+        bitmap[value >>> 6] |= 1L << value;
+      }
+    } else {
+      long[] other = (long[]) block;
+      for (int i = 0; i < BITMAP_WORDS; i++) {
+        bitmap[i] |= other[i];
+      }
+    }
+  }
+
+  private static char[] toArray(long[] bitmap, int count) {
+    char[] ret = new char[count];
+    int j = 0;
+    for (int i = 0; i < BITMAP_WORDS; i++) {
+      long word = bitmap[i];
+      while (word != 0) {
+        ret[j++] = (char) ((i << 6) + Long.numberOfTrailingZeros(word));
+        word &= word - 1;
+      }
+    }
+    return ret;
+  }
+
+  @Override
+  public DocIdSetIterator iterator() {
+    return new DocIdSetIterator() {
+      private int doc = -1;
+      private int blockIndex = 0;
+      // the position in the array block, or the low bits of the current doc in the bitmap block
+      private int position = -1;
+
+      @Override
+      public int docID() {
+        return doc;
+      }
+
+      @Override
+      public int nextDoc() {
+        while (blockIndex < keys.length) {
+          int low = nextInBlock(blocks[blockIndex], position + 1);
+          if (low >= 0) {
+            return doc = (keys[blockIndex] << BLOCK_SHIFT) | low;
+          }
+          blockIndex++;
+          position = -1;
+        }
+        return doc = NO_MORE_DOCS;
+      }
+
+      @Override
+      public int advance(int target) {
+        if (target <= doc) {
+          target = doc + 1;
+        }
+        int key = target >>> BLOCK_SHIFT;
+        if (blockIndex < keys.length && keys[blockIndex] < key) {
+          int index = Arrays.binarySearch(keys, blockIndex, keys.length, key);
+          blockIndex = index >= 0 ? index : -index - 1;
+          position = -1;
+        }
+        if (blockIndex < keys.length && keys[blockIndex] == key) {
+          Object block = blocks[blockIndex];
+          int lowTarget = target & BLOCK_MASK;
+          if (block instanceof char[]) {
+            int index = Arrays.binarySearch((char[]) block, position + 1, ((char[]) block).length, (char) lowTarget);
+            position = (index >= 0 ? index : -index - 1) - 1;
+          } else {
+            position = Math.max(position, lowTarget - 1);
+          }
+        }
+        return nextDoc();
+      }
+
+      /**
+       * @return the low bits of the next doc in the block starting from the given position, or -1. Updates the position
+       */
+      private int nextInBlock(Object block, int from) {
+        if (block instanceof char[]) {
+          char[] array = (char[]) block;
+          if (from >= array.length) {
+            return -1;
+          }
+          position = from;
+          return array[from];
+        }
+        long[] bitmap = (long[]) block;
+        int word = from >>> 6;
+        if (word >= BITMAP_WORDS) {
+          return -1;
+        }
+        long bits = bitmap[word] & (-1L << from);
+        while (true) {
+          if (bits != 0) {
+            position = (word << 6) + Long.numberOfTrailingZeros(bits);
+            return position;
+          }
+          if (++word == BITMAP_WORDS) {
+            return -1;
+          }
+          bits = bitmap[word];
+        }
+      }
+    };
+  }
+
+  /**
+   * Accepts the docs in the increasing order
+   */
+  public static class Builder {
+    private int[] keys = new int[16];
+    private Object[] blocks = new Object[16];
+    private int[] cardinalities = new int[16];
+    private int count = 0;
+    private int currentKey = -1;
+    private char[] array = new char[MAX_ARRAY_SIZE];
+    private long[] bitmap;
+    private int blockCardinality;
+
+    public void add(int doc) {
+      int key = doc >>> BLOCK_SHIFT;
+      if (key != currentKey) {
+        flushBlock();
+        currentKey = key;
+      }
+      char low = (char) (doc & BLOCK_MASK);
+      if (bitmap != null) {
+        bitmap[low >>> 6] |= 1L << low;
+      } else if (blockCardinality < MAX_ARRAY_SIZE) {
+        array[blockCardinality] = low;
+      } else {
+        bitmap = new long[BITMAP_WORDS];
+        set(bitmap, array);
+        bitmap[low >>> 6] |= 1L << low;
+      }
+      blockCardinality++;
+    }
+
+    private void flushBlock() {
+      if (blockCardinality == 0) {
+        return;
+      }
+      if (count == keys.length) {
+        keys = Arrays.copyOf(keys, count * 2);
+        blocks = Arrays.copyOf(blocks, count * 2);
+        cardinalities = Arrays.copyOf(cardinalities, count * 2);
+      }
+      keys[count] = currentKey;
+      blocks[count] = bitmap != null ? bitmap : Arrays.copyOf(array, blockCardinality);
+      cardinalities[count] = blockCardinality;
+      count++;
+      bitmap = null;
+      blockCardinality = 0;
+    }
+
+    public CompressedDocIdSet build() {
+      flushBlock();
+      return new CompressedDocIdSet(Arrays.copyOf(keys, count), Arrays.copyOf(blocks, count), Arrays.copyOf(cardinalities, count));
+    }
+  }
+}
@@ -59,7 +59,7 @@ public class ConstExpFilterConstructor extends FilterConstructor
         }
       };
     } else {
-      return SenseiFilter.buildDefault(filter);
+      return SenseiFilter.buildTracked(filter, "CONST_EXP " + q, "QUERY");
     }
   }
 
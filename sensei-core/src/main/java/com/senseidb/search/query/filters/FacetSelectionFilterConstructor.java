@@ -61,25 +61,36 @@ public class FacetSelectionFilterConstructor extends FilterConstructor{
   }
   
   
+  /**
+   * The key identifying the equal selections, used by the {@link SegmentFilterCache}
+   */
+  public static String getCanonicalKey(BrowseSelection sel) {
+    String[] vals = sel.getValues() != null ? sel.getValues().clone() : new String[0];
+    String[] nots = sel.getNotValues() != null ? sel.getNotValues().clone() : new String[0];
+    Arrays.sort(vals);
+    Arrays.sort(nots);
+    return "SELECTION " + sel.getFieldName() + " " + sel.getSelectionOperation() + " " + Arrays.toString(vals) + " NOT "
+        + Arrays.toString(nots) + " " + new TreeMap<Object, Object>(sel.getSelectionProperties());
+  }
+
   @Override
   protected SenseiFilter doConstructFilter(Object obj) throws Exception {
     final JSONObject json = (JSONObject)obj;
-    return new SenseiFilter(){
+    Iterator<String> iter = json.keys();
+    final List<SenseiFilter> senseiFilters = new ArrayList<SenseiFilter>();
+    while(iter.hasNext()){
+      final String key = iter.next();
+      final BrowseSelection sel = buildFacetSelection(key, json.getJSONObject(key));
+      SenseiFilter selectionFilter = new SenseiFilter(){
 
-      @Override
-      public SenseiDocIdSet getSenseiDocIdSet(IndexReader reader) throws IOException {
-        if (reader instanceof BoboIndexReader){
-          BoboIndexReader boboReader = (BoboIndexReader)reader;
-          Iterator<String> iter = json.keys();
-          List<SenseiFilter> senseiFilters = new ArrayList<SenseiFilter>();
-          while(iter.hasNext()){
-            String key = iter.next();
+        @Override
+        public SenseiDocIdSet getSenseiDocIdSet(IndexReader reader) throws IOException {
+          if (reader instanceof BoboIndexReader){
+            BoboIndexReader boboReader = (BoboIndexReader)reader;
             FacetHandler facetHandler = boboReader.getFacetHandler(key);
             if (facetHandler!=null){
               try{
-                JSONObject jsonObj = json.getJSONObject(key);
-                BrowseSelection sel = buildFacetSelection(key, jsonObj);
-                senseiFilters.add(SenseiFilter.build(facetHandler.buildFilter(sel), "FACET " + key));
+                return SenseiFilter.build(facetHandler.buildFilter(sel), "FACET " + key).getSenseiDocIdSet(reader);
               }
               catch(Exception e){
                 throw new IOException(e.getMessage());
@@ -89,14 +100,22 @@ public class FacetSelectionFilterConstructor extends FilterConstructor{
               throw new IOException(key+" is not defined as a facet handler");
             }
           }
-          if(senseiFilters.isEmpty()) {
-            return null;
-          } else {
-            return new SenseiAndFilter(senseiFilters).getSenseiDocIdSet(reader);
+          else{
+            throw new IllegalStateException("reader not instance of "+BoboIndexReader.class);
           }
         }
-        else{
-          throw new IllegalStateException("reader not instance of "+BoboIndexReader.class);
+      };
+      senseiFilters.add(SegmentFilterCache.getInstance().cache(selectionFilter, getCanonicalKey(sel), key));
+    }
+
+    return new SenseiFilter(){
+
+      @Override
+      public SenseiDocIdSet getSenseiDocIdSet(IndexReader reader) throws IOException {
+        if (senseiFilters.isEmpty()) {
+          return null;
+        } else {
+          return new SenseiAndFilter(senseiFilters).getSenseiDocIdSet(reader);
         }
       }
       
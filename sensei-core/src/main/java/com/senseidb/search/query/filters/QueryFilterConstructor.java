@@ -48,6 +48,7 @@ public class QueryFilterConstructor extends FilterConstructor{
       return null;
 
     final QueryWrapperFilter queryWrapperFilter = new QueryWrapperFilter(q);
+    final String selectivityKey = "QUERY " + q;
     return new SenseiFilter() {
       private final String getPlan() {
         if(log.isDebugEnabled()) {
@@ -58,7 +59,7 @@ public class QueryFilterConstructor extends FilterConstructor{
       }
       @Override
       public SenseiDocIdSet getSenseiDocIdSet(IndexReader reader) throws IOException {
-        return new SenseiDocIdSet(queryWrapperFilter.getDocIdSet(reader), DocIdSetCardinality.random(), getPlan());
+        return SelectivityTracker.getInstance().track(selectivityKey, reader, queryWrapperFilter.getDocIdSet(reader), DocIdSetCardinality.random(), getPlan());
       }
     };
 	}
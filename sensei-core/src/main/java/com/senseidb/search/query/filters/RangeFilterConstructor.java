@@ -116,7 +116,7 @@ public class RangeFilterConstructor extends FilterConstructor
       include_upper = jsonObj.optBoolean(INCLUDE_UPPER_PARAM, true);
     }
 
-    return new SenseiFilter()
+    SenseiFilter rangeFilter = new SenseiFilter()
     {
       @Override
       public SenseiDocIdSet getSenseiDocIdSet(final IndexReader reader) throws IOException {
@@ -154,7 +154,10 @@ public class RangeFilterConstructor extends FilterConstructor
               RandomAccessFilter filter = null;;
               String rangeString = sb.toString();
               if (facetHandler instanceof ActivityRangeFacetHandler) {
+            	  // the activity values change all the time, so there is no facet data to compute the selectivity from
             	  filter = ((ActivityRangeFacetHandler) facetHandler).buildRandomAccessFilter(rangeString, null);
+            	  return SelectivityTracker.getInstance().track("RANGE " + field + rangeString, reader, filter.getDocIdSet(reader),
+            	      defaultDocIdSetCardinalityEstimate, getPlan(field, rangeString));
               } else {
             	  filter = new FacetRangeFilter(facetHandler, rangeString);
               }
@@ -212,19 +215,24 @@ public class RangeFilterConstructor extends FilterConstructor
           toPadded = formatter.format(Double.parseDouble(to));
         }
         
+        SelectivityTracker selectivityTracker = SelectivityTracker.getInstance();
         if (fromPadded == null || fromPadded.length() == 0)
           if (toPadded == null || toPadded.length() == 0)
             return SenseiDocIdSet.buildMatchAll(reader, "RANGE");
           else
-            return new SenseiDocIdSet(new TermRangeFilter(field, fromPadded, toPadded, false,
+            return selectivityTracker.track("RANGE " + field + " TO " + toPadded, reader, new TermRangeFilter(field, fromPadded, toPadded, false,
                 include_upper).getDocIdSet(reader), defaultDocIdSetCardinalityEstimate, "RANGE " + field + " TO " + toPadded);
         else if (toPadded == null|| toPadded.length() == 0)
-          return new SenseiDocIdSet(new TermRangeFilter(field, fromPadded, toPadded, include_lower,
+          return selectivityTracker.track("RANGE " + field + " FROM " + fromPadded, reader, new TermRangeFilter(field, fromPadded, toPadded, include_lower,
               false).getDocIdSet(reader), defaultDocIdSetCardinalityEstimate, "RANGE " + field + " FROM " + fromPadded);
 
-        return new SenseiDocIdSet(new TermRangeFilter(field, fromPadded, toPadded, include_lower,
-          include_upper).getDocIdSet(reader), defaultDocIdSetCardinalityEstimate, "RANGE " + field + " FROM " + fromPadded + " TO " + toPadded);
+        String plan = "RANGE " + field + " FROM " + fromPadded + " TO " + toPadded;
+        return selectivityTracker.track(plan, reader, new TermRangeFilter(field, fromPadded, toPadded, include_lower,
+          include_upper).getDocIdSet(reader), defaultDocIdSetCardinalityEstimate, plan);
       }
     };
+    String canonicalKey = "RANGE " + field + (include_lower ? " [" : " (") + from + " TO " + to + (include_upper ? "]" : ")")
+        + " " + type + " " + dateFormat + (noOptimize ? " NOOPT" : "");
+    return SegmentFilterCache.getInstance().cache(rangeFilter, canonicalKey, field);
   }
 }
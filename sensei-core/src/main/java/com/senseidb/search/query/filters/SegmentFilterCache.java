@@ -0,0 +1,260 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+package com.senseidb.search.query.filters;
+
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.DocIdSet;
+
+import com.browseengine.bobo.api.BoboIndexReader;
+import com.browseengine.bobo.facets.FacetHandler;
+import com.browseengine.bobo.facets.RuntimeFacetHandler;
+import com.senseidb.indexing.activity.facet.ActivityRangeFacetHandler;
+import com.senseidb.metrics.MetricFactory;
+import com.senseidb.metrics.MetricsConstants;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+
+/**
+ * LRU cache of the filter doc id sets per segment.
+ * <p>
+ * The entries are keyed on the canonical form of the filter clause and the core of the segment reader, so all the
+ * reader copies Zoie creates for the same segment share them. A clause is cached only after it was requested
+ * admissionThreshold times. The sets are stored as {@link CompressedDocIdSet}, the cache is bounded by their
+ * estimated size, and the entries of a segment are dropped once Zoie retires the segment and its core is
+ * garbage collected.
+ */
+public class SegmentFilterCache {
+  private static final Logger log = Logger.getLogger(SegmentFilterCache.class);
+  private static final SegmentFilterCache INSTANCE = new SegmentFilterCache();
+  public static final long DEFAULT_MAX_BYTES = 0;
+  public static final int DEFAULT_ADMISSION_THRESHOLD = 2;
+  private static final int MAX_TRACKED_CLAUSES = 10000;
+
+  private final LinkedHashMap<Key, CompressedDocIdSet> entries = new LinkedHashMap<Key, CompressedDocIdSet>(16, 0.75f, true);
+  private final ReferenceQueue<Object> retiredSegments = new ReferenceQueue<Object>();
+  private final ConcurrentHashMap<String, AtomicInteger> requestCounts = new ConcurrentHashMap<String, AtomicInteger>();
+  private volatile long maxBytes = DEFAULT_MAX_BYTES;
+  private volatile int admissionThreshold = DEFAULT_ADMISSION_THRESHOLD;
+  private long bytes;
+
+  private final Meter hitMeter;
+  private final Meter missMeter;
+  private final Meter evictionMeter;
+
+  public static SegmentFilterCache getInstance() {
+    return INSTANCE;
+  }
+
+  SegmentFilterCache() {
+    hitMeter = MetricFactory.newMeter(new MetricName(MetricsConstants.Domain, "meter", "filter-cache-hit", "cache"), "requests", TimeUnit.SECONDS);
+    missMeter = MetricFactory.newMeter(new MetricName(MetricsConstants.Domain, "meter", "filter-cache-miss", "cache"), "requests", TimeUnit.SECONDS);
+    evictionMeter = MetricFactory.newMeter(new MetricName(MetricsConstants.Domain, "meter", "filter-cache-eviction", "cache"), "entries", TimeUnit.SECONDS);
+    MetricFactory.newGauge(new MetricName(MetricsConstants.Domain, "gauge", "filter-cache-bytes", "cache"), new Gauge<Long>() {
+      @Override
+      public Long value() {
+        return getBytes();
+      }
+    });
+  }
+
+  /**
+   * @param maxBytes the memory budget of the cache, 0 disables it
+   * @param admissionThreshold the number of requests for a clause before its doc id sets are cached
+   */
+  public synchronized void configure(long maxBytes, int admissionThreshold) {
+    this.maxBytes = maxBytes;
+    this.admissionThreshold = admissionThreshold;
+    evict();
+  }
+
+  public boolean isEnabled() {
+    return maxBytes > 0;
+  }
+
+  /**
+   * Wraps the filter, so that its doc id sets are served from the cache
+   *
+   * @param canonicalKey identifies the filter clause, the equal clauses should have the same key
+   * @param field the field the clause is applied to. The clauses on activity and runtime facets are never cached, as their values change
+   * without a new segment
+   */
+  public SenseiFilter cache(final SenseiFilter filter, final String canonicalKey, final String field) {
+    if (!isEnabled() || canonicalKey == null) {
+      return filter;
+    }
+    final boolean admitted = admit(canonicalKey);
+    return new SenseiFilter() {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      public SenseiDocIdSet getSenseiDocIdSet(IndexReader reader) throws IOException {
+        if (!isCacheable(reader, field)) {
+          return filter.getSenseiDocIdSet(reader);
+        }
+        Object segment = reader.getCoreCacheKey();
+        CompressedDocIdSet cached = get(segment, canonicalKey);
+        if (cached != null) {
+          return new SenseiDocIdSet(cached, DocIdSetCardinality.exact(cached.cardinality(), reader.maxDoc() + 1), getPlan(canonicalKey));
+        }
+        SenseiDocIdSet senseiDocIdSet = filter.getSenseiDocIdSet(reader);
+        if (!admitted || senseiDocIdSet == null || senseiDocIdSet.getDocIdSet() == null
+            || senseiDocIdSet.getCardinalityEstimate().isOne() || senseiDocIdSet.getCardinalityEstimate().isZero()) {
+          return senseiDocIdSet;
+        }
+        DocIdSet docIdSet = senseiDocIdSet.getDocIdSet();
+        CompressedDocIdSet compressed = docIdSet instanceof CompressedDocIdSet ? (CompressedDocIdSet) docIdSet : CompressedDocIdSet.build(docIdSet.iterator());
+        put(segment, canonicalKey, compressed);
+        return new SenseiDocIdSet(compressed, DocIdSetCardinality.exact(compressed.cardinality(), reader.maxDoc() + 1), getPlan(canonicalKey));
+      }
+    };
+  }
+
+  private static boolean isCacheable(IndexReader reader, String field) {
+    if (field == null || !(reader instanceof BoboIndexReader)) {
+      return true;
+    }
+    BoboIndexReader boboReader = (BoboIndexReader) reader;
+    if (boboReader.getRuntimeFacetHandlerFactoryMap().containsKey(field)) {
+      return false;
+    }
+    FacetHandler<?> facetHandler = boboReader.getFacetHandler(field);
+    return !(facetHandler instanceof ActivityRangeFacetHandler || facetHandler instanceof RuntimeFacetHandler);
+  }
+
+  private static String getPlan(String canonicalKey) {
+    return log.isDebugEnabled() ? "CACHED " + canonicalKey : FilterConstructor.EMPTY_STRING;
+  }
+
+  private boolean admit(String canonicalKey) {
+    AtomicInteger count = requestCounts.get(canonicalKey);
+    if (count == null) {
+      if (requestCounts.size() >= MAX_TRACKED_CLAUSES) {
+        requestCounts.clear();
+      }
+      AtomicInteger existing = requestCounts.putIfAbsent(canonicalKey, count = new AtomicInteger());
+      if (existing != null) {
+        count = existing;
+      }
+    }
+    return count.incrementAndGet() >= admissionThreshold;
+  }
+
+  synchronized CompressedDocIdSet get(Object segment, String canonicalKey) {
+    expungeRetiredSegments();
+    CompressedDocIdSet ret = entries.get(new Key(segment, canonicalKey, null));
+    if (ret == null) {
+      missMeter.mark();
+    } else {
+      hitMeter.mark();
+    }
+    return ret;
+  }
+
+  synchronized void put(Object segment, String canonicalKey, CompressedDocIdSet docIdSet) {
+    expungeRetiredSegments();
+    long size = docIdSet.sizeInBytes();
+    if (size > maxBytes) {
+      return;
+    }
+    Key key = new Key(segment, canonicalKey, retiredSegments);
+    CompressedDocIdSet previous = entries.put(key, docIdSet);
+    if (previous != null) {
+      bytes -= previous.sizeInBytes();
+    }
+    bytes += size;
+    evict();
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+    bytes = 0;
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  private void evict() {
+    Iterator<Map.Entry<Key, CompressedDocIdSet>> iter = entries.entrySet().iterator();
+    while (bytes > maxBytes && iter.hasNext()) {
+      CompressedDocIdSet eldest = iter.next().getValue();
+      iter.remove();
+      bytes -= eldest.sizeInBytes();
+      evictionMeter.mark();
+    }
+  }
+
+  private void expungeRetiredSegments() {
+    Object retired;
+    while ((retired = retiredSegments.poll()) != null) {
+      CompressedDocIdSet docIdSet = entries.remove(retired);
+      if (docIdSet != null) {
+        bytes -= docIdSet.sizeInBytes();
+      }
+    }
+  }
+
+  /**
+   * Weakly references the segment core, so that the cache doesn't keep the retired segments alive
+   */
+  private static final class Key extends WeakReference<Object> {
+    private final String canonicalKey;
+    private final int hash;
+
+    Key(Object segment, String canonicalKey, ReferenceQueue<Object> queue) {
+      super(segment, queue);
+      this.canonicalKey = canonicalKey;
+      hash = System.identityHashCode(segment) * 31 + canonicalKey.hashCode();
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      Object segment = get();
+      return segment != null && segment == other.get() && canonicalKey.equals(other.canonicalKey);
+    }
+  }
+}
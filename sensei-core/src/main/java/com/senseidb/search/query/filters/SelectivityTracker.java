@@ -0,0 +1,228 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+package com.senseidb.search.query.filters;
+
+import com.browseengine.bobo.docidset.RandomAccessDocIdSet;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Learns the hit rate of the filters, whose cardinality can't be computed from the facet data, like the query, const_exp,
+ * custom and non-facet range filters. The hit rate is kept per key made of the field and the value, or of the query,
+ * e.g. "RANGE price[10 TO 20]".
+ *
+ * The DocIdSet handed out by {@link #track} counts the docs its iterator has covered and the hits among them. nextDoc
+ * covers the docs up to the returned one, advance the docs from the target to the returned one. This way the clauses,
+ * that are only advanced to the candidates of the leading clause of an AND, are sampled too. The counts are recorded
+ * every {@link #RECORD_INTERVAL} hits and once the iterator is exhausted, as an AND stops as soon as its leading clause
+ * ends, so only the last few hits of such a clause are lost. Each sample is folded into an exponential moving average,
+ * weighted by the share of the segment it covered.
+ *
+ * The estimate is kept within [{@link #EPSILON}, 1 - {@link #EPSILON}], so a learned estimate never makes an AND match
+ * nothing or drops a clause from an OR. Up to {@link #MAX_KEYS} keys are kept, the least recently used one is evicted first.
+ */
+public class SelectivityTracker {
+  private static final SelectivityTracker INSTANCE = new SelectivityTracker();
+  private static final double SMOOTHING = 0.2;
+  static final double EPSILON = 0.0001;
+  static final int MAX_KEYS = 10000;
+  static final int RECORD_INTERVAL = 64;
+
+  private final Map<String, Selectivity> selectivities = Collections.synchronizedMap(new LinkedHashMap<String, Selectivity>(16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Selectivity> eldest) {
+      return size() > MAX_KEYS;
+    }
+  });
+
+  public static SelectivityTracker getInstance() {
+    return INSTANCE;
+  }
+
+  private static class Selectivity {
+    private double hitRate;
+    private long samples;
+
+    synchronized void record(double sample, double weight) {
+      hitRate = samples == 0 ? sample : hitRate + (sample - hitRate) * SMOOTHING * weight;
+      samples++;
+    }
+
+    synchronized double getHitRate() {
+      return hitRate;
+    }
+
+    synchronized long getSamples() {
+      return samples;
+    }
+  }
+
+  /**
+   * @return the estimate for the key, or the supplied default if the key wasn't seen yet
+   */
+  public DocIdSetCardinality estimate(String key, DocIdSetCardinality defaultCardinality) {
+    Selectivity selectivity = selectivities.get(key);
+    if (selectivity == null || selectivity.getSamples() == 0) {
+      return defaultCardinality;
+    }
+    return DocIdSetCardinality.exact(Math.max(EPSILON, Math.min(1.0 - EPSILON, selectivity.getHitRate())));
+  }
+
+  public long getSamples(String key) {
+    Selectivity selectivity = selectivities.get(key);
+    return selectivity == null ? 0 : selectivity.getSamples();
+  }
+
+  /**
+   * Records the hits of the whole segment
+   */
+  public void record(String key, int hits, int maxDoc) {
+    record(key, hits, maxDoc, maxDoc);
+  }
+
+  /**
+   * Records the hits among the covered docs of the segment
+   */
+  public void record(String key, int hits, int coveredDocs, int maxDoc) {
+    if (coveredDocs <= 0 || maxDoc <= 0) {
+      return;
+    }
+    Selectivity selectivity;
+    synchronized (selectivities) {
+      selectivity = selectivities.get(key);
+      if (selectivity == null) {
+        selectivity = new Selectivity();
+        selectivities.put(key, selectivity);
+      }
+    }
+    selectivity.record(((double) hits) / coveredDocs, Math.min(1.0, ((double) coveredDocs) / maxDoc));
+  }
+
+  public int size() {
+    return selectivities.size();
+  }
+
+  public void clear() {
+    selectivities.clear();
+  }
+
+  /**
+   * Wraps the DocIdSet, so that its hits are recorded, and attaches the current estimate for the key
+   */
+  public SenseiDocIdSet track(String key, IndexReader reader, DocIdSet docIdSet, DocIdSetCardinality defaultCardinality, String queryPlan) {
+    DocIdSetCardinality cardinality = estimate(key, defaultCardinality);
+    String plan = queryPlan == null || queryPlan.length() == 0 ? queryPlan : "EST(" + getSamples(key) + ") " + queryPlan;
+    return new SenseiDocIdSet(wrap(key, reader.maxDoc(), docIdSet), cardinality, plan);
+  }
+
+  private DocIdSet wrap(final String key, final int maxDoc, final DocIdSet docIdSet) {
+    if (docIdSet == null) {
+      return null;
+    }
+    if (docIdSet instanceof RandomAccessDocIdSet) {
+      final RandomAccessDocIdSet randomAccessDocIdSet = (RandomAccessDocIdSet) docIdSet;
+      return new RandomAccessDocIdSet() {
+        @Override
+        public boolean get(int docId) {
+          return randomAccessDocIdSet.get(docId);
+        }
+
+        @Override
+        public DocIdSetIterator iterator() throws IOException {
+          return wrap(key, maxDoc, randomAccessDocIdSet.iterator());
+        }
+      };
+    }
+    return new DocIdSet() {
+      @Override
+      public DocIdSetIterator iterator() throws IOException {
+        return wrap(key, maxDoc, docIdSet.iterator());
+      }
+
+      @Override
+      public boolean isCacheable() {
+        return docIdSet.isCacheable();
+      }
+    };
+  }
+
+  private DocIdSetIterator wrap(final String key, final int maxDoc, final DocIdSetIterator iterator) {
+    if (iterator == null) {
+      record(key, 0, maxDoc);
+      return null;
+    }
+    return new DocIdSetIterator() {
+      private int hits;
+      private int coveredDocs;
+      private int lastDoc = -1;
+      private boolean exhausted;
+
+      @Override
+      public int docID() {
+        return iterator.docID();
+      }
+
+      @Override
+      public int nextDoc() throws IOException {
+        int doc = iterator.nextDoc();
+        cover(lastDoc + 1, doc);
+        return doc;
+      }
+
+      @Override
+      public int advance(int target) throws IOException {
+        int doc = iterator.advance(target);
+        // the docs between the previous hit and the target were skipped, nothing is known about them
+        cover(Math.max(target, lastDoc + 1), doc);
+        return doc;
+      }
+
+      private void cover(int from, int doc) {
+        if (exhausted) {
+          return;
+        }
+        if (doc == NO_MORE_DOCS) {
+          exhausted = true;
+          coveredDocs += Math.max(0, maxDoc - from);
+          flush();
+          return;
+        }
+        coveredDocs += Math.max(1, doc - from + 1);
+        lastDoc = doc;
+        if (++hits == RECORD_INTERVAL) {
+          flush();
+        }
+      }
+
+      private void flush() {
+        record(key, hits, coveredDocs, maxDoc);
+        hits = 0;
+        coveredDocs = 0;
+      }
+    };
+  }
+}
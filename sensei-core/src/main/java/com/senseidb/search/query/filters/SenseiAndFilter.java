@@ -73,6 +73,8 @@ public class SenseiAndFilter extends SenseiFilter
       queryPlan.append(")");
     }
     String plan = log.isDebugEnabled() ? queryPlan.toString() : EMPTY_STRING;
+    // the cached clauses are intersected right away, block by block
+    docIdSets = CompressedDocIdSet.combine(docIdSets, true);
 
     if (totalDocIdSetCardinalityEstimate.isOne()) {
       return SenseiDocIdSet.buildMatchAll(reader, plan);
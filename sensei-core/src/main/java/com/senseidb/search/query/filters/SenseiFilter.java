@@ -39,17 +39,46 @@ public abstract class SenseiFilter extends Filter {
     };
   }
 
+  /**
+   * If no cardinality is supplied, the running estimate of the filter hit rate is used, see {@link #getSelectivityKey(Filter)}
+   */
   public static SenseiFilter buildDefault(final Filter filter, final DocIdSetCardinality suppliedDocIdSetCardinality, final String queryPlan) {
+    if (suppliedDocIdSetCardinality == null) {
+      return buildTracked(filter, getSelectivityKey(filter), queryPlan);
+    }
     return new SenseiFilter() {
       @Override
       public SenseiDocIdSet getSenseiDocIdSet(IndexReader reader) throws IOException {
-        // TODO: There needs to be a way to estimate docIdSetCardinality of a column in general.
-        // Either we can maintain a running estimate of the hit rate of a column
-        // or allow a client to preload an expected estimate
-        DocIdSetCardinality docIdSetCardinality = suppliedDocIdSetCardinality == null ? DocIdSetCardinality.random() : suppliedDocIdSetCardinality;
-        return new SenseiDocIdSet(filter.getDocIdSet(reader), docIdSetCardinality, queryPlan);
+        return new SenseiDocIdSet(filter.getDocIdSet(reader), suppliedDocIdSetCardinality, queryPlan);
       }
     };
   }
 
+  /**
+   * The cardinality is estimated from the hit rate previously observed for the given key, see {@link SelectivityTracker}
+   */
+  public static SenseiFilter buildTracked(final Filter filter, final String selectivityKey, final String queryPlan) {
+    return new SenseiFilter() {
+      @Override
+      public SenseiDocIdSet getSenseiDocIdSet(IndexReader reader) throws IOException {
+        return SelectivityTracker.getInstance().track(selectivityKey, reader, filter.getDocIdSet(reader), DocIdSetCardinality.random(), queryPlan);
+      }
+    };
+  }
+
+  /**
+   * The filters that describe their field and value in toString, like QueryWrapperFilter, are tracked per description.
+   * The others can only be told apart by their class
+   */
+  static String getSelectivityKey(Filter filter) {
+    try {
+      if (filter.getClass().getMethod("toString").getDeclaringClass() != Object.class) {
+        return filter.getClass().getName() + " " + filter;
+      }
+    } catch (NoSuchMethodException e) {
+      // can't happen, every class has toString
+    }
+    return filter.getClass().getName();
+  }
+
 }
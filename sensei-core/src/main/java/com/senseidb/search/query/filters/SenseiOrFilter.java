@@ -67,6 +67,8 @@ public class SenseiOrFilter extends SenseiFilter {
       queryPlan.append(")");
     }
     String plan = log.isDebugEnabled() ? queryPlan.toString() : EMPTY_STRING;
+    // the cached clauses are merged right away, block by block
+    docIdSets = CompressedDocIdSet.combine(docIdSets, false);
 
     if (totalDocIdSetCardinalityEstimate.isOne()) {
       return SenseiDocIdSet.buildMatchAll(reader, plan);
@@ -70,6 +70,26 @@ public class SenseiTermFilter extends SenseiFilter {
     _noAutoOptimize = noAutoOptimize;
   }
   
+  /**
+   * The key identifying the equal term clauses, used by the {@link SegmentFilterCache}
+   */
+  public String getCanonicalKey() {
+    String[] vals = _vals.clone();
+    String[] not = _not.clone();
+    Arrays.sort(vals);
+    Arrays.sort(not);
+    return "TERM " + _name + (_isAnd ? " AND " : " OR ") + Arrays.toString(vals) + " NOT " + Arrays.toString(not)
+        + (_noAutoOptimize ? " NOOPT" : "");
+  }
+
+  /**
+   * Builds the term filter, served from the {@link SegmentFilterCache} when it is enabled
+   */
+  public static SenseiFilter buildCached(String name, String vals[], String[] not, boolean isAnd, boolean noAutoOptimize) {
+    SenseiTermFilter filter = new SenseiTermFilter(name, vals, not, isAnd, noAutoOptimize);
+    return SegmentFilterCache.getInstance().cache(filter, filter.getCanonicalKey(), name);
+  }
+
   static DocIdSet buildDefaultDocIdSets(final BoboIndexReader reader,
                                                 final String name,
                                                 final String[] vals,
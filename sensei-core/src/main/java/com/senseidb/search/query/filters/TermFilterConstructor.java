@@ -56,7 +56,7 @@ public class TermFilterConstructor extends FilterConstructor{
       text = String.valueOf(obj);
     }
 
-    return new SenseiTermFilter(field, new String[]{text}, null, false, noOptimize);
+    return SenseiTermFilter.buildCached(field, new String[]{text}, null, false, noOptimize);
   }
   
 }
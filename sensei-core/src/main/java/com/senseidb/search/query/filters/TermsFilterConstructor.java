@@ -48,7 +48,7 @@ public class TermsFilterConstructor extends FilterConstructor{
     if (obj instanceof JSONArray){
       JSONArray jsonArray = (JSONArray)obj;
       String[] vals = RequestConverter2.getStrings(jsonArray);
-      return new SenseiTermFilter(field, vals, null, false, noOptimize);  
+      return SenseiTermFilter.buildCached(field, vals, null, false, noOptimize);  
     }
     else if (obj instanceof JSONObject){
       JSONObject jsonObj = (JSONObject)obj;
@@ -60,7 +60,7 @@ public class TermsFilterConstructor extends FilterConstructor{
       if (!OR_PARAM.equals(op)){
         isAnd = true;
       }
-      return new SenseiTermFilter(field, vals, notVals, isAnd, noOptimize);
+      return SenseiTermFilter.buildCached(field, vals, notVals, isAnd, noOptimize);
     }
     else{
       throw new IllegalArgumentException("invalid term value specified: "+json);
@@ -45,6 +45,7 @@ import com.browseengine.bobo.facets.data.TermValueList;
 import com.browseengine.bobo.util.BigSegmentedArray;
 import com.senseidb.indexing.activity.facet.ActivityRangeFacetHandler;
 import com.senseidb.search.query.ScoreAugmentQuery.ScoreAugmentFunction;
+import com.senseidb.search.relevance.impl.BoundMathModel;
 import com.senseidb.search.relevance.impl.CompilationHelper;
 import com.senseidb.search.relevance.impl.CustomMathModel;
 import com.senseidb.search.relevance.impl.RelevanceJSONConstants;
@@ -71,6 +72,9 @@ public class RuntimeRelevanceFunction extends CustomRelevanceFunction
   private DataTable _dt;
   private CustomMathModel _cModel;
   
+  //index reader level model with the parameters bound, null if the generic score method is used;
+  private BoundMathModel _bModel;
+  
   
   //index reader level data;
   private BigSegmentedArray[] _orderArrays;
@@ -119,11 +123,26 @@ public class RuntimeRelevanceFunction extends CustomRelevanceFunction
   private static final String NETWORK_FACET_NAME = "network";
   private static final String NETWORK_TERMLIST_VALUE = "runtime-facet-network";
   
+  // false to always use the generic score method, e.g. when comparing the two paths;
+  private final boolean _bindParameters;
+  
   public RuntimeRelevanceFunction(CustomMathModel cModel, 
                                   DataTable dt)
+  {
+    this(cModel, dt, true);
+  }
+  
+  /**
+   * @param bindParameters whether the parameters of a model, that supports it, are bound to the
+   * index reader. Otherwise the generic score method is always used.
+   */
+  public RuntimeRelevanceFunction(CustomMathModel cModel, 
+                                  DataTable dt,
+                                  boolean bindParameters)
   {
     _cModel = cModel;
     _dt = dt;
+    _bindParameters = bindParameters;
   }
   
   
@@ -356,6 +375,76 @@ public class RuntimeRelevanceFunction extends CustomRelevanceFunction
     }
     
     dynamicAR = convertIntegers(arDynamic);
+    
+    _bModel = bindModel();
+  }
+  
+  private BoundMathModel bindModel()
+  {
+    if (!_bindParameters || !(_cModel instanceof BoundMathModel) || networkFacetHandler != null)
+      return null;
+    
+    // two slots per parameter, the same layout the generated bind method reads;
+    Object[] data = new Object[_paramSize * 2];
+    for(int i=0; i<_paramSize; i++)
+    {
+      switch (_types[i]) {
+        case RelevanceJSONConstants.TYPENUMBER_INNER_SCORE:
+                  break;
+        case RelevanceJSONConstants.TYPENUMBER_FACET_INT:
+        case RelevanceJSONConstants.TYPENUMBER_FACET_LONG:
+        case RelevanceJSONConstants.TYPENUMBER_FACET_DOUBLE:
+        case RelevanceJSONConstants.TYPENUMBER_FACET_FLOAT:
+        case RelevanceJSONConstants.TYPENUMBER_FACET_SHORT:
+        case RelevanceJSONConstants.TYPENUMBER_FACET_STRING:
+                  data[2 * i] = _orderArrays[_facetIndex[i]];
+                  data[2 * i + 1] = _termLists[_facetIndex[i]];
+                  break;
+        case RelevanceJSONConstants.TYPENUMBER_FACET_A_INT:
+                  data[2 * i] = _aData[_aFacetIndex[i]];
+                  data[2 * i + 1] = _aHandlers[_aFacetIndex[i]];
+                  break;
+        case RelevanceJSONConstants.TYPENUMBER_FACET_M_INT:
+        case RelevanceJSONConstants.TYPENUMBER_FACET_WM_INT:
+                  data[2 * i] = mFacetInts[_mArrayIndex[i]];
+                  break;
+        case RelevanceJSONConstants.TYPENUMBER_FACET_M_LONG:
+        case RelevanceJSONConstants.TYPENUMBER_FACET_WM_LONG:
+                  data[2 * i] = mFacetLongs[_mArrayIndex[i]];
+                  break;
+        case RelevanceJSONConstants.TYPENUMBER_FACET_M_DOUBLE:
+        case RelevanceJSONConstants.TYPENUMBER_FACET_WM_DOUBLE:
+                  data[2 * i] = mFacetDoubles[_mArrayIndex[i]];
+                  break;
+        case RelevanceJSONConstants.TYPENUMBER_FACET_M_FLOAT:
+        case RelevanceJSONConstants.TYPENUMBER_FACET_WM_FLOAT:
+                  data[2 * i] = mFacetFloats[_mArrayIndex[i]];
+                  break;
+        case RelevanceJSONConstants.TYPENUMBER_FACET_M_SHORT:
+        case RelevanceJSONConstants.TYPENUMBER_FACET_WM_SHORT:
+                  data[2 * i] = mFacetShorts[_mArrayIndex[i]];
+                  break;
+        case RelevanceJSONConstants.TYPENUMBER_FACET_M_STRING:
+        case RelevanceJSONConstants.TYPENUMBER_FACET_WM_STRING:
+                  data[2 * i] = mFacetStrings[_mArrayIndex[i]];
+                  break;
+        default:
+                  data[2 * i] = _dt.hm_var.get(_dt.lls_params.get(i));
+      }
+    }
+    
+    try
+    {
+      // the compiled model is shared by all requests, the bound one belongs to this reader only;
+      BoundMathModel bModel = (BoundMathModel) _cModel.getClass().newInstance();
+      bModel.bind(data);
+      return bModel;
+    }
+    catch (Exception e)
+    {
+      logger.warn("Unable to bind relevance model parameters, using generic scoring: " + e.getMessage());
+      return null;
+    }
   }
   
   
@@ -552,6 +641,9 @@ public class RuntimeRelevanceFunction extends CustomRelevanceFunction
   @Override
   public float newScore(float innerScore, int docID){
   
+    if (_bModel != null)
+      return _bModel.score(docID, innerScore);
+    
     //update the dynamic parameters only when we have to.
     for(int j=0; j < dynamicAR.length; j++)
     {
@@ -668,6 +760,9 @@ public class RuntimeRelevanceFunction extends CustomRelevanceFunction
   public float newScore(int docID)
   {
   
+    if (_bModel != null)
+      return _bModel.score(docID, 0f);
+    
     //update the dynamic parameters only when we have to.
     for(int j=0; j < dynamicAR.length; j++)
     {
@@ -770,6 +865,14 @@ public class RuntimeRelevanceFunction extends CustomRelevanceFunction
     return _cModel.score(shorts, ints, longs, floats, doubles, booleans, strings, sets, maps, mFacetInts, mFacetLongs, mFacetFloats, mFacetDoubles, mFacetShorts, mFacetStrings, objs);
   }
 
+  /**
+   * @return whether the bound score method of the model is used for the current index reader
+   */
+  boolean isBound()
+  {
+    return _bModel != null;
+  }
+
   @Override
   public String getExplainString(float innerScore, int doc)
   {
@@ -794,7 +897,7 @@ public class RuntimeRelevanceFunction extends CustomRelevanceFunction
   @Override
   public ScoreAugmentFunction getCopy()
   {
-    return new RuntimeRelevanceFunction(this._cModel, this._dt);
+    return new RuntimeRelevanceFunction(this._cModel, this._dt, this._bindParameters);
   }
 
 
@@ -0,0 +1,50 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+package com.senseidb.search.relevance.impl;
+
+/**
+ * The bound form of a compiled runtime relevance model. {@link CompilationHelper} generates it
+ * next to the generic {@link CustomMathModel} score method, if the function body compiles in this
+ * form. The runtime relevance function binds a new instance of the model class to the facet data of
+ * every index reader, and the bound score method reads the parameter values of a document straight
+ * from the order arrays, term lists and multi-facet containers, instead of the per-type argument
+ * arrays being filled for every document.
+ */
+public interface BoundMathModel
+{
+
+  /**
+   * Keeps the index reader level data of the function parameters in the fields of the model. The
+   * data holds two slots per function parameter, in the function parameter order:
+   * <ul>
+   * <li>facets: the order array and the term list;</li>
+   * <li>activity facets: the facet data and the ActivityRangeFacetHandler;</li>
+   * <li>multi-facets and weighted multi-facets: the container, the second slot is not used;</li>
+   * <li>variables and custom objects: the value, the second slot is not used;</li>
+   * <li>the inner score: neither slot is used.</li>
+   * </ul>
+   */
+  void bind(Object[] data);
+
+  /**
+   * Returns the same score as the generic score method, given the parameter values of the document.
+   */
+  float score(int docID, float innerScore);
+
+}
@@ -34,12 +34,16 @@ import it.unimi.dsi.fastutil.objects.Object2LongOpenHashMap;
 import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
 import org.json.JSONArray;
@@ -242,8 +246,10 @@ public class CompilationHelper
   private static Logger logger = Logger.getLogger(CompilationHelper.class);
 
   private static ClassPool pool = ClassPool.getDefault();
-  // White list of safe classes
-  private static HashSet<String> hs_safe = new HashSet<String>();
+  // White list of safe classes, models may add their custom object classes while others are loaded
+  private static Set<String> hs_safe = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  // Packages and classes imported by the pool of every model
+  private static List<String> IMPORTED_PACKAGES = new ArrayList<String>();
 
   // Format strings for relevance model parameters
   private static String[] PARAM_FORMAT_STRINGS = new String[]
@@ -297,6 +303,12 @@ public class CompilationHelper
   private static String EXP_DOUBLE_METHOD = "public double exp(double val) { return Double.longBitsToDouble(((long) (1512775 * val + 1072632447)) << 32); }";
   private static String EXP_FLOAT_METHOD  = "public double exp(float val) { return Double.longBitsToDouble(((long) (1512775 * val + 1072632447)) << 32); }";
 
+  // Term list classes of the normal facet types, used by the bound score method;
+  private static Map<Integer, String> FACET_TERM_LISTS = new HashMap<Integer, String>();
+
+  private static String BIND_METHOD_HEADER = "public void bind(java.lang.Object[] data)";
+  private static String BOUND_SCORE_METHOD_HEADER = "public float score(int __docID, float __innerScore)";
+
   private static String SCORE_METHOD_HEADER =
     "public float score(short[] shorts, " +
     "int[] ints, " +
@@ -359,14 +371,12 @@ public class CompilationHelper
     
     hs_safe.add("java.util.Random");
 
-    pool.importPackage("java.util");
-    for (String cls: hs_safe)
-    {
-      pool.importPackage(cls);
-    }
+    IMPORTED_PACKAGES.add("java.util");
+    IMPORTED_PACKAGES.addAll(hs_safe);
     pool.insertClassPath(new ClassClassPath(CompilationHelper.class));
 
     hs_safe.add("com.senseidb.search.relevance.impl.CustomMathModel");
+    hs_safe.add("com.senseidb.search.relevance.impl.BoundMathModel");
     hs_safe.add("com.senseidb.search.relevance.impl.CompilationHelper$CustomLoader");
 
     hs_safe.add("java.lang.Object");
@@ -388,6 +398,16 @@ public class CompilationHelper
     hs_safe.add("java.math.MathContext");
     hs_safe.add("java.math.RoundingMode");
 
+    // Classes read directly by the bound score method;
+    hs_safe.add("com.browseengine.bobo.util.BigSegmentedArray");
+    hs_safe.add("com.browseengine.bobo.facets.data.TermIntList");
+    hs_safe.add("com.browseengine.bobo.facets.data.TermLongList");
+    hs_safe.add("com.browseengine.bobo.facets.data.TermDoubleList");
+    hs_safe.add("com.browseengine.bobo.facets.data.TermFloatList");
+    hs_safe.add("com.browseengine.bobo.facets.data.TermShortList");
+    hs_safe.add("com.browseengine.bobo.facets.data.TermStringList");
+    hs_safe.add("com.senseidb.indexing.activity.facet.ActivityRangeFacetHandler");
+
     //  Index of input data index for different types:
     //
     //  0  int_index        6  m_int_index       12  boolean_index
@@ -442,15 +462,19 @@ public class CompilationHelper
     PARAM_INIT_MAP.put(RelevanceJSONConstants.TYPENUMBER_FACET_WM_SHORT,    new int[]{33, 11});
     PARAM_INIT_MAP.put(RelevanceJSONConstants.TYPENUMBER_FACET_A_INT,       new int[]{0,   0});
     PARAM_INIT_MAP.put(RelevanceJSONConstants.TYPENUMBER_CUSTOM_OBJ,        new int[]{34, 15});
+
+    FACET_TERM_LISTS.put(RelevanceJSONConstants.TYPENUMBER_FACET_INT,    "com.browseengine.bobo.facets.data.TermIntList");
+    FACET_TERM_LISTS.put(RelevanceJSONConstants.TYPENUMBER_FACET_LONG,   "com.browseengine.bobo.facets.data.TermLongList");
+    FACET_TERM_LISTS.put(RelevanceJSONConstants.TYPENUMBER_FACET_DOUBLE, "com.browseengine.bobo.facets.data.TermDoubleList");
+    FACET_TERM_LISTS.put(RelevanceJSONConstants.TYPENUMBER_FACET_FLOAT,  "com.browseengine.bobo.facets.data.TermFloatList");
+    FACET_TERM_LISTS.put(RelevanceJSONConstants.TYPENUMBER_FACET_SHORT,  "com.browseengine.bobo.facets.data.TermShortList");
+    FACET_TERM_LISTS.put(RelevanceJSONConstants.TYPENUMBER_FACET_STRING, "com.browseengine.bobo.facets.data.TermStringList");
   }
 
-  private static int MAX_NUM_MODELS  = 10000;
-  static HashMap<String, CustomMathModel> hmModels = new HashMap<String, CustomMathModel>();
+  static CompiledModelCache models = new CompiledModelCache(CompiledModelCache.DEFAULT_MAX_ENTRIES);
 
   public static CustomMathModel createCustomMathScorer(JSONObject jsonModel, DataTable dataTable) throws RelevanceException, JSONException
   {
-    CustomMathModel cMathModel = null;
-
     if(jsonModel == null)
       throw new RelevanceException(ErrorType.JsonParsingError, "No json model is specified.");
 
@@ -550,96 +574,93 @@ public class CompilationHelper
     String className = "CRel"+ dataTable.classIDString.hashCode();
     logger.info("Custom relevance math class name is:"+ className);
 
-    if(hmModels.containsKey(className))
+    final DataTable compiledDataTable = dataTable;
+    final String compiledClassName = className;
+    // keyed by the whole model string, so that two models with the same class name hash never collide
+    return models.get(dataTable.classIDString, new Callable<CustomMathModel>()
     {
-      cMathModel = hmModels.get(className);
-      logger.info("get math model from hashmap:"+ className);
-      return cMathModel;
-    }
-    else
-    {
-      synchronized(CompilationHelper.class)
+      @Override
+      public CustomMathModel call() throws Exception
       {
-        if(hmModels.containsKey(className))
-        {
-          cMathModel = hmModels.get(className);
-          logger.info("get math model from hashmap:"+ className);
-          return cMathModel;
-        }
+        CustomMathModel cMathModel = compile(compiledClassName, compiledDataTable);
+        logger.info("get math model by compilation:"+ compiledClassName);
+        return cMathModel;
+      }
+    });
+  }
 
-        CtClass ch = CompilationHelper.pool.makeClass(className);
-        CtClass ci;
-        try
-        {
-          ci = CompilationHelper.pool.get("com.senseidb.search.relevance.impl.CustomMathModel");
-        }
-        catch (NotFoundException e)
-        {
-          logger.info(e.getMessage());
-          throw new RelevanceException(e);
-        }
+  private static CustomMathModel compile(String className, DataTable dataTable) throws RelevanceException, JSONException
+  {
+    // Each model is compiled in its own pool, so its CtClass is not kept by the shared pool
+    ClassPool modelPool = newModelPool();
+    CtClass ch = modelPool.makeClass(className);
+    CtClass ci;
+    try
+    {
+      ci = modelPool.get("com.senseidb.search.relevance.impl.CustomMathModel");
+    }
+    catch (NotFoundException e)
+    {
+      logger.info(e.getMessage());
+      throw new RelevanceException(e);
+    }
 
-        ch.addInterface(ci);
-        String functionString = makeFuncString(dataTable);
+    ch.addInterface(ci);
+    String functionString = makeFuncString(dataTable, modelPool);
 
-        addStaticFacilityFields(ch);
-        addStaticFacilityMethods(ch);
+    addStaticFacilityFields(ch);
+    addStaticFacilityMethods(ch);
 
-        CtMethod m;
-        try
-        {
-          m = CtNewMethod.make(functionString, ch);
-          ch.addMethod(m);
-        }
-        catch (CannotCompileException e)
-        {
-          logger.info(e.getMessage());
-          throw new RelevanceException(ErrorType.JsonCompilationError, e.getMessage(), e);
-        }
+    CtMethod m;
+    try
+    {
+      m = CtNewMethod.make(functionString, ch);
+      ch.addMethod(m);
+    }
+    catch (CannotCompileException e)
+    {
+      logger.info(e.getMessage());
+      throw new RelevanceException(ErrorType.JsonCompilationError, e.getMessage(), e);
+    }
 
-        Class h;
-        try
-        {
-          h = CompilationHelper.pool.toClass(ch, new CompilationHelper.CustomLoader(CompilationHelper.class.getClassLoader(), className));
-        }
-        catch (CannotCompileException e)
-        {
-          if(hmModels.containsKey(className))
-          {
-            cMathModel = hmModels.get(className);
-            logger.info("get math model from hashmap:"+ className);
-            return cMathModel;
-          }
-          else
-          {
-            logger.info(e.getMessage());
-            throw new RelevanceException(ErrorType.JsonCompilationError, "Compilation error of json relevance model.", e);
-          }
-        }
+    addBoundMethods(ch, dataTable);
 
-        try
-        {
-          cMathModel = (CustomMathModel)h.newInstance();
-        }
-        catch (InstantiationException e)
-        {
-          logger.info(e.getMessage());
-          throw new RelevanceException(ErrorType.JsonCompilationError, "Instantiation exception of relevance object.", e);
-        }
-        catch (IllegalAccessException e)
-        {
-          logger.info(e.getMessage());
-          throw new RelevanceException(ErrorType.JsonCompilationError, "Instantiation exception of relevance object; Illegal access exception", e);
-        }
+    Class h;
+    try
+    {
+      // a new loader per model, the class is unloaded with it once the model is evicted
+      h = modelPool.toClass(ch, new CompilationHelper.CustomLoader(CompilationHelper.class.getClassLoader(), className));
+    }
+    catch (CannotCompileException e)
+    {
+      logger.info(e.getMessage());
+      throw new RelevanceException(ErrorType.JsonCompilationError, "Compilation error of json relevance model.", e);
+    }
 
-        if(hmModels.size() > MAX_NUM_MODELS)
-          hmModels = new HashMap<String, CustomMathModel>();
+    try
+    {
+      return (CustomMathModel)h.newInstance();
+    }
+    catch (InstantiationException e)
+    {
+      logger.info(e.getMessage());
+      throw new RelevanceException(ErrorType.JsonCompilationError, "Instantiation exception of relevance object.", e);
+    }
+    catch (IllegalAccessException e)
+    {
+      logger.info(e.getMessage());
+      throw new RelevanceException(ErrorType.JsonCompilationError, "Instantiation exception of relevance object; Illegal access exception", e);
+    }
+  }
 
-        hmModels.put(className, cMathModel);
-        logger.info("get math model by compilation:"+ className);
-        return cMathModel;
-      }
+  private static ClassPool newModelPool()
+  {
+    ClassPool modelPool = new ClassPool(pool);
+    for (String cls: IMPORTED_PACKAGES)
+    {
+      modelPool.importPackage(cls);
     }
+    return modelPool;
   }
 
   public static void initializeValues(JSONObject jsonValues, DataTable dataTable) throws JSONException
@@ -1075,7 +1096,7 @@ public class CompilationHelper
     }
   }
 
-  private static String makeFuncString(DataTable dataTable) throws JSONException
+  private static String makeFuncString(DataTable dataTable, ClassPool modelPool) throws JSONException
   {
     int[] paramIndices = new int[TOTAL_INPUT_DATA_ARRAYS];
     for (int i = 0; i < TOTAL_INPUT_DATA_ARRAYS; i++)
@@ -1106,7 +1127,7 @@ public class CompilationHelper
         String className2 = className.replace('$', '.');
         
         hs_safe.add(className);
-        pool.importPackage(className);
+        modelPool.importPackage(className);
         
         sb.append(String.format(PARAM_FORMAT_STRINGS[paramInfo[0]], className2, paramName, className2, paramIndices[paramInfo[1]]++));
       }
@@ -1123,6 +1144,123 @@ public class CompilationHelper
     return sb.toString();
   }
 
+  /**
+   * Adds the {@link BoundMathModel} methods to the model class. The bound score
+   * method declares the same locals as the generic one, but reads them from
+   * fields set by bind(), so facet values come straight from the order arrays
+   * and term lists. If the function body does not compile in this form the
+   * class only implements {@link CustomMathModel}.
+   */
+  private static void addBoundMethods(CtClass ch, DataTable dataTable)
+  {
+    StringBuffer bind = new StringBuffer();
+    bind.append(BIND_METHOD_HEADER).append(" {");
+    StringBuffer score = new StringBuffer();
+    score.append(BOUND_SCORE_METHOD_HEADER).append(" {");
+    LinkedList<String> fields = new LinkedList<String>();
+
+    for(int i=0; i< dataTable.lls_params.size();i++)
+    {
+      String paramName = dataTable.lls_params.get(i);
+      int paramType = dataTable.hm_type.get(paramName);
+      String type = getDeclaredType(paramName, paramType);
+      String obj = "__o" + i;
+      String terms = "__t" + i;
+      String data = "data[" + (2 * i) + "]";
+      String data2 = "data[" + (2 * i + 1) + "]";
+
+      switch (paramType)
+      {
+      case RelevanceJSONConstants.TYPENUMBER_INNER_SCORE:
+        score.append("  float ").append(paramName).append(" = __innerScore;");
+        break;
+      case RelevanceJSONConstants.TYPENUMBER_FACET_INT:
+      case RelevanceJSONConstants.TYPENUMBER_FACET_LONG:
+      case RelevanceJSONConstants.TYPENUMBER_FACET_DOUBLE:
+      case RelevanceJSONConstants.TYPENUMBER_FACET_FLOAT:
+      case RelevanceJSONConstants.TYPENUMBER_FACET_SHORT:
+      case RelevanceJSONConstants.TYPENUMBER_FACET_STRING:
+        String termList = FACET_TERM_LISTS.get(paramType);
+        fields.add("public com.browseengine.bobo.util.BigSegmentedArray " + obj + ";");
+        fields.add("public " + termList + " " + terms + ";");
+        bind.append("  ").append(obj).append(" = (com.browseengine.bobo.util.BigSegmentedArray) ").append(data).append(";");
+        bind.append("  ").append(terms).append(" = (").append(termList).append(") ").append(data2).append(";");
+        String getter = paramType == RelevanceJSONConstants.TYPENUMBER_FACET_STRING ? ".get(" : ".getPrimitiveValue(";
+        score.append("  ").append(type).append(" ").append(paramName).append(" = ")
+             .append(terms).append(getter).append(obj).append(".get(__docID));");
+        break;
+      case RelevanceJSONConstants.TYPENUMBER_FACET_A_INT:
+        fields.add("public int[] " + obj + ";");
+        fields.add("public com.senseidb.indexing.activity.facet.ActivityRangeFacetHandler " + terms + ";");
+        bind.append("  ").append(obj).append(" = (int[]) ").append(data).append(";");
+        bind.append("  ").append(terms).append(" = (com.senseidb.indexing.activity.facet.ActivityRangeFacetHandler) ").append(data2).append(";");
+        score.append("  int ").append(paramName).append(" = ").append(terms).append(".getIntActivityValue(").append(obj).append(", __docID);");
+        break;
+      default:
+        fields.add("public " + type + " " + obj + ";");
+        bind.append("  ").append(obj).append(" = ").append(unbox(type, data)).append(";");
+        if (paramType >= RelevanceJSONConstants.TYPENUMBER_FACET_M_INT && paramType <= RelevanceJSONConstants.TYPENUMBER_FACET_WM_STRING)
+          score.append("  ").append(obj).append(".refresh(__docID);");
+        score.append("  ").append(type).append(" ").append(paramName).append(" = ").append(obj).append(";");
+      }
+    }
+
+    bind.append("}");
+    score.append(dataTable.funcBody);
+    score.append("}");
+
+    try
+    {
+      // the methods read the fields, so both methods are compiled into a throwaway subclass first,
+      // and the model class gets the fields and the methods only if the whole bound form compiles;
+      CtClass check = ch.getClassPool().makeClass(ch.getName() + "$BoundCheck", ch);
+      try
+      {
+        addBoundMembers(check, fields, bind.toString(), score.toString());
+      }
+      finally
+      {
+        check.detach();
+      }
+      addBoundMembers(ch, fields, bind.toString(), score.toString());
+      ch.addInterface(ch.getClassPool().get("com.senseidb.search.relevance.impl.BoundMathModel"));
+    }
+    catch (CannotCompileException e)
+    {
+      logger.warn("Unable to bind relevance model parameters, using generic scoring: " + e.getMessage());
+    }
+    catch (NotFoundException e)
+    {
+      logger.warn("Unable to bind relevance model parameters, using generic scoring: " + e.getMessage());
+    }
+  }
+
+  private static void addBoundMembers(CtClass ch, List<String> fields, String bind, String score) throws CannotCompileException
+  {
+    for (String field : fields)
+      ch.addField(CtField.make(field, ch));
+    ch.addMethod(CtNewMethod.make(bind, ch));
+    ch.addMethod(CtNewMethod.make(score, ch));
+  }
+
+  private static String getDeclaredType(String paramName, int paramType)
+  {
+    if (paramType == RelevanceJSONConstants.TYPENUMBER_CUSTOM_OBJ)
+      return ExternalRelevanceDataStorage.getObjClsName(paramName).replace('$', '.');
+
+    String format = PARAM_FORMAT_STRINGS[PARAM_INIT_MAP.get(paramType)[0]];
+    return format.substring(2, format.indexOf(" %s"));
+  }
+
+  private static String unbox(String type, String value)
+  {
+    if (type.equals("boolean"))
+      return "((java.lang.Boolean) " + value + ").booleanValue()";
+    if (type.equals("int") || type.equals("long") || type.equals("double") || type.equals("float") || type.equals("short"))
+      return "((java.lang.Number) " + value + ")." + type + "Value()";
+    return "(" + type + ") " + value;
+  }
+
   public static class CustomLoader extends ClassLoader {
 
     private ClassLoader _cl;
@@ -0,0 +1,183 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+package com.senseidb.search.relevance.impl;
+
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+
+import com.senseidb.metrics.MetricFactory;
+import com.senseidb.metrics.MetricsConstants;
+import com.senseidb.search.req.ErrorType;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.Timer;
+
+/**
+ * LRU cache of compiled relevance models, keyed by their function body and parameters.
+ * <p>
+ * A model missing from the cache is compiled by the first request asking for it, the other requests
+ * for the same model wait for that compilation, requests for other models are not blocked. Every
+ * model class is defined in its own class loader, so the class can be unloaded once the model is
+ * evicted and the requests still using it are done.
+ */
+public class CompiledModelCache
+{
+  public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+  private final int _maxEntries;
+  private final LinkedHashMap<String, CustomMathModel> _models;
+  private final ConcurrentHashMap<String, FutureTask<CustomMathModel>> _compiling;
+
+  private final Meter _hitMeter;
+  private final Meter _missMeter;
+  private final Meter _evictionMeter;
+  private final Timer _compileTimer;
+
+  public CompiledModelCache(int maxEntries)
+  {
+    if (maxEntries <= 0)
+    {
+      throw new IllegalArgumentException("max entries must be > 0: " + maxEntries);
+    }
+    _maxEntries = maxEntries;
+    _models = new LinkedHashMap<String, CustomMathModel>(16, 0.75f, true);
+    _compiling = new ConcurrentHashMap<String, FutureTask<CustomMathModel>>();
+
+    _hitMeter = MetricFactory.newMeter(new MetricName(MetricsConstants.Domain, "meter", "relevance-model-cache-hit", "cache"),
+                                       "requests",
+                                       TimeUnit.SECONDS);
+    _missMeter = MetricFactory.newMeter(new MetricName(MetricsConstants.Domain, "meter", "relevance-model-cache-miss", "cache"),
+                                        "requests",
+                                        TimeUnit.SECONDS);
+    _evictionMeter = MetricFactory.newMeter(new MetricName(MetricsConstants.Domain, "meter", "relevance-model-cache-eviction", "cache"),
+                                            "entries",
+                                            TimeUnit.SECONDS);
+    _compileTimer = MetricFactory.newTimer(new MetricName(MetricsConstants.Domain, "timer", "relevance-model-compile-time", "cache"),
+                                           TimeUnit.MILLISECONDS,
+                                           TimeUnit.SECONDS);
+    MetricFactory.newGauge(new MetricName(MetricsConstants.Domain, "gauge", "relevance-model-cache-size", "cache"),
+                           new Gauge<Integer>()
+                           {
+                             @Override
+                             public Integer value()
+                             {
+                               return size();
+                             }
+                           });
+  }
+
+  /**
+   * Returns the cached model, or compiles it with the given compiler. Failed compilations are not
+   * cached, the next request for the model compiles it again.
+   */
+  public CustomMathModel get(final String key, final Callable<CustomMathModel> compiler) throws JSONException
+  {
+    CustomMathModel model = getCached(key);
+    if (model != null)
+    {
+      _hitMeter.mark();
+      return model;
+    }
+    _missMeter.mark();
+
+    FutureTask<CustomMathModel> task = new FutureTask<CustomMathModel>(new Callable<CustomMathModel>()
+    {
+      @Override
+      public CustomMathModel call() throws Exception
+      {
+        // another request may have finished the compilation after our cache miss
+        CustomMathModel model = getCached(key);
+        if (model == null)
+        {
+          model = _compileTimer.time(compiler);
+          put(key, model);
+        }
+        return model;
+      }
+    });
+    FutureTask<CustomMathModel> compiling = _compiling.putIfAbsent(key, task);
+    if (compiling == null)
+    {
+      compiling = task;
+      try
+      {
+        task.run();
+      }
+      finally
+      {
+        _compiling.remove(key, task);
+      }
+    }
+
+    try
+    {
+      return compiling.get();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new RelevanceException(ErrorType.JsonCompilationError, "Interrupted while waiting for the compilation of relevance model.", e);
+    }
+    catch (ExecutionException e)
+    {
+      Throwable cause = e.getCause();
+      if (cause instanceof JSONException)
+      {
+        throw (JSONException) cause;
+      }
+      if (cause instanceof Error)
+      {
+        throw (Error) cause;
+      }
+      throw new RelevanceException(ErrorType.JsonCompilationError, "Compilation error of json relevance model.", (Exception) cause);
+    }
+  }
+
+  private synchronized CustomMathModel getCached(String key)
+  {
+    return _models.get(key);
+  }
+
+  private synchronized void put(String key, CustomMathModel model)
+  {
+    _models.put(key, model);
+    while (_models.size() > _maxEntries)
+    {
+      _models.remove(_models.keySet().iterator().next());
+      _evictionMeter.mark();
+    }
+  }
+
+  public synchronized void clear()
+  {
+    _models.clear();
+  }
+
+  public synchronized int size()
+  {
+    return _models.size();
+  }
+}
@@ -75,6 +75,7 @@ public  class  SenseiRequest implements AbstractSenseiRequest, Cloneable
   private Set<String> _termVectorsToFetch;
   private List<String> _selectList; // Select list (mostly used in BQL) 
   private transient Set<String> _selectSet;
+  private transient SharedRequestEncoding _sharedEncoding;
   private SenseiMapReduce mapReduceFunction;
   private List<SenseiError> errors;
   private Integer scoreMeaningfulDigits;
@@ -524,6 +525,20 @@ public  class  SenseiRequest implements AbstractSenseiRequest, Cloneable
     return _selectSet;
   }
 
+  /**
+   * The encoded form shared with the other sub-requests of the same broker request, null if the
+   * request is encoded on its own
+   */
+  public SharedRequestEncoding getSharedEncoding()
+  {
+    return _sharedEncoding;
+  }
+
+  public void setSharedEncoding(SharedRequestEncoding sharedEncoding)
+  {
+    _sharedEncoding = sharedEncoding;
+  }
+
   /**
    * Set the searchable for the query
    * @param searchable query object
@@ -666,6 +681,18 @@ public  class  SenseiRequest implements AbstractSenseiRequest, Cloneable
     return true;
   }
 
+  @Override
+  public int hashCode() {
+    int hash = getCount();
+    hash = 31 * hash + getOffset();
+    hash = 31 * hash + Arrays.hashCode(getSort());
+    hash = 31 * hash + (getQuery() == null ? 0 : getQuery().toString().hashCode());
+    hash = 31 * hash + (getGroupBy() == null ? 0 : Arrays.hashCode(getGroupBy()));
+    hash = 31 * hash + getMaxPerGroup();
+    hash = 31 * hash + (getPartitions() == null ? 0 : getPartitions().hashCode());
+    return hash;
+  }
+
   private boolean initParamsAreEqual(Map<String, FacetHandlerInitializerParam> a,
                                      Map<String, FacetHandlerInitializerParam> b) {
     if (a.size() != b.size()) return false;
@@ -0,0 +1,75 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+package com.senseidb.search.req;
+
+import java.util.Arrays;
+
+/**
+ * Cache key of a {@link SenseiRequest}. Two keys are equal if their requests are equal according
+ * to {@link SenseiRequest#equals(Object)} and agree on the fields that affect the result without
+ * being compared there. The key holds a copy of the request, so changing the request afterwards
+ * does not change the key. The route parameter and transaction id are not part of the key.
+ */
+public final class SenseiRequestKey
+{
+  private final SenseiRequest _request;
+  private final boolean _simpleRelevance;
+  private final boolean _trace;
+  private final int _hash;
+
+  public SenseiRequestKey(SenseiRequest request)
+  {
+    _request = request.clone();
+    _simpleRelevance = request.isSimpleRelevance();
+    _trace = request.isTrace();
+    _hash = _request.hashCode();
+  }
+
+  @Override
+  public int hashCode()
+  {
+    return _hash;
+  }
+
+  @Override
+  public boolean equals(Object o)
+  {
+    if (!(o instanceof SenseiRequestKey))
+      return false;
+    SenseiRequestKey other = (SenseiRequestKey) o;
+    SenseiRequest a = _request;
+    SenseiRequest b = other._request;
+    return _hash == other._hash
+        && a.equals(b)
+        && a.isFetchStoredFields() == b.isFetchStoredFields()
+        && a.isFetchStoredValue() == b.isFetchStoredValue()
+        && a.isShowExplanation() == b.isShowExplanation()
+        && _simpleRelevance == other._simpleRelevance
+        && _trace == other._trace
+        && Arrays.equals(a.getDistinct(), b.getDistinct())
+        && equal(a.getTermVectorsToFetch(), b.getTermVectorsToFetch())
+        && equal(a.getSelectList(), b.getSelectList())
+        && equal(a.getScoreMeaningfulDigits(), b.getScoreMeaningfulDigits());
+  }
+
+  private static boolean equal(Object a, Object b)
+  {
+    return a == null ? b == null : a.equals(b);
+  }
+}
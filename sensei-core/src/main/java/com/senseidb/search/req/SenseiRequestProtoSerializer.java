@@ -58,9 +58,16 @@ public class SenseiRequestProtoSerializer implements Serializer<SenseiRequest, S
 
   @Override
   public SenseiRequest requestFromBytes(byte[] bytes) {
+    return requestFromBytes(bytes, 0, bytes.length);
+  }
+
+  /**
+   * Decodes the request from the part of the buffer, so that the pooled buffers can be decoded without a copy
+   */
+  public SenseiRequest requestFromBytes(byte[] bytes, int offset, int length) {
     SenseiProtos.SenseiProtoRequest senseiProtoRequest = null;
     try {
-      senseiProtoRequest = SenseiProtos.SenseiProtoRequest.parseFrom(bytes);
+      senseiProtoRequest = SenseiProtos.SenseiProtoRequest.newBuilder().mergeFrom(bytes, offset, length).build();
     } catch (InvalidProtocolBufferException e) {
       throw new IllegalArgumentException("Could not parse");
     }
@@ -174,6 +181,10 @@ public class SenseiRequestProtoSerializer implements Serializer<SenseiRequest, S
 
   @Override
   public byte[] requestToBytes(SenseiRequest request) {
+    SharedRequestEncoding sharedEncoding = request.getSharedEncoding();
+    if (sharedEncoding != null) {
+      return appendPartitions(sharedEncoding.getBytes(this), request.getPartitions());
+    }
     SenseiProtos.SenseiProtoRequest.Builder builder = SenseiProtos.SenseiProtoRequest.newBuilder();
 
     if (request.getSelections() != null) {
@@ -250,6 +261,29 @@ public class SenseiRequestProtoSerializer implements Serializer<SenseiRequest, S
     return senseiProtoRequest.toByteArray();
   }
 
+  /**
+   * The concatenated messages are merged on parsing, and the repeated partitions field of the shared
+   * request is empty, so only the partitions need to be encoded per node
+   */
+  private static byte[] appendPartitions(byte[] sharedBytes, Set<Integer> partitions) {
+    if (partitions == null || partitions.isEmpty()) {
+      return sharedBytes;
+    }
+    byte[] partitionBytes = partitionsToBytes(partitions);
+    byte[] ret = new byte[sharedBytes.length + partitionBytes.length];
+    System.arraycopy(sharedBytes, 0, ret, 0, sharedBytes.length);
+    System.arraycopy(partitionBytes, 0, ret, sharedBytes.length, partitionBytes.length);
+    return ret;
+  }
+
+  /**
+   * Encodes a request message, that has only the partitions set. Appended to the shared encoding
+   * of the request, it sets the partitions of the decoded request.
+   */
+  static byte[] partitionsToBytes(Set<Integer> partitions) {
+    return SenseiProtos.SenseiProtoRequest.newBuilder().addAllPartitions(partitions).buildPartial().toByteArray();
+  }
+
   private SenseiProtos.JavaPrimitives getPrimitiveType(Object[] array) {
     if (array instanceof Integer[]) {
       return SenseiProtos.JavaPrimitives.INT;
@@ -1150,9 +1184,16 @@ public class SenseiRequestProtoSerializer implements Serializer<SenseiRequest, S
 
   @Override
   public SenseiResult responseFromBytes(byte[] bytes) {
+    return responseFromBytes(bytes, 0, bytes.length);
+  }
+
+  /**
+   * Decodes the result from the part of the buffer, so that the pooled buffers can be decoded without a copy
+   */
+  public SenseiResult responseFromBytes(byte[] bytes, int offset, int length) {
     SenseiProtos.SenseiProtoResult senseiProtoResult = null;
     try {
-      senseiProtoResult = SenseiProtos.SenseiProtoResult.parseFrom(bytes);
+      senseiProtoResult = SenseiProtos.SenseiProtoResult.newBuilder().mergeFrom(bytes, offset, length).build();
     } catch (InvalidProtocolBufferException e) {
       throw new IllegalArgumentException("Could not parse proto result");
     }
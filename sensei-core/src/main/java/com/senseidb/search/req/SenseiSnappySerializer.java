@@ -22,7 +22,6 @@ package com.senseidb.search.req;
 import com.linkedin.norbert.network.Serializer;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.ints.IntList;
-import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 import org.iq80.snappy.SnappyInputStream;
 import org.iq80.snappy.SnappyOutputStream;
@@ -30,6 +29,7 @@ import org.iq80.snappy.SnappyOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Arrays;
 
 
@@ -39,6 +39,71 @@ import java.util.Arrays;
 public class SenseiSnappySerializer<RequestType, ResponseType> implements Serializer<RequestType, ResponseType> {
   private final static Logger logger = Logger.getLogger(SenseiSnappySerializer.class);
 
+  private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+  /** Buffers grown over this size by a huge message are dropped instead of being kept by the thread */
+  private static final int MAX_POOLED_BUFFER_SIZE = 4 * 1024 * 1024;
+
+  /**
+   * The per thread buffer, that the messages are decompressed into and compressed from, so that the
+   * serialization doesn't allocate and grow the temporary arrays for every message
+   */
+  private static class PooledBuffer extends ByteArrayOutputStream {
+    PooledBuffer() {
+      super(INITIAL_BUFFER_SIZE);
+    }
+
+    byte[] getBytes() {
+      return buf;
+    }
+
+    int getLength() {
+      return count;
+    }
+
+    void readFully(InputStream in) throws IOException {
+      reset();
+      int read;
+      while ((read = in.read(buf, count, buf.length - count)) != -1) {
+        count += read;
+        if (count == buf.length) {
+          buf = Arrays.copyOf(buf, buf.length << 1);
+        }
+      }
+    }
+  }
+
+  private static final ThreadLocal<PooledBuffer> buffers = new ThreadLocal<PooledBuffer>() {
+    @Override
+    protected PooledBuffer initialValue() {
+      return new PooledBuffer();
+    }
+  };
+
+  private static PooledBuffer acquireBuffer() {
+    PooledBuffer buffer = buffers.get();
+    buffer.reset();
+    return buffer;
+  }
+
+  private static void releaseBuffer(PooledBuffer buffer) {
+    if (buffer.getBytes().length > MAX_POOLED_BUFFER_SIZE) {
+      buffers.remove();
+    }
+  }
+
+  /** The length of the header, that starts every snappy stream, and is followed by the compressed blocks */
+  private static final int STREAM_HEADER_LENGTH = getStreamHeaderLength();
+
+  private static int getStreamHeaderLength() {
+    try {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      new SnappyOutputStream(baos).close();
+      return baos.size();
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
   private final Serializer<RequestType, ResponseType> _inner;
   private final String requestName;
   private final String responseName;
@@ -49,6 +114,10 @@ public class SenseiSnappySerializer<RequestType, ResponseType> implements Serial
     responseName = "SnappyResponse(" + (inner.responseName() == null ? "" : inner.responseName())  + ")";
   }
 
+  public Serializer<RequestType, ResponseType> getInner() {
+    return _inner;
+  }
+
   public static <RequestType, ResponseType> SenseiSnappySerializer<RequestType, ResponseType> wrap(Serializer<RequestType, ResponseType> inner) {
     return new SenseiSnappySerializer<RequestType, ResponseType>(inner);
   }
@@ -64,19 +133,30 @@ public class SenseiSnappySerializer<RequestType, ResponseType> implements Serial
   }
 
   @Override
+  @SuppressWarnings("unchecked")
   public RequestType requestFromBytes(byte[] compressedBytes) {
     ByteArrayInputStream bais = new ByteArrayInputStream(compressedBytes);
 
-    byte[] uncompressedBytes = null;
+    PooledBuffer buffer = acquireBuffer();
+    RequestType request;
     try {
-      SnappyInputStream snappyInputStream = new SnappyInputStream(bais);
-      uncompressedBytes = IOUtils.toByteArray(snappyInputStream);
-    } catch (IOException e) {
-      // This should not happen
-      logger.warn("Could not decompress sensei request", e);
-    }
+      try {
+        SnappyInputStream snappyInputStream = new SnappyInputStream(bais);
+        buffer.readFully(snappyInputStream);
+      } catch (IOException e) {
+        // This should not happen
+        logger.warn("Could not decompress sensei request", e);
+      }
 
-    RequestType request = _inner.requestFromBytes(uncompressedBytes);
+      if (_inner instanceof SenseiRequestProtoSerializer) {
+        // The proto serializer parses the pooled buffer in place, the parsed messages don't reference it
+        request = (RequestType) ((SenseiRequestProtoSerializer) _inner).requestFromBytes(buffer.getBytes(), 0, buffer.getLength());
+      } else {
+        request = _inner.requestFromBytes(buffer.toByteArray());
+      }
+    } finally {
+      releaseBuffer(buffer);
+    }
 
 //    // For debugging serialization
 //    byte[] bytes2 = _inner.requestToBytes(request);
@@ -89,19 +169,30 @@ public class SenseiSnappySerializer<RequestType, ResponseType> implements Serial
   }
 
   @Override
+  @SuppressWarnings("unchecked")
   public ResponseType responseFromBytes(byte[] compressedBytes) {
     ByteArrayInputStream bais = new ByteArrayInputStream(compressedBytes);
 
-    byte[] uncompressedBytes = null;
+    PooledBuffer buffer = acquireBuffer();
+    ResponseType response;
     try {
-      SnappyInputStream snappyInputStream = new SnappyInputStream(bais);
-      uncompressedBytes = IOUtils.toByteArray(snappyInputStream);
-    } catch (IOException e) {
-      // This should not happen
-      logger.warn("Could not decompress sensei request", e);
-    }
+      try {
+        SnappyInputStream snappyInputStream = new SnappyInputStream(bais);
+        buffer.readFully(snappyInputStream);
+      } catch (IOException e) {
+        // This should not happen
+        logger.warn("Could not decompress sensei request", e);
+      }
 
-    ResponseType response = _inner.responseFromBytes(uncompressedBytes);
+      if (_inner instanceof SenseiRequestProtoSerializer) {
+        // The proto serializer parses the pooled buffer in place, the parsed messages don't reference it
+        response = (ResponseType) ((SenseiRequestProtoSerializer) _inner).responseFromBytes(buffer.getBytes(), 0, buffer.getLength());
+      } else {
+        response = _inner.responseFromBytes(buffer.toByteArray());
+      }
+    } finally {
+      releaseBuffer(buffer);
+    }
 
 //    // For debugging serialization
 //    byte[] bytes = _inner.responseToBytes(response);
@@ -115,6 +206,9 @@ public class SenseiSnappySerializer<RequestType, ResponseType> implements Serial
 
   @Override
   public byte[] requestToBytes(RequestType request) {
+    if (request instanceof SenseiRequest && ((SenseiRequest) request).getSharedEncoding() != null) {
+      return sharedRequestToBytes((SenseiRequest) request);
+    }
     byte[] uncompressedBytes = _inner.requestToBytes(request);
 
 //    // For debugging serialization
@@ -123,7 +217,31 @@ public class SenseiSnappySerializer<RequestType, ResponseType> implements Serial
 //      throw new IllegalArgumentException();
 //    }
 
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    return compress(uncompressedBytes);
+  }
+
+  /**
+   * The shared part of the request is compressed once for all the nodes. The snappy stream is a
+   * header followed by independently compressed blocks, so the blocks of the compressed partitions
+   * are appended to the shared stream, and the node decompresses the concatenated proto messages.
+   */
+  private byte[] sharedRequestToBytes(SenseiRequest request) {
+    byte[] sharedBytes = request.getSharedEncoding().getCompressedBytes(this);
+    if (request.getPartitions() == null || request.getPartitions().isEmpty()) {
+      return sharedBytes;
+    }
+    byte[] partitionBytes = compress(SenseiRequestProtoSerializer.partitionsToBytes(request.getPartitions()));
+    byte[] ret = new byte[sharedBytes.length + partitionBytes.length - STREAM_HEADER_LENGTH];
+    System.arraycopy(sharedBytes, 0, ret, 0, sharedBytes.length);
+    System.arraycopy(partitionBytes, STREAM_HEADER_LENGTH, ret, sharedBytes.length, partitionBytes.length - STREAM_HEADER_LENGTH);
+    return ret;
+  }
+
+  /**
+   * @return the complete snappy stream, including its header
+   */
+  byte[] compress(byte[] uncompressedBytes) {
+    PooledBuffer baos = acquireBuffer();
 
     try {
       SnappyOutputStream snappyOutputStream = new SnappyOutputStream(baos);
@@ -135,7 +253,11 @@ public class SenseiSnappySerializer<RequestType, ResponseType> implements Serial
       logger.error("Could not compress sensei request ", e);
     }
 
-    return baos.toByteArray();
+    try {
+      return baos.toByteArray();
+    } finally {
+      releaseBuffer(baos);
+    }
   }
 
   @Override
@@ -148,17 +270,6 @@ public class SenseiSnappySerializer<RequestType, ResponseType> implements Serial
 //      throw new IllegalArgumentException();
 //    }
 
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
-    try {
-      SnappyOutputStream snappyOutputStream = new SnappyOutputStream(baos);
-      snappyOutputStream.write(uncompressedBytes);
-      snappyOutputStream.close();
-      baos.close();
-    } catch (IOException e) {
-      // This should not happen
-      logger.error("Could not compress sensei request ", e);
-    }
-    return baos.toByteArray();
+    return compress(uncompressedBytes);
   }
 }
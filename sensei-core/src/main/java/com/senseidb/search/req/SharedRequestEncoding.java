@@ -0,0 +1,126 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+package com.senseidb.search.req;
+
+import java.util.Set;
+
+import com.linkedin.norbert.network.Serializer;
+
+/**
+ * The request part, that the broker sends unchanged to every node. When there is no request
+ * customizer, the sub-requests of a broker request differ only in their partitions, so everything
+ * else (the query, selections, sorts, facet specs, the map reduce function and the rest of the
+ * request parameters) is encoded once here, and compressed once when the proto serializer is
+ * wrapped into the snappy one.
+ * <p>
+ * The sub-requests created by {@link #forPartitions(Set)} carry only their partitions and a
+ * reference to this shared encoding. The proto serializer appends the encoded partitions to the
+ * shared bytes, and protobuf merges the concatenated messages, so the node decodes the same request
+ * as if it was encoded as a whole. The snappy serializer appends the compressed partitions as one
+ * more block to the shared compressed stream in the same way.
+ */
+public class SharedRequestEncoding
+{
+  private final SenseiRequest _request;
+  private volatile byte[] _bytes;
+  private volatile byte[] _compressedBytes;
+
+  /**
+   * @param request the request to send, its partitions are ignored
+   */
+  public SharedRequestEncoding(SenseiRequest request)
+  {
+    _request = request;
+    _request.setPartitions(null);
+  }
+
+  /**
+   * Only the proto serializer, optionally wrapped into the snappy one, understands the shared
+   * encoding. The sub-requests can't be sent with any other serializer.
+   */
+  public static boolean isSupportedBy(Serializer<?, ?> serializer)
+  {
+    if (serializer instanceof SenseiSnappySerializer)
+    {
+      return isSupportedBy(((SenseiSnappySerializer<?, ?>) serializer).getInner());
+    }
+    return serializer instanceof SenseiRequestProtoSerializer;
+  }
+
+  /**
+   * @return the shared request without any partitions
+   */
+  public SenseiRequest getRequest()
+  {
+    return _request;
+  }
+
+  /**
+   * Creates the lightweight sub-request, that is only meant to be serialized
+   */
+  public SenseiRequest forPartitions(Set<Integer> partitions)
+  {
+    SenseiRequest ret = new SenseiRequest();
+    ret.setPartitions(partitions);
+    ret.setSharedEncoding(this);
+    return ret;
+  }
+
+  /**
+   * @return the proto encoding of the shared request, computed on the first call
+   */
+  byte[] getBytes(SenseiRequestProtoSerializer serializer)
+  {
+    byte[] ret = _bytes;
+    if (ret == null)
+    {
+      synchronized (this)
+      {
+        ret = _bytes;
+        if (ret == null)
+        {
+          ret = serializer.requestToBytes(_request);
+          _bytes = ret;
+        }
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * @return the complete snappy stream of the shared proto encoding, compressed on the first call
+   */
+  byte[] getCompressedBytes(SenseiSnappySerializer<?, ?> serializer)
+  {
+    byte[] ret = _compressedBytes;
+    if (ret == null)
+    {
+      synchronized (this)
+      {
+        ret = _compressedBytes;
+        if (ret == null)
+        {
+          ret = serializer.compress(getBytes((SenseiRequestProtoSerializer) serializer.getInner()));
+          _compressedBytes = ret;
+        }
+      }
+    }
+    return ret;
+  }
+}
@@ -0,0 +1,133 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+package com.senseidb.search.req.mapred;
+
+import com.browseengine.bobo.facets.data.FacetDataCache;
+import com.browseengine.bobo.facets.data.MultiValueFacetDataCache;
+import com.browseengine.bobo.facets.data.TermDoubleList;
+import com.browseengine.bobo.facets.data.TermIntList;
+import com.browseengine.bobo.facets.data.TermLongList;
+import com.browseengine.bobo.facets.data.TermNumberList;
+import com.browseengine.bobo.facets.data.TermValueList;
+import com.browseengine.bobo.util.BigSegmentedArray;
+
+/**
+ * Typed view over the single valued facet column of a segment, obtained with {@link FieldAccessor#getColumn(String)}.
+ * The value list type is checked once, when the view is created, and then the primitive values are read by the ordinal
+ * without boxing or string formatting.<br>
+ * The ordinals themselves are dense, 0 stands for the docs without a value, so the map functions can count or group by
+ * the ordinal and convert only the distinct ordinals to the values, see {@link #getRawValue(int)}
+ */
+@SuppressWarnings("rawtypes")
+public final class FacetColumn {
+  private final BigSegmentedArray orderArray;
+  private final TermValueList valArray;
+  private final TermLongList longValues;
+  private final TermIntList intValues;
+  private final TermDoubleList doubleValues;
+  private final TermNumberList numberValues;
+
+  private FacetColumn(FacetDataCache facetDataCache) {
+    orderArray = facetDataCache.orderArray;
+    valArray = facetDataCache.valArray;
+    longValues = valArray instanceof TermLongList ? (TermLongList) valArray : null;
+    intValues = valArray instanceof TermIntList ? (TermIntList) valArray : null;
+    doubleValues = valArray instanceof TermDoubleList ? (TermDoubleList) valArray : null;
+    numberValues = valArray instanceof TermNumberList ? (TermNumberList) valArray : null;
+  }
+
+  /**
+   * @return the column view, or null if the facet data is multi valued or not backed by the facet data cache
+   */
+  public static FacetColumn valueOf(Object facetData) {
+    if (!(facetData instanceof FacetDataCache) || facetData instanceof MultiValueFacetDataCache) {
+      return null;
+    }
+    return new FacetColumn((FacetDataCache) facetData);
+  }
+
+  /**
+   * The ordinal of the document's value in the sorted term list, 0 stands for the missing value
+   */
+  public int getOrdinal(int docId) {
+    return orderArray.get(docId);
+  }
+
+  /**
+   * The number of the distinct ordinals in the column, including the missing value
+   */
+  public int getCardinality() {
+    return valArray.size();
+  }
+
+  public boolean isNumeric() {
+    return numberValues != null;
+  }
+
+  public long getLong(int docId) {
+    int ordinal = orderArray.get(docId);
+    if (longValues != null) {
+      return longValues.getPrimitiveValue(ordinal);
+    }
+    if (intValues != null) {
+      return intValues.getPrimitiveValue(ordinal);
+    }
+    return (long) getNumberList().getDoubleValue(ordinal);
+  }
+
+  public int getInteger(int docId) {
+    int ordinal = orderArray.get(docId);
+    if (intValues != null) {
+      return intValues.getPrimitiveValue(ordinal);
+    }
+    return (int) getNumberList().getDoubleValue(ordinal);
+  }
+
+  public double getDouble(int docId) {
+    int ordinal = orderArray.get(docId);
+    if (doubleValues != null) {
+      return doubleValues.getPrimitiveValue(ordinal);
+    }
+    if (longValues != null) {
+      return longValues.getPrimitiveValue(ordinal);
+    }
+    if (intValues != null) {
+      return intValues.getPrimitiveValue(ordinal);
+    }
+    return getNumberList().getDoubleValue(ordinal);
+  }
+
+  /**
+   * The raw value for the ordinal, it allocates, so it is meant to be called once per distinct value rather than per document
+   */
+  public Object getRawValue(int ordinal) {
+    return valArray.getRawValue(ordinal);
+  }
+
+  public TermValueList getTermValueList() {
+    return valArray;
+  }
+
+  private TermNumberList getNumberList() {
+    if (numberValues == null) {
+      throw new UnsupportedOperationException("Class " + valArray.getClass() + " doesn't hold numeric values");
+    }
+    return numberValues;
+  }
+}
@@ -50,6 +50,8 @@ public final class FieldAccessor  {
   private String lastFacetDataCacheName;
   
   private Map<String, FacetDataCache> facetDataMap = new HashMap<String, FacetDataCache>();  
+  private Map<String, FacetColumn> columns = new HashMap<String, FacetColumn>();
+  private Map<Object, Object> segmentStates;
   
   private final DocIDMapper mapper;
   
@@ -83,6 +85,37 @@ public final class FieldAccessor  {
   
   
   
+  /**
+   * Returns the typed primitive view of the facet column. The accessor lives as long as the segment, so the view should be resolved once
+   * per map call and then read per document
+   * @param name
+   * @return the column, or null if the facet is multi valued or not backed by the facet data cache
+   */
+  public final FacetColumn getColumn(String name) {
+    FacetColumn ret = columns.get(name);
+    if (ret == null && !columns.containsKey(name)) {
+      ret = FacetColumn.valueOf(boboIndexReader.getFacetData(name));
+      columns.put(name, ret);
+    }
+    return ret;
+  }
+
+  /**
+   * The state, that the map function keeps across all the doc buffers of the segment, e.g. a sketch, that every buffer is added to
+   * @param key usually the map function itself
+   * @return the state, or null if it wasn't set for the segment yet
+   */
+  public final Object getSegmentState(Object key) {
+    return segmentStates == null ? null : segmentStates.get(key);
+  }
+
+  public final void setSegmentState(Object key, Object state) {
+    if (segmentStates == null) {
+      segmentStates = new HashMap<Object, Object>();
+    }
+    segmentStates.put(key, state);
+  }
+
   /**
    * Get facet value for the document
    * @param fieldName
@@ -0,0 +1,142 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+package com.senseidb.search.req.mapred.functions;
+
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.senseidb.search.req.mapred.CombinerStage;
+import com.senseidb.search.req.mapred.FacetColumn;
+import com.senseidb.search.req.mapred.FacetCountAccessor;
+import com.senseidb.search.req.mapred.FieldAccessor;
+import com.senseidb.search.req.mapred.SenseiMapReduce;
+import com.senseidb.util.JSONUtil.FastJSONObject;
+
+/**
+ * Distinct count based on the {@link HyperLogLog} sketch. Unlike the {@link DistinctCountMapReduce}, the intermediate results have the fixed
+ * size, so the merge and network costs don't depend on the column cardinality.
+ * All the doc buffers of a segment are added to the same sketch, so the segment returns the same sketch from every map call
+ * "mapReduce":{"function":"sensei.approxDistinctCount","parameters":{"column":"groupid", "precision":14}}
+ */
+public class ApproximateDistinctCountMapReduce implements SenseiMapReduce<HyperLogLog, Long> {
+  private static final long serialVersionUID = 1L;
+
+  private String column;
+  private int precision;
+
+  @Override
+  public void init(JSONObject params) {
+    column = params.optString("column", null);
+    if (column == null) {
+      throw new IllegalStateException("Column parameter shouldn't be null");
+    }
+    precision = params.optInt("precision", HyperLogLog.DEFAULT_PRECISION);
+  }
+
+  @Override
+  public HyperLogLog map(int[] docIds, int docIdCount, long[] uids, FieldAccessor accessor, FacetCountAccessor facetCountAccessor) {
+    HyperLogLog ret = (HyperLogLog) accessor.getSegmentState(this);
+    if (ret == null) {
+      ret = new HyperLogLog(precision);
+      accessor.setSegmentState(this, ret);
+    }
+    FacetColumn facetColumn = accessor.getColumn(column);
+    if (facetColumn != null) {
+      // every distinct value is hashed once
+      IntOpenHashSet ordinals = new IntOpenHashSet();
+      for (int i = 0; i < docIdCount; i++) {
+        ordinals.add(facetColumn.getOrdinal(docIds[i]));
+      }
+      IntIterator iterator = ordinals.iterator();
+      while (iterator.hasNext()) {
+        ret.offer(String.valueOf(facetColumn.getRawValue(iterator.nextInt())));
+      }
+      return ret;
+    }
+    for (int i = 0; i < docIdCount; i++) {
+      for (Object value : accessor.getArray(column, docIds[i])) {
+        ret.offer(String.valueOf(value));
+      }
+    }
+    return ret;
+  }
+
+  @Override
+  public List<HyperLogLog> combine(List<HyperLogLog> mapResults, CombinerStage combinerStage) {
+    if (mapResults.size() <= 1) {
+      return mapResults;
+    }
+    List<HyperLogLog> sketches = distinct(mapResults);
+    HyperLogLog ret = sketches.get(0);
+    for (int i = 1; i < sketches.size(); i++) {
+      ret.merge(sketches.get(i));
+    }
+    mapResults.clear();
+    mapResults.add(ret);
+    return mapResults;
+  }
+
+  /**
+   * The map results of a segment are the same sketch instance
+   */
+  static <T> List<T> distinct(List<T> mapResults) {
+    Set<T> seen = java.util.Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
+    List<T> ret = new ArrayList<T>(mapResults.size());
+    for (T mapResult : mapResults) {
+      if (seen.add(mapResult)) {
+        ret.add(mapResult);
+      }
+    }
+    return ret;
+  }
+
+  @Override
+  public Long reduce(List<HyperLogLog> combineResults) {
+    if (combineResults.isEmpty()) {
+      return 0L;
+    }
+    HyperLogLog ret = combineResults.get(0);
+    for (int i = 1; i < combineResults.size(); i++) {
+      ret.merge(combineResults.get(i));
+    }
+    return ret.cardinality();
+  }
+
+  @Override
+  public JSONObject render(Long reduceResult) {
+    try {
+      return new FastJSONObject().put("distinctCount", reduceResult);
+    } catch (JSONException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  @Override
+  public String[] getColumns() {
+    return new String[]{column};
+  }
+}
@@ -0,0 +1,133 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+package com.senseidb.search.req.mapred.functions;
+
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.senseidb.search.req.mapred.CombinerStage;
+import com.senseidb.search.req.mapred.FacetColumn;
+import com.senseidb.search.req.mapred.FacetCountAccessor;
+import com.senseidb.search.req.mapred.FieldAccessor;
+import com.senseidb.search.req.mapred.SenseiMapReduce;
+import com.senseidb.util.JSONUtil.FastJSONArray;
+import com.senseidb.util.JSONUtil.FastJSONObject;
+
+/**
+ * The most frequent values of the column, counted by the {@link CountMinSketch}. The sketch keeps more heavy hitter candidates
+ * than K, 4 * K by default, so that a value, that is not among the top K of any single segment, can still make it into the merged top K.
+ * All the doc buffers of a segment are added to the same sketch
+ * "mapReduce":{"function":"sensei.approxTopK","parameters":{"column":"color", "topK":10, "candidates":40, "width":2048, "depth":4}}
+ */
+public class ApproximateTopKMapReduce implements SenseiMapReduce<CountMinSketch, CountMinSketch> {
+  private static final long serialVersionUID = 1L;
+  private static final int DEFAULT_TOP_K = 10;
+
+  private String column;
+  private int topK;
+  private int candidates;
+  private int width;
+  private int depth;
+
+  @Override
+  public void init(JSONObject params) {
+    column = params.optString("column", null);
+    if (column == null) {
+      throw new IllegalStateException("Column parameter shouldn't be null");
+    }
+    topK = params.optInt("topK", DEFAULT_TOP_K);
+    candidates = Math.max(topK, params.optInt("candidates", topK * CountMinSketch.DEFAULT_CANDIDATE_FACTOR));
+    width = params.optInt("width", CountMinSketch.DEFAULT_WIDTH);
+    depth = params.optInt("depth", CountMinSketch.DEFAULT_DEPTH);
+  }
+
+  @Override
+  public CountMinSketch map(int[] docIds, int docIdCount, long[] uids, FieldAccessor accessor, FacetCountAccessor facetCountAccessor) {
+    CountMinSketch ret = (CountMinSketch) accessor.getSegmentState(this);
+    if (ret == null) {
+      ret = new CountMinSketch(width, depth, topK, candidates);
+      accessor.setSegmentState(this, ret);
+    }
+    FacetColumn facetColumn = accessor.getColumn(column);
+    if (facetColumn != null) {
+      // the counts are exact within the segment buffer, the sketch is only updated once per distinct value
+      Int2IntOpenHashMap counts = new Int2IntOpenHashMap();
+      for (int i = 0; i < docIdCount; i++) {
+        int ordinal = facetColumn.getOrdinal(docIds[i]);
+        counts.put(ordinal, counts.get(ordinal) + 1);
+      }
+      for (Int2IntMap.Entry entry : counts.int2IntEntrySet()) {
+        ret.add(String.valueOf(facetColumn.getRawValue(entry.getIntKey())), entry.getIntValue());
+      }
+      return ret;
+    }
+    for (int i = 0; i < docIdCount; i++) {
+      for (Object value : accessor.getArray(column, docIds[i])) {
+        ret.add(String.valueOf(value), 1);
+      }
+    }
+    return ret;
+  }
+
+  @Override
+  public List<CountMinSketch> combine(List<CountMinSketch> mapResults, CombinerStage combinerStage) {
+    if (mapResults.size() <= 1) {
+      return mapResults;
+    }
+    CountMinSketch ret = reduce(mapResults);
+    mapResults.clear();
+    mapResults.add(ret);
+    return mapResults;
+  }
+
+  @Override
+  public CountMinSketch reduce(List<CountMinSketch> combineResults) {
+    CountMinSketch ret = new CountMinSketch(width, depth, topK, candidates);
+    // the segment adds all its doc buffers to one sketch, that is returned from every map call
+    for (CountMinSketch sketch : ApproximateDistinctCountMapReduce.distinct(combineResults)) {
+      ret.merge(sketch);
+    }
+    return ret;
+  }
+
+  @Override
+  public JSONObject render(CountMinSketch reduceResult) {
+    try {
+      List<JSONObject> ret = new ArrayList<JSONObject>();
+      for (Map.Entry<String, Long> entry : reduceResult.getTopK()) {
+        ret.add(new FastJSONObject().put(entry.getKey(), entry.getValue()));
+      }
+      return new FastJSONObject().put("topK", new FastJSONArray(ret)).put("total", reduceResult.getTotal());
+    } catch (JSONException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  @Override
+  public String[] getColumns() {
+    return new String[]{column};
+  }
+}
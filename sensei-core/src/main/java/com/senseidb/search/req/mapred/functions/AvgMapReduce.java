@@ -25,6 +25,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import com.senseidb.search.req.mapred.CombinerStage;
+import com.senseidb.search.req.mapred.FacetColumn;
 import com.senseidb.search.req.mapred.FacetCountAccessor;
 import com.senseidb.search.req.mapred.FieldAccessor;
 import com.senseidb.search.req.mapred.SenseiMapReduce;
@@ -46,9 +47,16 @@ public class AvgMapReduce implements SenseiMapReduce<AvgResult, AvgResult> {
   @Override
   public AvgResult map(int[] docId, int docIdCount, long[] uids, FieldAccessor accessor, FacetCountAccessor facetCountAccessor) {
     double ret = 0;
-    for (int i = 0; i < docIdCount; i++) {
-      ret+= accessor.getDouble(column, docId[i]);
-    }  
+    FacetColumn facetColumn = accessor.getColumn(column);
+    if (facetColumn != null && facetColumn.isNumeric()) {
+      for (int i = 0; i < docIdCount; i++) {
+        ret += facetColumn.getDouble(docId[i]);
+      }
+    } else {
+      for (int i = 0; i < docIdCount; i++) {
+        ret+= accessor.getDouble(column, docId[i]);
+      }
+    }
     return new AvgResult(ret / docIdCount, docIdCount);
   }
 
@@ -28,7 +28,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+
 import com.senseidb.search.req.mapred.CombinerStage;
+import com.senseidb.search.req.mapred.FacetColumn;
 import com.senseidb.search.req.mapred.FacetCountAccessor;
 import com.senseidb.search.req.mapred.FieldAccessor;
 import com.senseidb.search.req.mapred.SenseiMapReduce;
@@ -57,6 +61,17 @@ public class CountGroupByMapReduce implements SenseiMapReduce<HashMap<String, In
     }
   }
   public HashMap<String, IntContainer> map(int[] docIds, int docIdCount, long[] uids, FieldAccessor accessor, FacetCountAccessor facetCountAccessor) {
+    FacetColumn[] facetColumns = getFacetColumns(accessor);
+    if (facetColumns != null) {
+      return mapOrdinals(docIds, docIdCount, facetColumns);
+    }
+    return mapValues(docIds, docIdCount, accessor);
+  }
+
+  /**
+   * Groups by the string keys built from the column values. Used for the multi valued columns, and to verify the ordinal path
+   */
+  HashMap<String, IntContainer> mapValues(int[] docIds, int docIdCount, FieldAccessor accessor) {
     HashMap<String, IntContainer> ret = new HashMap<String, IntContainer>();
     int duplicatedUids = 0;
     for (int i = 0; i < docIdCount; i++) {     
@@ -74,14 +89,77 @@ public class CountGroupByMapReduce implements SenseiMapReduce<HashMap<String, In
   }
  
 
+  /**
+   * @return the column views, if all the columns are single valued and the combination of their ordinals fits into a long
+   */
+  private FacetColumn[] getFacetColumns(FieldAccessor accessor) {
+    FacetColumn[] ret = new FacetColumn[columns.length];
+    long combinations = 1;
+    for (int i = 0; i < columns.length; i++) {
+      ret[i] = accessor.getColumn(columns[i]);
+      if (ret[i] == null) {
+        return null;
+      }
+      int cardinality = Math.max(ret[i].getCardinality(), 1);
+      if (combinations > Long.MAX_VALUE / cardinality) {
+        return null;
+      }
+      combinations *= cardinality;
+    }
+    return ret;
+  }
+
+  /**
+   * Counts the groups by the mixed radix combination of the column ordinals, and only converts the distinct groups to the string keys
+   */
+  private HashMap<String, IntContainer> mapOrdinals(int[] docIds, int docIdCount, FacetColumn[] facetColumns) {
+    int[] cardinalities = new int[facetColumns.length];
+    for (int j = 0; j < facetColumns.length; j++) {
+      cardinalities[j] = Math.max(facetColumns[j].getCardinality(), 1);
+    }
+    Long2IntOpenHashMap counts = new Long2IntOpenHashMap();
+    for (int i = 0; i < docIdCount; i++) {
+      int docId = docIds[i];
+      long key = 0;
+      for (int j = facetColumns.length - 1; j >= 0; j--) {
+        key = key * cardinalities[j] + facetColumns[j].getOrdinal(docId);
+      }
+      counts.put(key, counts.get(key) + 1);
+    }
+    HashMap<String, IntContainer> ret = new HashMap<String, IntContainer>(counts.size() * 2);
+    for (Long2IntMap.Entry entry : counts.long2IntEntrySet()) {
+      long key = entry.getLongKey();
+      StringBuilder stringKey = new StringBuilder();
+      for (int j = 0; j < facetColumns.length; j++) {
+        if (j > 0) {
+          stringKey.append(":");
+        }
+        stringKey.append(toKey(facetColumns[j].getRawValue((int) (key % cardinalities[j]))));
+        key /= cardinalities[j];
+      }
+      ret.put(stringKey.toString(), new IntContainer(entry.getIntValue()));
+    }
+    return ret;
+  }
+
   private String getKey(String[] columns, FieldAccessor fieldAccessor, int docId) {
-    StringBuilder key = new StringBuilder(fieldAccessor.get(columns[0], docId).toString());
+    StringBuilder key = new StringBuilder(toKey(fieldAccessor.get(columns[0], docId)));
     for (int i = 1; i < columns.length; i++) {
-      key.append(":").append(fieldAccessor.get(columns[i], docId).toString());
+      key.append(":").append(toKey(fieldAccessor.get(columns[i], docId)));
     }
     return key.toString();
   }
 
+  /**
+   * The multi valued columns are grouped by all their values, the missing value of the column is grouped under "null"
+   */
+  private static String toKey(Object value) {
+    if (value instanceof Object[]) {
+      return java.util.Arrays.toString((Object[]) value);
+    }
+    return String.valueOf(value);
+  }
+
   @Override
   public List<HashMap<String, IntContainer>> combine(List<HashMap<String, IntContainer>> mapResults, CombinerStage combinerStage) {
     
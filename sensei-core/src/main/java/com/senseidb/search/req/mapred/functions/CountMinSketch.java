@@ -0,0 +1,152 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+package com.senseidb.search.req.mapred.functions;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Mergeable frequency sketch, that also keeps the heavy hitter candidates. The counters never underestimate, and overestimate by at most
+ * 2 * total / width with the probability 1 - (1/2)^depth.<br>
+ * More candidates than K are kept, as a value might be just below the top K of every merged sketch, and still be among the top K of the
+ * merged counts. On merge every candidate of both sketches is re-estimated against the merged counters. The size is fixed by the width,
+ * the depth and the number of candidates
+ */
+public class CountMinSketch implements Serializable {
+  private static final long serialVersionUID = 1L;
+  public static final int DEFAULT_WIDTH = 2048;
+  public static final int DEFAULT_DEPTH = 4;
+  public static final int DEFAULT_CANDIDATE_FACTOR = 4;
+
+  private final int width;
+  private final int depth;
+  private final int topK;
+  private final int candidates;
+  private final long[][] counters;
+  private final HashMap<String, Long> heavyHitters = new HashMap<String, Long>();
+  private long total;
+
+  public CountMinSketch(int width, int depth, int topK) {
+    this(width, depth, topK, topK * DEFAULT_CANDIDATE_FACTOR);
+  }
+
+  /**
+   * @param candidates the number of the heavy hitter candidates to keep, at least topK
+   */
+  public CountMinSketch(int width, int depth, int topK, int candidates) {
+    if (width <= 0 || depth <= 0 || topK <= 0) {
+      throw new IllegalArgumentException("The width, depth and topK should be positive");
+    }
+    if (candidates < topK) {
+      throw new IllegalArgumentException("The number of candidates should be at least topK");
+    }
+    this.width = width;
+    this.depth = depth;
+    this.topK = topK;
+    this.candidates = candidates;
+    counters = new long[depth][width];
+  }
+
+  public void add(String value, long count) {
+    long hash = HyperLogLog.hash64(value);
+    long estimate = Long.MAX_VALUE;
+    for (int i = 0; i < depth; i++) {
+      int index = index(hash, i);
+      counters[i][index] += count;
+      estimate = Math.min(estimate, counters[i][index]);
+    }
+    total += count;
+    offerHeavyHitter(value, estimate);
+  }
+
+  public long estimate(String value) {
+    long hash = HyperLogLog.hash64(value);
+    long ret = Long.MAX_VALUE;
+    for (int i = 0; i < depth; i++) {
+      ret = Math.min(ret, counters[i][index(hash, i)]);
+    }
+    return ret;
+  }
+
+  public void merge(CountMinSketch other) {
+    if (other.width != width || other.depth != depth) {
+      throw new IllegalArgumentException("Can not merge the sketches with the different dimensions");
+    }
+    for (int i = 0; i < depth; i++) {
+      for (int j = 0; j < width; j++) {
+        counters[i][j] += other.counters[i][j];
+      }
+    }
+    total += other.total;
+    List<String> candidates = new ArrayList<String>(heavyHitters.keySet());
+    candidates.addAll(other.heavyHitters.keySet());
+    heavyHitters.clear();
+    for (String candidate : candidates) {
+      offerHeavyHitter(candidate, estimate(candidate));
+    }
+  }
+
+  /**
+   * @return the top K heavy hitters with their estimated counts, in the decreasing count order
+   */
+  public List<Map.Entry<String, Long>> getTopK() {
+    List<Map.Entry<String, Long>> ret = new ArrayList<Map.Entry<String, Long>>(heavyHitters.entrySet());
+    Collections.sort(ret, new Comparator<Map.Entry<String, Long>>() {
+      @Override
+      public int compare(Map.Entry<String, Long> o1, Map.Entry<String, Long> o2) {
+        return o2.getValue().compareTo(o1.getValue());
+      }
+    });
+    return ret.size() > topK ? new ArrayList<Map.Entry<String, Long>>(ret.subList(0, topK)) : ret;
+  }
+
+  public long getTotal() {
+    return total;
+  }
+
+  private void offerHeavyHitter(String value, long estimate) {
+    if (heavyHitters.containsKey(value) || heavyHitters.size() < candidates) {
+      heavyHitters.put(value, estimate);
+      return;
+    }
+    String minValue = null;
+    long min = Long.MAX_VALUE;
+    for (Map.Entry<String, Long> entry : heavyHitters.entrySet()) {
+      if (entry.getValue() < min) {
+        min = entry.getValue();
+        minValue = entry.getKey();
+      }
+    }
+    if (estimate > min) {
+      heavyHitters.remove(minValue);
+      heavyHitters.put(value, estimate);
+    }
+  }
+
+  private int index(long hash, int row) {
+    // the row hashes are derived from the two halves of the 64 bit hash
+    int combined = (int) hash + row * (int) (hash >>> 32);
+    return (combined & Integer.MAX_VALUE) % width;
+  }
+}
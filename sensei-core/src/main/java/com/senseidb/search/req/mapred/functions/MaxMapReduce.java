@@ -27,6 +27,7 @@ import org.json.JSONObject;
 import scala.actors.threadpool.Arrays;
 
 import com.senseidb.search.req.mapred.CombinerStage;
+import com.senseidb.search.req.mapred.FacetColumn;
 import com.senseidb.search.req.mapred.FacetCountAccessor;
 import com.senseidb.search.req.mapred.FieldAccessor;
 import com.senseidb.search.req.mapred.SenseiMapReduce;
@@ -42,8 +43,10 @@ public class MaxMapReduce implements SenseiMapReduce<MaxResult, MaxResult> {
     double max = Double.MIN_VALUE;
     double tmp = 0;
     long uid = 0l;
+    FacetColumn facetColumn = accessor.getColumn(column);
+    boolean numeric = facetColumn != null && facetColumn.isNumeric();
     for (int i =0; i < docIdCount; i++) {
-      tmp = accessor.getDouble(column, docIds[i]);
+      tmp = numeric ? facetColumn.getDouble(docIds[i]) : accessor.getDouble(column, docIds[i]);
       if (max < tmp) {       
         max = tmp;
         uid = uids[docIds[i]];
@@ -25,6 +25,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import com.senseidb.search.req.mapred.CombinerStage;
+import com.senseidb.search.req.mapred.FacetColumn;
 import com.senseidb.search.req.mapred.FacetCountAccessor;
 import com.senseidb.search.req.mapred.FieldAccessor;
 import com.senseidb.search.req.mapred.SenseiMapReduce;
@@ -40,8 +41,10 @@ public class MinMapReduce implements SenseiMapReduce<MinResult, MinResult> {
     double min = Double.MAX_VALUE;
     double tmp = 0;
     long uid = 0l;
+    FacetColumn facetColumn = accessor.getColumn(column);
+    boolean numeric = facetColumn != null && facetColumn.isNumeric();
     for (int i =0; i < docIdCount; i++) {
-      tmp = accessor.getDouble(column, docIds[i]);
+      tmp = numeric ? facetColumn.getDouble(docIds[i]) : accessor.getDouble(column, docIds[i]);
       if (min > tmp) {       
         min = tmp;
         uid = uids[docIds[i]];
@@ -0,0 +1,127 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+package com.senseidb.search.req.mapred.functions;
+
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.senseidb.search.req.mapred.CombinerStage;
+import com.senseidb.search.req.mapred.FacetColumn;
+import com.senseidb.search.req.mapred.FacetCountAccessor;
+import com.senseidb.search.req.mapred.FieldAccessor;
+import com.senseidb.search.req.mapred.SenseiMapReduce;
+import com.senseidb.util.JSONUtil.FastJSONObject;
+
+/**
+ * Percentiles of the numeric column based on the {@link TDigest} sketch
+ * "mapReduce":{"function":"sensei.percentiles","parameters":{"column":"price", "percentiles":[0.5, 0.9, 0.99], "compression":100}}
+ */
+public class PercentileMapReduce implements SenseiMapReduce<TDigest, TDigest> {
+  private static final long serialVersionUID = 1L;
+  private static final double[] DEFAULT_PERCENTILES = new double[] {0.5, 0.9, 0.99};
+
+  private String column;
+  private double[] percentiles;
+  private double compression;
+
+  @Override
+  public void init(JSONObject params) {
+    column = params.optString("column", null);
+    if (column == null) {
+      throw new IllegalStateException("Column parameter shouldn't be null");
+    }
+    compression = params.optDouble("compression", TDigest.DEFAULT_COMPRESSION);
+    JSONArray percentilesJson = params.optJSONArray("percentiles");
+    if (percentilesJson == null) {
+      percentiles = DEFAULT_PERCENTILES;
+    } else {
+      try {
+        percentiles = new double[percentilesJson.length()];
+        for (int i = 0; i < percentiles.length; i++) {
+          percentiles[i] = percentilesJson.getDouble(i);
+        }
+      } catch (JSONException ex) {
+        throw new RuntimeException(ex);
+      }
+    }
+  }
+
+  @Override
+  public TDigest map(int[] docIds, int docIdCount, long[] uids, FieldAccessor accessor, FacetCountAccessor facetCountAccessor) {
+    TDigest ret = (TDigest) accessor.getSegmentState(this);
+    if (ret == null) {
+      ret = new TDigest(compression);
+      accessor.setSegmentState(this, ret);
+    }
+    FacetColumn facetColumn = accessor.getColumn(column);
+    if (facetColumn != null && facetColumn.isNumeric()) {
+      for (int i = 0; i < docIdCount; i++) {
+        ret.add(facetColumn.getDouble(docIds[i]));
+      }
+    } else {
+      for (int i = 0; i < docIdCount; i++) {
+        ret.add(accessor.getDouble(column, docIds[i]));
+      }
+    }
+    ret.compress();
+    return ret;
+  }
+
+  @Override
+  public List<TDigest> combine(List<TDigest> mapResults, CombinerStage combinerStage) {
+    if (mapResults.size() <= 1) {
+      return mapResults;
+    }
+    TDigest ret = reduce(mapResults);
+    mapResults.clear();
+    mapResults.add(ret);
+    return mapResults;
+  }
+
+  @Override
+  public TDigest reduce(List<TDigest> combineResults) {
+    TDigest ret = new TDigest(compression);
+    for (TDigest digest : ApproximateDistinctCountMapReduce.distinct(combineResults)) {
+      ret.merge(digest);
+    }
+    ret.compress();
+    return ret;
+  }
+
+  @Override
+  public JSONObject render(TDigest reduceResult) {
+    try {
+      JSONObject values = new FastJSONObject();
+      for (double percentile : percentiles) {
+        values.put(String.valueOf(percentile), reduceResult.quantile(percentile));
+      }
+      return new FastJSONObject().put("percentiles", values).put("count", reduceResult.getTotalWeight());
+    } catch (JSONException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  @Override
+  public String[] getColumns() {
+    return new String[]{column};
+  }
+}
@@ -26,6 +26,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import com.senseidb.search.req.mapred.CombinerStage;
+import com.senseidb.search.req.mapred.FacetColumn;
 import com.senseidb.search.req.mapred.FacetCountAccessor;
 import com.senseidb.search.req.mapred.FieldAccessor;
 import com.senseidb.search.req.mapred.SenseiMapReduce;
@@ -47,6 +48,13 @@ public class SumMapReduce implements SenseiMapReduce<Double, Double> {
   @Override
   public Double map(int[] docIds, int docIdCount, long[] uids, FieldAccessor accessor, FacetCountAccessor facetCountAccessor) {
     double ret = 0;
+    FacetColumn facetColumn = accessor.getColumn(column);
+    if (facetColumn != null && facetColumn.isNumeric()) {
+      for (int i = 0; i < docIdCount; i++) {
+        ret += facetColumn.getDouble(docIds[i]);
+      }
+      return ret;
+    }
     for (int i = 0; i < docIdCount; i++) {
       ret += accessor.getDouble(column, docIds[i]);
     }
@@ -0,0 +1,217 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+package com.senseidb.search.req.mapred.functions;
+
+import java.io.Serializable;
+
+/**
+ * Mergeable quantile sketch. The values are kept as the weighted centroids, the centroids near the tails are kept small, so that the
+ * extreme percentiles stay accurate. The number of centroids is bounded by the compression, whatever the number of values is
+ *
+ */
+public class TDigest implements Serializable {
+  private static final long serialVersionUID = 1L;
+  public static final double DEFAULT_COMPRESSION = 100;
+
+  private final double compression;
+  private double[] means;
+  private long[] weights;
+  private int size;
+  private long totalWeight;
+  private double min = Double.POSITIVE_INFINITY;
+  private double max = Double.NEGATIVE_INFINITY;
+  // the values not merged into the centroids yet
+  private transient double[] bufferMeans;
+  private transient long[] bufferWeights;
+  private transient int bufferSize;
+
+  public TDigest(double compression) {
+    if (compression < 10) {
+      throw new IllegalArgumentException("The compression should be at least 10, but was " + compression);
+    }
+    this.compression = compression;
+    means = new double[0];
+    weights = new long[0];
+  }
+
+  public void add(double value) {
+    add(value, 1);
+  }
+
+  public void add(double value, long weight) {
+    if (bufferMeans == null) {
+      int capacity = (int) (compression * 5);
+      bufferMeans = new double[capacity];
+      bufferWeights = new long[capacity];
+    }
+    if (bufferSize == bufferMeans.length) {
+      compress();
+    }
+    bufferMeans[bufferSize] = value;
+    bufferWeights[bufferSize] = weight;
+    bufferSize++;
+    totalWeight += weight;
+    min = Math.min(min, value);
+    max = Math.max(max, value);
+  }
+
+  public void merge(TDigest other) {
+    other.compress();
+    for (int i = 0; i < other.size; i++) {
+      add(other.means[i], other.weights[i]);
+    }
+  }
+
+  /**
+   * Merges the buffered values into the centroids, it is also called before the serialization
+   */
+  public void compress() {
+    if (bufferSize == 0) {
+      return;
+    }
+    int count = size + bufferSize;
+    double[] allMeans = new double[count];
+    long[] allWeights = new long[count];
+    System.arraycopy(means, 0, allMeans, 0, size);
+    System.arraycopy(weights, 0, allWeights, 0, size);
+    System.arraycopy(bufferMeans, 0, allMeans, size, bufferSize);
+    System.arraycopy(bufferWeights, 0, allWeights, size, bufferSize);
+    bufferSize = 0;
+    sort(allMeans, allWeights, 0, count - 1);
+
+    double[] newMeans = new double[count];
+    long[] newWeights = new long[count];
+    int newSize = 0;
+    long weightSoFar = 0;
+    double qLimit = qLimit(0);
+    newMeans[0] = allMeans[0];
+    newWeights[0] = allWeights[0];
+    for (int i = 1; i < count; i++) {
+      long currentWeight = newWeights[newSize];
+      double q = (double) (weightSoFar + currentWeight + allWeights[i]) / totalWeight;
+      if (q <= qLimit) {
+        long mergedWeight = currentWeight + allWeights[i];
+        newMeans[newSize] += (allMeans[i] - newMeans[newSize]) * allWeights[i] / mergedWeight;
+        newWeights[newSize] = mergedWeight;
+      } else {
+        weightSoFar += currentWeight;
+        qLimit = qLimit((double) weightSoFar / totalWeight);
+        newSize++;
+        newMeans[newSize] = allMeans[i];
+        newWeights[newSize] = allWeights[i];
+      }
+    }
+    newSize++;
+    means = new double[newSize];
+    weights = new long[newSize];
+    System.arraycopy(newMeans, 0, means, 0, newSize);
+    System.arraycopy(newWeights, 0, weights, 0, newSize);
+    size = newSize;
+  }
+
+  /**
+   * The upper quantile bound of the centroid starting at q, the centroids are one unit of k(q) = compression / (2 * PI) * asin(2q - 1) wide
+   */
+  private double qLimit(double q) {
+    double k = Math.asin(2 * q - 1) + 2 * Math.PI / compression;
+    return (Math.sin(Math.min(k, Math.PI / 2)) + 1) / 2;
+  }
+
+  public double quantile(double q) {
+    if (q < 0 || q > 1) {
+      throw new IllegalArgumentException("The quantile should be between 0 and 1, but was " + q);
+    }
+    compress();
+    if (size == 0) {
+      return Double.NaN;
+    }
+    if (size == 1) {
+      return means[0];
+    }
+    double target = q * totalWeight;
+    double cumulative = 0;
+    double previousCenter = 0;
+    double previousMean = min;
+    for (int i = 0; i < size; i++) {
+      double center = cumulative + weights[i] / 2.0;
+      if (target <= center) {
+        if (center == previousCenter) {
+          return means[i];
+        }
+        return previousMean + (means[i] - previousMean) * (target - previousCenter) / (center - previousCenter);
+      }
+      cumulative += weights[i];
+      previousCenter = center;
+      previousMean = means[i];
+    }
+    double lastCenter = previousCenter;
+    if (totalWeight == lastCenter) {
+      return max;
+    }
+    return previousMean + (max - previousMean) * (target - lastCenter) / (totalWeight - lastCenter);
+  }
+
+  public long getTotalWeight() {
+    return totalWeight;
+  }
+
+  public int getCentroidCount() {
+    compress();
+    return size;
+  }
+
+  private void writeObject(java.io.ObjectOutputStream out) throws java.io.IOException {
+    compress();
+    out.defaultWriteObject();
+  }
+
+  private static void sort(double[] keys, long[] values, int from, int to) {
+    while (from < to) {
+      double pivot = keys[(from + to) >>> 1];
+      int i = from;
+      int j = to;
+      while (i <= j) {
+        while (keys[i] < pivot) {
+          i++;
+        }
+        while (keys[j] > pivot) {
+          j--;
+        }
+        if (i <= j) {
+          double key = keys[i];
+          keys[i] = keys[j];
+          keys[j] = key;
+          long value = values[i];
+          values[i] = values[j];
+          values[j] = value;
+          i++;
+          j--;
+        }
+      }
+      // recurse into the smaller part to bound the stack depth
+      if (j - from < to - i) {
+        sort(keys, values, from, j);
+        from = i;
+      } else {
+        sort(keys, values, i, to);
+        to = j;
+      }
+    }
+  }
+}
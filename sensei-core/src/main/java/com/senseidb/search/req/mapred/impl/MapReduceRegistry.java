@@ -22,10 +22,13 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 import com.senseidb.search.req.mapred.SenseiMapReduce;
+import com.senseidb.search.req.mapred.functions.ApproximateDistinctCountMapReduce;
+import com.senseidb.search.req.mapred.functions.ApproximateTopKMapReduce;
 import com.senseidb.search.req.mapred.functions.AvgMapReduce;
 import com.senseidb.search.req.mapred.functions.DistinctCountMapReduce;
 import com.senseidb.search.req.mapred.functions.MaxMapReduce;
 import com.senseidb.search.req.mapred.functions.MinMapReduce;
+import com.senseidb.search.req.mapred.functions.PercentileMapReduce;
 import com.senseidb.search.req.mapred.functions.SumMapReduce;
 
 /**
@@ -44,6 +47,9 @@ public class MapReduceRegistry {
     keyToFunction.put("sensei.min", MinMapReduce.class);
     keyToFunction.put("sensei.avg", AvgMapReduce.class);
     keyToFunction.put("sensei.sum", SumMapReduce.class);
+    keyToFunction.put("sensei.approxDistinctCount", ApproximateDistinctCountMapReduce.class);
+    keyToFunction.put("sensei.percentiles", PercentileMapReduce.class);
+    keyToFunction.put("sensei.approxTopK", ApproximateTopKMapReduce.class);
   }
   
 
@@ -18,8 +18,14 @@
  */
 package com.senseidb.search.req.mapred.impl;
 
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 import proj.zoie.api.ZoieSegmentReader;
 import proj.zoie.api.impl.DocIDMapperImpl;
@@ -34,10 +40,13 @@ import com.senseidb.search.req.mapred.CombinerStage;
 import com.senseidb.search.req.mapred.FacetCountAccessor;
 import com.senseidb.search.req.mapred.FieldAccessor;
 import com.senseidb.search.req.mapred.SenseiMapReduce;
+import com.senseidb.svc.impl.SenseiSearchScheduler;
 
 
 /**
- * Inctance of this class is the part of the senseiReuqest, and it keep the intermediate step of the map reduce job
+ * Inctance of this class is the part of the senseiReuqest, and it keep the intermediate step of the map reduce job.
+ * If the scheduler is given, every segment is mapped by a separate task on the search thread pool, while the collecting thread moves on
+ * to the next segment, and the partition level combine is done as a parallel tree reduction
  * @author vzhabiuk
  *
  */
@@ -48,12 +57,28 @@ public class SenseiMapFunctionWrapper implements BoboMapFunctionWrapper {
   public static final int BUFFER_SIZE = 2048;
   private int[] partialDocIds;;
   private int docIdIndex = 0;
+  private BoboIndexReader lastReader;
+  private FieldAccessor fieldAccessor;
+  private final SenseiSearchScheduler scheduler;
+  private final long deadline;
+  private final List<FutureTask<List>> segmentFutures = new ArrayList<FutureTask<List>>();
+  private final List<FutureTask<List>> rejectedTasks = new ArrayList<FutureTask<List>>();
+
   public SenseiMapFunctionWrapper(SenseiMapReduce mapReduceStrategy, Set<SenseiFacetInfo> facetInfos) {
+    this(mapReduceStrategy, facetInfos, null);
+  }
+
+  /**
+   * @param scheduler runs the per segment map tasks, null maps the segments on the collecting thread
+   */
+  public SenseiMapFunctionWrapper(SenseiMapReduce mapReduceStrategy, Set<SenseiFacetInfo> facetInfos, SenseiSearchScheduler scheduler) {
     super();
     this.mapReduceStrategy = mapReduceStrategy;   
     partialDocIds = new int[BUFFER_SIZE];
     result = new MapReduceResult();
     this.facetInfos = facetInfos;
+    this.scheduler = scheduler;
+    deadline = scheduler != null ? System.currentTimeMillis() + scheduler.getTimeout() : 0;
   }
 
   /* (non-Javadoc)
@@ -63,7 +88,12 @@ public class SenseiMapFunctionWrapper implements BoboMapFunctionWrapper {
   public void mapFullIndexReader(BoboIndexReader reader, FacetCountCollector[] facetCountCollectors) {
     ZoieSegmentReader<?> zoieReader = (ZoieSegmentReader<?>)(reader.getInnerReader());
     DocIDMapperImpl docIDMapper = (DocIDMapperImpl) zoieReader.getDocIDMaper();
-    result.getMapResults().add(mapReduceStrategy.map(docIDMapper.getDocArray(), docIDMapper.getDocArray().length, zoieReader.getUIDArray(), new FieldAccessor(facetInfos, reader, docIDMapper), new FacetCountAccessor(facetCountCollectors)));    
+    if (scheduler != null) {
+      submitSegment(reader, docIDMapper.getDocArray(), docIDMapper.getDocArray().length, facetCountCollectors);
+      return;
+    }
+    result.getMapResults().add(mapReduceStrategy.map(docIDMapper.getDocArray(), docIDMapper.getDocArray().length, zoieReader.getUIDArray(), getFieldAccessor(reader), new FacetCountAccessor(facetCountCollectors)));    
+    resetFieldAccessor();
   }
 
   /* (non-Javadoc)
@@ -71,6 +101,16 @@ public class SenseiMapFunctionWrapper implements BoboMapFunctionWrapper {
    */
   @Override
   public final void mapSingleDocument(int docId, BoboIndexReader reader) {
+    if (scheduler != null) {
+      // the whole segment is buffered and mapped by a single task
+      if (docIdIndex == partialDocIds.length) {
+        int[] newDocIds = new int[partialDocIds.length * 2];
+        System.arraycopy(partialDocIds, 0, newDocIds, 0, docIdIndex);
+        partialDocIds = newDocIds;
+      }
+      partialDocIds[docIdIndex++] = docId;
+      return;
+    }
     if (docIdIndex < BUFFER_SIZE - 1) {
       partialDocIds[docIdIndex++] = docId;
       return;
@@ -78,8 +118,7 @@ public class SenseiMapFunctionWrapper implements BoboMapFunctionWrapper {
     if (docIdIndex == BUFFER_SIZE - 1) {
       partialDocIds[docIdIndex++] = docId;
       ZoieSegmentReader<?> zoieReader = (ZoieSegmentReader<?>)(reader.getInnerReader());
-      DocIDMapperImpl docIDMapper = (DocIDMapperImpl) zoieReader.getDocIDMaper();
-      result.getMapResults().add(mapReduceStrategy.map(partialDocIds, BUFFER_SIZE, zoieReader.getUIDArray(), new FieldAccessor(facetInfos, reader, docIDMapper),  FacetCountAccessor.EMPTY));
+      result.getMapResults().add(mapReduceStrategy.map(partialDocIds, BUFFER_SIZE, zoieReader.getUIDArray(), getFieldAccessor(reader),  FacetCountAccessor.EMPTY));
       docIdIndex = 0;
     }
   }
@@ -89,13 +128,67 @@ public class SenseiMapFunctionWrapper implements BoboMapFunctionWrapper {
    */
   @Override
   public void finalizeSegment(BoboIndexReader reader, FacetCountCollector[] facetCountCollectors) {
-    
+    if (scheduler != null) {
+      if (docIdIndex > 0) {
+        // the task keeps the buffer, the next segment gets a new one
+        submitSegment(reader, partialDocIds, docIdIndex, facetCountCollectors);
+        partialDocIds = new int[BUFFER_SIZE];
+      }
+      docIdIndex = 0;
+      return;
+    }
     if (docIdIndex > 0) {
       ZoieSegmentReader<?> zoieReader = (ZoieSegmentReader<?>)(reader.getInnerReader());
-      DocIDMapperImpl docIDMapper = (DocIDMapperImpl) zoieReader.getDocIDMaper();
-      result.getMapResults().add(mapReduceStrategy.map(partialDocIds, docIdIndex, zoieReader.getUIDArray(), new FieldAccessor(facetInfos, reader, docIDMapper), new FacetCountAccessor(facetCountCollectors)));    
+      result.getMapResults().add(mapReduceStrategy.map(partialDocIds, docIdIndex, zoieReader.getUIDArray(), getFieldAccessor(reader), new FacetCountAccessor(facetCountCollectors)));    
     }
     docIdIndex = 0;
+    resetFieldAccessor();
+  }
+
+  /**
+   * The accessor and the column views it resolves are shared by all the buffers of the segment
+   */
+  private FieldAccessor getFieldAccessor(BoboIndexReader reader) {
+    if (reader != lastReader) {
+      ZoieSegmentReader<?> zoieReader = (ZoieSegmentReader<?>)(reader.getInnerReader());
+      fieldAccessor = new FieldAccessor(facetInfos, reader, zoieReader.getDocIDMaper());
+      lastReader = reader;
+    }
+    return fieldAccessor;
+  }
+
+  private void resetFieldAccessor() {
+    lastReader = null;
+    fieldAccessor = null;
+  }
+
+  private void submitSegment(final BoboIndexReader reader, final int[] docIds, final int docIdCount, final FacetCountCollector[] facetCountCollectors) {
+    Callable<List> task = new Callable<List>() {
+      @Override
+      public List call() throws Exception {
+        ZoieSegmentReader<?> zoieReader = (ZoieSegmentReader<?>)(reader.getInnerReader());
+        FieldAccessor accessor = new FieldAccessor(facetInfos, reader, zoieReader.getDocIDMaper());
+        long[] uids = zoieReader.getUIDArray();
+        List mapResults = new ArrayList();
+        int[] chunk = new int[Math.min(BUFFER_SIZE, docIdCount)];
+        for (int start = 0; start < docIdCount; start += BUFFER_SIZE) {
+          int count = Math.min(BUFFER_SIZE, docIdCount - start);
+          System.arraycopy(docIds, start, chunk, 0, count);
+          // like in the sequential mode, the facet counts are passed along with the last chunk of the segment
+          FacetCountAccessor facetCountAccessor = start + count == docIdCount ? new FacetCountAccessor(facetCountCollectors) : FacetCountAccessor.EMPTY;
+          mapResults.add(mapReduceStrategy.map(chunk, count, uids, accessor, facetCountAccessor));
+        }
+        return mapReduceStrategy.combine(mapResults, CombinerStage.partitionLevel);
+      }
+    };
+    try {
+      segmentFutures.add(scheduler.submit(task));
+    } catch (RejectedExecutionException e) {
+      // the pool is saturated, the segment is mapped on the collecting thread in the finalizePartition
+      FutureTask<List> rejected = new FutureTask<List>(task);
+      segmentFutures.add(rejected);
+      rejectedTasks.add(rejected);
+    }
   }
 
   /* (non-Javadoc)
@@ -103,9 +196,96 @@ public class SenseiMapFunctionWrapper implements BoboMapFunctionWrapper {
    */
   @Override
   public void finalizePartition() {
+    if (scheduler != null) {
+      result.setMapResults(new ArrayList(treeCombine(awaitSegments())));
+      return;
+    }
     result.setMapResults(new ArrayList(mapReduceStrategy.combine(result.getMapResults(), CombinerStage.partitionLevel))) ;    
   }
 
+  private List<List> awaitSegments() {
+    List<List> ret = new ArrayList<List>(segmentFutures.size() + rejectedTasks.size());
+    try {
+      for (FutureTask<List> task : rejectedTasks) {
+        task.run();
+      }
+      // the results keep the order of the segments, wherever they were mapped
+      for (FutureTask<List> future : segmentFutures) {
+        ret.add(scheduler.await(future, deadline));
+      }
+      return ret;
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    } finally {
+      for (FutureTask<List> future : segmentFutures) {
+        future.cancel(true);
+      }
+      segmentFutures.clear();
+      rejectedTasks.clear();
+    }
+  }
+
+  /**
+   * Combines the per segment results pairwise, every level of the tree is combined in parallel and keeps the order of the segments
+   */
+  private List treeCombine(List<List> segmentResults) {
+    if (segmentResults.isEmpty()) {
+      return new ArrayList();
+    }
+    while (segmentResults.size() > 1) {
+      List<FutureTask<List>> futures = new ArrayList<FutureTask<List>>();
+      List<List> nextLevel = new ArrayList<List>((segmentResults.size() + 1) / 2);
+      try {
+        for (int i = 0; i + 1 < segmentResults.size(); i += 2) {
+          final List pair = new ArrayList(segmentResults.get(i));
+          pair.addAll(segmentResults.get(i + 1));
+          Callable<List> task = new Callable<List>() {
+            @Override
+            public List call() throws Exception {
+              return mapReduceStrategy.combine(pair, CombinerStage.partitionLevel);
+            }
+          };
+          FutureTask<List> future = null;
+          if (i + 3 < segmentResults.size()) {
+            try {
+              future = scheduler.submit(task);
+            } catch (RejectedExecutionException e) {
+              // combined below
+            }
+          }
+          if (future == null) {
+            // the last pair, and the pairs the saturated pool rejected, are combined on this thread
+            future = new FutureTask<List>(task);
+            future.run();
+          }
+          futures.add(future);
+        }
+        for (FutureTask<List> future : futures) {
+          nextLevel.add(scheduler.await(future, deadline));
+        }
+        if (segmentResults.size() % 2 == 1) {
+          nextLevel.add(segmentResults.get(segmentResults.size() - 1));
+        }
+      } catch (ExecutionException e) {
+        throw new RuntimeException(e.getCause());
+      } catch (RuntimeException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      } finally {
+        for (FutureTask<List> future : futures) {
+          future.cancel(true);
+        }
+      }
+      segmentResults = nextLevel;
+    }
+    return segmentResults.get(0);
+  }
+
   @Override
   public MapReduceResult getResult() {
     return result;
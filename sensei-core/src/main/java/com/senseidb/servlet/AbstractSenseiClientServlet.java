@@ -26,8 +26,11 @@ import java.io.UnsupportedEncodingException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -59,6 +62,7 @@ import com.senseidb.search.node.SenseiSysBroker;
 import com.senseidb.search.node.broker.BrokerConfig;
 import com.senseidb.search.node.broker.LayeredBroker;
 import com.senseidb.search.req.ErrorType;
+import com.senseidb.servlet.CompiledRequestCache.CompiledRequest;
 import com.senseidb.search.req.SenseiError;
 import com.senseidb.search.req.SenseiHit;
 import com.senseidb.search.req.SenseiJSONQuery;
@@ -67,6 +71,7 @@ import com.senseidb.search.req.SenseiResult;
 import com.senseidb.search.req.SenseiSystemInfo;
 import com.senseidb.svc.api.SenseiException;
 import com.senseidb.svc.impl.HttpRestSenseiServiceImpl;
+import com.senseidb.util.JSONStreamWriter;
 import com.senseidb.util.JsonTemplateProcessor;
 import com.senseidb.util.RequestConverter2;
 import com.senseidb.util.JSONUtil.FastJSONArray;
@@ -97,6 +102,7 @@ public abstract class AbstractSenseiClientServlet extends ZookeeperConfigurableS
   private SenseiSysBroker _senseiSysBroker = null;
   private Map<String, String[]> _facetInfoMap = new HashMap<String, String[]>();
   private BQLCompiler _compiler = null;
+  private CompiledRequestCache _compiledRequestCache = null;
   private LayeredBroker federatedBroker;
 
   private JsonTemplateProcessor jsonTemplateProcessor = new JsonTemplateProcessor();
@@ -117,6 +123,11 @@ public abstract class AbstractSenseiClientServlet extends ZookeeperConfigurableS
     _senseiSysBroker = brokerConfig.buildSysSenseiBroker(versionComparator);
     _networkClient = brokerConfig.getNetworkClient();
     _clusterClient = brokerConfig.getClusterClient();
+    int bqlCacheSize = senseiConf.getInt(SenseiConfParams.SERVER_BROKER_BQL_CACHE_SIZE, CompiledRequestCache.DEFAULT_MAX_ENTRIES);
+    if (bqlCacheSize > 0)
+    {
+      _compiledRequestCache = new CompiledRequestCache(bqlCacheSize);
+    }
     federatedBroker = pluginRegistry.getBeanByFullPrefix(SenseiConfParams.SENSEI_FEDERATED_BROKER, LayeredBroker.class);
     if (federatedBroker != null) { 
       federatedBroker.warmUp();
@@ -199,8 +210,17 @@ public abstract class AbstractSenseiClientServlet extends ZookeeperConfigurableS
 
           if (sysInfo != null && sysInfo.getFacetInfos() != null)
           {
-            _facetInfoMap = extractFacetInfo(sysInfo);
-            _compiler.setFacetInfoMap(_facetInfoMap);
+            Map<String, String[]> facetInfoMap = extractFacetInfo(sysInfo);
+            // the compiled statements are kept as long as the facet info is the same
+            if (!facetInfoEquals(_facetInfoMap, facetInfoMap))
+            {
+              _facetInfoMap = facetInfoMap;
+              _compiler.setFacetInfoMap(_facetInfoMap);
+              if (_compiledRequestCache != null)
+              {
+                _compiledRequestCache.clear();
+              }
+            }
           }
         }
         catch (Exception e)
@@ -226,6 +246,22 @@ public abstract class AbstractSenseiClientServlet extends ZookeeperConfigurableS
     return facetInfoMap;
   }
 
+  private static boolean facetInfoEquals(Map<String, String[]> facetInfoMap1, Map<String, String[]> facetInfoMap2)
+  {
+    if (facetInfoMap1.size() != facetInfoMap2.size())
+    {
+      return false;
+    }
+    for (Map.Entry<String, String[]> entry : facetInfoMap1.entrySet())
+    {
+      if (!Arrays.equals(entry.getValue(), facetInfoMap2.get(entry.getKey())))
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
   protected abstract SenseiRequest buildSenseiRequest(HttpServletRequest req) throws Exception;
 
   public static Map<String, String> getParameters(String query)
@@ -250,6 +286,7 @@ public abstract class AbstractSenseiClientServlet extends ZookeeperConfigurableS
     public JSONObject compiledJson;
     public String content;
     public SenseiRequest senseiReq;
+    public CompiledRequest compiledRequest;
   }
   private void handleSenseiRequest(HttpServletRequest req, HttpServletResponse resp, Broker<SenseiRequest, SenseiResult> broker)
       throws ServletException, IOException {
@@ -290,11 +327,18 @@ public abstract class AbstractSenseiClientServlet extends ZookeeperConfigurableS
           requestContext.compiledJson = requestContext.jsonObj;
         }
 
-        if (requestContext.templatesJson != null)
+        if (requestContext.compiledRequest != null)
         {
-          requestContext.compiledJson.put(JsonTemplateProcessor.TEMPLATE_MAPPING_PARAM, requestContext.templatesJson);
+          requestContext.senseiReq = requestContext.compiledRequest.newRequest(requestContext.templatesJson);
+        }
+        else if (requestContext.senseiReq == null)
+        {
+          if (requestContext.templatesJson != null)
+          {
+            requestContext.compiledJson.put(JsonTemplateProcessor.TEMPLATE_MAPPING_PARAM, requestContext.templatesJson);
+          }
+          requestContext.senseiReq = SenseiRequest.fromJSON(requestContext.compiledJson, _facetInfoMap);
         }
-        requestContext.senseiReq = SenseiRequest.fromJSON(requestContext.compiledJson, _facetInfoMap);
       }
       SenseiResult res = broker.browse(requestContext.senseiReq);
       numHits = res.getNumHits();
@@ -391,12 +435,30 @@ public abstract class AbstractSenseiClientServlet extends ZookeeperConfigurableS
 
   public boolean handleBqlRequest(HttpServletRequest req, HttpServletResponse resp, RequestContext requestContext) throws Exception,
       JSONException {
+    if (requestContext.jsonObj.length() == 1)
+      requestContext.query = "bql=" + requestContext.bqlStmt;
+    else
+      requestContext.query = "json=" + requestContext.content;
+
+    // Handle extra BQL filter if it exists
+    String extraFilter = requestContext.jsonObj.optString(BQL_EXTRA_FILTER);
+    Map<String, String[]> facetInfoMap = _facetInfoMap;
+    if (_compiledRequestCache != null)
+    {
+      CompiledRequest compiledRequest = _compiledRequestCache.get(requestContext.bqlStmt, extraFilter, facetInfoMap);
+      if (compiledRequest != null)
+      {
+        if (!checkVariables(req, resp, requestContext, compiledRequest.getVariables()))
+        {
+          return false;
+        }
+        requestContext.compiledRequest = compiledRequest;
+        return true;
+      }
+    }
+
     try
     {
-      if (requestContext.jsonObj.length() == 1)
-        requestContext.query = "bql=" + requestContext.bqlStmt;
-      else
-        requestContext.query = "json=" + requestContext.content;
       // Disable variables replacing before bql compling, since that data representation in json and bql is quite different for now.
       //requestContext.bqlStmt = (String) jsonTemplateProcessor.process(requestContext.bqlStmt, jsonTemplateProcessor.getTemplates(requestContext.jsonObj));
       requestContext.compiledJson = _compiler.compile(requestContext.bqlStmt);
@@ -413,8 +475,6 @@ public abstract class AbstractSenseiClientServlet extends ZookeeperConfigurableS
       return false;
     }
 
-    // Handle extra BQL filter if it exists
-    String extraFilter = requestContext.jsonObj.optString(BQL_EXTRA_FILTER);
     JSONObject predObj = null;
     if (extraFilter.length() > 0)
     {
@@ -471,24 +531,40 @@ public abstract class AbstractSenseiClientServlet extends ZookeeperConfigurableS
       }
     }
 
+    List<String> variables = new ArrayList<String>();
     JSONObject metaData = requestContext.compiledJson.optJSONObject("meta");
     if (metaData != null)
     {
-      JSONArray variables = metaData.optJSONArray("variables");
-      if (variables != null)
+      JSONArray variablesJson = metaData.optJSONArray("variables");
+      if (variablesJson != null)
       {
-        for (int i = 0; i < variables.length(); ++i)
+        for (int i = 0; i < variablesJson.length(); ++i)
         {
-          String var = variables.getString(i);
-          if (requestContext.templatesJson == null ||
-              requestContext.templatesJson.opt(var) == null)
-          {
-            writeEmptyResponse(req, resp, new SenseiError("[line:0, col:0] Variable " + var + " is not found.", ErrorType.BQLParsingError));
-            return false;
-          }
+          variables.add(variablesJson.getString(i));
         }
       }
     }
+
+    if (_compiledRequestCache != null)
+    {
+      requestContext.compiledRequest = new CompiledRequest(requestContext.compiledJson, variables, facetInfoMap);
+      _compiledRequestCache.put(requestContext.bqlStmt, extraFilter, requestContext.compiledRequest);
+    }
+    return checkVariables(req, resp, requestContext, variables);
+  }
+
+  private boolean checkVariables(HttpServletRequest req, HttpServletResponse resp, RequestContext requestContext, List<String> variables)
+      throws Exception
+  {
+    for (String var : variables)
+    {
+      if (requestContext.templatesJson == null ||
+          requestContext.templatesJson.opt(var) == null)
+      {
+        writeEmptyResponse(req, resp, new SenseiError("[line:0, col:0] Variable " + var + " is not found.", ErrorType.BQLParsingError));
+        return false;
+      }
+    }
     return true;
   }
 
@@ -549,16 +625,25 @@ public abstract class AbstractSenseiClientServlet extends ZookeeperConfigurableS
         totalDocs = res.getTotalDocs();
       }
 
-      JSONObject ret = new FastJSONObject();
-      JSONObject obj = null;
+      OutputStream ostream = resp.getOutputStream();
+      JSONStreamWriter writer = new JSONStreamWriter(ostream);
+      writer.startObject();
       if (res != null && res.getSenseiHits() != null)
       {
         for (SenseiHit hit : res.getSenseiHits())
         {
+          String srcData = hit.getSrcData();
+          if (JSONStreamWriter.isJSONObject(srcData))
+          {
+            // the well formed stored source is spliced in as it is, without parsing and serializing it again
+            writer.name(String.valueOf(hit.getUID())).rawValue(srcData);
+            continue;
+          }
           try
           {
-            obj = new FastJSONObject(hit.getSrcData());
-            ret.put(String.valueOf(hit.getUID()), obj);
+            // the lenient sources are normalized by the parser, as before
+            JSONObject obj = new FastJSONObject(srcData);
+            writer.name(String.valueOf(hit.getUID())).value(obj);
           }
           catch(Exception ex)
           {
@@ -566,9 +651,8 @@ public abstract class AbstractSenseiClientServlet extends ZookeeperConfigurableS
           }
         }
       }
-      OutputStream ostream = resp.getOutputStream();
-      ostream.write(ret.toString().getBytes("UTF-8"));
-      ostream.flush();
+      writer.endObject();
+      writer.flush();
     }
     catch (Exception e)
     {
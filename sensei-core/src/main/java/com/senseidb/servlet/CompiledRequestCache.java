@@ -0,0 +1,203 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+package com.senseidb.servlet;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.senseidb.metrics.MetricFactory;
+import com.senseidb.metrics.MetricsConstants;
+import com.senseidb.search.req.SenseiRequest;
+import com.senseidb.util.JSONUtil.FastJSONObject;
+import com.senseidb.util.JsonTemplateProcessor;
+import com.senseidb.util.RequestConverter2;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+
+/**
+ * LRU cache of compiled BQL statements, used by the client servlet, so that the repeated statements
+ * are not lexed and parsed again, and their compiled JSON is not serialized and parsed again.
+ * <p>
+ * Statements are keyed by their text and the extra filter. The variables of a statement stay
+ * placeholders in the compiled template, and every request binds its templates on a copy of it.
+ * A compiled statement is only valid for the facet info it was compiled with, entries compiled with
+ * another facet info are never returned, and the servlet clears the cache when the facet info
+ * changes. The hits, misses, evictions and the size are reported as metrics.
+ */
+public class CompiledRequestCache
+{
+  public static final int DEFAULT_MAX_ENTRIES = 500;
+
+  private final int _maxEntries;
+  private final LinkedHashMap<String, CompiledRequest> _entries;
+
+  private final Meter _hitMeter;
+  private final Meter _missMeter;
+  private final Meter _evictionMeter;
+
+  public CompiledRequestCache(int maxEntries)
+  {
+    if (maxEntries <= 0)
+    {
+      throw new IllegalArgumentException("max entries must be > 0: " + maxEntries);
+    }
+    _maxEntries = maxEntries;
+    _entries = new LinkedHashMap<String, CompiledRequest>(16, 0.75f, true);
+
+    _hitMeter = MetricFactory.newMeter(new MetricName(MetricsConstants.Domain, "meter", "bql-cache-hit", "cache"),
+                                       "requests",
+                                       TimeUnit.SECONDS);
+    _missMeter = MetricFactory.newMeter(new MetricName(MetricsConstants.Domain, "meter", "bql-cache-miss", "cache"),
+                                        "requests",
+                                        TimeUnit.SECONDS);
+    _evictionMeter = MetricFactory.newMeter(new MetricName(MetricsConstants.Domain, "meter", "bql-cache-eviction", "cache"),
+                                            "entries",
+                                            TimeUnit.SECONDS);
+    MetricFactory.newGauge(new MetricName(MetricsConstants.Domain, "gauge", "bql-cache-size", "cache"),
+                           new Gauge<Integer>()
+                           {
+                             @Override
+                             public Integer value()
+                             {
+                               return size();
+                             }
+                           });
+  }
+
+  private static String getKey(String bql, String extraFilter)
+  {
+    return extraFilter == null || extraFilter.length() == 0 ? bql : bql + '\u0000' + extraFilter;
+  }
+
+  /**
+   * Returns the compiled statement, or null if it is not cached for the given facet info
+   */
+  public synchronized CompiledRequest get(String bql, String extraFilter, Map<String, String[]> facetInfoMap)
+  {
+    CompiledRequest compiled = _entries.get(getKey(bql, extraFilter));
+    if (compiled == null || compiled._facetInfoMap != facetInfoMap)
+    {
+      _missMeter.mark();
+      return null;
+    }
+    _hitMeter.mark();
+    return compiled;
+  }
+
+  public synchronized void put(String bql, String extraFilter, CompiledRequest compiled)
+  {
+    _entries.put(getKey(bql, extraFilter), compiled);
+    while (_entries.size() > _maxEntries)
+    {
+      _entries.remove(_entries.keySet().iterator().next());
+      _evictionMeter.mark();
+    }
+  }
+
+  public synchronized void clear()
+  {
+    _entries.clear();
+  }
+
+  public synchronized int size()
+  {
+    return _entries.size();
+  }
+
+  /**
+   * A compiled statement, with the extra filter merged in and the variables not bound yet
+   */
+  public static class CompiledRequest
+  {
+    private static final JsonTemplateProcessor TEMPLATE_PROCESSOR = new JsonTemplateProcessor();
+
+    private final JSONObject _template;
+    private final List<String> _variables;
+    private final boolean _routed;
+    private final Map<String, String[]> _facetInfoMap;
+    private volatile SenseiRequest _request;
+
+    /**
+     * @param compiledJson the compiled statement, it is copied and may be modified by the caller
+     * afterwards
+     */
+    public CompiledRequest(JSONObject compiledJson, List<String> variables, Map<String, String[]> facetInfoMap)
+        throws JSONException
+    {
+      _template = new FastJSONObject(compiledJson.toString());
+      _variables = variables == null ? Collections.<String>emptyList() : variables;
+      _routed = compiledJson.optString(RequestConverter2.ROUTEPARAM, null) != null;
+      _facetInfoMap = facetInfoMap;
+    }
+
+    public List<String> getVariables()
+    {
+      return _variables;
+    }
+
+    /**
+     * Returns a new request of the statement. The variables are bound from the templates on a copy
+     * of the compiled template, that shares the parts without variables with it, and the copy is
+     * converted into the request. The compiled template itself is never modified.
+     * <p>
+     * The first request of a statement without templates is kept, and the later ones are copied
+     * from it instead of being converted again. Requests with a map reduce function are never
+     * kept, the function instance can't be shared.
+     *
+     * @param templatesJson the templates of the request, may be null
+     */
+    public SenseiRequest newRequest(JSONObject templatesJson) throws Exception
+    {
+      if (templatesJson == null)
+      {
+        SenseiRequest request = _request;
+        if (request != null)
+        {
+          return copy(request);
+        }
+      }
+      JSONObject json = (JSONObject) TEMPLATE_PROCESSOR.bind(_template, TEMPLATE_PROCESSOR.getTemplateValues(templatesJson));
+      SenseiRequest ret = RequestConverter2.fromSubstitutedJSON(json, _facetInfoMap);
+      if (templatesJson == null && _request == null && ret.getMapReduceFunction() == null)
+      {
+        _request = copy(ret);
+      }
+      return ret;
+    }
+
+    private SenseiRequest copy(SenseiRequest request)
+    {
+      SenseiRequest ret = request.clone();
+      ret.setTrace(request.isTrace());
+      if (!_routed)
+      {
+        // cloning assigns a random route param, every request has to be routed on its own
+        ret.setRouteParam(null);
+      }
+      return ret;
+    }
+  }
+}
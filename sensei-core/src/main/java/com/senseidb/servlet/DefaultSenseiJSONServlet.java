@@ -18,6 +18,8 @@
  */
 package com.senseidb.servlet;
 
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -61,6 +63,7 @@ import com.senseidb.search.req.SenseiRequest;
 import com.senseidb.search.req.SenseiResult;
 import com.senseidb.search.req.SenseiSystemInfo;
 import com.senseidb.util.JSONUtil.FastJSONArray;
+import com.senseidb.util.JSONStreamWriter;
 import com.senseidb.util.JSONUtil.FastJSONObject;
 import com.senseidb.util.RequestConverter;
 
@@ -109,73 +112,75 @@ public class DefaultSenseiJSONServlet extends AbstractSenseiRestServlet
   }
 
   public static JSONObject convert(Map<String, FacetAccessible> facetValueMap, SenseiRequest req)
-      throws JSONException
+      throws Exception
   {
-    JSONObject resMap = new FastJSONObject(25);
-    if (facetValueMap != null)
-    {
-      Set<Entry<String, FacetAccessible>> entrySet = facetValueMap.entrySet();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    JSONStreamWriter writer = new JSONStreamWriter(out);
+    writeFacets(writer, facetValueMap, req);
+    writer.flush();
+    return new FastJSONObject(out.toString("UTF-8"));
+  }
 
-      for (Entry<String, FacetAccessible> entry : entrySet)
+  private static HashSet<String> getSelectedValues(String fieldname, SenseiRequest req)
+  {
+    BrowseSelection sel = req.getSelection(fieldname);
+    HashSet<String> selectedVals = new HashSet<String>();
+    if (sel != null)
+    {
+      String[] vals = sel.getValues();
+      if (vals != null && vals.length > 0)
       {
-        String fieldname = entry.getKey();
+        selectedVals.addAll(Arrays.asList(vals));
+      }
+    }
+    return selectedVals;
+  }
 
-        BrowseSelection sel = req.getSelection(fieldname);
-        HashSet<String> selectedVals = new HashSet<String>();
-        if (sel != null)
-        {
-          String[] vals = sel.getValues();
-          if (vals != null && vals.length > 0)
-          {
-            selectedVals.addAll(Arrays.asList(vals));
-          }
-        }
+  private static ArrayList<JSONObject> convertFacets(String fieldname, FacetAccessible facetAccessible, SenseiRequest req)
+      throws JSONException
+  {
+    HashSet<String> selectedVals = getSelectedValues(fieldname, req);
+    List<BrowseFacet> facetList = facetAccessible.getFacets();
 
-        FacetAccessible facetAccessible = entry.getValue();
-        List<BrowseFacet> facetList = facetAccessible.getFacets();
+    ArrayList<JSONObject> facets = new ArrayList<JSONObject>();
 
-        ArrayList<JSONObject> facets = new ArrayList<JSONObject>();
+    for (BrowseFacet f : facetList)
+    {
+      String fval = f.getValue();
+      if (fval != null && fval.length() > 0)
+      {
+        JSONObject fv = new FastJSONObject();
+        fv.put(PARAM_RESULT_FACET_INFO_COUNT, f.getFacetValueHitCount());
+        fv.put(PARAM_RESULT_FACET_INFO_VALUE, fval);
+        fv.put(PARAM_RESULT_FACET_INFO_SELECTED, selectedVals.remove(fval));
+        facets.add(fv);
+      }
+    }
 
-        for (BrowseFacet f : facetList)
+    if (selectedVals.size() > 0)
+    {
+      // selected vals did not make it in top n
+      for (String selectedVal : selectedVals)
+      {
+        if (selectedVal != null && selectedVal.length() > 0)
         {
-          String fval = f.getValue();
-          if (fval != null && fval.length() > 0)
-          {
-            JSONObject fv = new FastJSONObject();
-            fv.put(PARAM_RESULT_FACET_INFO_COUNT, f.getFacetValueHitCount());
-            fv.put(PARAM_RESULT_FACET_INFO_VALUE, fval);
-            fv.put(PARAM_RESULT_FACET_INFO_SELECTED, selectedVals.remove(fval));
-            facets.add(fv);
-          }
+          BrowseFacet selectedFacetVal = facetAccessible.getFacet(selectedVal);
+          JSONObject fv = new FastJSONObject(5);
+          fv.put(PARAM_RESULT_FACET_INFO_COUNT, selectedFacetVal == null ? 0 : selectedFacetVal.getFacetValueHitCount());
+          String fval = selectedFacetVal == null ? selectedVal : selectedFacetVal.getValue();
+          fv.put(PARAM_RESULT_FACET_INFO_VALUE, fval);
+          fv.put(PARAM_RESULT_FACET_INFO_SELECTED, true);
+          facets.add(fv);
         }
-
-        if (selectedVals.size() > 0)
-        {
-          // selected vals did not make it in top n
-          for (String selectedVal : selectedVals)
-          {
-            if (selectedVal != null && selectedVal.length() > 0)
-            {
-              BrowseFacet selectedFacetVal = facetAccessible.getFacet(selectedVal);
-              JSONObject fv = new FastJSONObject(5);
-              fv.put(PARAM_RESULT_FACET_INFO_COUNT, selectedFacetVal == null ? 0 : selectedFacetVal.getFacetValueHitCount());
-              String fval = selectedFacetVal == null ? selectedVal : selectedFacetVal.getValue();
-              fv.put(PARAM_RESULT_FACET_INFO_VALUE, fval);
-              fv.put(PARAM_RESULT_FACET_INFO_SELECTED, true);
-              facets.add(fv);
-            }
-          }
-
-          // we need to sort it
-          FacetSpec fspec = req.getFacetSpec(fieldname);
-          assert fspec != null;
-          sortFacets(fieldname, facets, fspec);
-        }
-
-        resMap.put(fieldname, facets);
       }
+
+      // we need to sort it
+      FacetSpec fspec = req.getFacetSpec(fieldname);
+      assert fspec != null;
+      sortFacets(fieldname, facets, fspec);
     }
-    return resMap;
+
+    return facets;
   }
 
   private static void sortFacets(String fieldName, ArrayList<JSONObject> facets, FacetSpec fspec) {
@@ -242,6 +247,27 @@ public class DefaultSenseiJSONServlet extends AbstractSenseiRestServlet
     return supportJsonp(httpReq, buildJSONResultString(req, res));
   }
 
+  /**
+   * Streams the result into the response instead of building the whole JSON tree and its string
+   */
+  @Override
+  protected void convertResult(HttpServletRequest httpReq, SenseiRequest req, SenseiResult res, OutputStream ostream)
+      throws Exception
+  {
+    JSONStreamWriter writer = new JSONStreamWriter(ostream);
+    String callback = httpReq.getParameter("callback");
+    if (callback != null)
+    {
+      writer.writeRaw(callback).writeRaw("(");
+    }
+    writeJSONResult(writer, req, res);
+    if (callback != null)
+    {
+      writer.writeRaw(");");
+    }
+    writer.flush();
+  }
+
   private String supportJsonp(HttpServletRequest httpReq, String jsonString) {
     String callback = httpReq.getParameter("callback");
     if (callback != null) {
@@ -254,61 +280,124 @@ public class DefaultSenseiJSONServlet extends AbstractSenseiRestServlet
   public static String buildJSONResultString(SenseiRequest req, SenseiResult res)
       throws Exception
   {
-    JSONObject jsonObj = buildJSONResult(req, res);
-    return jsonObj.toString();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    JSONStreamWriter writer = new JSONStreamWriter(out);
+    writeJSONResult(writer, req, res);
+    writer.flush();
+    return out.toString("UTF-8");
   }
 
+  /**
+   * Parses the hits written by {@link #writeJSONHits(JSONStreamWriter, SenseiRequest, SenseiHit[])}
+   */
   public static JSONArray buildJSONHits(SenseiRequest req, SenseiHit[] hits)
       throws Exception
   {
-    Set<String> selectSet = req.getSelectSet();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    JSONStreamWriter writer = new JSONStreamWriter(out);
+    writeJSONHits(writer, req, hits);
+    writer.flush();
+    return new FastJSONArray(out.toString("UTF-8"));
+  }
 
-    JSONArray hitArray = new FastJSONArray(hits.length);
-    for (SenseiHit hit : hits)
+  /**
+   * Parses the result written by {@link #writeJSONResult(JSONStreamWriter, SenseiRequest, SenseiResult)},
+   * for the callers that need the JSON tree
+   */
+  public static JSONObject buildJSONResult(SenseiRequest req, SenseiResult res)
+      throws Exception
+  {
+    return new FastJSONObject(buildJSONResultString(req, res));
+  }
+
+  /**
+   * Writes the result directly into the stream, without materializing the hits
+   */
+  public static void writeJSONResult(JSONStreamWriter writer, SenseiRequest req, SenseiResult res)
+      throws Exception
+  {
+    writer.startObject();
+    writer.name(PARAM_RESULT_TID).value(res.getTid());
+    writer.name(PARAM_RESULT_TOTALDOCS).value(res.getTotalDocs());
+    writer.name(PARAM_RESULT_NUMHITS).value(res.getNumHits());
+    writer.name(PARAM_RESULT_NUMGROUPS).value(res.getNumGroups());
+    writer.field(PARAM_RESULT_PARSEDQUERY, res.getParsedQuery());
+    writeErrors(writer, res);
+    writer.name(PARAM_RESULT_HITS);
+    writeJSONHits(writer, req, res.getSenseiHits());
+
+    List<String> selectList = req.getSelectList();
+    if (selectList != null)
     {
-      Map<String, String[]> fieldMap = hit.getFieldValues();
-      int fieldMapSize = fieldMap == null ? 0 : fieldMap.size();
+      writer.name(PARAM_RESULT_SELECT_LIST).startArray();
+      for (String col: selectList)
+      {
+        writer.value(col);
+      }
+      writer.endArray();
+    }
 
-      JSONObject hitObj = new FastJSONObject(20 + fieldMapSize);
+    writer.name(PARAM_RESULT_TIME).value(res.getTime());
+    writer.name(PARAM_RESULT_FACETS);
+    writeFacets(writer, res.getFacetMap(), req);
+    if (req.getMapReduceFunction() != null && res.getMapReduceResult() != null) {
+      writer.field(PARAM_RESULT_MAP_REDUCE, req.getMapReduceFunction().render(res.getMapReduceResult().getReduceResult()));
+    }
+    writer.endObject();
+  }
+
+  public static void writeJSONHits(JSONStreamWriter writer, SenseiRequest req, SenseiHit[] hits)
+      throws Exception
+  {
+    Set<String> selectSet = req.getSelectSet();
 
+    writer.startArray();
+    for (SenseiHit hit : hits)
+    {
+      writer.startObject();
       if (selectSet == null || selectSet.contains(PARAM_RESULT_HIT_UID))
       {
-        hitObj.put(PARAM_RESULT_HIT_UID, hit.getUID());
+        writer.name(PARAM_RESULT_HIT_UID).value(hit.getUID());
       }
       if (selectSet == null || selectSet.contains(PARAM_RESULT_HIT_DOCID))
       {
-        hitObj.put(PARAM_RESULT_HIT_DOCID, hit.getDocid());
+        writer.name(PARAM_RESULT_HIT_DOCID).value(hit.getDocid());
       }
       if (selectSet == null || selectSet.contains(PARAM_RESULT_HIT_SCORE))
       {
-        hitObj.put(PARAM_RESULT_HIT_SCORE, formatScore(req.getScoreMeaningfulDigits(), hit.getScore()));
+        writer.name(PARAM_RESULT_HIT_SCORE).value(formatScore(req.getScoreMeaningfulDigits(), hit.getScore()));
       }
       if (selectSet == null || selectSet.contains(PARAM_RESULT_HIT_GROUPFIELD))
       {
-        hitObj.put(PARAM_RESULT_HIT_GROUPFIELD, hit.getGroupField());
+        writer.field(PARAM_RESULT_HIT_GROUPFIELD, hit.getGroupField());
       }
       if (selectSet == null || selectSet.contains(PARAM_RESULT_HIT_GROUPVALUE))
       {
-        hitObj.put(PARAM_RESULT_HIT_GROUPVALUE, hit.getGroupValue());
+        writer.field(PARAM_RESULT_HIT_GROUPVALUE, hit.getGroupValue());
       }
       if (selectSet == null || selectSet.contains(PARAM_RESULT_HIT_GROUPHITSCOUNT))
       {
-        hitObj.put(PARAM_RESULT_HIT_GROUPHITSCOUNT, hit.getGroupHitsCount());
+        writer.name(PARAM_RESULT_HIT_GROUPHITSCOUNT).value(hit.getGroupHitsCount());
       }
       if (hit.getGroupHits() != null && hit.getGroupHits().length > 0)
-        hitObj.put(PARAM_RESULT_HIT_GROUPHITS, buildJSONHits(req, hit.getSenseiGroupHits()));
+      {
+        writer.name(PARAM_RESULT_HIT_GROUPHITS);
+        writeJSONHits(writer, req, hit.getSenseiGroupHits());
+      }
 
-      // get fetchStored even if request does not have it because it could be set at the 
+      // get fetchStored even if request does not have it because it could be set at the
       // federated broker level
-      if (selectSet == null || selectSet.contains(PARAM_RESULT_HIT_SRC_DATA) || 
+      if (selectSet == null || selectSet.contains(PARAM_RESULT_HIT_SRC_DATA) ||
           req.isFetchStoredFields() || hit.getSrcData() != null)
       {
-        hitObj.put(PARAM_RESULT_HIT_SRC_DATA, hit.getSrcData());
+        // the stored source is escaped into the string as it is, without parsing it
+        writer.field(PARAM_RESULT_HIT_SRC_DATA, hit.getSrcData());
       }
+
+      Map<String, String[]> fieldMap = hit.getFieldValues();
       if (fieldMap != null)
       {
-        Set<Entry<String, String[]>> entries = fieldMap.entrySet();
-        for (Entry<String, String[]> entry : entries)
+        for (Entry<String, String[]> entry : fieldMap.entrySet())
         {
           String key = entry.getKey();
           if (key.equals(PARAM_RESULT_HIT_UID))
@@ -319,22 +408,16 @@ public class DefaultSenseiJSONServlet extends AbstractSenseiRestServlet
 
           if (selectSet == null || selectSet.contains(key))
           {
+            writer.name(key).startArray();
             String[] vals = entry.getValue();
-
-            JSONArray valArray;
             if (vals != null)
             {
-              valArray = new FastJSONArray(vals.length);
               for (String val : vals)
               {
-                valArray.put(val);
+                writer.value(val);
               }
             }
-            else
-            {
-              valArray = new FastJSONArray();
-            }
-            hitObj.put(key, valArray);
+            writer.endArray();
           }
         }
       }
@@ -344,45 +427,39 @@ public class DefaultSenseiJSONServlet extends AbstractSenseiRestServlet
       {
         if (selectSet == null || selectSet.contains(PARAM_RESULT_HIT_STORED_FIELDS))
         {
-          List<Fieldable> fields = doc.getFields();
-          List<JSONObject> storedData = new ArrayList<JSONObject>(fields.size());
-          for (Fieldable field : fields)
+          writer.name(PARAM_RESULT_HIT_STORED_FIELDS).startArray();
+          for (Fieldable field : doc.getFields())
           {
-            JSONObject data = new FastJSONObject(4);
-            data.put(PARAM_RESULT_HIT_STORED_FIELDS_NAME, field.name());
-            data.put(PARAM_RESULT_HIT_STORED_FIELDS_VALUE, field.stringValue());
-            storedData.add(data);
+            writer.startObject();
+            writer.field(PARAM_RESULT_HIT_STORED_FIELDS_NAME, field.name());
+            writer.field(PARAM_RESULT_HIT_STORED_FIELDS_VALUE, field.stringValue());
+            writer.endObject();
           }
-
-          hitObj.put(PARAM_RESULT_HIT_STORED_FIELDS, new FastJSONArray(storedData));
+          writer.endArray();
         }
       }
 
       Map<String,BrowseHit.TermFrequencyVector> tvMap = hit.getTermFreqMap();
-      if (tvMap != null && tvMap.size() > 0){
-        JSONObject tvObj = new FastJSONObject(2 * tvMap.entrySet().size());
-        if (selectSet == null || selectSet.contains(PARAM_RESULT_HIT_TERMVECTORS))
+      if (tvMap != null && tvMap.size() > 0 &&
+          (selectSet == null || selectSet.contains(PARAM_RESULT_HIT_TERMVECTORS)))
+      {
+        writer.name(PARAM_RESULT_HIT_TERMVECTORS).startObject();
+        for (Entry<String,BrowseHit.TermFrequencyVector> entry : tvMap.entrySet())
         {
-          hitObj.put(PARAM_RESULT_HIT_TERMVECTORS, tvObj);
-        }
-
-        Set<Entry<String,BrowseHit.TermFrequencyVector>> entries = tvMap.entrySet();
-        for (Entry<String,BrowseHit.TermFrequencyVector> entry : entries){
-          String field = entry.getKey();
-
           String[] terms = entry.getValue().terms;
           int[] freqs = entry.getValue().freqs;
 
-          JSONArray tvArray = new FastJSONArray(terms.length);
-          for (int i=0;i<terms.length;++i){
-            JSONObject tv = new FastJSONObject(4);
-            tv.put("term", terms[i]);
-            tv.put("freq", freqs[i]);
-            tvArray.put(tv);
+          writer.name(entry.getKey()).startArray();
+          for (int i=0;i<terms.length;++i)
+          {
+            writer.startObject();
+            writer.field("term", terms[i]);
+            writer.name("freq").value(freqs[i]);
+            writer.endObject();
           }
-
-          tvObj.put(field, tvArray);
+          writer.endArray();
         }
+        writer.endObject();
       }
 
       Explanation expl = hit.getExplanation();
@@ -390,59 +467,85 @@ public class DefaultSenseiJSONServlet extends AbstractSenseiRestServlet
       {
         if (selectSet == null || selectSet.contains(PARAM_RESULT_HIT_EXPLANATION))
         {
-          hitObj.put(PARAM_RESULT_HIT_EXPLANATION, convertExpl(expl));
+          writer.field(PARAM_RESULT_HIT_EXPLANATION, convertExpl(expl));
         }
       }
 
       float [] features = hit.getFeatures();
       if (features != null)
       {
-        JSONArray featureArray = new FastJSONArray(features.length);
+        writer.name(PARAM_RESULT_FEATURES).startArray();
         for (float f : features)
         {
-          featureArray.put(f);
+          writer.value(f);
         }
-
-        hitObj.put(PARAM_RESULT_FEATURES, featureArray);
+        writer.endArray();
       }
 
-      hitArray.put(hitObj);
+      writer.endObject();
     }
-    return hitArray;
+    writer.endArray();
   }
 
-  public static JSONObject buildJSONResult(SenseiRequest req, SenseiResult res)
+  private static void writeFacets(JSONStreamWriter writer, Map<String, FacetAccessible> facetValueMap, SenseiRequest req)
       throws Exception
   {
-    JSONObject jsonObj = new FastJSONObject(15);
-    jsonObj.put(PARAM_RESULT_TID, res.getTid());
-    jsonObj.put(PARAM_RESULT_TOTALDOCS, res.getTotalDocs());
-    jsonObj.put(PARAM_RESULT_NUMHITS, res.getNumHits());
-    jsonObj.put(PARAM_RESULT_NUMGROUPS, res.getNumGroups());
-    jsonObj.put(PARAM_RESULT_PARSEDQUERY, res.getParsedQuery());
-    addErrors(jsonObj, res);
-    SenseiHit[] hits = res.getSenseiHits();
-    JSONArray hitArray = buildJSONHits(req, hits);
-    jsonObj.put(PARAM_RESULT_HITS, hitArray);
-
-    List<String> selectList = req.getSelectList();
-    if (selectList != null)
+    writer.startObject();
+    if (facetValueMap != null)
     {
-      JSONArray jsonSelectList = new FastJSONArray(selectList.size());
-      for (String col: selectList)
+      for (Entry<String, FacetAccessible> entry : facetValueMap.entrySet())
       {
-        jsonSelectList.put(col);
+        String fieldname = entry.getKey();
+        writer.name(fieldname);
+
+        HashSet<String> selectedVals = getSelectedValues(fieldname, req);
+        List<BrowseFacet> facetList = entry.getValue().getFacets();
+        HashSet<String> missingVals = new HashSet<String>(selectedVals);
+        for (BrowseFacet f : facetList)
+        {
+          String fval = f.getValue();
+          if (fval != null && fval.length() > 0)
+          {
+            missingVals.remove(fval);
+          }
+        }
+        if (missingVals.size() > 0)
+        {
+          // selected vals did not make it in top n, they are merged in and sorted
+          writer.rawValue(new FastJSONArray(convertFacets(fieldname, entry.getValue(), req)).toString());
+          continue;
+        }
+
+        writer.startArray();
+        for (BrowseFacet f : facetList)
+        {
+          String fval = f.getValue();
+          if (fval != null && fval.length() > 0)
+          {
+            writer.startObject();
+            writer.name(PARAM_RESULT_FACET_INFO_COUNT).value(f.getFacetValueHitCount());
+            writer.name(PARAM_RESULT_FACET_INFO_VALUE).value(fval);
+            writer.name(PARAM_RESULT_FACET_INFO_SELECTED).value(selectedVals.contains(fval));
+            writer.endObject();
+          }
+        }
+        writer.endArray();
       }
-      jsonObj.put(PARAM_RESULT_SELECT_LIST, jsonSelectList);
     }
+    writer.endObject();
+  }
 
-    jsonObj.put(PARAM_RESULT_TIME, res.getTime());
-    jsonObj.put(PARAM_RESULT_FACETS, convert(res.getFacetMap(), req));
-    if (req.getMapReduceFunction() != null && res.getMapReduceResult() != null) {
-      jsonObj.put(PARAM_RESULT_MAP_REDUCE, req.getMapReduceFunction().render(res.getMapReduceResult().getReduceResult()));
+  private static void writeErrors(JSONStreamWriter writer, SenseiResult res) throws Exception {
+    writer.name(PARAM_RESULT_ERRORS).startArray();
+    for (SenseiError error: res.getErrors()) {
+      writer.startObject();
+      writer.field(PARAM_RESULT_ERROR_MESSAGE, error.getMessage());
+      writer.field(PARAM_RESULT_ERROR_TYPE, error.getErrorType().name());
+      writer.name(PARAM_RESULT_ERROR_CODE).value(error.getErrorCode());
+      writer.endObject();
     }
-   
-    return jsonObj;
+    writer.endArray();
+    writer.name(PARAM_RESULT_ERROR_CODE).value(res.getErrors().size() > 0 ? res.getErrors().get(0).getErrorCode() : 0);
   }
 
   private static String formatScore(Integer scoreMeaningfulDigits, float score) {
@@ -454,21 +557,6 @@ public class DefaultSenseiJSONServlet extends AbstractSenseiRestServlet
     }
   }
 
-  private static void addErrors(JSONObject jsonResult, SenseiResult res) throws JSONException {
-    JSONArray errorsJson = new FastJSONArray(res.getErrors().size());
-    for (SenseiError error: res.getErrors()) {
-      errorsJson.put(new FastJSONObject(5).put(PARAM_RESULT_ERROR_MESSAGE, error.getMessage())
-                                         .put(PARAM_RESULT_ERROR_TYPE, error.getErrorType().name())
-                                         .put(PARAM_RESULT_ERROR_CODE, error.getErrorCode()));
-    }
-    jsonResult.put(PARAM_RESULT_ERRORS, errorsJson);
-    if (res.getErrors().size() > 0) {
-      jsonResult.put(PARAM_RESULT_ERROR_CODE, res.getErrors().get(0).getErrorCode());
-    } else {
-      jsonResult.put(PARAM_RESULT_ERROR_CODE, 0);
-    }
-  }
-
   private static SenseiQuery buildSenseiQuery(DataConfiguration params)
   {
     SenseiQuery sq;
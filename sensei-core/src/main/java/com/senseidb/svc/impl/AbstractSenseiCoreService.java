@@ -8,16 +8,15 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import org.apache.log4j.Logger;
 
-import org.apache.lucene.util.NamedThreadFactory;
 import org.jboss.netty.util.internal.ConcurrentHashMap;
 
 import proj.zoie.api.IndexReaderFactory;
@@ -45,17 +44,21 @@ public abstract class AbstractSenseiCoreService<Req extends AbstractSenseiReques
   private final Timer _mergeTimer;
   private final Meter _searchCounter;
 
-  protected long _timeout = 8000;
+  protected long _timeout;
     
   protected final SenseiCore _core;
   
-  private final NamedThreadFactory threadFactory = new NamedThreadFactory("parallel-searcher");
-  private final ExecutorService _executorService = Executors.newCachedThreadPool(threadFactory);
+  protected final SenseiSearchScheduler _searchScheduler;
+
+  private final SenseiResultCache _resultCache;
   
   private final Map<Integer,Timer> partitionTimerMetricMap = new HashMap<Integer,Timer>();
 	
 	public AbstractSenseiCoreService(SenseiCore core){
 	  _core = core;
+    _searchScheduler = core.getSearchScheduler();
+    _timeout = _searchScheduler.getTimeout();
+    _resultCache = core.getResultCache();
     _getReaderTimer = registerTimer("getreader-time");
     _searchTimer = registerTimer("search-time");
     _mergeTimer = registerTimer("merge-time");
@@ -99,10 +102,33 @@ public abstract class AbstractSenseiCoreService<Req extends AbstractSenseiReques
 	      //we need to release index readers from all partitions only after the merge step
 	      final Map<IndexReaderFactory<ZoieIndexReader<BoboIndexReader>>, List<ZoieIndexReader<BoboIndexReader>>> indexReaderCache = new ConcurrentHashMap<IndexReaderFactory<ZoieIndexReader<BoboIndexReader>>, List<ZoieIndexReader<BoboIndexReader>>>();
 	      try {
+	      // The readers of all partitions are acquired up front when the result may be cached, so that
+	      // the result is cached under the reader generation it was actually computed from.
+	      Object cacheKey = _resultCache == null ? null : getResultCacheKey(senseiReq);
+	      String cacheScope = null;
+	      String[] cacheGeneration = null;
+	      if (cacheKey != null)
+	      {
+	        cacheScope = new TreeSet<Integer>(partitions).toString();
+	        cacheGeneration = acquireIndexReaders(partitions, indexReaderCache);
+	        if (cacheGeneration != null)
+	        {
+	          // results are cached serialized, so that every caller gets its own copy
+	          byte[] cached = (byte[]) _resultCache.get(cacheScope, cacheGeneration, cacheKey);
+	          if (cached != null)
+	          {
+	            if (logger.isDebugEnabled()){
+	              logger.debug("serving partitions: " + cacheScope + " from result cache");
+	            }
+	            return getSerializer().responseFromBytes(cached);
+	          }
+	        }
+	      }
 	      final ArrayList<Res> resultList = new ArrayList<Res>(partitions.size());
-        Future<Res>[] futures = new Future[partitions.size()-1];
+        FutureTask<Res>[] futures = new FutureTask[partitions.size()-1];
         int i = 0;
         
+        final long deadline = System.currentTimeMillis() + _timeout;
         for (final int partition : partitions)
 	      {
           final long start = System.currentTimeMillis();
@@ -112,7 +138,7 @@ public abstract class AbstractSenseiCoreService<Req extends AbstractSenseiReques
           {
             try
             {
-              futures[i] = (Future<Res>)_executorService.submit(new Callable<Res>()
+              futures[i] = _searchScheduler.submit(new Callable<Res>()
               {
                 public Res call() throws Exception
                 {
@@ -133,7 +159,13 @@ public abstract class AbstractSenseiCoreService<Req extends AbstractSenseiReques
                   return res;
                 }
               });
-            } catch (Exception e)
+            }
+            catch (RejectedExecutionException e)
+            {
+              logger.warn("search queue is full, rejecting partition: " + partition);
+              senseiReq.addError(new SenseiError("search queue is full, partition " + partition + " rejected", ErrorType.PartitionCallError));
+            }
+            catch (Exception e)
             {
               senseiReq.addError(new SenseiError(e.getMessage(), ErrorType.BoboExecutionError));              
               logger.error(e.getMessage(), e);
@@ -169,9 +201,15 @@ public abstract class AbstractSenseiCoreService<Req extends AbstractSenseiReques
 
         for (i=0; i<futures.length; ++i)
         {
+          if (futures[i] == null)
+          {
+            resultList.add(getEmptyResultInstance(null));
+            continue;
+          }
           try
           {
-            Res res = futures[i].get(_timeout, TimeUnit.MILLISECONDS);
+            // Steals the task if no searcher thread picked it up yet, cancels it once the deadline passes.
+            Res res = _searchScheduler.await(futures[i], deadline);
             resultList.add(res);
           }
           catch(Exception e)
@@ -198,6 +236,11 @@ public abstract class AbstractSenseiCoreService<Req extends AbstractSenseiReques
         	logger.error(e.getMessage(),e);
         	finalResult = getEmptyResultInstance(null);
         	finalResult.addError(new SenseiError(e.getMessage(), ErrorType.MergePartitionError));
+          }
+          if (cacheGeneration != null && isResultCacheable(finalResult))
+          {
+            byte[] bytes = getSerializer().responseToBytes(finalResult);
+            _resultCache.put(cacheScope, cacheGeneration, cacheKey, bytes, bytes.length);
           }
 	    } finally {
 	      returnIndexReaders(indexReaderCache);
@@ -225,14 +268,47 @@ public abstract class AbstractSenseiCoreService<Req extends AbstractSenseiReques
     
   }
 
+  /**
+   * Acquires the index readers of the given partitions and returns their generation, i.e. the
+   * reader version of each partition in ascending partition order, or null if it cannot be
+   * determined because an index changed while its readers were acquired.
+   */
+  private String[] acquireIndexReaders(Set<Integer> partitions,
+      Map<IndexReaderFactory<ZoieIndexReader<BoboIndexReader>>, List<ZoieIndexReader<BoboIndexReader>>> indexReaderCache) {
+    String[] generation = new String[partitions.size()];
+    int i = 0;
+    try {
+      for (int partition : new TreeSet<Integer>(partitions)) {
+        IndexReaderFactory<ZoieIndexReader<BoboIndexReader>> readerFactory = _core.getIndexReaderFactory(partition);
+        if (readerFactory == null || indexReaderCache.containsKey(readerFactory)) {
+          ++i;
+          continue;
+        }
+        String version = readerFactory.getCurrentReaderVersion();
+        indexReaderCache.put(readerFactory, readerFactory.getIndexReaders());
+        if (version == null || !version.equals(readerFactory.getCurrentReaderVersion())) {
+          return null;
+        }
+        generation[i++] = version;
+      }
+    } catch (Exception e) {
+      logger.warn("unable to acquire index readers, result is not cached: " + e.getMessage(), e);
+      return null;
+    }
+    return generation;
+  }
+
   private final Res handleRequest(final Req senseiReq, final IndexReaderFactory<ZoieIndexReader<BoboIndexReader>> readerFactory,
       final SenseiQueryBuilderFactory queryBuilderFactory,
-      Map<IndexReaderFactory<ZoieIndexReader<BoboIndexReader>>, List<ZoieIndexReader<BoboIndexReader>>> indexReadersToCleanUp) throws Exception {
+      final Map<IndexReaderFactory<ZoieIndexReader<BoboIndexReader>>, List<ZoieIndexReader<BoboIndexReader>>> indexReadersToCleanUp) throws Exception {
     List<ZoieIndexReader<BoboIndexReader>> readerList = null;
     readerList = _getReaderTimer.time(new Callable<List<ZoieIndexReader<BoboIndexReader>>>() {
       public List<ZoieIndexReader<BoboIndexReader>> call() throws Exception {
         if (readerFactory == null)
           return Collections.EMPTY_LIST;
+        List<ZoieIndexReader<BoboIndexReader>> acquired = indexReadersToCleanUp.get(readerFactory);
+        if (acquired != null)
+          return acquired;
         return readerFactory.getIndexReaders();
       }
     });
@@ -264,6 +340,23 @@ public abstract class AbstractSenseiCoreService<Req extends AbstractSenseiReques
     return MetricFactory.newMeter(new MetricName(MetricsConstants.Domain, "meter", name, getMetricScope()), eventType, TimeUnit.SECONDS);
   }
 
+  /**
+   * Returns the key the merged result of a request is cached under, or null if the result must not be
+   * cached. The key must implement equals and hashCode and must not change when the request does.
+   */
+  protected Object getResultCacheKey(Req req)
+  {
+    return null;
+  }
+
+  /**
+   * Returns whether a merged result may be cached.
+   */
+  protected boolean isResultCacheable(Res res)
+  {
+    return false;
+  }
+
   public abstract Res handlePartitionedRequest(Req r,final List<BoboIndexReader> readerList,SenseiQueryBuilderFactory queryBuilderFactory) throws Exception;
 	public abstract Res mergePartitionedResults(Req r,List<Res> reqList);
 	public abstract Res getEmptyResultInstance(Throwable error);
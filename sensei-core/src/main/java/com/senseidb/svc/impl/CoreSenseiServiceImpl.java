@@ -26,6 +26,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import com.browseengine.bobo.api.FacetAccessible;
@@ -271,8 +274,6 @@ public class CoreSenseiServiceImpl extends AbstractSenseiCoreService<SenseiReque
 	@Override
 	public SenseiResult handlePartitionedRequest(final SenseiRequest request,
 			List<BoboIndexReader> readerList,SenseiQueryBuilderFactory queryBuilderFactory) throws Exception {
-	    MultiBoboBrowser browser = null;
-
 	    try
 	    {
           final List<BoboIndexReader> segmentReaders = BoboBrowser.gatherSubReaders(readerList);
@@ -302,17 +303,16 @@ public class CoreSenseiServiceImpl extends AbstractSenseiCoreService<SenseiReque
 
             pruner.sort(validatedSegmentReaders);
 
-            browser = new MultiBoboBrowser(BoboBrowser.createBrowsables(validatedSegmentReaders));
-            request.setSearchable(browser);
-            request.setQueryBuilderFactory(queryBuilderFactory);
-            BrowseRequest breq = RequestConverter.convert(request, queryBuilderFactory);
-            if (request.getMapReduceFunction() != null) {
-              SenseiMapFunctionWrapper mapWrapper = new SenseiMapFunctionWrapper(request.getMapReduceFunction(), _core.getSystemInfo().getFacetInfos());
-              breq.setMapReduceWrapper(mapWrapper);
+            SenseiResult res;
+            // Group by relies on the sort collectors of the unmerged results, so those requests are not split.
+            List<List<BoboIndexReader>> slices = request.getGroupBy() == null ?
+                _searchScheduler.split(validatedSegmentReaders) : null;
+            if (slices != null && slices.size() > 1) {
+              res = browseSlices(request, slices, queryBuilderFactory);
+            }
+            else {
+              res = browseSegments(request, validatedSegmentReaders, queryBuilderFactory);
             }
-            SubReaderAccessor<BoboIndexReader> subReaderAccessor =
-                ZoieIndexReader.getSubReaderAccessor(validatedSegmentReaders);
-            SenseiResult res = browse(request, browser, breq, subReaderAccessor);
             int totalDocs = res.getTotalDocs()+skipDocs.get();
             res.setTotalDocs(totalDocs);
 
@@ -332,21 +332,117 @@ public class CoreSenseiServiceImpl extends AbstractSenseiCoreService<SenseiReque
 	    {
 	      logger.error(e.getMessage(), e);
 	      throw e;
-	    } finally
-	    {
-	      if (browser != null)
-	      {
-	        try
-	        {
-	          browser.close();
-	        } catch (IOException ioe)
-	        {
-	          logger.error(ioe.getMessage(), ioe);
-	        }
-	      }
 	    }
 	}
 
+  private SenseiResult browseSegments(SenseiRequest request, List<BoboIndexReader> segmentReaders,
+      SenseiQueryBuilderFactory queryBuilderFactory) throws Exception {
+    MultiBoboBrowser browser = null;
+    try
+    {
+      browser = new MultiBoboBrowser(BoboBrowser.createBrowsables(segmentReaders));
+      request.setSearchable(browser);
+      request.setQueryBuilderFactory(queryBuilderFactory);
+      BrowseRequest breq = RequestConverter.convert(request, queryBuilderFactory);
+      if (request.getMapReduceFunction() != null) {
+        SenseiMapFunctionWrapper mapWrapper = new SenseiMapFunctionWrapper(request.getMapReduceFunction(), _core.getSystemInfo().getFacetInfos(),
+            _searchScheduler.isParallelMap() ? _searchScheduler : null);
+        breq.setMapReduceWrapper(mapWrapper);
+      }
+      SubReaderAccessor<BoboIndexReader> subReaderAccessor =
+          ZoieIndexReader.getSubReaderAccessor(segmentReaders);
+      return browse(request, browser, breq, subReaderAccessor);
+    }
+    finally
+    {
+      if (browser != null)
+      {
+        try
+        {
+          browser.close();
+        } catch (IOException ioe)
+        {
+          logger.error(ioe.getMessage(), ioe);
+        }
+      }
+    }
+  }
+
+  /**
+   * Searches the slices of a large partition in parallel and merges them as if they were
+   * separate partitions. Every slice gets its own copy of the request since the searchable
+   * is kept on the request.
+   */
+  private SenseiResult browseSlices(final SenseiRequest request, List<List<BoboIndexReader>> slices,
+      final SenseiQueryBuilderFactory queryBuilderFactory) throws Exception {
+    final long deadline = System.currentTimeMillis() + _timeout;
+    List<FutureTask<SenseiResult>> futures = new ArrayList<FutureTask<SenseiResult>>(slices.size());
+    List<Callable<SenseiResult>> rejected = new ArrayList<Callable<SenseiResult>>();
+    List<SenseiResult> sliceResults = new ArrayList<SenseiResult>(slices.size());
+    try
+    {
+      for (int i = 0; i < slices.size() - 1; ++i)
+      {
+        Callable<SenseiResult> task = newSliceTask(request, slices.get(i), queryBuilderFactory);
+        try
+        {
+          futures.add(_searchScheduler.submit(task));
+        }
+        catch (RejectedExecutionException e)
+        {
+          // The request has been admitted already, search the slice on this thread instead.
+          rejected.add(task);
+        }
+      }
+      sliceResults.add(newSliceTask(request, slices.get(slices.size() - 1), queryBuilderFactory).call());
+      for (Callable<SenseiResult> task : rejected)
+      {
+        sliceResults.add(task.call());
+      }
+      for (FutureTask<SenseiResult> future : futures)
+      {
+        try
+        {
+          sliceResults.add(_searchScheduler.await(future, deadline));
+        }
+        catch (ExecutionException e)
+        {
+          Throwable cause = e.getCause();
+          throw cause instanceof Exception ? (Exception) cause : e;
+        }
+      }
+      // A fresh copy, the merger copies the errors of the request into the merged result.
+      return ResultMerger.merge(request.clone(), sliceResults, true);
+    }
+    finally
+    {
+      for (FutureTask<SenseiResult> future : futures)
+      {
+        future.cancel(true);
+      }
+      for (SenseiResult res : sliceResults)
+      {
+        SortCollector sortCollector = res.getSortCollector();
+        if (sortCollector != null)
+        {
+          sortCollector.close();
+        }
+      }
+    }
+  }
+
+  private Callable<SenseiResult> newSliceTask(SenseiRequest request, final List<BoboIndexReader> slice,
+      final SenseiQueryBuilderFactory queryBuilderFactory) {
+    final SenseiRequest sliceRequest = request.clone();
+    return new Callable<SenseiResult>()
+    {
+      public SenseiResult call() throws Exception
+      {
+        return browseSegments(sliceRequest, slice, queryBuilderFactory);
+      }
+    };
+  }
+
 	@Override
 	public SenseiResult mergePartitionedResults(SenseiRequest r,
 			List<SenseiResult> resultList) {
@@ -370,6 +466,19 @@ public class CoreSenseiServiceImpl extends AbstractSenseiCoreService<SenseiReque
     }
 	}
 
+	@Override
+	protected Object getResultCacheKey(SenseiRequest request) {
+	  // map reduce functions do not implement equals
+	  if (request.getMapReduceFunction() != null)
+	    return null;
+	  return new SenseiRequestKey(request);
+	}
+
+	@Override
+	protected boolean isResultCacheable(SenseiResult result) {
+	  return result.getErrors().isEmpty();
+	}
+
 	@Override
 	public SenseiResult getEmptyResultInstance(Throwable error) {
 		return new SenseiResult();
@@ -0,0 +1,293 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+package com.senseidb.svc.impl;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.senseidb.metrics.MetricFactory;
+import com.senseidb.metrics.MetricsConstants;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+
+/**
+ * LRU cache of merged node results.
+ * <p>
+ * Entries are grouped by scope (the set of partitions a request was served from) and tagged with
+ * the reader generation of that scope, i.e. the reader version of each of its partitions. Once a
+ * result computed against a newer generation is put into the cache, all entries of the same scope
+ * tagged with an older generation are dropped, and results still being computed against an older
+ * generation are not cached when they are put afterwards.
+ * The cache is bounded both by number of entries and by the estimated size of the cached results,
+ * and entries older than the configured maximum age are never served, since not every update
+ * (e.g. activity values) produces a new reader generation.
+ */
+public class SenseiResultCache
+{
+  public static final int DEFAULT_MAX_ENTRIES = 0;
+  public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+  public static final long DEFAULT_MAX_AGE = 5000;
+
+  private final int _maxEntries;
+  private final long _maxBytes;
+  private final long _maxAge;
+  private final Comparator<String> _versionComparator;
+
+  private final LinkedHashMap<Key, Entry> _entries;
+  private final Map<String, String[]> _generations;
+  private long _bytes;
+
+  private final Meter _hitMeter;
+  private final Meter _missMeter;
+  private final Meter _evictionMeter;
+
+  /**
+   * @param maxEntries maximum number of cached results
+   * @param maxBytes maximum estimated size in bytes of all cached results
+   * @param maxAge time in milliseconds a result may be served from the cache, 0 for no limit
+   */
+  public SenseiResultCache(int maxEntries, long maxBytes, long maxAge)
+  {
+    this(maxEntries, maxBytes, maxAge, null);
+  }
+
+  /**
+   * @param maxEntries maximum number of cached results
+   * @param maxBytes maximum estimated size in bytes of all cached results
+   * @param maxAge time in milliseconds a result may be served from the cache, 0 for no limit
+   * @param versionComparator orders the reader versions of a partition, if null any generation
+   *        different from the current one of a scope is considered newer
+   */
+  public SenseiResultCache(int maxEntries, long maxBytes, long maxAge, Comparator<String> versionComparator)
+  {
+    if (maxEntries <= 0 || maxBytes <= 0)
+    {
+      throw new IllegalArgumentException("max entries and max bytes must be > 0: " + maxEntries + "/" + maxBytes);
+    }
+    _maxEntries = maxEntries;
+    _maxBytes = maxBytes;
+    _maxAge = maxAge;
+    _versionComparator = versionComparator;
+    _entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    _generations = new HashMap<String, String[]>();
+    _bytes = 0;
+
+    _hitMeter = MetricFactory.newMeter(new MetricName(MetricsConstants.Domain, "meter", "result-cache-hit", "cache"),
+                                       "requests",
+                                       TimeUnit.SECONDS);
+    _missMeter = MetricFactory.newMeter(new MetricName(MetricsConstants.Domain, "meter", "result-cache-miss", "cache"),
+                                        "requests",
+                                        TimeUnit.SECONDS);
+    _evictionMeter = MetricFactory.newMeter(new MetricName(MetricsConstants.Domain, "meter", "result-cache-eviction", "cache"),
+                                            "entries",
+                                            TimeUnit.SECONDS);
+    MetricFactory.newGauge(new MetricName(MetricsConstants.Domain, "gauge", "result-cache-bytes", "cache"),
+                           new Gauge<Long>()
+                           {
+                             @Override
+                             public Long value()
+                             {
+                               return getBytes();
+                             }
+                           });
+  }
+
+  /**
+   * Returns the cached result of a request, or null if there is none for the given generation.
+   *
+   * @param scope identifies the partitions the request is served from
+   * @param generation reader versions of the partitions, in scope order
+   * @param requestKey key of the request, must implement equals and hashCode
+   */
+  public synchronized Object get(String scope, String[] generation, Object requestKey)
+  {
+    Key key = new Key(scope, generation, requestKey);
+    Entry entry = _entries.get(key);
+    if (entry != null && _maxAge > 0 && System.currentTimeMillis() - entry.created > _maxAge)
+    {
+      remove(key);
+      entry = null;
+    }
+    if (entry == null)
+    {
+      _missMeter.mark();
+      return null;
+    }
+    _hitMeter.mark();
+    return entry.value;
+  }
+
+  /**
+   * Caches the result of a request. Results larger than the whole cache are not cached, nor are
+   * results computed against an older generation than the latest one put for the same scope.
+   *
+   * @param bytes estimated size of the result
+   */
+  public synchronized void put(String scope, String[] generation, Object requestKey, Object value, long bytes)
+  {
+    if (bytes > _maxBytes)
+    {
+      return;
+    }
+    String[] current = _generations.get(scope);
+    if (current != null && !Arrays.equals(current, generation))
+    {
+      if (isOlder(generation, current))
+      {
+        return;
+      }
+      _generations.put(scope, generation);
+      invalidate(scope, generation);
+    }
+    else if (current == null)
+    {
+      _generations.put(scope, generation);
+    }
+    Key key = new Key(scope, generation, requestKey);
+    remove(key);
+    _entries.put(key, new Entry(value, bytes));
+    _bytes += bytes;
+
+    Iterator<Map.Entry<Key, Entry>> iter = _entries.entrySet().iterator();
+    while ((_entries.size() > _maxEntries || _bytes > _maxBytes) && iter.hasNext())
+    {
+      Entry eldest = iter.next().getValue();
+      iter.remove();
+      _bytes -= eldest.bytes;
+      _evictionMeter.mark();
+    }
+  }
+
+  public synchronized void clear()
+  {
+    _entries.clear();
+    _generations.clear();
+    _bytes = 0;
+  }
+
+  public synchronized int size()
+  {
+    return _entries.size();
+  }
+
+  public synchronized long getBytes()
+  {
+    return _bytes;
+  }
+
+  /**
+   * Returns whether any partition of the generation has an older reader version than in the
+   * current generation of the same scope.
+   */
+  private boolean isOlder(String[] generation, String[] current)
+  {
+    if (_versionComparator == null || generation.length != current.length)
+    {
+      return false;
+    }
+    for (int i = 0; i < generation.length; ++i)
+    {
+      if (generation[i] != null && current[i] != null && !generation[i].equals(current[i])
+          && _versionComparator.compare(generation[i], current[i]) < 0)
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void invalidate(String scope, String[] generation)
+  {
+    Iterator<Map.Entry<Key, Entry>> iter = _entries.entrySet().iterator();
+    while (iter.hasNext())
+    {
+      Map.Entry<Key, Entry> entry = iter.next();
+      Key key = entry.getKey();
+      if (key.scope.equals(scope) && !Arrays.equals(key.generation, generation))
+      {
+        iter.remove();
+        _bytes -= entry.getValue().bytes;
+        _evictionMeter.mark();
+      }
+    }
+  }
+
+  private void remove(Key key)
+  {
+    Entry entry = _entries.remove(key);
+    if (entry != null)
+    {
+      _bytes -= entry.bytes;
+    }
+  }
+
+  private static final class Key
+  {
+    final String scope;
+    final String[] generation;
+    final Object requestKey;
+    final int hash;
+
+    Key(String scope, String[] generation, Object requestKey)
+    {
+      this.scope = scope;
+      this.generation = generation;
+      this.requestKey = requestKey;
+      this.hash = 31 * (31 * scope.hashCode() + Arrays.hashCode(generation)) + requestKey.hashCode();
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      if (!(o instanceof Key))
+        return false;
+      Key other = (Key) o;
+      return hash == other.hash
+          && scope.equals(other.scope)
+          && Arrays.equals(generation, other.generation)
+          && requestKey.equals(other.requestKey);
+    }
+  }
+
+  private static final class Entry
+  {
+    final Object value;
+    final long bytes;
+    final long created;
+
+    Entry(Object value, long bytes)
+    {
+      this.value = value;
+      this.bytes = bytes;
+      this.created = System.currentTimeMillis();
+    }
+  }
+}
@@ -0,0 +1,256 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+package com.senseidb.svc.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.util.NamedThreadFactory;
+
+import com.browseengine.bobo.api.BoboIndexReader;
+import com.senseidb.metrics.MetricFactory;
+import com.senseidb.metrics.MetricsConstants;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+
+/**
+ * Runs the partition (and segment slice) searches of a node on a bounded thread pool.
+ * <p>
+ * Tasks beyond the pool size wait in a bounded queue; once the queue is full new tasks are
+ * rejected, which lets the node shed load instead of spawning threads without limit. A thread
+ * waiting on a task that has not started yet takes the task back from the queue and runs it
+ * itself, so nested slice searches cannot starve the pool. Tasks still running when the
+ * request deadline passes are cancelled.
+ */
+public class SenseiSearchScheduler
+{
+  private static final Logger logger = Logger.getLogger(SenseiSearchScheduler.class);
+
+  public static final int DEFAULT_THREAD_POOL_SIZE = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+  public static final int DEFAULT_QUEUE_SIZE = 1000;
+  public static final long DEFAULT_TIMEOUT = 8000;
+  public static final int DEFAULT_MAX_SEGMENT_SLICES = 1;
+  public static final int DEFAULT_MIN_SLICE_DOCS = 100000;
+  public static final boolean DEFAULT_PARALLEL_MAP = false;
+
+  private final ThreadPoolExecutor _executor;
+  private final long _timeout;
+  private final int _maxSegmentSlices;
+  private final int _minSliceDocs;
+  private volatile boolean _parallelMap = DEFAULT_PARALLEL_MAP;
+
+  private final Meter _rejectedMeter;
+  private final Meter _cancelledMeter;
+
+  public SenseiSearchScheduler()
+  {
+    this(DEFAULT_THREAD_POOL_SIZE, DEFAULT_QUEUE_SIZE, DEFAULT_TIMEOUT, DEFAULT_MAX_SEGMENT_SLICES, DEFAULT_MIN_SLICE_DOCS);
+  }
+
+  /**
+   * @param threadPoolSize number of searcher threads
+   * @param queueSize maximum number of search tasks waiting for a thread before new ones are rejected
+   * @param timeout time in milliseconds a request may spend searching before its remaining tasks are cancelled
+   * @param maxSegmentSlices maximum number of slices the segments of a single partition are split into, 1 disables splitting
+   * @param minSliceDocs minimum number of documents a slice should contain
+   */
+  public SenseiSearchScheduler(int threadPoolSize, int queueSize, long timeout, int maxSegmentSlices, int minSliceDocs)
+  {
+    if (threadPoolSize <= 0 || queueSize <= 0)
+    {
+      throw new IllegalArgumentException("thread pool size and queue size must be > 0: " + threadPoolSize + "/" + queueSize);
+    }
+    _timeout = timeout;
+    _maxSegmentSlices = Math.max(1, maxSegmentSlices);
+    _minSliceDocs = Math.max(1, minSliceDocs);
+    _executor = new ThreadPoolExecutor(threadPoolSize,
+                                       threadPoolSize,
+                                       60,
+                                       TimeUnit.SECONDS,
+                                       new ArrayBlockingQueue<Runnable>(queueSize),
+                                       new NamedThreadFactory("parallel-searcher"),
+                                       new ThreadPoolExecutor.AbortPolicy());
+    _executor.allowCoreThreadTimeOut(true);
+
+    _rejectedMeter = MetricFactory.newMeter(new MetricName(MetricsConstants.Domain, "meter", "search-rejected", "scheduler"),
+                                            "tasks",
+                                            TimeUnit.SECONDS);
+    _cancelledMeter = MetricFactory.newMeter(new MetricName(MetricsConstants.Domain, "meter", "search-cancelled", "scheduler"),
+                                             "tasks",
+                                             TimeUnit.SECONDS);
+    MetricFactory.newGauge(new MetricName(MetricsConstants.Domain, "gauge", "search-queue-depth", "scheduler"),
+                           new Gauge<Integer>()
+                           {
+                             @Override
+                             public Integer value()
+                             {
+                               return _executor.getQueue().size();
+                             }
+                           });
+  }
+
+  public long getTimeout()
+  {
+    return _timeout;
+  }
+
+  /**
+   * Whether the map phase of map reduce requests runs one task per segment on this pool. The map and
+   * combine functions of the requests are then called concurrently, so they must not keep any state
+   * besides their parameters.
+   */
+  public boolean isParallelMap()
+  {
+    return _parallelMap;
+  }
+
+  public void setParallelMap(boolean parallelMap)
+  {
+    _parallelMap = parallelMap;
+  }
+
+  /**
+   * Queues a search task.
+   *
+   * @throws RejectedExecutionException if the queue is full
+   */
+  public <T> FutureTask<T> submit(Callable<T> task)
+  {
+    FutureTask<T> future = new FutureTask<T>(task);
+    try
+    {
+      _executor.execute(future);
+    }
+    catch (RejectedExecutionException e)
+    {
+      _rejectedMeter.mark();
+      throw e;
+    }
+    return future;
+  }
+
+  /**
+   * Waits for a task submitted through {@link #submit(Callable)} until the given deadline.
+   * A task that has not been picked up by a searcher thread yet is run on the calling thread.
+   * A task that does not complete before the deadline is cancelled.
+   *
+   * @param deadline absolute time in milliseconds
+   */
+  public <T> T await(FutureTask<T> future, long deadline) throws InterruptedException, ExecutionException, TimeoutException
+  {
+    if (!future.isDone() && _executor.remove(future))
+    {
+      future.run();
+    }
+    long remaining = deadline - System.currentTimeMillis();
+    try
+    {
+      return future.get(Math.max(0L, remaining), TimeUnit.MILLISECONDS);
+    }
+    catch (TimeoutException e)
+    {
+      if (future.cancel(true))
+      {
+        _cancelledMeter.mark();
+      }
+      throw new TimeoutException("search did not complete within " + _timeout + "ms");
+    }
+  }
+
+  /**
+   * Splits the segments of a partition into slices of roughly equal document counts that can be
+   * searched in parallel. Segments keep their relative order within a slice. Returns a single
+   * slice when the partition is too small to be worth splitting.
+   */
+  public List<List<BoboIndexReader>> split(List<BoboIndexReader> segmentReaders)
+  {
+    long totalDocs = 0;
+    for (BoboIndexReader reader : segmentReaders)
+    {
+      totalDocs += reader.numDocs();
+    }
+    int numSlices = (int) Math.min(Math.min(_maxSegmentSlices, segmentReaders.size()), totalDocs / _minSliceDocs);
+    if (numSlices <= 1)
+    {
+      return Collections.singletonList(segmentReaders);
+    }
+
+    // Greedily assign the largest segments to the least loaded slices.
+    List<BoboIndexReader> bySize = new ArrayList<BoboIndexReader>(segmentReaders);
+    Collections.sort(bySize, new Comparator<BoboIndexReader>()
+    {
+      @Override
+      public int compare(BoboIndexReader r1, BoboIndexReader r2)
+      {
+        int d1 = r1.numDocs();
+        int d2 = r2.numDocs();
+        return d1 > d2 ? -1 : (d1 == d2 ? 0 : 1);
+      }
+    });
+    long[] sliceDocs = new long[numSlices];
+    Map<BoboIndexReader, Integer> assignment = new IdentityHashMap<BoboIndexReader, Integer>();
+    for (BoboIndexReader reader : bySize)
+    {
+      int target = 0;
+      for (int i = 1; i < numSlices; ++i)
+      {
+        if (sliceDocs[i] < sliceDocs[target])
+        {
+          target = i;
+        }
+      }
+      sliceDocs[target] += reader.numDocs();
+      assignment.put(reader, target);
+    }
+
+    List<List<BoboIndexReader>> slices = new ArrayList<List<BoboIndexReader>>(numSlices);
+    for (int i = 0; i < numSlices; ++i)
+    {
+      slices.add(new ArrayList<BoboIndexReader>());
+    }
+    for (BoboIndexReader reader : segmentReaders)
+    {
+      slices.get(assignment.get(reader)).add(reader);
+    }
+    if (logger.isDebugEnabled())
+    {
+      logger.debug("split " + segmentReaders.size() + " segments with " + totalDocs + " docs into " + numSlices + " slices");
+    }
+    return slices;
+  }
+
+  public void shutdown()
+  {
+    _executor.shutdownNow();
+  }
+}
@@ -0,0 +1,592 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+package com.senseidb.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.alibaba.fastjson.JSON;
+
+/**
+ * Writes the JSON text directly into the stream as UTF-8, through one buffer reused for the whole
+ * document, instead of building the JSONObject tree and its string first. The names and values
+ * are written in the order of the calls, the writer only adds the separators.
+ */
+public class JSONStreamWriter
+{
+  private static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+  private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+  private final OutputStream _out;
+  private final byte[] _buffer;
+  private int _count = 0;
+
+  // whether a value was already written into the enclosing object or array of the level
+  private boolean[] _hasValue = new boolean[16];
+  private int _depth = 0;
+  private boolean _afterName = false;
+
+  public JSONStreamWriter(OutputStream out)
+  {
+    this(out, DEFAULT_BUFFER_SIZE);
+  }
+
+  public JSONStreamWriter(OutputStream out, int bufferSize)
+  {
+    _out = out;
+    _buffer = new byte[Math.max(bufferSize, 16)];
+  }
+
+  public JSONStreamWriter startObject() throws IOException
+  {
+    beforeValue();
+    writeByte('{');
+    push();
+    return this;
+  }
+
+  public JSONStreamWriter endObject() throws IOException
+  {
+    pop();
+    writeByte('}');
+    return this;
+  }
+
+  public JSONStreamWriter startArray() throws IOException
+  {
+    beforeValue();
+    writeByte('[');
+    push();
+    return this;
+  }
+
+  public JSONStreamWriter endArray() throws IOException
+  {
+    pop();
+    writeByte(']');
+    return this;
+  }
+
+  public JSONStreamWriter name(String name) throws IOException
+  {
+    beforeValue();
+    writeString(name);
+    writeByte(':');
+    _afterName = true;
+    return this;
+  }
+
+  /**
+   * Writes the name and the value, unless the value is null, in the same way as JSONObject.put
+   * skips the null values
+   */
+  public JSONStreamWriter field(String name, Object value) throws IOException
+  {
+    if (value != null)
+    {
+      name(name);
+      value(value);
+    }
+    return this;
+  }
+
+  public JSONStreamWriter nullValue() throws IOException
+  {
+    beforeValue();
+    writeAscii("null");
+    return this;
+  }
+
+  public JSONStreamWriter value(String value) throws IOException
+  {
+    if (value == null)
+    {
+      return nullValue();
+    }
+    beforeValue();
+    writeString(value);
+    return this;
+  }
+
+  public JSONStreamWriter value(long value) throws IOException
+  {
+    beforeValue();
+    writeAscii(Long.toString(value));
+    return this;
+  }
+
+  public JSONStreamWriter value(double value) throws IOException
+  {
+    if (Double.isNaN(value) || Double.isInfinite(value))
+    {
+      return nullValue();
+    }
+    beforeValue();
+    writeAscii(Double.toString(value));
+    return this;
+  }
+
+  public JSONStreamWriter value(float value) throws IOException
+  {
+    if (Float.isNaN(value) || Float.isInfinite(value))
+    {
+      return nullValue();
+    }
+    beforeValue();
+    writeAscii(Float.toString(value));
+    return this;
+  }
+
+  public JSONStreamWriter value(boolean value) throws IOException
+  {
+    beforeValue();
+    writeAscii(value ? "true" : "false");
+    return this;
+  }
+
+  /**
+   * Writes any value the JSONObject accepts, the nested objects, arrays, maps and collections are
+   * serialized as a whole
+   */
+  public JSONStreamWriter value(Object value) throws IOException
+  {
+    if (value == null || value == JSONObject.NULL)
+    {
+      return nullValue();
+    }
+    if (value instanceof String)
+    {
+      return value((String) value);
+    }
+    if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte)
+    {
+      return value(((Number) value).longValue());
+    }
+    if (value instanceof Float)
+    {
+      return value(((Float) value).floatValue());
+    }
+    if (value instanceof Double)
+    {
+      return value(((Double) value).doubleValue());
+    }
+    if (value instanceof Boolean)
+    {
+      return value(((Boolean) value).booleanValue());
+    }
+    if (value instanceof Number || value instanceof JSONObject || value instanceof JSONArray)
+    {
+      return rawValue(value.toString());
+    }
+    if (value instanceof Map || value instanceof Collection || value.getClass().isArray())
+    {
+      return rawValue(JSON.toJSONString(value));
+    }
+    return value(value.toString());
+  }
+
+  /**
+   * Splices the already serialized JSON value as it is, without parsing it
+   */
+  public JSONStreamWriter rawValue(String json) throws IOException
+  {
+    beforeValue();
+    writeRaw(json);
+    return this;
+  }
+
+  /**
+   * Checks, that the text is exactly one well formed JSON object, so that it can be spliced with
+   * {@link #rawValue(String)}. The text is only scanned, nothing is built.
+   */
+  public static boolean isJSONObject(String text)
+  {
+    if (text == null)
+    {
+      return false;
+    }
+    int i = skipWhitespace(text, 0);
+    if (i == text.length() || text.charAt(i) != '{')
+    {
+      return false;
+    }
+    i = scanValue(text, i, 0);
+    return i >= 0 && skipWhitespace(text, i) == text.length();
+  }
+
+  /**
+   * Writes the text outside of the JSON structure, e.g. the JSONP callback
+   */
+  public JSONStreamWriter writeRaw(String text) throws IOException
+  {
+    int len = text.length();
+    for (int i = 0; i < len; ++i)
+    {
+      i = writeChar(text, i);
+    }
+    return this;
+  }
+
+  public void flush() throws IOException
+  {
+    flushBuffer();
+    _out.flush();
+  }
+
+  private void push()
+  {
+    if (_depth == _hasValue.length)
+    {
+      _hasValue = Arrays.copyOf(_hasValue, _depth << 1);
+    }
+    _hasValue[_depth++] = false;
+  }
+
+  private void pop()
+  {
+    if (_depth == 0)
+    {
+      throw new IllegalStateException("No object or array to end");
+    }
+    --_depth;
+    _afterName = false;
+  }
+
+  private void beforeValue() throws IOException
+  {
+    if (_afterName)
+    {
+      _afterName = false;
+      return;
+    }
+    if (_depth > 0)
+    {
+      if (_hasValue[_depth - 1])
+      {
+        writeByte(',');
+      }
+      _hasValue[_depth - 1] = true;
+    }
+  }
+
+  private static final int MAX_SCANNED_DEPTH = 512;
+
+  private static int skipWhitespace(String text, int i)
+  {
+    while (i < text.length())
+    {
+      char c = text.charAt(i);
+      if (c != ' ' && c != '\t' && c != '\n' && c != '\r')
+      {
+        break;
+      }
+      ++i;
+    }
+    return i;
+  }
+
+  /**
+   * @return the index after the value starting at i, or -1 if it is not valid JSON
+   */
+  private static int scanValue(String text, int i, int depth)
+  {
+    if (i >= text.length() || depth > MAX_SCANNED_DEPTH)
+    {
+      return -1;
+    }
+    char c = text.charAt(i);
+    if (c == '{' || c == '[')
+    {
+      char end = c == '{' ? '}' : ']';
+      i = skipWhitespace(text, i + 1);
+      if (i < text.length() && text.charAt(i) == end)
+      {
+        return i + 1;
+      }
+      while (true)
+      {
+        if (c == '{')
+        {
+          if (i >= text.length() || text.charAt(i) != '"')
+          {
+            return -1;
+          }
+          i = skipWhitespace(text, scanString(text, i));
+          if (i <= 0 || i >= text.length() || text.charAt(i) != ':')
+          {
+            return -1;
+          }
+          i = skipWhitespace(text, i + 1);
+        }
+        i = scanValue(text, i, depth + 1);
+        if (i < 0)
+        {
+          return -1;
+        }
+        i = skipWhitespace(text, i);
+        if (i >= text.length())
+        {
+          return -1;
+        }
+        if (text.charAt(i) == end)
+        {
+          return i + 1;
+        }
+        if (text.charAt(i) != ',')
+        {
+          return -1;
+        }
+        i = skipWhitespace(text, i + 1);
+      }
+    }
+    if (c == '"')
+    {
+      return scanString(text, i);
+    }
+    if (c == '-' || (c >= '0' && c <= '9'))
+    {
+      return scanNumber(text, i);
+    }
+    for (String literal : new String[] { "true", "false", "null" })
+    {
+      if (text.startsWith(literal, i))
+      {
+        return i + literal.length();
+      }
+    }
+    return -1;
+  }
+
+  private static int scanString(String text, int i)
+  {
+    int len = text.length();
+    for (++i; i < len; ++i)
+    {
+      char c = text.charAt(i);
+      if (c == '"')
+      {
+        return i + 1;
+      }
+      if (c < 0x20)
+      {
+        return -1;
+      }
+      if (c == '\\')
+      {
+        if (++i >= len)
+        {
+          return -1;
+        }
+        c = text.charAt(i);
+        if (c == 'u')
+        {
+          if (i + 4 >= len)
+          {
+            return -1;
+          }
+          for (int j = 1; j <= 4; ++j)
+          {
+            if (Character.digit(text.charAt(i + j), 16) < 0)
+            {
+              return -1;
+            }
+          }
+          i += 4;
+        }
+        else if ("\"\\/bfnrt".indexOf(c) < 0)
+        {
+          return -1;
+        }
+      }
+    }
+    return -1;
+  }
+
+  private static int scanNumber(String text, int i)
+  {
+    if (text.charAt(i) == '-')
+    {
+      ++i;
+    }
+    if (i < text.length() && text.charAt(i) == '0')
+    {
+      ++i;
+    }
+    else
+    {
+      int start = i;
+      i = scanDigits(text, i);
+      if (i == start)
+      {
+        return -1;
+      }
+    }
+    if (i < text.length() && text.charAt(i) == '.')
+    {
+      int start = ++i;
+      i = scanDigits(text, i);
+      if (i == start)
+      {
+        return -1;
+      }
+    }
+    if (i < text.length() && (text.charAt(i) == 'e' || text.charAt(i) == 'E'))
+    {
+      ++i;
+      if (i < text.length() && (text.charAt(i) == '+' || text.charAt(i) == '-'))
+      {
+        ++i;
+      }
+      int start = i;
+      i = scanDigits(text, i);
+      if (i == start)
+      {
+        return -1;
+      }
+    }
+    return i;
+  }
+
+  private static int scanDigits(String text, int i)
+  {
+    while (i < text.length() && text.charAt(i) >= '0' && text.charAt(i) <= '9')
+    {
+      ++i;
+    }
+    return i;
+  }
+
+  private void writeString(String value) throws IOException
+  {
+    writeByte('"');
+    int len = value.length();
+    for (int i = 0; i < len; ++i)
+    {
+      char c = value.charAt(i);
+      switch (c)
+      {
+        case '"': writeByte('\\'); writeByte('"'); break;
+        case '\\': writeByte('\\'); writeByte('\\'); break;
+        case '\b': writeByte('\\'); writeByte('b'); break;
+        case '\f': writeByte('\\'); writeByte('f'); break;
+        case '\n': writeByte('\\'); writeByte('n'); break;
+        case '\r': writeByte('\\'); writeByte('r'); break;
+        case '\t': writeByte('\\'); writeByte('t'); break;
+        default:
+          if (c < 0x20)
+          {
+            ensureCapacity(6);
+            _buffer[_count++] = '\\';
+            _buffer[_count++] = 'u';
+            _buffer[_count++] = '0';
+            _buffer[_count++] = '0';
+            _buffer[_count++] = HEX[c >> 4];
+            _buffer[_count++] = HEX[c & 0xF];
+          }
+          else
+          {
+            i = writeChar(value, i);
+          }
+      }
+    }
+    writeByte('"');
+  }
+
+  /**
+   * Encodes the char at the index as UTF-8, returns the index of the last char consumed
+   */
+  private int writeChar(String text, int i) throws IOException
+  {
+    char c = text.charAt(i);
+    ensureCapacity(4);
+    if (c < 0x80)
+    {
+      _buffer[_count++] = (byte) c;
+    }
+    else if (c < 0x800)
+    {
+      _buffer[_count++] = (byte) (0xC0 | (c >> 6));
+      _buffer[_count++] = (byte) (0x80 | (c & 0x3F));
+    }
+    else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1)))
+    {
+      int codePoint = Character.toCodePoint(c, text.charAt(++i));
+      _buffer[_count++] = (byte) (0xF0 | (codePoint >> 18));
+      _buffer[_count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+      _buffer[_count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+      _buffer[_count++] = (byte) (0x80 | (codePoint & 0x3F));
+    }
+    else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE)
+    {
+      // unpaired surrogate, replaced the same way as String.getBytes does
+      _buffer[_count++] = '?';
+    }
+    else
+    {
+      _buffer[_count++] = (byte) (0xE0 | (c >> 12));
+      _buffer[_count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+      _buffer[_count++] = (byte) (0x80 | (c & 0x3F));
+    }
+    return i;
+  }
+
+  private void writeAscii(String text) throws IOException
+  {
+    int len = text.length();
+    ensureCapacity(len);
+    if (len > _buffer.length)
+    {
+      _out.write(text.getBytes("UTF-8"));
+      return;
+    }
+    for (int i = 0; i < len; ++i)
+    {
+      _buffer[_count++] = (byte) text.charAt(i);
+    }
+  }
+
+  private void writeByte(char c) throws IOException
+  {
+    ensureCapacity(1);
+    _buffer[_count++] = (byte) c;
+  }
+
+  private void ensureCapacity(int len) throws IOException
+  {
+    if (_count + len > _buffer.length)
+    {
+      flushBuffer();
+    }
+  }
+
+  private void flushBuffer() throws IOException
+  {
+    if (_count > 0)
+    {
+      _out.write(_buffer, 0, _count);
+      _count = 0;
+    }
+  }
+}
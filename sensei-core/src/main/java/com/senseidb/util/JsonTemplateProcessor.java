@@ -27,13 +27,23 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.apache.log4j.Logger;
+
+import com.senseidb.util.JSONUtil.FastJSONArray;
+import com.senseidb.util.JSONUtil.FastJSONObject;
+
 public class JsonTemplateProcessor{
   public static final String TEMPLATE_MAPPING_PARAM = "templateMapping";
   private final static Logger logger = Logger.getLogger(JsonTemplateProcessor.class);
 
   public Map<String, Object> getTemplates(JSONObject request) {
+    return getTemplateValues(request.optJSONObject(TEMPLATE_MAPPING_PARAM));
+  }
+
+  /**
+   * @param templatesJson the value of the {@link #TEMPLATE_MAPPING_PARAM}, may be null
+   */
+  public Map<String, Object> getTemplateValues(JSONObject templatesJson) {
     Map<String, Object> ret = new HashMap<String, Object>();
-    JSONObject templatesJson = request.optJSONObject(TEMPLATE_MAPPING_PARAM);
     if (templatesJson == null) {
       return ret;
     }
@@ -81,6 +91,60 @@ public class JsonTemplateProcessor{
     return src;
   }
 
+  /**
+   * Substitutes the templates in the same way as {@link #process(Object, Map)}, but leaves the
+   * source untouched. Only the objects and arrays with a substituted value somewhere below are
+   * copied, the rest is shared between the source and the result, so a compiled source can be
+   * bound again and again.
+   */
+  public Object bind(Object src, Map<String, Object> templates) throws JSONException {
+    if (src instanceof String) {
+      return processString((String) src, templates);
+    }
+    if (src instanceof JSONObject) {
+      JSONObject obj = (JSONObject) src;
+      String[] names = JSONObject.getNames(obj);
+      if (names == null || names.length == 0) {
+        return obj;
+      }
+      JSONObject ret = null;
+      for (int i = 0; i < names.length; i++) {
+        Object val = obj.get(names[i]);
+        Object newVal = bind(val, templates);
+        Object newName = processString(names[i], templates);
+        if (ret == null && (newVal != val || newName != names[i])) {
+          ret = new FastJSONObject(names.length);
+          for (int j = 0; j < i; j++) {
+            ret.put(names[j], obj.get(names[j]));
+          }
+        }
+        if (ret != null) {
+          ret.put(newName.toString(), newVal);
+        }
+      }
+      return ret == null ? obj : ret;
+    }
+    if (src instanceof JSONArray) {
+      JSONArray arr = (JSONArray) src;
+      JSONArray ret = null;
+      for (int i = 0; i < arr.length(); i++) {
+        Object val = arr.get(i);
+        Object newVal = bind(val, templates);
+        if (ret == null && newVal != val) {
+          ret = new FastJSONArray(arr.length());
+          for (int j = 0; j < i; j++) {
+            ret.put(arr.get(j));
+          }
+        }
+        if (ret != null) {
+          ret.put(newVal);
+        }
+      }
+      return ret == null ? arr : ret;
+    }
+    return src;
+  }
+
   private JSONObject processJsonObject(JSONObject src, Map<String, Object> templates) throws JSONException {
     if (src == null) {
       return null;
@@ -209,8 +209,19 @@ public class RequestConverter2 {
                                        final Map<String, String[]> facetInfoMap)
     throws Exception
   {
-	  json = jsonTemplateProcessor.substituteTemplates(json);
+	  return fromSubstitutedJSON(jsonTemplateProcessor.substituteTemplates(json), facetInfoMap);
+  }
 
+  /**
+   * Builds SenseiRequest based on a JSON object, whose templates are already substituted, e.g.
+   * bound by {@link JsonTemplateProcessor#bind(Object, Map)}. The JSON object is not modified.
+   *
+   * @see #fromJSON(JSONObject, Map)
+   */
+  public static SenseiRequest fromSubstitutedJSON(JSONObject json,
+                                                  final Map<String, String[]> facetInfoMap)
+    throws Exception
+  {
 	  SenseiRequest req = new SenseiRequest();
 
     JSONObject meta = json.optJSONObject("meta");
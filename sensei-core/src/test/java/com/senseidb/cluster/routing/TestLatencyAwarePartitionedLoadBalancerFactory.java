@@ -0,0 +1,213 @@
+package com.senseidb.cluster.routing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.easymock.classextension.EasyMock;
+import org.junit.Test;
+
+import com.linkedin.norbert.javacompat.cluster.Node;
+import com.linkedin.norbert.javacompat.network.Endpoint;
+import com.linkedin.norbert.javacompat.network.PartitionedLoadBalancer;
+
+public class TestLatencyAwarePartitionedLoadBalancerFactory {
+  private final NodeLoadTracker tracker = new NodeLoadTracker(0.5);
+  private final LatencyAwarePartitionedLoadBalancerFactory factory = new LatencyAwarePartitionedLoadBalancerFactory(tracker);
+
+  private static Set<Integer> partitions(Integer... partitions) {
+    return new HashSet<Integer>(Arrays.asList(partitions));
+  }
+
+  private static Node node(int id, Integer... partitions) {
+    Node node = EasyMock.createMock(Node.class);
+    EasyMock.expect(node.getId()).andReturn(id).anyTimes();
+    EasyMock.expect(node.getPartitionIds()).andReturn(partitions(partitions)).anyTimes();
+    EasyMock.replay(node);
+    return node;
+  }
+
+  private static Endpoint endpoint(Node node, boolean canServeRequests) {
+    Endpoint endpoint = EasyMock.createMock(Endpoint.class);
+    EasyMock.expect(endpoint.getNode()).andReturn(node).anyTimes();
+    EasyMock.expect(endpoint.canServeRequests()).andReturn(canServeRequests).anyTimes();
+    EasyMock.replay(endpoint);
+    return endpoint;
+  }
+
+  private static Set<Endpoint> endpoints(Endpoint... endpoints) {
+    return new HashSet<Endpoint>(Arrays.asList(endpoints));
+  }
+
+  private static String random() {
+    return LatencyAwarePartitionedLoadBalancerFactory.RANDOM_ROUTE_PARAM_PREFIX + Math.random();
+  }
+
+  @Test
+  public void testLoadTracker() {
+    tracker.requestSent(1);
+    tracker.requestSent(1);
+    assertEquals(2, tracker.getOutstanding(1));
+    assertEquals(0.0, tracker.getCost(1), 0.0);
+    tracker.responseReceived(1, 100);
+    assertEquals(100.0, tracker.getResponseTime(1), 0.0);
+    assertEquals(200.0, tracker.getCost(1), 0.0);
+    tracker.responseReceived(1, 50);
+    assertEquals(75.0, tracker.getResponseTime(1), 0.0);
+    assertEquals(0, tracker.getOutstanding(1));
+  }
+
+  @Test
+  public void testResponseTimeDecay() {
+    NodeLoadTracker tracker = new NodeLoadTracker(0.3);
+    tracker.responseReceived(1, 100);
+    double expected = 100;
+    for (int i = 0; i < 10; ++i) {
+      tracker.responseReceived(1, 10);
+      expected = expected + 0.3 * (10 - expected);
+      assertEquals(expected, tracker.getResponseTime(1), 1e-9);
+    }
+    assertEquals(10 + 90 * Math.pow(0.7, 10), tracker.getResponseTime(1), 1e-9);
+
+    // the cancelled requests are not sampled
+    tracker.requestSent(1);
+    tracker.requestSent(1);
+    tracker.requestCancelled(1);
+    assertEquals(expected, tracker.getResponseTime(1), 0.0);
+    assertEquals(1, tracker.getOutstanding(1));
+    assertEquals(expected * 2, tracker.getCost(1), 1e-9);
+    tracker.requestCancelled(1);
+    tracker.requestCancelled(1);
+    assertEquals(0, tracker.getOutstanding(1));
+  }
+
+  @Test
+  public void testRecoveredReplicaIsPreferredAgain() throws Exception {
+    Node recovering = node(1, 0);
+    Node steady = node(2, 0);
+    PartitionedLoadBalancer<String> lb = factory.newLoadBalancer(endpoints(endpoint(recovering, true), endpoint(steady, true)));
+    tracker.responseReceived(1, 1000);
+    tracker.responseReceived(2, 100);
+    assertEquals(steady, lb.nextNode(random()));
+    // 1000 -> 502.5 -> 253.75 -> 129.375 -> 67.1875
+    for (int i = 0; i < 4; ++i) {
+      tracker.responseReceived(1, 5);
+    }
+    assertTrue(tracker.getResponseTime(1) < tracker.getResponseTime(2));
+    for (int i = 0; i < 20; ++i) {
+      assertEquals(recovering, lb.nextNode(random()));
+    }
+  }
+
+  @Test
+  public void testPowerOfTwoChoices() throws Exception {
+    Node[] nodes = new Node[] {node(1, 0), node(2, 0), node(3, 0), node(4, 0)};
+    Endpoint[] endpoints = new Endpoint[nodes.length];
+    for (int i = 0; i < nodes.length; ++i) {
+      tracker.responseReceived(nodes[i].getId(), 10 * (i + 1));
+      endpoints[i] = endpoint(nodes[i], true);
+    }
+    PartitionedLoadBalancer<String> lb = factory.newLoadBalancer(endpoints(endpoints));
+
+    // the two candidates differ, so the slowest replica never wins, while the others still get some of the load
+    Map<Node, Integer> picks = new HashMap<Node, Integer>();
+    for (int i = 0; i < 1000; ++i) {
+      Node node = lb.nodesForOneReplica(random()).keySet().iterator().next();
+      Integer count = picks.get(node);
+      picks.put(node, count == null ? 1 : count + 1);
+    }
+    assertFalse(picks.containsKey(nodes[3]));
+    assertEquals(3, picks.size());
+    assertTrue(picks.get(nodes[0]) > picks.get(nodes[1]));
+    assertTrue(picks.get(nodes[1]) > picks.get(nodes[2]));
+
+    // the outstanding requests count against the replica
+    for (int i = 0; i < 10; ++i) {
+      tracker.requestSent(1);
+    }
+    picks.clear();
+    for (int i = 0; i < 1000; ++i) {
+      Node node = lb.nextNode(random());
+      picks.put(node, 1);
+    }
+    assertFalse(picks.containsKey(nodes[0]));
+  }
+
+  @Test
+  public void testPrefersFasterReplica() throws Exception {
+    Node slow = node(1, 0, 1);
+    Node fast = node(2, 0, 1);
+    tracker.responseReceived(1, 500);
+    tracker.responseReceived(2, 5);
+    PartitionedLoadBalancer<String> lb = factory.newLoadBalancer(endpoints(endpoint(slow, true), endpoint(fast, true)));
+
+    for (int i = 0; i < 20; ++i) {
+      Map<Node, Set<Integer>> routes = lb.nodesForOneReplica(random());
+      assertEquals(1, routes.size());
+      assertEquals(partitions(0, 1), routes.get(fast));
+    }
+  }
+
+  @Test
+  public void testRouteParamIsSticky() throws Exception {
+    Node n1 = node(1, 0, 1);
+    Node n2 = node(2, 0, 1);
+    Node n3 = node(3, 0, 1);
+    PartitionedLoadBalancer<String> lb = factory.newLoadBalancer(endpoints(endpoint(n1, true), endpoint(n2, true), endpoint(n3, true)));
+
+    for (int i = 0; i < 10; ++i) {
+      String routeParam = "member" + i;
+      Map<Node, Set<Integer>> routes = lb.nodesForOneReplica(routeParam);
+      tracker.responseReceived(routes.keySet().iterator().next().getId(), 1000);
+      assertEquals(routes, lb.nodesForOneReplica(routeParam));
+      assertEquals(routes, factory.newLoadBalancer(endpoints(endpoint(n3, true), endpoint(n2, true), endpoint(n1, true))).nodesForOneReplica(routeParam));
+    }
+  }
+
+  @Test
+  public void testRouteParamsSpreadOverReplicas() throws Exception {
+    Node n1 = node(1, 0, 1);
+    Node n2 = node(2, 0, 1);
+    Node n3 = node(3, 0, 1);
+    PartitionedLoadBalancer<String> lb = factory.newLoadBalancer(endpoints(endpoint(n1, true), endpoint(n2, true), endpoint(n3, true)));
+    // the load does not move the sticky requests
+    tracker.responseReceived(1, 10000);
+    tracker.responseReceived(2, 1);
+
+    Set<Node> used = new HashSet<Node>();
+    for (int i = 0; i < 100; ++i) {
+      String routeParam = "member" + i;
+      Node node = lb.nextNode(routeParam);
+      used.add(node);
+      for (int j = 0; j < 5; ++j) {
+        assertEquals(node, lb.nextNode(routeParam));
+        assertEquals(partitions(0, 1), lb.nodesForOneReplica(routeParam).get(node));
+      }
+    }
+    assertEquals(3, used.size());
+  }
+
+  @Test
+  public void testSkipsEndpointsThatCannotServe() throws Exception {
+    Node down = node(1, 0);
+    Node up = node(2, 0);
+    Node other = node(3, 1);
+    Set<Endpoint> endpoints = endpoints(endpoint(down, false), endpoint(up, true), endpoint(other, true));
+    PartitionedLoadBalancer<String> lb = factory.newLoadBalancer(endpoints);
+
+    for (int i = 0; i < 10; ++i) {
+      Map<Node, Set<Integer>> routes = lb.nodesForPartitions(random(), partitions(0, 1));
+      assertFalse(routes.containsKey(down));
+      assertEquals(partitions(0), routes.get(up));
+      assertEquals(partitions(1), routes.get(other));
+      assertTrue(lb.nextNode(random()) != down);
+    }
+    assertEquals(2, factory.getNumPartitions(endpoints).intValue());
+  }
+}
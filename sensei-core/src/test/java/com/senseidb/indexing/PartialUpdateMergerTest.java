@@ -0,0 +1,214 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+package com.senseidb.indexing;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.json.JSONObject;
+
+import proj.zoie.api.DataConsumer.DataEvent;
+
+import com.senseidb.util.JSONUtil.FastJSONObject;
+
+public class PartialUpdateMergerTest extends TestCase
+{
+  private static class MapSourceLookup implements PartialUpdateMerger.SourceLookup
+  {
+    final Map<Long, JSONObject> sources = new HashMap<Long, JSONObject>();
+    final AtomicInteger reads = new AtomicInteger();
+    int opened;
+    boolean closed;
+
+    @Override
+    public void open(int partition)
+    {
+      opened++;
+    }
+
+    @Override
+    public JSONObject read(int partition, long uid) throws Exception
+    {
+      reads.incrementAndGet();
+      JSONObject source = sources.get(uid);
+      return source == null ? null : new FastJSONObject(source.toString());
+    }
+
+    @Override
+    public void close()
+    {
+      closed = true;
+    }
+  }
+
+  private static JSONObject doc(long uid, String type, Object... fields) throws Exception
+  {
+    JSONObject doc = new FastJSONObject().put("id", String.valueOf(uid));
+    if (type != null)
+      doc.put("type", type);
+    for (int i = 0; i < fields.length; i += 2)
+    {
+      doc.put((String) fields[i], fields[i + 1]);
+    }
+    return doc;
+  }
+
+  private static List<DataEvent<JSONObject>> dispatch(PartialUpdateMerger merger, MapSourceLookup lookup, JSONObject... events) throws Exception
+  {
+    return dispatch(merger, lookup, true, events);
+  }
+
+  private static List<DataEvent<JSONObject>> dispatch(PartialUpdateMerger merger, MapSourceLookup lookup, boolean indexed, JSONObject... events) throws Exception
+  {
+    PartialUpdateMerger.Batch batch = merger.newBatch();
+    List<DataEvent<JSONObject>> dataEvents = new LinkedList<DataEvent<JSONObject>>();
+    for (JSONObject event : events)
+    {
+      DataEvent<JSONObject> dataEvt = new DataEvent<JSONObject>(event, "1");
+      String type = event.optString("type", null);
+      if ("update".equals(type))
+        batch.addUpdate(0, dataEvt, event);
+      else
+        batch.addEvent(0, event, type);
+      dataEvents.add(dataEvt);
+    }
+    if (batch.hasUpdates())
+    {
+      batch.merge(lookup);
+      batch.apply(dataEvents);
+      if (indexed)
+        batch.publish();
+    }
+    return dataEvents;
+  }
+
+  public void testUpdatesAreChainedAndCached() throws Exception
+  {
+    PartialUpdateMerger merger = new PartialUpdateMerger("id", null, 10, 1);
+    MapSourceLookup lookup = new MapSourceLookup();
+    lookup.sources.put(1L, doc(1, null, "color", "red", "year", 2000));
+
+    List<DataEvent<JSONObject>> events = dispatch(merger, lookup,
+        doc(1, "update", "color", "blue"),
+        doc(1, "update", "year", 2001));
+    assertEquals(2, events.size());
+    assertEquals("blue", events.get(0).getData().getString("color"));
+    assertEquals(2000, events.get(0).getData().getInt("year"));
+    // the second update is merged on the first one, not on the indexed source
+    assertEquals("blue", events.get(1).getData().getString("color"));
+    assertEquals(2001, events.get(1).getData().getInt("year"));
+    assertEquals(1, lookup.reads.get());
+    assertEquals(1, lookup.opened);
+    assertTrue(lookup.closed);
+
+    events = dispatch(merger, lookup, doc(1, "update", "price", 100));
+    assertEquals("blue", events.get(0).getData().getString("color"));
+    assertEquals(2001, events.get(0).getData().getInt("year"));
+    assertEquals(100, events.get(0).getData().getInt("price"));
+    assertEquals(1, lookup.reads.get());
+    assertEquals(1, merger.getCacheSize());
+  }
+
+  public void testUpdatesAfterAddsAndDeletes() throws Exception
+  {
+    PartialUpdateMerger merger = new PartialUpdateMerger("id", null, 10, 1);
+    MapSourceLookup lookup = new MapSourceLookup();
+    lookup.sources.put(1L, doc(1, null, "color", "red"));
+    lookup.sources.put(2L, doc(2, null, "color", "red"));
+
+    List<DataEvent<JSONObject>> events = dispatch(merger, lookup,
+        doc(1, "update", "year", 2000),
+        doc(1, "add", "color", "green"),
+        doc(1, "update", "price", 100),
+        doc(2, "delete"),
+        doc(2, "update", "year", 2000),
+        doc(3, "update", "year", 2000));
+    assertEquals(4, events.size());
+    assertEquals("red", events.get(0).getData().getString("color"));
+    assertEquals("green", events.get(2).getData().getString("color"));
+    assertEquals(100, events.get(2).getData().getInt("price"));
+    assertFalse(events.get(2).getData().has("year"));
+    assertEquals("delete", events.get(3).getData().getString("type"));
+    // uid 2 was deleted and uid 3 was not found
+    assertEquals(2, lookup.reads.get());
+    assertEquals(1, merger.getCacheSize());
+
+    // an added document replaces the cached source
+    dispatch(merger, lookup, doc(1, "add", "color", "white"));
+    assertEquals(0, merger.getCacheSize());
+  }
+
+  public void testSourcesAreCachedOnceIndexed() throws Exception
+  {
+    PartialUpdateMerger merger = new PartialUpdateMerger("id", null, 10, 1);
+    MapSourceLookup lookup = new MapSourceLookup();
+    lookup.sources.put(1L, doc(1, null, "color", "red"));
+
+    // the batch is not indexed, the merged source is not cached
+    dispatch(merger, lookup, false, doc(1, "update", "color", "blue"));
+    assertEquals(0, merger.getCacheSize());
+
+    dispatch(merger, lookup, doc(1, "update", "year", 2000));
+    assertEquals(2, lookup.reads.get());
+    assertEquals(1, merger.getCacheSize());
+
+    // a failed batch drops the cached source, the next update reads the index again
+    dispatch(merger, lookup, false, doc(1, "update", "color", "green"));
+    assertEquals(0, merger.getCacheSize());
+    List<DataEvent<JSONObject>> events = dispatch(merger, lookup, doc(1, "update", "price", 100));
+    assertEquals(3, lookup.reads.get());
+    assertEquals("red", events.get(0).getData().getString("color"));
+    assertFalse(events.get(0).getData().has("year"));
+  }
+
+  public void testParallelMerge() throws Exception
+  {
+    PartialUpdateMerger merger = new PartialUpdateMerger("id", null, 100, 4);
+    MapSourceLookup lookup = new MapSourceLookup();
+    JSONObject[] updates = new JSONObject[1000];
+    for (int i = 0; i < updates.length; ++i)
+    {
+      lookup.sources.put((long) i, doc(i, null, "color", "red", "year", i));
+      updates[i] = doc(i, "update", "color", "blue");
+    }
+    try
+    {
+      List<DataEvent<JSONObject>> events = dispatch(merger, lookup, updates);
+      assertEquals(updates.length, events.size());
+      for (int i = 0; i < updates.length; ++i)
+      {
+        JSONObject merged = events.get(i).getData();
+        assertEquals(String.valueOf(i), merged.getString("id"));
+        assertEquals(i, merged.getInt("year"));
+        assertEquals("blue", merged.getString("color"));
+      }
+      assertEquals(updates.length, lookup.reads.get());
+      assertEquals(100, merger.getCacheSize());
+    }
+    finally
+    {
+      merger.shutdown();
+    }
+  }
+}
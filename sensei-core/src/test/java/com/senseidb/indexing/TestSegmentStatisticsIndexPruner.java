@@ -0,0 +1,208 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+package com.senseidb.indexing;
+
+import static org.easymock.classextension.EasyMock.createMock;
+import static org.easymock.classextension.EasyMock.expect;
+import static org.easymock.classextension.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.browseengine.bobo.api.BoboIndexReader;
+import com.browseengine.bobo.api.BrowseSelection;
+import com.browseengine.bobo.api.BrowseSelection.ValueOperation;
+import com.browseengine.bobo.facets.FacetHandler;
+import com.browseengine.bobo.facets.data.FacetDataCache;
+import com.browseengine.bobo.facets.data.TermDateList;
+import com.browseengine.bobo.facets.data.TermLongList;
+import com.browseengine.bobo.facets.data.TermStringList;
+import com.browseengine.bobo.facets.data.TermValueList;
+import com.browseengine.bobo.facets.impl.SimpleFacetHandler;
+import com.senseidb.indexing.SenseiIndexPruner.IndexReaderSelector;
+import com.senseidb.search.req.SenseiRequest;
+
+public class TestSegmentStatisticsIndexPruner {
+
+  private SegmentStatisticsIndexPruner pruner;
+  private BoboIndexReader cheap;
+  private BoboIndexReader expensive;
+
+  @Before
+  public void setup() {
+    pruner = new SegmentStatisticsIndexPruner();
+    cheap = createReader(
+        longs("10", "20", "30"),
+        strings("blue", "red"),
+        dates("2012/01/01", "2012/02/01"));
+    expensive = createReader(
+        longs("100", "200"),
+        strings("green", "red"),
+        dates("2013/01/01"));
+  }
+
+  private static TermValueList<?> longs(String... values) {
+    TermLongList list = new TermLongList();
+    list.add(null);
+    for (String value : values) {
+      list.add(value);
+    }
+    list.seal();
+    return list;
+  }
+
+  private static TermValueList<?> strings(String... values) {
+    TermStringList list = new TermStringList();
+    list.add(null);
+    for (String value : values) {
+      list.add(value);
+    }
+    list.seal();
+    return list;
+  }
+
+  private static TermValueList<?> dates(String... values) {
+    TermDateList list = new TermDateList("yyyy/MM/dd");
+    list.add(null);
+    for (String value : values) {
+      list.add(value);
+    }
+    list.seal();
+    return list;
+  }
+
+  private static BoboIndexReader createReader(TermValueList<?> price, TermValueList<?> color, TermValueList<?> date) {
+    Map<String, FacetHandler<?>> handlers = new HashMap<String, FacetHandler<?>>();
+    Map<String, FacetDataCache> facetData = new HashMap<String, FacetDataCache>();
+    String[] names = new String[] {"price", "color", "date"};
+    TermValueList<?>[] lists = new TermValueList<?>[] {price, color, date};
+    for (int i = 0; i < names.length; i++) {
+      handlers.put(names[i], new SimpleFacetHandler(names[i]));
+      FacetDataCache cache = new FacetDataCache();
+      cache.valArray = lists[i];
+      facetData.put(names[i], cache);
+    }
+    BoboIndexReader reader = createMock(BoboIndexReader.class);
+    expect(reader.getCoreCacheKey()).andReturn(new Object()).anyTimes();
+    expect(reader.getFacetHandlerMap()).andReturn(handlers).anyTimes();
+    for (String name : names) {
+      expect(reader.getFacetHandler(name)).andReturn(handlers.get(name)).anyTimes();
+      expect(reader.getFacetData(name)).andReturn(facetData.get(name)).anyTimes();
+    }
+    replay(reader);
+    return reader;
+  }
+
+  private static BrowseSelection selection(String name, ValueOperation operation, String... values) {
+    BrowseSelection selection = new BrowseSelection(name);
+    for (String value : values) {
+      selection.addValue(value);
+    }
+    selection.setSelectionOperation(operation);
+    return selection;
+  }
+
+  private IndexReaderSelector selector(BrowseSelection... selections) {
+    SenseiRequest req = new SenseiRequest();
+    for (BrowseSelection selection : selections) {
+      req.addSelection(selection);
+    }
+    return pruner.getReaderSelector(req);
+  }
+
+  @Test
+  public void testMinMaxRangePruning() throws IOException {
+    IndexReaderSelector selector = selector(selection("price", ValueOperation.ValueOperationOr, "[50 TO 150]"));
+    assertFalse(selector.isSelected(cheap));
+    assertTrue(selector.isSelected(expensive));
+
+    selector = selector(selection("price", ValueOperation.ValueOperationOr, "[* TO 10]"));
+    assertTrue(selector.isSelected(cheap));
+    assertFalse(selector.isSelected(expensive));
+
+    // the exclusive bound equal to the max term
+    selector = selector(selection("price", ValueOperation.ValueOperationOr, "(30 TO *)"));
+    assertFalse(selector.isSelected(cheap));
+    assertTrue(selector.isSelected(expensive));
+  }
+
+  @Test
+  public void testTermDictionaryPruning() throws IOException {
+    IndexReaderSelector selector = selector(selection("color", ValueOperation.ValueOperationOr, "blue"));
+    assertTrue(selector.isSelected(cheap));
+    assertFalse(selector.isSelected(expensive));
+
+    selector = selector(selection("color", ValueOperation.ValueOperationOr, "red"));
+    assertTrue(selector.isSelected(cheap));
+    assertTrue(selector.isSelected(expensive));
+
+    selector = selector(selection("price", ValueOperation.ValueOperationOr, "15"));
+    assertFalse(selector.isSelected(cheap));
+    assertFalse(selector.isSelected(expensive));
+  }
+
+  @Test
+  public void testAndOrSelections() throws IOException {
+    IndexReaderSelector selector = selector(selection("color", ValueOperation.ValueOperationOr, "blue", "green"));
+    assertTrue(selector.isSelected(cheap));
+    assertTrue(selector.isSelected(expensive));
+
+    selector = selector(selection("color", ValueOperation.ValueOperationAnd, "blue", "red"));
+    assertTrue(selector.isSelected(cheap));
+    assertFalse(selector.isSelected(expensive));
+
+    // every selection has to match
+    selector = selector(selection("color", ValueOperation.ValueOperationOr, "red"), selection("price", ValueOperation.ValueOperationOr, "[150 TO *]"));
+    assertFalse(selector.isSelected(cheap));
+    assertTrue(selector.isSelected(expensive));
+  }
+
+  @Test
+  public void testDateRangePruning() throws IOException {
+    IndexReaderSelector selector = selector(selection("date", ValueOperation.ValueOperationOr, "[2012/01/15 TO 2012/03/01]"));
+    assertTrue(selector.isSelected(cheap));
+    assertFalse(selector.isSelected(expensive));
+
+    selector = selector(selection("date", ValueOperation.ValueOperationOr, "[2012/06/01 TO *]"));
+    assertFalse(selector.isSelected(cheap));
+    assertTrue(selector.isSelected(expensive));
+  }
+
+  @Test
+  public void testUnparseableValuesAreNotPruned() throws IOException {
+    IndexReaderSelector selector = selector(selection("price", ValueOperation.ValueOperationOr, "[abc TO def]"));
+    assertTrue(selector.isSelected(cheap));
+    assertTrue(selector.isSelected(expensive));
+  }
+
+  @Test
+  public void testStatisticsAreSharedByTheSegment() {
+    assertEquals(10L, pruner.getStatistics(cheap).getMinMax("price")[0]);
+    assertEquals(30L, pruner.getStatistics(cheap).getMinMax("price")[1]);
+    assertTrue(pruner.getStatistics(cheap) == pruner.getStatistics(cheap));
+    assertEquals(null, pruner.getStatistics(cheap).getMinMax("color"));
+  }
+}
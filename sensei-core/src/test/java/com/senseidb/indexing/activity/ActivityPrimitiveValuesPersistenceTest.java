@@ -354,6 +354,29 @@ private float[] getFloatFieldValues(CompositeActivityValues compositeActivityVal
     assertEquals(valueCount, compositeActivityValues.metadata.count);
     compositeActivityValues.close();
   }
+  public void test6NonIntegralDeltasAreRejectedByIntAndLongColumns() throws Exception {
+    String indexDirPath = getDirPath() + 5;
+    compositeActivityValues = CompositeActivityValues.createCompositeValues(ActivityPersistenceFactory.getInstance(indexDirPath), java.util.Arrays.asList(PurgeUnusedActivitiesJobTest.getLikesFieldDefinition(), getLongFieldDefinition("comments")), Collections.EMPTY_LIST, ZoieConfig.DEFAULT_VERSION_COMPARATOR);
+    compositeActivityValues.update(UID_BASE, "00000001", toMap(new JSONObject().put("likes", "+1").put("comments", "+2")));
+    try {
+      compositeActivityValues.update(UID_BASE, "00000002", toMap(new JSONObject().put("likes", "+1.5")));
+      fail("The int column should not truncate the delta");
+    } catch (NumberFormatException e) {
+      // expected
+    }
+    try {
+      compositeActivityValues.update(UID_BASE, "00000003", toMap(new JSONObject().put("comments", "-0.5")));
+      fail("The long column should not truncate the delta");
+    } catch (NumberFormatException e) {
+      // expected
+    }
+    assertEquals(1, compositeActivityValues.getIntValueByUID(UID_BASE, "likes"));
+    assertEquals(2, compositeActivityValues.getLongValueByUID(UID_BASE, "comments"));
+    compositeActivityValues.update(UID_BASE, "00000004", toMap(new JSONObject().put("likes", "-1").put("comments", "+3")));
+    assertEquals(0, compositeActivityValues.getIntValueByUID(UID_BASE, "likes"));
+    assertEquals(5, compositeActivityValues.getLongValueByUID(UID_BASE, "comments"));
+    compositeActivityValues.close();
+  }
   public static FieldDefinition getIntFieldDefinition(String name) {
     FieldDefinition fieldDefinition = new FieldDefinition();
     fieldDefinition.name = name;
@@ -0,0 +1,159 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+package com.senseidb.indexing.activity;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+import org.json.JSONObject;
+
+import proj.zoie.impl.indexing.ZoieConfig;
+
+import com.senseidb.indexing.activity.CompositeActivityStorage.Update;
+import com.senseidb.test.SenseiStarter;
+
+public class ActivityWriteAheadLogTest extends TestCase {
+  private File dir;
+
+  public void setUp() {
+    SenseiStarter.rmrf(new File("sensei-test"));
+    dir = new File(getDirPath());
+    dir.mkdirs();
+  }
+  public static String getDirPath() {
+    return "sensei-test/activity";
+  }
+  @Override
+  protected void tearDown() throws Exception {
+    File file = new File("sensei-test");
+    if (file.exists()) {
+      file.deleteOnExit();
+      SenseiStarter.rmrf(file);
+    }
+  }
+
+  public void test1ReplayCommittedGroupsAfterCrash() throws Exception {
+    ActivityWriteAheadLog writeAheadLog = new ActivityWriteAheadLog(getDirPath(), Long.MAX_VALUE);
+    writeAheadLog.init();
+    writeAheadLog.appendFieldUpdates("likes.data", Arrays.asList(AtomicFieldUpdate.valueOf(0, 5), AtomicFieldUpdate.valueOf(3, 7)));
+    writeAheadLog.appendIndexUpdates("activity.indexes", Arrays.asList(new Update(0, 100L), new Update(3, 103L)));
+    writeAheadLog.commit("00000001", 4);
+    writeAheadLog.appendFieldUpdates("likes.data", Arrays.asList(AtomicFieldUpdate.valueOf(3, 8)));
+    writeAheadLog.commit("00000002", 4);
+    //the updates, that were not committed, are lost
+    writeAheadLog.appendFieldUpdates("likes.data", Arrays.asList(AtomicFieldUpdate.valueOf(0, 9)));
+    //the log is not closed, as if the process crashed
+    ActivityWriteAheadLog replayedLog = new ActivityWriteAheadLog(getDirPath(), Long.MAX_VALUE);
+    replayedLog.init();
+    RandomAccessFile likes = new RandomAccessFile(new File(dir, "likes.data"), "r");
+    assertEquals(5, likes.readInt());
+    likes.seek(12);
+    assertEquals(8, likes.readInt());
+    likes.close();
+    RandomAccessFile indexes = new RandomAccessFile(new File(dir, "activity.indexes"), "r");
+    assertEquals(100L, indexes.readLong());
+    indexes.seek(24);
+    assertEquals(103L, indexes.readLong());
+    indexes.close();
+    Metadata metadata = new Metadata(getDirPath());
+    metadata.init();
+    assertEquals("00000002", metadata.version);
+    assertEquals(4, metadata.count);
+    assertFalse(new File(dir, ActivityWriteAheadLog.SEGMENT_PREFIX + 0).exists());
+    assertTrue(new File(dir, ActivityWriteAheadLog.SEGMENT_PREFIX + 1).exists());
+    replayedLog.close();
+  }
+
+  public void test2TornGroupIsSkipped() throws Exception {
+    ActivityWriteAheadLog writeAheadLog = new ActivityWriteAheadLog(getDirPath(), Long.MAX_VALUE);
+    writeAheadLog.init();
+    writeAheadLog.appendFieldUpdates("likes.data", Arrays.asList(AtomicFieldUpdate.valueOf(1, 1L)));
+    writeAheadLog.commit("00000001", 2);
+    File segment = new File(dir, ActivityWriteAheadLog.SEGMENT_PREFIX + 0);
+    long committedLength = segment.length();
+    writeAheadLog.appendFieldUpdates("likes.data", Arrays.asList(AtomicFieldUpdate.valueOf(1, 2L)));
+    writeAheadLog.commit("00000002", 2);
+    RandomAccessFile segmentFile = new RandomAccessFile(segment, "rw");
+    segmentFile.setLength(segment.length() - 3);
+    segmentFile.close();
+    assertTrue(segment.length() > committedLength);
+    new ActivityWriteAheadLog(getDirPath(), Long.MAX_VALUE).init();
+    RandomAccessFile likes = new RandomAccessFile(new File(dir, "likes.data"), "r");
+    likes.seek(8);
+    assertEquals(1L, likes.readLong());
+    likes.close();
+    Metadata metadata = new Metadata(getDirPath());
+    metadata.init();
+    assertEquals("00000001", metadata.version);
+  }
+
+  public void test2bColumnsAreWrittenOnlyAfterCommit() throws Exception {
+    ActivityWriteAheadLog writeAheadLog = new ActivityWriteAheadLog(getDirPath(), Long.MAX_VALUE);
+    writeAheadLog.init();
+    final File segment = new File(dir, ActivityWriteAheadLog.SEGMENT_PREFIX + 0);
+    final long[] segmentLength = new long[] { -1 };
+    writeAheadLog.appendFieldUpdates("likes.data", Arrays.asList(AtomicFieldUpdate.valueOf(1, 1)));
+    writeAheadLog.appendWrite(new Runnable() {
+      @Override
+      public void run() {
+        segmentLength[0] = segment.length();
+      }
+    });
+    assertEquals(-1, segmentLength[0]);
+    assertEquals(0, segment.length());
+    writeAheadLog.commit("00000001", 2);
+    assertTrue("The column should be written after the group is in the log", segmentLength[0] > 0);
+    assertEquals(segment.length(), segmentLength[0]);
+    writeAheadLog.close();
+  }
+
+  public void test3CompositeValuesWithCheckpoints() throws Exception {
+    ActivityConfig activityConfig = new ActivityConfig();
+    activityConfig.setWriteAheadLog(true);
+    activityConfig.setWriteAheadLogCheckpointSizeInMb(0);
+    CompositeActivityValues compositeActivityValues = CompositeActivityValues.createCompositeValues(ActivityPersistenceFactory.getInstance(getDirPath(), activityConfig), java.util.Arrays.asList(PurgeUnusedActivitiesJobTest.getLikesFieldDefinition()), Collections.EMPTY_LIST, ZoieConfig.DEFAULT_VERSION_COMPARATOR);
+    int valueCount = 10000;
+    for (int i = 0; i < valueCount; i++) {
+      compositeActivityValues.update(10000000000L + i, String.format("%08d", i), ActivityPrimitiveValuesPersistenceTest.toMap(new JSONObject().put("likes", "+1")));
+    }
+    compositeActivityValues.flush();
+    compositeActivityValues.syncWithPersistentVersion(String.format("%08d", valueCount - 1));
+    for (int i = 0; i < valueCount; i++) {
+      compositeActivityValues.update(10000000000L + i, String.format("%08d", valueCount + i), ActivityPrimitiveValuesPersistenceTest.toMap(new JSONObject().put("likes", "+" + i)));
+    }
+    compositeActivityValues.flush();
+    compositeActivityValues.syncWithPersistentVersion(String.format("%08d", valueCount * 2 - 1));
+    compositeActivityValues.close();
+    assertEquals(0, dir.listFiles(new java.io.FilenameFilter() {
+      public boolean accept(File dir, String name) {
+        return name.startsWith(ActivityWriteAheadLog.SEGMENT_PREFIX);
+      }
+    }).length);
+    compositeActivityValues = CompositeActivityValues.createCompositeValues(ActivityPersistenceFactory.getInstance(getDirPath(), activityConfig), java.util.Arrays.asList(PurgeUnusedActivitiesJobTest.getLikesFieldDefinition()), Collections.EMPTY_LIST, ZoieConfig.DEFAULT_VERSION_COMPARATOR);
+    assertEquals(valueCount, compositeActivityValues.uidToArrayIndex.size());
+    assertEquals(1, compositeActivityValues.getIntValueByUID(10000000000L, "likes"));
+    assertEquals(4, compositeActivityValues.getIntValueByUID(10000000003L, "likes"));
+    assertEquals(String.format("%08d", valueCount * 2 - 1), compositeActivityValues.metadata.version);
+    compositeActivityValues.close();
+  }
+}
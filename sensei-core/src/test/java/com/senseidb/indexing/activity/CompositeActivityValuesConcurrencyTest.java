@@ -0,0 +1,97 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+package com.senseidb.indexing.activity;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import proj.zoie.impl.indexing.ZoieConfig;
+
+public class CompositeActivityValuesConcurrencyTest extends TestCase {
+  private static final long UID_BASE = 10000000000L;
+  private CompositeActivityValues compositeActivityValues;
+
+  public void setUp() {
+    compositeActivityValues = CompositeActivityValues.createCompositeValues(ActivityPersistenceFactory.getInMemoryInstance(),
+        Arrays.asList(PurgeUnusedActivitiesJobTest.getLikesFieldDefinition(), PurgeUnusedActivitiesJobTest.getIntFieldDefinition("comments")),
+        Collections.EMPTY_LIST, ZoieConfig.DEFAULT_VERSION_COMPARATOR);
+    compositeActivityValues.init();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    compositeActivityValues.close();
+  }
+
+  public void test1ConcurrentIncrementsAreNotLost() throws Exception {
+    final int threadCount = 8;
+    final int uidCount = 20000;
+    final int iterations = 3;
+    final CountDownLatch start = new CountDownLatch(1);
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    Thread[] threads = new Thread[threadCount];
+    for (int t = 0; t < threadCount; t++) {
+      threads[t] = new Thread() {
+        public void run() {
+          try {
+            start.await();
+            Map<String, Object> increment = new HashMap<String, Object>();
+            increment.put("likes", "+1");
+            for (int j = 0; j < iterations; j++) {
+              for (int i = 0; i < uidCount; i++) {
+                compositeActivityValues.update(UID_BASE + i, "00000001", increment);
+              }
+            }
+          } catch (Throwable e) {
+            failure.set(e);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertNull(failure.get());
+    assertEquals(uidCount, compositeActivityValues.uidToArrayIndex.size());
+    for (int i = 0; i < uidCount; i++) {
+      assertEquals(threadCount * iterations, compositeActivityValues.getIntValueByUID(UID_BASE + i, "likes"));
+      assertEquals(0, compositeActivityValues.getIntValueByUID(UID_BASE + i, "comments"));
+    }
+  }
+
+  public void test2DeltaAndAbsoluteValues() {
+    compositeActivityValues.update(UID_BASE, "00000001", Collections.<String, Object>singletonMap("likes", 10));
+    compositeActivityValues.update(UID_BASE, "00000002", Collections.<String, Object>singletonMap("likes", "+5"));
+    compositeActivityValues.update(UID_BASE, "00000003", Collections.<String, Object>singletonMap("likes", "-3"));
+    compositeActivityValues.update(UID_BASE, "00000004", Collections.<String, Object>singletonMap("comments", "+1"));
+    assertEquals(12, compositeActivityValues.getIntValueByUID(UID_BASE, "likes"));
+    assertEquals(1, compositeActivityValues.getIntValueByUID(UID_BASE, "comments"));
+    compositeActivityValues.delete(UID_BASE);
+    assertEquals(Integer.MIN_VALUE, compositeActivityValues.getIntValueByUID(UID_BASE, "likes"));
+    assertEquals("00000004", compositeActivityValues.getVersion());
+  }
+}
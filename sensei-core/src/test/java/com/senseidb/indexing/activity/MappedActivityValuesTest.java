@@ -0,0 +1,133 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+package com.senseidb.indexing.activity;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+import com.senseidb.indexing.activity.primitives.ActivityFloatValues;
+import com.senseidb.indexing.activity.primitives.ActivityIntValues;
+import com.senseidb.indexing.activity.primitives.ActivityLongValues;
+import com.senseidb.indexing.activity.primitives.ActivityMappedSegments;
+import com.senseidb.indexing.activity.primitives.ActivityPrimitiveValues;
+import com.senseidb.indexing.activity.primitives.MappedActivityIntValues;
+import com.senseidb.test.SenseiStarter;
+
+public class MappedActivityValuesTest extends TestCase {
+  private File dir;
+  private ActivityPersistenceFactory offHeapFactory;
+
+  public void setUp() {
+    SenseiStarter.rmrf(new File("sensei-test"));
+    dir = new File(getDirPath());
+    dir.mkdirs();
+    ActivityConfig activityConfig = new ActivityConfig();
+    activityConfig.setOffHeap(true);
+    offHeapFactory = ActivityPersistenceFactory.getInstance(getDirPath(), activityConfig);
+  }
+  public static String getDirPath() {
+    return "sensei-test/activity";
+  }
+  @Override
+  protected void tearDown() throws Exception {
+    File file = new File("sensei-test");
+    if (file.exists()) {
+      file.deleteOnExit();
+      SenseiStarter.rmrf(file);
+    }
+  }
+
+  public void test1WriteAndReopenAcrossSegments() {
+    int count = ActivityMappedSegments.SEGMENT_SIZE / 4 + 100;
+    ActivityIntValues intValues = (ActivityIntValues) ActivityPrimitiveValues.createActivityPrimitiveValues(offHeapFactory, int.class, "likes", 0);
+    assertTrue(intValues instanceof MappedActivityIntValues);
+    for (int i = 0; i < count; i++) {
+      if (intValues.update(i, i)) {
+        intValues.prepareFlush().run();
+      }
+    }
+    intValues.update(5, "+3");
+    intValues.update(6, "-2");
+    intValues.delete(7);
+    intValues.prepareFlush().run();
+    intValues.close();
+
+    intValues = (ActivityIntValues) ActivityPrimitiveValues.createActivityPrimitiveValues(offHeapFactory, int.class, "likes", count);
+    assertEquals(8, intValues.getIntValue(5));
+    assertEquals(4, intValues.getIntValue(6));
+    assertEquals(Integer.MIN_VALUE, intValues.getIntValue(7));
+    assertEquals(count - 1, intValues.getIntValue(count - 1));
+    intValues.update(7, "+1");
+    assertEquals(1, intValues.getIntValue(7));
+    intValues.prepareFlush().run();
+    intValues.close();
+  }
+
+  public void test2OnHeapValuesReadTheSameFile() {
+    ActivityLongValues longValues = (ActivityLongValues) ActivityPrimitiveValues.createActivityPrimitiveValues(offHeapFactory, long.class, "modifiedDate", 0);
+    longValues.update(60000, Long.MAX_VALUE - 1);
+    longValues.update(1, "+5");
+    ActivityFloatValues floatValues = (ActivityFloatValues) ActivityPrimitiveValues.createActivityPrimitiveValues(offHeapFactory, float.class, "reputation", 0);
+    floatValues.update(3, "1.5");
+    floatValues.update(3, "+1");
+    longValues.prepareFlush().run();
+    floatValues.prepareFlush().run();
+    longValues.close();
+    floatValues.close();
+
+    ActivityPersistenceFactory onHeapFactory = ActivityPersistenceFactory.getInstance(getDirPath(), new ActivityConfig());
+    longValues = (ActivityLongValues) ActivityPrimitiveValues.createActivityPrimitiveValues(onHeapFactory, long.class, "modifiedDate", 60001);
+    floatValues = (ActivityFloatValues) ActivityPrimitiveValues.createActivityPrimitiveValues(onHeapFactory, float.class, "reputation", 4);
+    assertNotNull(longValues.getFieldValues());
+    assertEquals(Long.MAX_VALUE - 1, longValues.getLongValue(60000));
+    assertEquals(5L, longValues.getLongValue(1));
+    assertEquals(2.5f, floatValues.getFloatValue(3));
+    longValues.close();
+    floatValues.close();
+  }
+
+  public void test3FieldValuesAreCopiedInRangesFromAndToTheMappedFile() {
+    ActivityIntValues intValues = (ActivityIntValues) ActivityPrimitiveValues.createActivityPrimitiveValues(offHeapFactory, int.class, "likes", 0);
+    intValues.update(2, 7);
+    try {
+      intValues.getFieldValues();
+      fail("The whole mapped file shouldn't be copied onto the heap");
+    } catch (UnsupportedOperationException e) {
+    }
+    int[] values = intValues.getFieldValues(1, 4);
+    assertEquals(3, values.length);
+    assertEquals(7, values[1]);
+    values[1] = 0;
+    assertEquals(7, intValues.getIntValue(2));
+    values = intValues.getFieldValues(ActivityMappedSegments.SEGMENT_SIZE / 4 - 1, ActivityMappedSegments.SEGMENT_SIZE / 4 + 1);
+    assertEquals(2, values.length);
+    assertEquals(0, values[1]);
+
+    values = new int[ActivityMappedSegments.SEGMENT_SIZE / 4 + 10];
+    values[1] = 3;
+    values[values.length - 1] = 4;
+    intValues.setFieldValues(values);
+    assertEquals(3, intValues.getIntValue(1));
+    assertEquals(0, intValues.getIntValue(2));
+    assertEquals(4, intValues.getIntValue(values.length - 1));
+    intValues.prepareFlush().run();
+    intValues.close();
+  }
+}
@@ -101,6 +101,34 @@ public class PurgeUnusedActivitiesJobTest extends TestCase {
     assertEquals(100000, compositeActivityValues.metadata.count);
 
   }
+  public void test2PurgeInChunksReportsProgress() throws Exception {
+    compositeActivityValues = CompositeActivityValues.createCompositeValues(ActivityPersistenceFactory.getInstance(getDirPath()), java.util.Arrays.asList(getLikesFieldDefinition() ), Collections.EMPTY_LIST, ZoieConfig.DEFAULT_VERSION_COMPARATOR);
+    int valueCount = 100000;
+    for (int i = 0; i < valueCount; i++) { 
+      compositeActivityValues.update(i, String.format("%08d", i), ActivityPrimitiveValuesPersistenceTest.toMap(new JSONObject().put("likes", "+1")));
+    }    
+    compositeActivityValues.flush();
+    compositeActivityValues.syncWithPersistentVersion(String.format("%08d", valueCount - 1));
+    SenseiCore senseiCore = new SenseiCore(0, new int[] {0}, null, null, null, null) {
+      @Override
+      public IndexReaderFactory<ZoieIndexReader<BoboIndexReader>> getIndexReaderFactory(int partition) {
+          return zoie;
+      }
+    };
+    PurgeUnusedActivitiesJob purgeUnusedActivitiesJob = new PurgeUnusedActivitiesJob(compositeActivityValues, senseiCore, 1000L*1000);
+    purgeUnusedActivitiesJob.setChunkSize(333);
+    assertEquals(99498, purgeUnusedActivitiesJob.purgeUnusedActivityIndexes());
+    assertFalse(purgeUnusedActivitiesJob.isRunning());
+    assertEquals(valueCount, purgeUnusedActivitiesJob.getTotalUids());
+    assertEquals(valueCount, purgeUnusedActivitiesJob.getProcessedUids());
+    assertEquals(99498, purgeUnusedActivitiesJob.getPurgedUids());
+    assertEquals(502, compositeActivityValues.uidToArrayIndex.size());
+    compositeActivityValues.recentlyAddedUids.clear();
+    assertEquals(500, purgeUnusedActivitiesJob.purgeUnusedActivityIndexes());
+    assertEquals(502, purgeUnusedActivitiesJob.getTotalUids());
+    assertTrue(compositeActivityValues.uidToArrayIndex.containsKey(105L));
+    assertTrue(compositeActivityValues.uidToArrayIndex.containsKey(107L));
+  }
 public static FieldDefinition getLikesFieldDefinition() {
     
     return getIntFieldDefinition("likes");
@@ -0,0 +1,79 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+package com.senseidb.indexing.activity.facet;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.browseengine.bobo.api.BrowseFacet;
+import com.browseengine.bobo.api.FacetIterator;
+import com.browseengine.bobo.api.FacetSpec;
+import com.senseidb.indexing.activity.ActivityPersistenceFactory;
+import com.senseidb.indexing.activity.primitives.ActivityIntValues;
+import com.senseidb.indexing.activity.primitives.ActivityLongValues;
+import com.senseidb.indexing.activity.primitives.ActivityPrimitiveValues;
+
+public class ActivityRangeFacetCountCollectorTest extends TestCase {
+  private static final List<String> RANGES = Arrays.asList("[* TO 10)", "[10 TO 100)", "[100 TO *]");
+
+  public void test1IntRangeCounts() {
+    ActivityIntValues intValues = (ActivityIntValues) ActivityPrimitiveValues.createActivityPrimitiveValues(ActivityPersistenceFactory.getInMemoryInstance(), int.class, "likes", 0);
+    int[] values = new int[] {1, 5, 10, 50, 99, 100, 1000};
+    for (int i = 0; i < values.length; i++) {
+      intValues.update(i, values[i]);
+    }
+    intValues.delete(6);
+    // doc 7 has no activity, doc 1 points to the same activity as doc 4
+    int[] indexes = new int[] {0, 4, 2, 3, 4, 5, 6, -1};
+    FacetSpec facetSpec = new FacetSpec();
+    facetSpec.setMinHitCount(1);
+    ActivityRangeFacetCountCollector collector = new ActivityRangeFacetCountCollector("likes", intValues, indexes, RANGES, facetSpec);
+    collector.collectAll();
+    assertEquals(1, collector.getFacetHitsCount("[* TO 10)"));
+    assertEquals(4, collector.getFacetHitsCount("[10 TO 100)"));
+    assertEquals(1, collector.getFacetHitsCount("[100 TO *]"));
+    assertEquals(0, collector.getFacetHitsCount("[5 TO 6]"));
+    assertEquals(4, collector.getCountDistribution().get(1));
+
+    facetSpec.setOrderBy(FacetSpec.FacetSortSpec.OrderHitsDesc);
+    facetSpec.setMaxCount(2);
+    List<BrowseFacet> facets = collector.getFacets();
+    assertEquals(2, facets.size());
+    assertEquals("[10 TO 100)", facets.get(0).getValue());
+    assertEquals(4, facets.get(0).getFacetValueHitCount());
+
+    FacetIterator iterator = collector.iterator();
+    assertEquals("[10 TO 100)", iterator.next(2));
+    assertEquals(4, iterator.count);
+    assertNull(iterator.next(2));
+  }
+
+  public void test2LongRangeCounts() {
+    ActivityLongValues longValues = (ActivityLongValues) ActivityPrimitiveValues.createActivityPrimitiveValues(ActivityPersistenceFactory.getInMemoryInstance(), long.class, "modifiedDate", 0);
+    longValues.update(0, Long.MAX_VALUE - 1);
+    longValues.update(1, 20L);
+    ActivityRangeFacetCountCollector collector = new ActivityRangeFacetCountCollector("modifiedDate", longValues, new int[] {0, 1, -1}, RANGES, new FacetSpec());
+    collector.collectAll();
+    assertEquals(0, collector.getFacetHitsCount("[* TO 10)"));
+    assertEquals(1, collector.getFacetHitsCount("[10 TO 100)"));
+    assertEquals(1, collector.getFacet("[100 TO *]").getFacetValueHitCount());
+  }
+}
@@ -60,6 +60,11 @@ public class ActivityIntValuesSynchronizedDecorator extends ActivityIntValues {
     return this.decorated.prepareFlush();
   }
 
+  @Override
+  public int ensureCapacity(int index) {
+    return decorated.ensureCapacity(index);
+  }
+
   public int getIntValue(int index) {
     synchronized(SynchronizedActivityRangeFacetHandler.GLOBAL_ACTIVITY_TEST_LOCK) {
       return this.decorated.getIntValue(index);
@@ -73,6 +78,10 @@ public class ActivityIntValuesSynchronizedDecorator extends ActivityIntValues {
    return decorated.getFieldValues();
   }
 
+  public int[] getFieldValues(int fromIndex, int toIndex) {
+   return decorated.getFieldValues(fromIndex, toIndex);
+  }
+
   public void setFieldValues(int[] fieldValues) {
     decorated.setFieldValues(fieldValues);
   }
@@ -43,8 +43,8 @@ public class TimeAggregatedActivityInitTest {
     intValueHolders[1].activityIntValues.fieldValues[0] = 3;
     intValueHolders[2].activityIntValues.fieldValues[0] = 1;
     TimeAggregatedActivityValues.initTimeHits(timeHitsHolder, intValueHolders, 1, 10);
-    assertTrue(Arrays.equals(new int[] {1, 1, 1, 1, 1, 0, 0, 0, 0}, timeHitsHolder.getActivities(0).array));
-    assertTrue(Arrays.equals(new int[] {1, 3, 6, 7, 10, 0, 0, 0, 0}, timeHitsHolder.getTimes(0).array));   
+    assertTrue(Arrays.equals(new int[] {1, 1, 1, 1, 1}, timeHitsHolder.getHits(0).getActivities()));
+    assertTrue(Arrays.equals(new int[] {1, 3, 6, 7, 10}, timeHitsHolder.getHits(0).getTimes()));   
   }
   @Test
   public void test2ActivitiesMoreThanMinutes() {
@@ -58,8 +58,8 @@ public class TimeAggregatedActivityInitTest {
     intValueHolders[1].activityIntValues.fieldValues[0] = 10;
     intValueHolders[2].activityIntValues.fieldValues[0] = 1;
     TimeAggregatedActivityValues.initTimeHits(timeHitsHolder, intValueHolders, 1, 10);
-    assertTrue(Arrays.equals(new int[] {8, 8, 8, 8, 8, 3, 3, 3, 1, 0}, timeHitsHolder.getActivities(0).array));
-    assertTrue(Arrays.equals(new int[] {1, 2, 3, 4, 5, 6, 7, 8, 10, 0}, timeHitsHolder.getTimes(0).array));   
+    assertTrue(Arrays.equals(new int[] {8, 8, 8, 8, 8, 3, 3, 3, 1}, timeHitsHolder.getHits(0).getActivities()));
+    assertTrue(Arrays.equals(new int[] {1, 2, 3, 4, 5, 6, 7, 8, 10}, timeHitsHolder.getHits(0).getTimes()));   
   }
   @Test
   public void test3SingleActivities() {
@@ -73,7 +73,29 @@ public class TimeAggregatedActivityInitTest {
     intValueHolders[1].activityIntValues.fieldValues[0] = 10;
     intValueHolders[2].activityIntValues.fieldValues[0] = 1;
     TimeAggregatedActivityValues.initTimeHits(timeHitsHolder, intValueHolders, 1, 10);    
-    assertTrue(Arrays.toString( timeHitsHolder.getActivities(0).array), Arrays.equals(new int[] {1}, timeHitsHolder.getActivities(0).array));
-    assertTrue(Arrays.toString( timeHitsHolder.getTimes(0).array), Arrays.equals(new int[] {10}, timeHitsHolder.getTimes(0).array));   
+    assertTrue(Arrays.toString( timeHitsHolder.getHits(0).getActivities()), Arrays.equals(new int[] {1}, timeHitsHolder.getHits(0).getActivities()));
+    assertTrue(Arrays.toString( timeHitsHolder.getHits(0).getTimes()), Arrays.equals(new int[] {10}, timeHitsHolder.getHits(0).getTimes()));   
+  }
+  @Test
+  public void test4LazyInitMatchesEagerInit() {
+    int capacity = 3;
+    IntValueHolder[] intValueHolders = new IntValueHolder[3];
+    intValueHolders[0] = new IntValueHolder(new ActivityIntValues(capacity), "10m", 10);
+    intValueHolders[1] = new IntValueHolder(new ActivityIntValues(capacity), "5m", 5);
+    intValueHolders[2] = new IntValueHolder(new ActivityIntValues(capacity), "2m", 2);
+    for (int i = 0; i < capacity; i++) {
+      intValueHolders[0].activityIntValues.fieldValues[i] = i == 1 ? 0 : 50;
+      intValueHolders[1].activityIntValues.fieldValues[i] = i == 1 ? 0 : 10;
+      intValueHolders[2].activityIntValues.fieldValues[i] = i == 1 ? 0 : 1;
+    }
+    TimeHitsHolder eagerHolder = new TimeHitsHolder(capacity);
+    TimeAggregatedActivityValues.initTimeHits(eagerHolder, intValueHolders, capacity, 10);
+    TimeHitsHolder lazyHolder = new TimeHitsHolder(capacity);
+    lazyHolder.initLazily(intValueHolders, capacity, 10);
+    assertTrue(Arrays.equals(eagerHolder.getHits(0).getActivities(), lazyHolder.getHits(0).getActivities()));
+    assertTrue(Arrays.equals(eagerHolder.getHits(0).getTimes(), lazyHolder.getHits(0).getTimes()));
+    assertFalse(lazyHolder.isSet(1));
+    lazyHolder.reset(2);
+    assertFalse(lazyHolder.isSet(2));
   }
 }
@@ -57,8 +57,8 @@ public class TimeAggregatedActivityValuesTest extends TestCase {
       timeAggregatedActivityValues.update(0, "1");
       timeAggregatedActivityValues.update(1, "1");
     }
-    assertTrue(Arrays.toString( timeAggregatedActivityValues.timeActivities.getActivities(0).array), Arrays.equals(new int[] {1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1}, timeAggregatedActivityValues.timeActivities.getActivities(0).array));
-    assertTrue(Arrays.toString( timeAggregatedActivityValues.timeActivities.getTimes(0).array), Arrays.equals(new int[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10}, timeAggregatedActivityValues.timeActivities.getTimes(0).array));   
+    assertTrue(Arrays.toString( timeAggregatedActivityValues.timeActivities.getHits(0).getActivities()), Arrays.equals(new int[] {1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1}, timeAggregatedActivityValues.timeActivities.getHits(0).getActivities()));
+    assertTrue(Arrays.toString( timeAggregatedActivityValues.timeActivities.getHits(0).getTimes()), Arrays.equals(new int[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10}, timeAggregatedActivityValues.timeActivities.getHits(0).getTimes()));   
     assertEquals(timeAggregatedActivityValues.valuesMap.get("10m").fieldValues[0], 11);
     Clock.setPredefinedTimeInMinutes(10);
     AggregatesUpdateJob aggregatesUpdateJob = new AggregatesUpdateJob(timeAggregatedActivityValues, ActivityPersistenceFactory.getInstance(getDirPath()).createAggregatesMetadata("likes"));
@@ -67,13 +67,13 @@ public class TimeAggregatedActivityValuesTest extends TestCase {
     assertEquals(timeAggregatedActivityValues.valuesMap.get("10m").fieldValues[0], 9);
     assertEquals(timeAggregatedActivityValues.valuesMap.get("5m").fieldValues[0], 4);
     assertEquals(timeAggregatedActivityValues.valuesMap.get("2m").fieldValues[0], 1);
-    assertEquals(timeAggregatedActivityValues.timeActivities.getTimes(0).getSize(), 9);
+    assertEquals(timeAggregatedActivityValues.timeActivities.getHits(0).size(), 9);
     Clock.setPredefinedTimeInMinutes(12);
     aggregatesUpdateJob.run();
     assertEquals(timeAggregatedActivityValues.valuesMap.get("10m").fieldValues[0], 8);
     assertEquals(timeAggregatedActivityValues.valuesMap.get("5m").fieldValues[0], 3);
     assertEquals(timeAggregatedActivityValues.valuesMap.get("2m").fieldValues[0], 0);
-    assertEquals(timeAggregatedActivityValues.timeActivities.getTimes(0).getSize(), 8);
+    assertEquals(timeAggregatedActivityValues.timeActivities.getHits(0).size(), 8);
     Clock.setPredefinedTimeInMinutes(25);
     aggregatesUpdateJob.run();
     assertEquals(timeAggregatedActivityValues.valuesMap.get("10m").fieldValues[0], 0);
@@ -90,8 +90,8 @@ public class TimeAggregatedActivityValuesTest extends TestCase {
       timeAggregatedActivityValues.update(0, "1");
       timeAggregatedActivityValues.update(1, "1");
     }
-    assertTrue(Arrays.toString( timeAggregatedActivityValues.timeActivities.getActivities(0).array), Arrays.equals(new int[] {1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1}, timeAggregatedActivityValues.timeActivities.getActivities(0).array));
-    assertTrue(Arrays.toString( timeAggregatedActivityValues.timeActivities.getTimes(0).array), Arrays.equals(new int[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10}, timeAggregatedActivityValues.timeActivities.getTimes(0).array));   
+    assertTrue(Arrays.toString( timeAggregatedActivityValues.timeActivities.getHits(0).getActivities()), Arrays.equals(new int[] {1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1}, timeAggregatedActivityValues.timeActivities.getHits(0).getActivities()));
+    assertTrue(Arrays.toString( timeAggregatedActivityValues.timeActivities.getHits(0).getTimes()), Arrays.equals(new int[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10}, timeAggregatedActivityValues.timeActivities.getHits(0).getTimes()));   
     assertEquals(timeAggregatedActivityValues.valuesMap.get("10m").fieldValues[0], 11);
     Clock.setPredefinedTimeInMinutes(10);
     AggregatesUpdateJob aggregatesUpdateJob = new AggregatesUpdateJob(timeAggregatedActivityValues, ActivityPersistenceFactory.getInMemoryInstance().createAggregatesMetadata( "likes"));
@@ -100,13 +100,13 @@ public class TimeAggregatedActivityValuesTest extends TestCase {
     assertEquals(timeAggregatedActivityValues.valuesMap.get("10m").fieldValues[0], 9);
     assertEquals(timeAggregatedActivityValues.valuesMap.get("5m").fieldValues[0], 4);
     assertEquals(timeAggregatedActivityValues.valuesMap.get("2m").fieldValues[0], 1);
-    assertEquals(timeAggregatedActivityValues.timeActivities.getTimes(0).getSize(), 9);
+    assertEquals(timeAggregatedActivityValues.timeActivities.getHits(0).size(), 9);
     Clock.setPredefinedTimeInMinutes(12);
     aggregatesUpdateJob.run();
     assertEquals(timeAggregatedActivityValues.valuesMap.get("10m").fieldValues[0], 8);
     assertEquals(timeAggregatedActivityValues.valuesMap.get("5m").fieldValues[0], 3);
     assertEquals(timeAggregatedActivityValues.valuesMap.get("2m").fieldValues[0], 0);
-    assertEquals(timeAggregatedActivityValues.timeActivities.getTimes(0).getSize(), 8);
+    assertEquals(timeAggregatedActivityValues.timeActivities.getHits(0).size(), 8);
     Clock.setPredefinedTimeInMinutes(25);
     aggregatesUpdateJob.run();
     assertEquals(timeAggregatedActivityValues.valuesMap.get("10m").fieldValues[0], 0);
@@ -114,4 +114,46 @@ public class TimeAggregatedActivityValuesTest extends TestCase {
     assertEquals(timeAggregatedActivityValues.valuesMap.get("2m").fieldValues[0], 0);
     
   }
+  public void test3NewBucketExpiresFromShortestAggregateOnTime() {
+    Clock.setPredefinedTimeInMinutes(0);
+    timeAggregatedActivityValues = TimeAggregatedActivityValues.createTimeAggregatedValues("likes", java.util.Arrays.asList("10m", "2m"), 0, ActivityPersistenceFactory.getInMemoryInstance());
+    timeAggregatedActivityValues.init(0);
+    AggregatesUpdateJob aggregatesUpdateJob = new AggregatesUpdateJob(timeAggregatedActivityValues, ActivityPersistenceFactory.getInMemoryInstance().createAggregatesMetadata("likes"));
+    //the old hit
+    Clock.setPredefinedTimeInMinutes(1);
+    timeAggregatedActivityValues.update(0, "1");
+    //only the docs drained from the time wheel are visited, the hit is scheduled for its 2m expiration
+    Clock.setPredefinedTimeInMinutes(2);
+    aggregatesUpdateJob.run();
+    assertEquals(1, timeAggregatedActivityValues.valuesMap.get("2m").fieldValues[0]);
+    Clock.setPredefinedTimeInMinutes(3);
+    aggregatesUpdateJob.run();
+    assertEquals(1, timeAggregatedActivityValues.valuesMap.get("10m").fieldValues[0]);
+    assertEquals(0, timeAggregatedActivityValues.valuesMap.get("2m").fieldValues[0]);
+    //the new hit, while the doc is only scheduled for the 10m expiration of the old one
+    Clock.setPredefinedTimeInMinutes(4);
+    timeAggregatedActivityValues.update(0, "1");
+    assertEquals(2, timeAggregatedActivityValues.valuesMap.get("10m").fieldValues[0]);
+    assertEquals(1, timeAggregatedActivityValues.valuesMap.get("2m").fieldValues[0]);
+    Clock.setPredefinedTimeInMinutes(5);
+    aggregatesUpdateJob.run();
+    assertEquals(1, timeAggregatedActivityValues.valuesMap.get("2m").fieldValues[0]);
+    Clock.setPredefinedTimeInMinutes(6);
+    aggregatesUpdateJob.run();
+    assertEquals(2, timeAggregatedActivityValues.valuesMap.get("10m").fieldValues[0]);
+    assertEquals(0, timeAggregatedActivityValues.valuesMap.get("2m").fieldValues[0]);
+    //the early entry is ignored, and doesn't lose the next expiration
+    timeAggregatedActivityValues.expirationTimeWheel.schedule(0, 8);
+    Clock.setPredefinedTimeInMinutes(8);
+    aggregatesUpdateJob.run();
+    assertEquals(2, timeAggregatedActivityValues.valuesMap.get("10m").fieldValues[0]);
+    assertEquals(2, timeAggregatedActivityValues.timeActivities.getHits(0).size());
+    Clock.setPredefinedTimeInMinutes(11);
+    aggregatesUpdateJob.run();
+    assertEquals(1, timeAggregatedActivityValues.valuesMap.get("10m").fieldValues[0]);
+    Clock.setPredefinedTimeInMinutes(14);
+    aggregatesUpdateJob.run();
+    assertEquals(0, timeAggregatedActivityValues.valuesMap.get("10m").fieldValues[0]);
+    assertFalse(timeAggregatedActivityValues.timeActivities.isSet(0));
+  }
 }
@@ -0,0 +1,64 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+package com.senseidb.indexing.activity.time;
+
+import it.unimi.dsi.fastutil.ints.IntSet;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class TimeHitsTest extends TestCase {
+
+  public void test1AddAndRemoveAcrossTheRingBoundary() {
+    TimeHits timeHits = new TimeHits(1);
+    for (int i = 0; i < 100; i++) {
+      timeHits.add(i, i * 10);
+    }
+    assertEquals(100, timeHits.size());
+    for (int i = 0; i < 90; i++) {
+      timeHits.removeFirst();
+      timeHits.add(100 + i, 1);
+    }
+    assertEquals(100, timeHits.size());
+    assertEquals(90, timeHits.getTime(0));
+    assertEquals(900, timeHits.getActivity(0));
+    assertEquals(189, timeHits.getLastTime());
+    timeHits.addToLast(2);
+    assertEquals(3, timeHits.getActivity(99));
+    for (int i = 0; i < 98; i++) {
+      timeHits.removeFirst();
+    }
+    assertTrue(Arrays.equals(new int[] {188, 189}, timeHits.getTimes()));
+    assertTrue(Arrays.equals(new int[] {1, 3}, timeHits.getActivities()));
+  }
+
+  public void test2TimeWheelReturnsOnlyDueDocs() {
+    ExpirationTimeWheel timeWheel = new ExpirationTimeWheel(10);
+    timeWheel.schedule(1, 5);
+    timeWheel.schedule(2, 7);
+    timeWheel.schedule(1, 6);
+    timeWheel.schedule(3, 12);
+    IntSet dueIndexes = timeWheel.drain(4, 7);
+    assertEquals(2, dueIndexes.size());
+    assertTrue(dueIndexes.contains(1) && dueIndexes.contains(2));
+    assertTrue(timeWheel.drain(4, 7).isEmpty());
+    assertTrue(timeWheel.drain(7, 12).contains(3));
+  }
+}
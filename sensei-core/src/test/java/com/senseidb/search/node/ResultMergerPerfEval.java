@@ -0,0 +1,88 @@
+package com.senseidb.search.node;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import com.browseengine.bobo.util.ListMerger;
+import com.senseidb.search.req.SenseiHit;
+
+/**
+ * Compares the k-way {@link SenseiHitMerger} with the iterator based {@link ListMerger}
+ * that the result merger used before, for deep pages over 10, 100 and 1000 partitions.
+ */
+public class ResultMergerPerfEval {
+  private static final Comparator<SenseiHit> BY_SCORE = new Comparator<SenseiHit>() {
+    @Override
+    public int compare(SenseiHit h1, SenseiHit h2) {
+      return Float.compare(h2.getScore(), h1.getScore());
+    }
+  };
+
+  private static SenseiHit[][] buildPartitions(int numPartitions, int hitsPerPartition) {
+    Random random = new Random(numPartitions);
+    SenseiHit[][] partitions = new SenseiHit[numPartitions][];
+    int docid = 0;
+    for (int i = 0; i < numPartitions; ++i) {
+      float[] scores = new float[hitsPerPartition];
+      for (int j = 0; j < scores.length; ++j) {
+        scores[j] = random.nextFloat();
+      }
+      Arrays.sort(scores);
+      partitions[i] = new SenseiHit[hitsPerPartition];
+      for (int j = 0; j < hitsPerPartition; ++j) {
+        SenseiHit hit = new SenseiHit();
+        hit.setDocid(docid++);
+        hit.setScore(scores[hitsPerPartition - j - 1]);
+        partitions[i][j] = hit;
+      }
+    }
+    return partitions;
+  }
+
+  private static long listMerger(SenseiHit[][] partitions, int offset, int count) {
+    Iterator<SenseiHit>[] iterators = new Iterator[partitions.length];
+    for (int i = 0; i < partitions.length; ++i) {
+      iterators[i] = Arrays.asList(partitions[i]).iterator();
+    }
+    List<SenseiHit> merged = ListMerger.mergeLists(offset, count, iterators, BY_SCORE);
+    return merged.size();
+  }
+
+  private static long hitMerger(SenseiHit[][] partitions, int offset, int count) {
+    return SenseiHitMerger.merge(partitions, offset, count, BY_SCORE).length;
+  }
+
+  public static void main(String[] args) {
+    int offset = 1000;
+    int count = 100;
+    int iterations = 200;
+    for (int numPartitions : new int[] { 10, 100, 1000 }) {
+      SenseiHit[][] partitions = buildPartitions(numPartitions, offset + count);
+      long checksum = 0;
+      // Warm up both implementations before timing them.
+      for (int i = 0; i < iterations; ++i) {
+        checksum += listMerger(partitions, offset, count) + hitMerger(partitions, offset, count);
+      }
+
+      long start = System.nanoTime();
+      for (int i = 0; i < iterations; ++i) {
+        checksum += listMerger(partitions, offset, count);
+      }
+      long listMergerTime = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for (int i = 0; i < iterations; ++i) {
+        checksum += hitMerger(partitions, offset, count);
+      }
+      long hitMergerTime = System.nanoTime() - start;
+
+      System.out.println(numPartitions + " partitions, offset " + offset + ", count " + count
+          + ": ListMerger " + (listMergerTime / iterations / 1000) + "us/op"
+          + ", SenseiHitMerger " + (hitMergerTime / iterations / 1000) + "us/op"
+          + " (checksum " + checksum + ")");
+    }
+  }
+}
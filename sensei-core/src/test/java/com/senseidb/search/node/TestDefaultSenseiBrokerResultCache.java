@@ -0,0 +1,195 @@
+package com.senseidb.search.node;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TestDefaultSenseiBrokerResultCache {
+  private final AtomicInteger loads = new AtomicInteger();
+
+  private abstract static class StringLoader implements SenseiBrokerResultCache.Loader<String> {
+    @Override
+    public byte[] toBytes(String result) {
+      return result.getBytes();
+    }
+
+    @Override
+    public String fromBytes(byte[] bytes) {
+      return new String(bytes);
+    }
+  }
+
+  private SenseiBrokerResultCache.Loader<String> loader(final String result, final boolean cacheable) {
+    return new StringLoader() {
+      @Override
+      public String load() throws Exception {
+        loads.incrementAndGet();
+        return result;
+      }
+
+      @Override
+      public boolean isCacheable(String r) {
+        return cacheable;
+      }
+    };
+  }
+
+  @Test
+  public void testServesCachedResult() throws Exception {
+    DefaultSenseiBrokerResultCache cache = new DefaultSenseiBrokerResultCache(10, 60000);
+    assertEquals("r1", cache.get("q", loader("r1", true)));
+    assertEquals("r1", cache.get("q", loader("r2", true)));
+    assertEquals(1, loads.get());
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  @Test
+  public void testServesCopies() throws Exception {
+    DefaultSenseiBrokerResultCache cache = new DefaultSenseiBrokerResultCache(10, 60000);
+    String loaded = cache.get("q", loader(new String("r1"), true));
+    String first = cache.get("q", loader("x", true));
+    String second = cache.get("q", loader("x", true));
+    assertEquals("r1", first);
+    assertNotSame(loaded, first);
+    assertNotSame(first, second);
+  }
+
+  @Test
+  public void testDoesNotCacheUncacheableResult() throws Exception {
+    DefaultSenseiBrokerResultCache cache = new DefaultSenseiBrokerResultCache(10, 60000);
+    cache.get("q", loader("r1", false));
+    assertEquals("r2", cache.get("q", loader("r2", true)));
+    assertEquals(2, loads.get());
+  }
+
+  @Test
+  public void testSerializesOnlyCacheableResults() throws Exception {
+    DefaultSenseiBrokerResultCache cache = new DefaultSenseiBrokerResultCache(10, 60000);
+    final AtomicInteger serializations = new AtomicInteger();
+    for (final boolean cacheable : new boolean[] { false, true }) {
+      cache.get("q", new StringLoader() {
+        @Override
+        public String load() throws Exception {
+          return "r1";
+        }
+
+        @Override
+        public boolean isCacheable(String r) {
+          return cacheable;
+        }
+
+        @Override
+        public byte[] toBytes(String result) {
+          serializations.incrementAndGet();
+          return super.toBytes(result);
+        }
+      });
+      assertEquals(cacheable ? 1 : 0, serializations.get());
+    }
+  }
+
+  @Test
+  public void testReturnsUnserializableResultUncached() throws Exception {
+    DefaultSenseiBrokerResultCache cache = new DefaultSenseiBrokerResultCache(10, 60000);
+    SenseiBrokerResultCache.Loader<String> unserializable = new StringLoader() {
+      @Override
+      public String load() throws Exception {
+        loads.incrementAndGet();
+        return "r1";
+      }
+
+      @Override
+      public boolean isCacheable(String r) {
+        return true;
+      }
+
+      @Override
+      public byte[] toBytes(String result) {
+        throw new IllegalStateException("unserializable");
+      }
+    };
+    assertEquals("r1", cache.get("q", unserializable));
+    assertEquals("r1", cache.get("q", unserializable));
+    assertEquals(2, loads.get());
+    assertEquals(0, cache.getSize());
+  }
+
+  @Test
+  public void testExpiresStaleResult() throws Exception {
+    DefaultSenseiBrokerResultCache cache = new DefaultSenseiBrokerResultCache(10, 1);
+    cache.get("q", loader("r1", true));
+    Thread.sleep(10);
+    assertEquals("r2", cache.get("q", loader("r2", true)));
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() throws Exception {
+    DefaultSenseiBrokerResultCache cache = new DefaultSenseiBrokerResultCache(2, 60000);
+    cache.get("q1", loader("r1", true));
+    cache.get("q2", loader("r2", true));
+    cache.get("q1", loader("x", true));
+    cache.get("q3", loader("r3", true));
+    assertEquals(2, cache.getSize());
+    assertEquals(1, cache.getEvictionCount());
+    assertEquals("r1", cache.get("q1", loader("x", true)));
+    assertEquals("x", cache.get("q2", loader("x", true)));
+  }
+
+  @Test
+  public void testCoalescesConcurrentRequests() throws Exception {
+    final DefaultSenseiBrokerResultCache cache = new DefaultSenseiBrokerResultCache(10, 60000);
+    final CountDownLatch loading = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final String result = new String("shared");
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<String> first = executor.submit(new Callable<String>() {
+        @Override
+        public String call() throws Exception {
+          return cache.get("q", new StringLoader() {
+            @Override
+            public String load() throws Exception {
+              loading.countDown();
+              release.await();
+              return result;
+            }
+
+            @Override
+            public boolean isCacheable(String r) {
+              return false;
+            }
+          });
+        }
+      });
+      loading.await();
+      Future<String> second = executor.submit(new Callable<String>() {
+        @Override
+        public String call() throws Exception {
+          return cache.get("q", loader("other", true));
+        }
+      });
+      while (cache.getCoalescedCount() == 0) {
+        Thread.sleep(1);
+      }
+      release.countDown();
+      assertSame(result, first.get(1, TimeUnit.SECONDS));
+      String coalesced = second.get(1, TimeUnit.SECONDS);
+      assertEquals(result, coalesced);
+      assertNotSame(result, coalesced);
+      assertEquals(0, loads.get());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,88 @@
+package com.senseidb.search.node;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.senseidb.search.req.SenseiHit;
+
+public class TestSenseiHitMerger {
+  private static final Comparator<SenseiHit> BY_SCORE = new Comparator<SenseiHit>() {
+    @Override
+    public int compare(SenseiHit h1, SenseiHit h2) {
+      return Float.compare(h2.getScore(), h1.getScore());
+    }
+  };
+
+  private static SenseiHit[][] randomLists(Random random, int numLists, int maxHits, List<SenseiHit> all) {
+    SenseiHit[][] lists = new SenseiHit[numLists][];
+    int docid = 0;
+    for (int i = 0; i < numLists; ++i) {
+      List<SenseiHit> list = new ArrayList<SenseiHit>();
+      int numHits = random.nextInt(maxHits + 1);
+      for (int j = 0; j < numHits; ++j) {
+        SenseiHit hit = new SenseiHit();
+        hit.setDocid(docid++);
+        hit.setScore(random.nextInt(50));
+        list.add(hit);
+      }
+      Collections.sort(list, BY_SCORE);
+      all.addAll(list);
+      lists[i] = list.toArray(new SenseiHit[list.size()]);
+    }
+    Collections.sort(all, BY_SCORE);
+    return lists;
+  }
+
+  @Test
+  public void testMergeMatchesFullSort() {
+    Random random = new Random(7);
+    for (int round = 0; round < 50; ++round) {
+      List<SenseiHit> all = new ArrayList<SenseiHit>();
+      SenseiHit[][] lists = randomLists(random, 1 + random.nextInt(20), 30, all);
+      int offset = random.nextInt(40);
+      int count = random.nextInt(40);
+
+      SenseiHit[] merged = SenseiHitMerger.merge(lists, offset, count, BY_SCORE);
+      int expectedLength = Math.max(0, Math.min(count, all.size() - offset));
+      assertEquals(expectedLength, merged.length);
+      for (int i = 0; i < merged.length; ++i) {
+        assertEquals(all.get(offset + i).getScore(), merged[i].getScore(), 0.0f);
+      }
+    }
+  }
+
+  @Test
+  public void testIteratorReturnsEveryHit() {
+    List<SenseiHit> all = new ArrayList<SenseiHit>();
+    SenseiHit[][] lists = randomLists(new Random(11), 10, 20, all);
+    lists[3] = null;
+    int size = 0;
+    for (SenseiHit[] list : lists) {
+      size += list == null ? 0 : list.length;
+    }
+    SenseiHitMerger merger = new SenseiHitMerger(lists, BY_SCORE);
+    float previous = Float.MAX_VALUE;
+    int n = 0;
+    while (merger.hasNext()) {
+      SenseiHit hit = merger.next();
+      assertFalse(hit.getScore() > previous);
+      previous = hit.getScore();
+      ++n;
+    }
+    assertEquals(size, n);
+  }
+
+  @Test
+  public void testEmpty() {
+    assertEquals(0, SenseiHitMerger.merge(new SenseiHit[0][], 0, 10, BY_SCORE).length);
+    assertFalse(new SenseiHitMerger(new SenseiHit[][] { null, new SenseiHit[0] }, BY_SCORE).hasNext());
+  }
+}
@@ -0,0 +1,80 @@
+package com.senseidb.search.node;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.easymock.classextension.EasyMock;
+import org.junit.Test;
+
+import com.linkedin.norbert.javacompat.cluster.Node;
+
+public class TestSenseiRequestHedger {
+  // node response times are registered by node id, so every test uses its own ids
+  private final SenseiRequestHedger hedger = new SenseiRequestHedger(0.9, 5, 10, Long.MAX_VALUE);
+
+  private static Set<Integer> partitions(Integer... partitions) {
+    return new HashSet<Integer>(Arrays.asList(partitions));
+  }
+
+  private static Node node(int id, boolean available, Integer... partitions) {
+    Node node = EasyMock.createMock(Node.class);
+    EasyMock.expect(node.getId()).andReturn(id).anyTimes();
+    EasyMock.expect(node.isAvailable()).andReturn(available).anyTimes();
+    EasyMock.expect(node.getPartitionIds()).andReturn(partitions(partitions)).anyTimes();
+    EasyMock.replay(node);
+    return node;
+  }
+
+  @Test
+  public void testSkipsUnavailableNodes() {
+    Node n1 = node(1, false, 0);
+    Node n2 = node(2, true, 0);
+    Set<Node> nodes = new HashSet<Node>(Arrays.asList(n1, n2));
+
+    assertEquals(n2, hedger.getAlternative(nodes, n1, partitions(0)));
+    assertNull(hedger.getAlternative(nodes, n2, partitions(0)));
+  }
+
+  @Test
+  public void testPicksFastestAlternativeServingAllPartitions() {
+    Node n1 = node(21, true, 0, 1);
+    Node n2 = node(22, true, 0, 1);
+    Node n3 = node(23, true, 0, 1);
+    Node n4 = node(24, true, 0);
+    Set<Node> nodes = new HashSet<Node>(Arrays.asList(n1, n2, n3, n4));
+    for (int i = 0; i < 10; ++i) {
+      hedger.recordResponseTime(n2, 50);
+      hedger.recordResponseTime(n3, 10);
+      hedger.recordResponseTime(n4, 1);
+    }
+    hedger.refresh();
+    assertEquals(n3, hedger.getAlternative(nodes, n1, partitions(0, 1)));
+    assertEquals(n4, hedger.getAlternative(nodes, n1, partitions(0)));
+  }
+
+  @Test
+  public void testHedgeDelayFollowsNodeLatency() {
+    Node n1 = node(31, true, 0);
+    for (int i = 0; i < 9; ++i) {
+      hedger.recordResponseTime(n1, 100);
+    }
+    hedger.refresh();
+    assertEquals(Long.MAX_VALUE, hedger.getHedgeDelay(n1));
+    hedger.recordResponseTime(n1, 100);
+    // the delay is only recomputed on refresh
+    assertEquals(Long.MAX_VALUE, hedger.getHedgeDelay(n1));
+    hedger.refresh();
+    assertEquals(100, hedger.getHedgeDelay(n1));
+
+    Node n2 = node(32, true, 0);
+    for (int i = 0; i < 10; ++i) {
+      hedger.recordResponseTime(n2, 1);
+    }
+    hedger.refresh();
+    assertEquals(5, hedger.getHedgeDelay(n2));
+  }
+}
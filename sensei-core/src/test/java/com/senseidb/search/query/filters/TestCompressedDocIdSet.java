@@ -0,0 +1,123 @@
+package com.senseidb.search.query.filters;
+
+import com.kamikaze.docidset.impl.IntArrayDocIdSet;
+import junit.framework.Assert;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+
+import static org.easymock.classextension.EasyMock.*;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class TestCompressedDocIdSet {
+
+  private static CompressedDocIdSet build(int... docs) {
+    CompressedDocIdSet.Builder builder = new CompressedDocIdSet.Builder();
+    for (int doc : docs) {
+      builder.add(doc);
+    }
+    return builder.build();
+  }
+
+  private static int[] range(int from, int to, int step) {
+    int[] ret = new int[(to - from + step - 1) / step];
+    for (int i = 0; i < ret.length; i++) {
+      ret[i] = from + i * step;
+    }
+    return ret;
+  }
+
+  private static List<Integer> toList(DocIdSetIterator iterator) throws IOException {
+    List<Integer> ret = new ArrayList<Integer>();
+    int doc;
+    while ((doc = iterator.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+      ret.add(doc);
+    }
+    return ret;
+  }
+
+  @Test
+  public void testSparseAndDenseBlocks() throws IOException {
+    // the first block is stored as an array, the second one as a bitmap
+    int[] sparse = range(3, 60000, 97);
+    int[] dense = range(65536, 131072, 2);
+    CompressedDocIdSet docIdSet = build(concat(sparse, dense));
+    Assert.assertEquals(sparse.length + dense.length, docIdSet.cardinality());
+    List<Integer> docs = toList(docIdSet.iterator());
+    Assert.assertEquals(sparse.length + dense.length, docs.size());
+    Assert.assertEquals(Integer.valueOf(3), docs.get(0));
+    Assert.assertEquals(Integer.valueOf(131070), docs.get(docs.size() - 1));
+
+    DocIdSetIterator iterator = docIdSet.iterator();
+    Assert.assertEquals(100, iterator.advance(50));
+    Assert.assertEquals(65536, iterator.advance(59950));
+    Assert.assertEquals(65540, iterator.advance(65539));
+    Assert.assertEquals(DocIdSetIterator.NO_MORE_DOCS, iterator.advance(131071));
+  }
+
+  @Test
+  public void testAndOr() throws IOException {
+    CompressedDocIdSet evens = build(range(0, 200000, 2));
+    CompressedDocIdSet threes = build(range(0, 200000, 3));
+    Assert.assertEquals(range(0, 200000, 6).length, evens.and(threes).cardinality());
+    Assert.assertEquals(toList(build(range(0, 200000, 6)).iterator()), toList(evens.and(threes).iterator()));
+    Assert.assertEquals(100000 + range(0, 200000, 3).length - range(0, 200000, 6).length, evens.or(threes).cardinality());
+    Assert.assertEquals(0, evens.and(build(range(1, 200000, 2))).cardinality());
+  }
+
+  @Test
+  public void testCombineReplacesCompressedSets() throws IOException {
+    IntArrayDocIdSet other = new IntArrayDocIdSet(2);
+    other.addDoc(6);
+    other.addDoc(12);
+    List<DocIdSet> combined = CompressedDocIdSet.combine(Arrays.<DocIdSet>asList(build(0, 6, 12, 18), other, build(6, 18)), true);
+    Assert.assertEquals(2, combined.size());
+    Assert.assertEquals(Arrays.asList(6, 18), toList(combined.get(0).iterator()));
+    Assert.assertSame(other, combined.get(1));
+  }
+
+  @Test
+  public void testCacheServesRepeatedSelections() throws IOException {
+    SegmentFilterCache cache = new SegmentFilterCache();
+    cache.configure(1 << 20, 1);
+    final int[] calls = new int[1];
+    SenseiFilter filter = new SenseiFilter() {
+      @Override
+      public SenseiDocIdSet getSenseiDocIdSet(IndexReader reader) throws IOException {
+        calls[0]++;
+        IntArrayDocIdSet docIdSet = new IntArrayDocIdSet(3);
+        docIdSet.addDoc(1);
+        docIdSet.addDoc(5);
+        docIdSet.addDoc(9);
+        return new SenseiDocIdSet(docIdSet, DocIdSetCardinality.random(), "TERM");
+      }
+    };
+    IndexReader indexReader = createMock(IndexReader.class);
+    expect(indexReader.maxDoc()).andReturn(20).anyTimes();
+    expect(indexReader.getCoreCacheKey()).andReturn(new Object()).anyTimes();
+    replay(indexReader);
+
+    SenseiFilter cached = cache.cache(filter, "TERM a", "a");
+    Assert.assertEquals(Arrays.asList(1, 5, 9), toList(cached.getSenseiDocIdSet(indexReader).getDocIdSet().iterator()));
+    SenseiDocIdSet senseiDocIdSet = cached.getSenseiDocIdSet(indexReader);
+    Assert.assertEquals(Arrays.asList(1, 5, 9), toList(senseiDocIdSet.getDocIdSet().iterator()));
+    DocSetAssertions.assertRange(3, 3, 20, senseiDocIdSet.getCardinalityEstimate());
+    Assert.assertEquals(1, calls[0]);
+    Assert.assertEquals(1, cache.size());
+
+    cache.configure(0, 1);
+    Assert.assertEquals(0, cache.size());
+    Assert.assertSame(filter, cache.cache(filter, "TERM a", "a"));
+  }
+
+  private static int[] concat(int[] a, int[] b) {
+    int[] ret = Arrays.copyOf(a, a.length + b.length);
+    System.arraycopy(b, 0, ret, a.length, b.length);
+    return ret;
+  }
+}
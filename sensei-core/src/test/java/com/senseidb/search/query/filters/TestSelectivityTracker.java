@@ -0,0 +1,110 @@
+package com.senseidb.search.query.filters;
+
+import com.kamikaze.docidset.impl.IntArrayDocIdSet;
+import junit.framework.Assert;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.QueryWrapperFilter;
+import org.apache.lucene.search.TermQuery;
+
+import static org.easymock.classextension.EasyMock.*;
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class TestSelectivityTracker {
+
+  private static IntArrayDocIdSet buildDocIdSet(int... elems) {
+    IntArrayDocIdSet docIdSet = new IntArrayDocIdSet(elems.length);
+    for(int elem : elems) {
+      docIdSet.addDoc(elem);
+    }
+    return docIdSet;
+  }
+
+  @Test
+  public void testEstimateFollowsObservedHits() throws IOException {
+    SelectivityTracker tracker = new SelectivityTracker();
+    IndexReader indexReader = createMock(IndexReader.class);
+    expect(indexReader.maxDoc()).andReturn(20).anyTimes();
+    replay(indexReader);
+
+    SenseiDocIdSet senseiDocIdSet = tracker.track("QUERY a", indexReader, buildDocIdSet(1, 3, 5, 7), DocIdSetCardinality.random(), "QUERY a");
+    Assert.assertTrue(senseiDocIdSet.getCardinalityEstimate().isRandom());
+    Assert.assertEquals(4, TestSenseiBooleanFilters.getCount(senseiDocIdSet.getDocIdSet().iterator()));
+
+    senseiDocIdSet = tracker.track("QUERY a", indexReader, buildDocIdSet(1, 3, 5, 7), DocIdSetCardinality.random(), "QUERY a");
+    DocSetAssertions.assertRange(0.2, 0.2, senseiDocIdSet.getCardinalityEstimate());
+    Assert.assertEquals("[0.2-0.2] EST(1) QUERY a", senseiDocIdSet.getQueryPlan());
+  }
+
+  @Test
+  public void testAdvanceIsRecorded() throws IOException {
+    SelectivityTracker tracker = new SelectivityTracker();
+    IndexReader indexReader = createMock(IndexReader.class);
+    expect(indexReader.maxDoc()).andReturn(20).anyTimes();
+    replay(indexReader);
+
+    DocIdSetIterator iterator = tracker.track("QUERY b", indexReader, buildDocIdSet(1, 3, 5, 7), DocIdSetCardinality.random(), "").getDocIdSet().iterator();
+    // the docs 0-3 are skipped, the rest of the segment is covered with 2 hits
+    Assert.assertEquals(5, iterator.advance(4));
+    while (iterator.nextDoc() != DocIdSetIterator.NO_MORE_DOCS);
+    Assert.assertEquals(1, tracker.getSamples("QUERY b"));
+    DocSetAssertions.assertRange(0.125, 0.125, tracker.estimate("QUERY b", DocIdSetCardinality.random()));
+  }
+
+  @Test
+  public void testUnfinishedIterationIsRecordedPeriodically() throws IOException {
+    SelectivityTracker tracker = new SelectivityTracker();
+    int[] docs = new int[SelectivityTracker.RECORD_INTERVAL + 1];
+    for (int i = 0; i < docs.length; i++) {
+      docs[i] = i * 4;
+    }
+    IndexReader indexReader = createMock(IndexReader.class);
+    expect(indexReader.maxDoc()).andReturn(docs.length * 4).anyTimes();
+    replay(indexReader);
+
+    DocIdSetIterator iterator = tracker.track("QUERY c", indexReader, buildDocIdSet(docs), DocIdSetCardinality.random(), "").getDocIdSet().iterator();
+    // every advance covers 3 docs with a single hit
+    for (int i = 1; i <= SelectivityTracker.RECORD_INTERVAL; i++) {
+      Assert.assertEquals(i * 4, iterator.advance(i * 4 - 2));
+    }
+    Assert.assertEquals(1, tracker.getSamples("QUERY c"));
+    DocSetAssertions.assertRange(1.0 / 3, 1.0 / 3, tracker.estimate("QUERY c", DocIdSetCardinality.random()));
+  }
+
+  @Test
+  public void testTrackedEstimateIsNeverZeroOrOne() throws IOException {
+    SelectivityTracker tracker = new SelectivityTracker();
+    tracker.record("none", 0, 20);
+    tracker.record("all", 20, 20);
+    Assert.assertFalse(tracker.estimate("none", DocIdSetCardinality.random()).isZero());
+    Assert.assertFalse(tracker.estimate("all", DocIdSetCardinality.random()).isOne());
+    Assert.assertTrue(tracker.estimate("none", DocIdSetCardinality.random()).compareTo(tracker.estimate("all", DocIdSetCardinality.random())) < 0);
+    DocSetAssertions.assertRange(SelectivityTracker.EPSILON, SelectivityTracker.EPSILON, tracker.estimate("none", DocIdSetCardinality.random()));
+    DocSetAssertions.assertRange(1.0 - SelectivityTracker.EPSILON, 1.0 - SelectivityTracker.EPSILON, tracker.estimate("all", DocIdSetCardinality.random()));
+  }
+
+  @Test
+  public void testLeastRecentlyUsedKeyIsEvicted() {
+    SelectivityTracker tracker = new SelectivityTracker();
+    for (int i = 0; i < SelectivityTracker.MAX_KEYS; i++) {
+      tracker.record("key" + i, 1, 20);
+    }
+    tracker.estimate("key0", DocIdSetCardinality.random());
+    tracker.record("new", 1, 20);
+    Assert.assertEquals(SelectivityTracker.MAX_KEYS, tracker.size());
+    Assert.assertEquals(1, tracker.getSamples("key0"));
+    Assert.assertEquals(0, tracker.getSamples("key1"));
+    Assert.assertEquals(1, tracker.getSamples("new"));
+  }
+
+  @Test
+  public void testFiltersAreKeyedByFieldAndValue() {
+    String a = SenseiFilter.getSelectivityKey(new QueryWrapperFilter(new TermQuery(new Term("color", "red"))));
+    String b = SenseiFilter.getSelectivityKey(new QueryWrapperFilter(new TermQuery(new Term("color", "blue"))));
+    Assert.assertFalse(a.equals(b));
+    Assert.assertEquals(a, SenseiFilter.getSelectivityKey(new QueryWrapperFilter(new TermQuery(new Term("color", "red")))));
+  }
+}
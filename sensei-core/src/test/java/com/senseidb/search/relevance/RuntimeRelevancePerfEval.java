@@ -0,0 +1,131 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+
+package com.senseidb.search.relevance;
+
+import static org.easymock.classextension.EasyMock.createMock;
+import static org.easymock.classextension.EasyMock.expect;
+import static org.easymock.classextension.EasyMock.replay;
+
+import java.util.Random;
+
+import org.json.JSONObject;
+
+import com.browseengine.bobo.api.BoboIndexReader;
+import com.browseengine.bobo.facets.data.FacetDataCache;
+import com.browseengine.bobo.facets.data.TermFloatList;
+import com.browseengine.bobo.facets.data.TermIntList;
+import com.browseengine.bobo.facets.data.TermValueList;
+import com.browseengine.bobo.util.BigIntArray;
+import com.senseidb.search.relevance.impl.CompilationHelper;
+import com.senseidb.search.relevance.impl.CompilationHelper.DataTable;
+import com.senseidb.search.relevance.impl.CustomMathModel;
+
+/**
+ * Compares the bound score method of a runtime relevance model with the generic
+ * one, which fills the per-type argument arrays for every document.
+ */
+public class RuntimeRelevancePerfEval {
+
+  private static final String MODEL =
+      "{\"function_params\":[\"_INNER_SCORE\",\"thisYear\",\"year\",\"price\",\"goodYear\"]," +
+      "\"facets\":{\"int\":[\"year\"],\"float\":[\"price\"]}," +
+      "\"variables\":{\"set_int\":[\"goodYear\"],\"int\":[\"thisYear\"]}," +
+      "\"function\":\"if(goodYear.contains(year)) return _INNER_SCORE * 2f; if(year==thisYear) return price / 1000f; return _INNER_SCORE;\"}";
+
+  private static final String VALUES = "{\"thisYear\":2001,\"goodYear\":[1996,1997]}";
+
+  private static FacetDataCache buildCache(TermValueList valArray, int numTerms, int numDocs, Random random) {
+    valArray.seal();
+    FacetDataCache cache = new FacetDataCache();
+    BigIntArray orderArray = new BigIntArray(numDocs);
+    for (int i = 0; i < numDocs; ++i) {
+      orderArray.add(i, random.nextInt(numTerms));
+    }
+    cache.orderArray = orderArray;
+    cache.valArray = valArray;
+    return cache;
+  }
+
+  private static BoboIndexReader buildReader(int numDocs) throws Exception {
+    Random random = new Random(numDocs);
+    TermIntList years = new TermIntList();
+    for (int year = 1990; year <= 2010; ++year) {
+      years.add(String.valueOf(year));
+    }
+    TermFloatList prices = new TermFloatList();
+    for (int price = 1000; price <= 50000; price += 1000) {
+      prices.add(String.valueOf(price));
+    }
+    BoboIndexReader reader = createMock(BoboIndexReader.class);
+    expect(reader.getFacetData("year")).andReturn(buildCache(years, years.size(), numDocs, random)).anyTimes();
+    expect(reader.getFacetData("price")).andReturn(buildCache(prices, prices.size(), numDocs, random)).anyTimes();
+    replay(reader);
+    return reader;
+  }
+
+  private static CustomRelevanceFunction newFunction(BoboIndexReader reader, boolean bind) throws Exception {
+    DataTable dt = new DataTable();
+    CustomMathModel cModel = CompilationHelper.createCustomMathScorer(new JSONObject(MODEL), dt);
+    CustomRelevanceFunction function = new RuntimeRelevanceFunction(cModel, dt, bind);
+    function.initializeGlobal(new JSONObject(VALUES));
+    function.initializeReader(reader, null);
+    return function;
+  }
+
+  private static double score(CustomRelevanceFunction function, int numDocs) {
+    double checksum = 0;
+    for (int doc = 0; doc < numDocs; ++doc) {
+      checksum += function.newScore(1.0f, doc);
+    }
+    return checksum;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int numDocs = 1000000;
+    int iterations = 50;
+    BoboIndexReader reader = buildReader(numDocs);
+    CustomRelevanceFunction generic = newFunction(reader, false);
+    CustomRelevanceFunction bound = newFunction(reader, true);
+
+    double genericChecksum = 0;
+    double boundChecksum = 0;
+    // Warm up both paths before timing them.
+    for (int i = 0; i < iterations; ++i) {
+      genericChecksum += score(generic, numDocs);
+      boundChecksum += score(bound, numDocs);
+    }
+
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; ++i) {
+      genericChecksum += score(generic, numDocs);
+    }
+    long genericTime = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    for (int i = 0; i < iterations; ++i) {
+      boundChecksum += score(bound, numDocs);
+    }
+    long boundTime = System.nanoTime() - start;
+
+    System.out.println(numDocs + " docs: generic " + (genericTime / iterations / 1000) + "us/op"
+        + ", bound " + (boundTime / iterations / 1000) + "us/op"
+        + " (checksums " + genericChecksum + ", " + boundChecksum + ")");
+  }
+}
@@ -0,0 +1,212 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+package com.senseidb.search.relevance;
+
+import static org.easymock.classextension.EasyMock.createMock;
+import static org.easymock.classextension.EasyMock.expect;
+import static org.easymock.classextension.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.browseengine.bobo.api.BoboIndexReader;
+import com.browseengine.bobo.facets.data.FacetDataCache;
+import com.browseengine.bobo.facets.data.MultiValueFacetDataCache;
+import com.browseengine.bobo.facets.data.MultiValueWithWeightFacetDataCache;
+import com.browseengine.bobo.facets.data.TermDoubleList;
+import com.browseengine.bobo.facets.data.TermFloatList;
+import com.browseengine.bobo.facets.data.TermIntList;
+import com.browseengine.bobo.facets.data.TermLongList;
+import com.browseengine.bobo.facets.data.TermShortList;
+import com.browseengine.bobo.facets.data.TermStringList;
+import com.browseengine.bobo.facets.data.TermValueList;
+import com.browseengine.bobo.util.BigIntArray;
+import com.browseengine.bobo.util.BigNestedIntArray;
+import com.senseidb.indexing.activity.facet.ActivityRangeFacetHandler;
+import com.senseidb.search.relevance.impl.CompilationHelper;
+import com.senseidb.search.relevance.impl.CompilationHelper.DataTable;
+import com.senseidb.search.relevance.impl.CustomMathModel;
+
+/**
+ * Scores the same docs with the bound score method of a runtime relevance model
+ * and with the generic one, for every kind of parameter the bound method reads.
+ */
+public class TestRuntimeRelevanceFunction {
+  private static final int NUM_DOCS = 6;
+
+  private BoboIndexReader reader;
+
+  @Before
+  public void setup() throws Exception {
+    ActivityRangeFacetHandler likesHandler = createMock(ActivityRangeFacetHandler.class);
+    int[] likes = new int[] {0, 1, 2, 3, 4, 5};
+    for (int docId = 0; docId < NUM_DOCS; docId++) {
+      expect(likesHandler.getIntActivityValue(likes, docId)).andReturn(docId * 7 - 10).anyTimes();
+    }
+    replay(likesHandler);
+
+    reader = createMock(BoboIndexReader.class);
+    expect(reader.getFacetData("year")).andReturn(singleValued(new TermIntList(), new String[] {"1996", "2001", "2005"}, 0, 1, 2, 1, 0, 2)).anyTimes();
+    expect(reader.getFacetData("groupid")).andReturn(singleValued(new TermLongList(), new String[] {"10", "20"}, 1, 0, 0, 1, 1, 0)).anyTimes();
+    expect(reader.getFacetData("price")).andReturn(singleValued(new TermFloatList(), new String[] {"1500.5", "2000", "3000"}, 2, 2, 1, 0, 1, 0)).anyTimes();
+    expect(reader.getFacetData("mileage")).andReturn(singleValued(new TermDoubleList(), new String[] {"11000", "11400.25"}, 0, 1, 1, 0, 0, 1)).anyTimes();
+    expect(reader.getFacetData("rank")).andReturn(singleValued(new TermShortList(), new String[] {"1", "2", "3"}, 2, 1, 0, 2, 1, 0)).anyTimes();
+    expect(reader.getFacetData("color")).andReturn(singleValued(new TermStringList(), new String[] {"blue", "green", "red"}, 2, 0, 1, 1, 2, 0)).anyTimes();
+    expect(reader.getFacetData("tags")).andReturn(multiValued(new MultiValueFacetDataCache(), new TermStringList(), new String[] {"a", "b", "c"},
+        new int[][] {{0, 1}, {0}, {}, {1, 2}, {2}, {0, 1, 2}}, null)).anyTimes();
+    expect(reader.getFacetData("sizes")).andReturn(multiValued(new MultiValueFacetDataCache(), new TermIntList(), new String[] {"1", "2", "3"},
+        new int[][] {{2}, {}, {0, 1}, {0}, {1, 2}, {2}}, null)).anyTimes();
+    expect(reader.getFacetData("wtags")).andReturn(multiValued(new MultiValueWithWeightFacetDataCache(), new TermStringList(), new String[] {"a", "b"},
+        new int[][] {{0}, {0, 1}, {1}, {}, {0, 1}, {0}}, new int[][] {{3}, {1, 8}, {2}, {}, {6, 4}, {9}})).anyTimes();
+    expect(reader.getFacetData("wsizes")).andReturn(multiValued(new MultiValueWithWeightFacetDataCache(), new TermIntList(), new String[] {"1", "2"},
+        new int[][] {{1}, {}, {0, 1}, {0}, {1}, {0, 1}}, new int[][] {{5}, {}, {7, 2}, {1}, {4}, {3, 6}})).anyTimes();
+    expect(reader.getFacetData("likes")).andReturn(likes).anyTimes();
+    expect((Object) reader.getFacetHandler("likes")).andReturn(likesHandler).anyTimes();
+    replay(reader);
+  }
+
+  private static FacetDataCache singleValued(TermValueList<?> valArray, String[] terms, int... ordinals) {
+    for (String term : terms) {
+      valArray.add(term);
+    }
+    valArray.seal();
+    BigIntArray orderArray = new BigIntArray(ordinals.length);
+    for (int docId = 0; docId < ordinals.length; docId++) {
+      orderArray.add(docId, ordinals[docId]);
+    }
+    FacetDataCache ret = new FacetDataCache();
+    ret.orderArray = orderArray;
+    ret.valArray = valArray;
+    return ret;
+  }
+
+  private static MultiValueFacetDataCache multiValued(MultiValueFacetDataCache ret, TermValueList<?> valArray, String[] terms,
+      int[][] ordinals, int[][] weights) throws Exception {
+    for (String term : terms) {
+      valArray.add(term);
+    }
+    valArray.seal();
+    ret.valArray = valArray;
+    ret._nestedArray.load(ordinals.length, loader(ordinals));
+    if (weights != null) {
+      ((MultiValueWithWeightFacetDataCache) ret)._weightArray.load(weights.length, loader(weights));
+    }
+    return ret;
+  }
+
+  private static BigNestedIntArray.BufferedLoader loader(int[][] values) {
+    BigNestedIntArray.BufferedLoader ret = new BigNestedIntArray.BufferedLoader(values.length);
+    for (int docId = 0; docId < values.length; docId++) {
+      for (int value : values[docId]) {
+        ret.add(docId, value);
+      }
+    }
+    return ret;
+  }
+
+  private void assertSameScores(String model, String values) throws Exception {
+    DataTable dt = new DataTable();
+    CustomMathModel cModel = CompilationHelper.createCustomMathScorer(new JSONObject(model), dt);
+    RuntimeRelevanceFunction generic = new RuntimeRelevanceFunction(cModel, dt, false);
+    RuntimeRelevanceFunction bound = new RuntimeRelevanceFunction(cModel, dt, true);
+    generic.initializeGlobal(new JSONObject(values));
+    generic.initializeReader(reader, null);
+    bound.initializeReader(reader, null);
+    assertTrue(bound.isBound());
+
+    Set<Float> scores = new HashSet<Float>();
+    for (int docId = 0; docId < NUM_DOCS; docId++) {
+      float innerScore = docId + 0.5f;
+      float score = generic.newScore(innerScore, docId);
+      assertEquals("doc " + docId, score, bound.newScore(innerScore, docId), 0f);
+      scores.add(score);
+    }
+    // the model has to tell the docs apart, otherwise the comparison proves nothing
+    assertTrue(scores.size() > 1);
+  }
+
+  @Test
+  public void testFacets() throws Exception {
+    assertSameScores("{\"function_params\":[\"_INNER_SCORE\",\"year\",\"groupid\",\"price\",\"mileage\",\"rank\",\"color\"]," +
+        "\"facets\":{\"int\":[\"year\"],\"long\":[\"groupid\"],\"float\":[\"price\"],\"double\":[\"mileage\"],\"short\":[\"rank\"],\"string\":[\"color\"]}," +
+        "\"variables\":{}," +
+        "\"function\":\"if(color.equals(\\\"red\\\")) return (float) (year + rank); return _INNER_SCORE * price + (float) (groupid / 10L) + (float) mileage;\"}",
+        "{}");
+  }
+
+  @Test
+  public void testPrimitiveVariables() throws Exception {
+    assertSameScores("{\"function_params\":[\"_INNER_SCORE\",\"year\",\"groupid\",\"color\",\"thisYear\",\"bonus\",\"weight\",\"factor\",\"flag\",\"favorite\"]," +
+        "\"facets\":{\"int\":[\"year\"],\"long\":[\"groupid\"],\"string\":[\"color\"]}," +
+        "\"variables\":{\"int\":[\"thisYear\"],\"long\":[\"bonus\"],\"float\":[\"weight\"],\"double\":[\"factor\"],\"bool\":[\"flag\"],\"string\":[\"favorite\"]}," +
+        "\"function\":\"if(flag && color.equals(favorite)) return (float) (thisYear - year); return _INNER_SCORE * weight + (float) factor + (float) (groupid % bonus);\"}",
+        "{\"thisYear\":2001,\"bonus\":3,\"weight\":1.5,\"factor\":0.25,\"flag\":true,\"favorite\":\"green\"}");
+  }
+
+  @Test
+  public void testSetsAndMaps() throws Exception {
+    assertSameScores("{\"function_params\":[\"_INNER_SCORE\",\"year\",\"color\",\"goodYear\",\"goodCategories\",\"yearWeight\",\"colorCategory\"]," +
+        "\"facets\":{\"int\":[\"year\"],\"string\":[\"color\"]}," +
+        "\"variables\":{\"set_int\":[\"goodYear\"],\"set_string\":[\"goodCategories\"],\"map_int_float\":[\"yearWeight\"],\"map_string_string\":[\"colorCategory\"]}," +
+        "\"function\":\"if(goodYear.contains(year)) return 2f; if(colorCategory.containsKey(color) && goodCategories.contains(colorCategory.get(color))) return 3f; if(yearWeight.containsKey(year)) return _INNER_SCORE + yearWeight.get(year); return _INNER_SCORE;\"}",
+        "{\"goodYear\":[1996],\"goodCategories\":[\"compact\"],\"yearWeight\":{\"2005\":10.5},\"colorCategory\":{\"red\":\"compact\",\"blue\":\"suv\"}}");
+  }
+
+  @Test
+  public void testMultiFacets() throws Exception {
+    assertSameScores("{\"function_params\":[\"_INNER_SCORE\",\"tags\",\"sizes\"]," +
+        "\"facets\":{\"mstring\":[\"tags\"],\"mint\":[\"sizes\"]}," +
+        "\"variables\":{}," +
+        "\"function\":\"if(tags.contains(\\\"b\\\")) return _INNER_SCORE * (float) tags.size(); if(sizes.contains(3)) return 5f + (float) sizes.size(); return _INNER_SCORE;\"}",
+        "{}");
+  }
+
+  @Test
+  public void testWeightedMultiFacets() throws Exception {
+    assertSameScores("{\"function_params\":[\"_INNER_SCORE\",\"wtags\",\"wsizes\"]," +
+        "\"facets\":{\"wmstring\":[\"wtags\"],\"wmint\":[\"wsizes\"]}," +
+        "\"variables\":{}," +
+        "\"function\":\"if(wtags.hasWeight(\\\"b\\\")) return (float) wtags.getWeight(); if(wsizes.hasWeight(2)) return (float) wsizes.getWeight() * 10f; return _INNER_SCORE;\"}",
+        "{}");
+  }
+
+  @Test
+  public void testActivityFacet() throws Exception {
+    assertSameScores("{\"function_params\":[\"_INNER_SCORE\",\"likes\"]," +
+        "\"facets\":{\"aint\":[\"likes\"]}," +
+        "\"variables\":{}," +
+        "\"function\":\"if(likes > 0) return _INNER_SCORE + (float) likes; return 0f;\"}",
+        "{}");
+  }
+
+  @Test
+  public void testCustomObject() throws Exception {
+    assertSameScores("{\"function_params\":[\"_INNER_SCORE\",\"color\",\"test_obj2\"]," +
+        "\"facets\":{\"string\":[\"color\"]}," +
+        "\"variables\":{\"custom_obj\":[\"test_obj2\"]}," +
+        "\"function\":\"if(test_obj2.contains(color)) return 20f; return _INNER_SCORE;\"}",
+        "{}");
+  }
+}
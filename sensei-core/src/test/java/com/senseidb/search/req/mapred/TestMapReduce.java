@@ -134,4 +134,32 @@ public class TestMapReduce extends TestCase {
       
       
     }
+    public void test11ApproximateDistinctCount() throws Exception {
+      String req = "{\"filter\":{\"term\":{\"color\":\"red\"}}"
+          +", \"mapReduce\":{\"function\":\"sensei.approxDistinctCount\",\"parameters\":{\"column\":\"groupid\"}}}";
+      JSONObject res = TestSensei.search(new JSONObject(req));
+      JSONObject mapReduceResult = res.getJSONObject("mapReduceResult");
+      assertEquals(964, Long.parseLong(mapReduceResult.getString("distinctCount")), 964 * 0.05);
+    }
+    public void test12Percentiles() throws Exception {
+      String req = "{\"filter\":{\"term\":{\"color\":\"red\"}}"
+          +", \"mapReduce\":{\"function\":\"sensei.percentiles\",\"parameters\":{\"column\":\"groupid\", \"percentiles\":[0, 0.5, 1]}}}";
+      JSONObject res = TestSensei.search(new JSONObject(req));
+      JSONObject mapReduceResult = res.getJSONObject("mapReduceResult");
+      assertEquals(2160, Long.parseLong(mapReduceResult.getString("count")));
+      JSONObject percentiles = mapReduceResult.getJSONObject("percentiles");
+      assertEquals(14990, percentiles.getDouble("1.0"), 0.001);
+      double median = percentiles.getDouble("0.5");
+      assertTrue(median > percentiles.getDouble("0.0") && median < 14990);
+    }
+    public void test13ApproximateTopK() throws Exception {
+      String req = "{\"mapReduce\":{\"function\":\"sensei.approxTopK\",\"parameters\":{\"column\":\"color\", \"topK\":2}}}";
+      JSONObject res = TestSensei.search(new JSONObject(req));
+      JSONObject mapReduceResult = res.getJSONObject("mapReduceResult");
+      System.out.println(mapReduceResult.toString(1));
+      assertEquals(2, mapReduceResult.getJSONArray("topK").length());
+      JSONObject first = mapReduceResult.getJSONArray("topK").getJSONObject(0);
+      assertTrue(first.getLong("black") >= 3141);
+      assertTrue(mapReduceResult.getJSONArray("topK").getJSONObject(1).getLong("white") >= 2196);
+    }
 }
@@ -0,0 +1,152 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+package com.senseidb.search.req.mapred.functions;
+
+import static org.easymock.classextension.EasyMock.createMock;
+import static org.easymock.classextension.EasyMock.expect;
+import static org.easymock.classextension.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.browseengine.bobo.api.BoboIndexReader;
+import com.browseengine.bobo.facets.FacetHandler;
+import com.browseengine.bobo.facets.data.FacetDataCache;
+import com.browseengine.bobo.facets.data.MultiValueFacetDataCache;
+import com.browseengine.bobo.facets.data.TermLongList;
+import com.browseengine.bobo.facets.data.TermStringList;
+import com.browseengine.bobo.facets.data.TermValueList;
+import com.browseengine.bobo.util.BigIntArray;
+import com.senseidb.search.req.SenseiSystemInfo.SenseiFacetInfo;
+import com.senseidb.search.req.mapred.FieldAccessor;
+
+public class TestCountGroupByMapReduce {
+  private static final int[] DOC_IDS = new int[] {0, 1, 2, 3, 4, 5, 6};
+
+  private FieldAccessor accessor;
+
+  @Before
+  public void setup() {
+    TermStringList colors = new TermStringList();
+    colors.add(null);
+    colors.add("blue");
+    colors.add("green");
+    colors.add("red");
+    colors.seal();
+    TermLongList groupIds = new TermLongList();
+    groupIds.add(null);
+    groupIds.add("10");
+    groupIds.add("20");
+    groupIds.seal();
+
+    // the ordinal 0 stands for the docs without a value: doc 2 has no color, doc 3 no groupid and doc 6 neither
+    FacetDataCache color = singleValued(colors, 1, 2, 0, 1, 3, 2, 0);
+    FacetDataCache groupId = singleValued(groupIds, 1, 1, 2, 0, 2, 1, 0);
+    MultiValueFacetDataCache tags = new MultiValueFacetDataCache();
+
+    FacetHandler<?> tagsHandler = createMock(FacetHandler.class);
+    BoboIndexReader reader = createMock(BoboIndexReader.class);
+    Object[][] docTags = new Object[][] {{"a", "b"}, {"a"}, {}, {"a", "b"}, {"b"}, {}, {"a"}};
+    for (int docId : DOC_IDS) {
+      expect(tagsHandler.getRawFieldValues(reader, docId)).andReturn(docTags[docId]).anyTimes();
+    }
+    replay(tagsHandler);
+    expect(reader.getFacetData("color")).andReturn(color).anyTimes();
+    expect(reader.getFacetData("groupid")).andReturn(groupId).anyTimes();
+    expect(reader.getFacetData("tags")).andReturn(tags).anyTimes();
+    expect((Object) reader.getFacetHandler("tags")).andReturn(tagsHandler).anyTimes();
+    replay(reader);
+
+    accessor = new FieldAccessor(Collections.<SenseiFacetInfo>emptySet(), reader, null);
+  }
+
+  private static FacetDataCache singleValued(TermValueList<?> valArray, int... ordinals) {
+    BigIntArray orderArray = new BigIntArray(ordinals.length);
+    for (int docId = 0; docId < ordinals.length; docId++) {
+      orderArray.add(docId, ordinals[docId]);
+    }
+    FacetDataCache ret = new FacetDataCache();
+    ret.orderArray = orderArray;
+    ret.valArray = valArray;
+    return ret;
+  }
+
+  private static CountGroupByMapReduce groupBy(String... columns) throws Exception {
+    CountGroupByMapReduce ret = new CountGroupByMapReduce();
+    ret.init(new JSONObject().put("columns", new JSONArray(Arrays.asList(columns))));
+    return ret;
+  }
+
+  private static Map<String, Integer> counts(Map<String, IntContainer> mapResult) {
+    Map<String, Integer> ret = new HashMap<String, Integer>();
+    for (Map.Entry<String, IntContainer> entry : mapResult.entrySet()) {
+      ret.put(entry.getKey(), entry.getValue().value);
+    }
+    return ret;
+  }
+
+  @Test
+  public void testOrdinalGroupByEqualsStringPath() throws Exception {
+    CountGroupByMapReduce groupBy = groupBy("color", "groupid");
+    assertNotNull(accessor.getColumn("color"));
+    assertNotNull(accessor.getColumn("groupid"));
+
+    Map<String, Integer> ordinals = counts(groupBy.map(DOC_IDS, DOC_IDS.length, null, accessor, null));
+    Map<String, Integer> strings = counts(groupBy.mapValues(DOC_IDS, DOC_IDS.length, accessor));
+    assertEquals(strings, ordinals);
+    assertEquals(Integer.valueOf(2), ordinals.get("green:10"));
+    int total = 0;
+    for (int count : ordinals.values()) {
+      total += count;
+    }
+    assertEquals(DOC_IDS.length, total);
+  }
+
+  @Test
+  public void testDocsWithoutValueAreGroupedTheSameWay() throws Exception {
+    CountGroupByMapReduce groupBy = groupBy("groupid");
+    int[] docIds = new int[] {3, 6, 0};
+    Map<String, Integer> ordinals = counts(groupBy.map(docIds, docIds.length, null, accessor, null));
+    assertEquals(counts(groupBy.mapValues(docIds, docIds.length, accessor)), ordinals);
+    assertEquals(2, ordinals.size());
+  }
+
+  @Test
+  public void testMultiValueColumnFallsBackToStringPath() throws Exception {
+    assertNull(accessor.getColumn("tags"));
+    CountGroupByMapReduce groupBy = groupBy("color", "tags");
+    Map<String, Integer> counts = counts(groupBy.map(DOC_IDS, DOC_IDS.length, null, accessor, null));
+    assertEquals(counts(groupBy.mapValues(DOC_IDS, DOC_IDS.length, accessor)), counts);
+    assertEquals(Integer.valueOf(2), counts.get("blue:[a, b]"));
+    assertTrue(counts.containsKey("green:[]"));
+    assertFalse(counts.containsKey("blue:[a]"));
+  }
+}
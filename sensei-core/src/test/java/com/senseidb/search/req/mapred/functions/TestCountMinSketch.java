@@ -0,0 +1,58 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+package com.senseidb.search.req.mapred.functions;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class TestCountMinSketch {
+
+  private static CountMinSketch segment(String prefix) {
+    CountMinSketch ret = new CountMinSketch(CountMinSketch.DEFAULT_WIDTH, CountMinSketch.DEFAULT_DEPTH, 10);
+    for (int i = 0; i < 10; i++) {
+      ret.add(prefix + i, 100);
+    }
+    // just below the top 10 of the segment
+    ret.add("x", 90);
+    return ret;
+  }
+
+  @Test
+  public void testCandidateBelowTopKOfEverySegmentMakesItIntoMergedTopK() {
+    CountMinSketch merged = new CountMinSketch(CountMinSketch.DEFAULT_WIDTH, CountMinSketch.DEFAULT_DEPTH, 10);
+    merged.merge(segment("a"));
+    merged.merge(segment("b"));
+    List<Map.Entry<String, Long>> topK = merged.getTopK();
+    assertEquals(10, topK.size());
+    assertEquals("x", topK.get(0).getKey());
+    assertEquals(180L, topK.get(0).getValue().longValue());
+    assertEquals(2180L, merged.getTotal());
+  }
+
+  @Test
+  public void testSegmentSketchKeepsOnlyTopK() {
+    List<Map.Entry<String, Long>> topK = segment("a").getTopK();
+    assertEquals(10, topK.size());
+    assertEquals(100L, topK.get(9).getValue().longValue());
+  }
+}
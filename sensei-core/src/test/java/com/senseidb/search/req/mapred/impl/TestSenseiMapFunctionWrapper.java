@@ -0,0 +1,287 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+package com.senseidb.search.req.mapred.impl;
+
+import static org.easymock.classextension.EasyMock.createNiceMock;
+import static org.easymock.classextension.EasyMock.expect;
+import static org.easymock.classextension.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import proj.zoie.api.ZoieSegmentReader;
+
+import com.browseengine.bobo.api.BoboIndexReader;
+import com.browseengine.bobo.facets.FacetCountCollector;
+import com.senseidb.search.req.SenseiSystemInfo.SenseiFacetInfo;
+import com.senseidb.search.req.mapred.CombinerStage;
+import com.senseidb.search.req.mapred.FacetCountAccessor;
+import com.senseidb.search.req.mapred.FieldAccessor;
+import com.senseidb.search.req.mapred.SenseiMapReduce;
+import com.senseidb.svc.impl.SenseiSearchScheduler;
+
+/**
+ * Runs the same map reduce over the same segments on the collecting thread and on the scheduler, and compares the results
+ */
+public class TestSenseiMapFunctionWrapper {
+  private static final FacetCountCollector[] NO_FACETS = new FacetCountCollector[0];
+
+  private SenseiSearchScheduler scheduler;
+
+  @Before
+  public void setup() {
+    scheduler = new SenseiSearchScheduler(4, 100, 10000, 1, 1);
+  }
+
+  @After
+  public void tearDown() {
+    scheduler.shutdown();
+  }
+
+  public static class DocStats implements Serializable {
+    private static final long serialVersionUID = 1L;
+    long docs;
+    long docIdSum;
+  }
+
+  /**
+   * Counts the docs and sums their ids, fails on the given doc
+   */
+  public static class DocStatsMapReduce implements SenseiMapReduce<DocStats, DocStats> {
+    private static final long serialVersionUID = 1L;
+    private final int failingDocId;
+
+    public DocStatsMapReduce(int failingDocId) {
+      this.failingDocId = failingDocId;
+    }
+
+    @Override
+    public void init(JSONObject params) {
+    }
+
+    @Override
+    public DocStats map(int[] docIds, int docIdCount, long[] uids, FieldAccessor accessor, FacetCountAccessor facetCountsAccessor) {
+      DocStats ret = new DocStats();
+      for (int i = 0; i < docIdCount; i++) {
+        if (docIds[i] == failingDocId) {
+          throw new IllegalStateException("Can not map the doc " + failingDocId);
+        }
+        ret.docs++;
+        ret.docIdSum += docIds[i];
+      }
+      return ret;
+    }
+
+    @Override
+    public List<DocStats> combine(List<DocStats> mapResults, CombinerStage combinerStage) {
+      List<DocStats> ret = new ArrayList<DocStats>();
+      ret.add(reduce(mapResults));
+      return ret;
+    }
+
+    @Override
+    public DocStats reduce(List<DocStats> combineResults) {
+      DocStats ret = new DocStats();
+      for (DocStats stats : combineResults) {
+        ret.docs += stats.docs;
+        ret.docIdSum += stats.docIdSum;
+      }
+      return ret;
+    }
+
+    @Override
+    public JSONObject render(DocStats reduceResult) {
+      return null;
+    }
+
+    @Override
+    public String[] getColumns() {
+      return new String[0];
+    }
+  }
+
+  /**
+   * Collects the doc ids in the order they were mapped, the combine is associative but not commutative
+   */
+  public static class DocOrderMapReduce implements SenseiMapReduce<ArrayList<Integer>, ArrayList<Integer>> {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public void init(JSONObject params) {
+    }
+
+    @Override
+    public ArrayList<Integer> map(int[] docIds, int docIdCount, long[] uids, FieldAccessor accessor, FacetCountAccessor facetCountsAccessor) {
+      ArrayList<Integer> ret = new ArrayList<Integer>(docIdCount);
+      for (int i = 0; i < docIdCount; i++) {
+        ret.add(docIds[i]);
+      }
+      return ret;
+    }
+
+    @Override
+    public List<ArrayList<Integer>> combine(List<ArrayList<Integer>> mapResults, CombinerStage combinerStage) {
+      List<ArrayList<Integer>> ret = new ArrayList<ArrayList<Integer>>();
+      ret.add(reduce(mapResults));
+      return ret;
+    }
+
+    @Override
+    public ArrayList<Integer> reduce(List<ArrayList<Integer>> combineResults) {
+      ArrayList<Integer> ret = new ArrayList<Integer>();
+      for (ArrayList<Integer> docIds : combineResults) {
+        ret.addAll(docIds);
+      }
+      return ret;
+    }
+
+    @Override
+    public JSONObject render(ArrayList<Integer> reduceResult) {
+      return null;
+    }
+
+    @Override
+    public String[] getColumns() {
+      return new String[0];
+    }
+  }
+
+  private static BoboIndexReader createSegment() {
+    ZoieSegmentReader<?> zoieReader = createNiceMock(ZoieSegmentReader.class);
+    replay(zoieReader);
+    BoboIndexReader reader = createNiceMock(BoboIndexReader.class);
+    expect(reader.getInnerReader()).andReturn(zoieReader).anyTimes();
+    replay(reader);
+    return reader;
+  }
+
+  /**
+   * @param segmentSizes the number of hits in every segment, the hit ids are 0, 2, 4 ...
+   */
+  @SuppressWarnings("unchecked")
+  private DocStats run(SenseiMapReduce<DocStats, DocStats> mapReduce, boolean parallel, int... segmentSizes) {
+    SenseiMapFunctionWrapper wrapper = new SenseiMapFunctionWrapper(mapReduce, Collections.<SenseiFacetInfo>emptySet(), parallel ? scheduler : null);
+    for (int segmentSize : segmentSizes) {
+      BoboIndexReader reader = createSegment();
+      for (int i = 0; i < segmentSize; i++) {
+        wrapper.mapSingleDocument(i * 2, reader);
+      }
+      wrapper.finalizeSegment(reader, NO_FACETS);
+    }
+    wrapper.finalizePartition();
+    return mapReduce.reduce(wrapper.getResult().getMapResults());
+  }
+
+  /**
+   * @param segmentSizes the number of hits in every segment, the hit ids of the segment n are n * 10000, n * 10000 + 1 ...
+   */
+  @SuppressWarnings("unchecked")
+  private List<Integer> runDocOrder(boolean parallel, int... segmentSizes) {
+    DocOrderMapReduce mapReduce = new DocOrderMapReduce();
+    SenseiMapFunctionWrapper wrapper = new SenseiMapFunctionWrapper(mapReduce, Collections.<SenseiFacetInfo>emptySet(), parallel ? scheduler : null);
+    for (int segment = 0; segment < segmentSizes.length; segment++) {
+      BoboIndexReader reader = createSegment();
+      for (int i = 0; i < segmentSizes[segment]; i++) {
+        wrapper.mapSingleDocument(segment * 10000 + i, reader);
+      }
+      wrapper.finalizeSegment(reader, NO_FACETS);
+    }
+    wrapper.finalizePartition();
+    return mapReduce.reduce(wrapper.getResult().getMapResults());
+  }
+
+  private static void assertSameStats(DocStats expected, DocStats actual) {
+    assertEquals(expected.docs, actual.docs);
+    assertEquals(expected.docIdSum, actual.docIdSum);
+  }
+
+  @Test
+  public void testParallelMapEqualsSequentialMap() {
+    int[] segmentSizes = new int[] {5000, 1, SenseiMapFunctionWrapper.BUFFER_SIZE, 3000, SenseiMapFunctionWrapper.BUFFER_SIZE * 3 + 7};
+    DocStats sequential = run(new DocStatsMapReduce(-1), false, segmentSizes);
+    DocStats parallel = run(new DocStatsMapReduce(-1), true, segmentSizes);
+    assertSameStats(sequential, parallel);
+    long docs = 0;
+    for (int segmentSize : segmentSizes) {
+      docs += segmentSize;
+    }
+    assertEquals(docs, parallel.docs);
+  }
+
+  @Test
+  public void testParallelCombineKeepsTheSegmentOrder() {
+    int[] segmentSizes = new int[] {3, 1, 7, 2, 5, 4, 1, 6, 2};
+    List<Integer> sequential = runDocOrder(false, segmentSizes);
+    assertEquals(31, sequential.size());
+    for (int i = 0; i < 20; i++) {
+      assertEquals(sequential, runDocOrder(true, segmentSizes));
+    }
+  }
+
+  @Test
+  public void testEmptySegments() {
+    DocStats sequential = run(new DocStatsMapReduce(-1), false, 0, 10, 0, 0, 20, 0);
+    DocStats parallel = run(new DocStatsMapReduce(-1), true, 0, 10, 0, 0, 20, 0);
+    assertSameStats(sequential, parallel);
+    assertEquals(30, parallel.docs);
+
+    sequential = run(new DocStatsMapReduce(-1), false, 0, 0);
+    parallel = run(new DocStatsMapReduce(-1), true, 0, 0);
+    assertSameStats(sequential, parallel);
+    assertEquals(0, parallel.docs);
+  }
+
+  @Test
+  public void testMapErrorsAreRethrownInBothModes() {
+    Throwable sequential = runFailing(false);
+    Throwable parallel = runFailing(true);
+    assertNotNull(sequential);
+    assertNotNull(parallel);
+    assertEquals(IllegalStateException.class, parallel.getClass());
+    assertEquals(sequential.getClass(), parallel.getClass());
+    assertEquals(sequential.getMessage(), parallel.getMessage());
+  }
+
+  /**
+   * @return the root cause of the failure
+   */
+  private Throwable runFailing(boolean parallel) {
+    try {
+      run(new DocStatsMapReduce(4000), parallel, 100, 0, 3000, 100);
+      fail("The map error should be rethrown");
+      return null;
+    } catch (RuntimeException e) {
+      Throwable ret = e;
+      while (ret.getCause() != null) {
+        ret = ret.getCause();
+      }
+      return ret;
+    }
+  }
+}
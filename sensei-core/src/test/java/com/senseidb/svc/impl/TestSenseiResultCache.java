@@ -0,0 +1,94 @@
+package com.senseidb.svc.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Comparator;
+
+import org.junit.Test;
+
+public class TestSenseiResultCache {
+
+  private static final Comparator<String> VERSION_COMPARATOR = new Comparator<String>() {
+    public int compare(String v1, String v2) {
+      return Long.valueOf(v1).compareTo(Long.valueOf(v2));
+    }
+  };
+
+  private static String[] gen(String... versions) {
+    return versions;
+  }
+
+  @Test
+  public void testHitAndMiss() {
+    SenseiResultCache cache = new SenseiResultCache(10, 1000, 0);
+    assertNull(cache.get("[0, 1]", gen("1", "1"), "q"));
+    cache.put("[0, 1]", gen("1", "1"), "q", "result", 10);
+    assertEquals("result", cache.get("[0, 1]", gen("1", "1"), "q"));
+    assertNull(cache.get("[0, 1]", gen("1", "2"), "q"));
+    assertNull(cache.get("[0]", gen("1", "1"), "q"));
+  }
+
+  @Test
+  public void testNewGenerationInvalidatesScope() {
+    SenseiResultCache cache = new SenseiResultCache(10, 1000, 0);
+    cache.put("[0]", gen("1"), "q1", "r1", 10);
+    cache.put("[1]", gen("1"), "q1", "r2", 10);
+    cache.put("[0]", gen("2"), "q2", "r3", 10);
+    assertNull(cache.get("[0]", gen("1"), "q1"));
+    assertEquals("r2", cache.get("[1]", gen("1"), "q1"));
+    assertEquals("r3", cache.get("[0]", gen("2"), "q2"));
+    assertEquals(2, cache.size());
+    assertEquals(20, cache.getBytes());
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() {
+    SenseiResultCache cache = new SenseiResultCache(2, 1000, 0);
+    cache.put("[0]", gen("1"), "q1", "r1", 10);
+    cache.put("[0]", gen("1"), "q2", "r2", 10);
+    cache.get("[0]", gen("1"), "q1");
+    cache.put("[0]", gen("1"), "q3", "r3", 10);
+    assertNull(cache.get("[0]", gen("1"), "q2"));
+    assertEquals("r1", cache.get("[0]", gen("1"), "q1"));
+    assertEquals("r3", cache.get("[0]", gen("1"), "q3"));
+  }
+
+  @Test
+  public void testBoundedBySize() {
+    SenseiResultCache cache = new SenseiResultCache(10, 100, 0);
+    cache.put("[0]", gen("1"), "q1", "r1", 60);
+    cache.put("[0]", gen("1"), "q2", "r2", 60);
+    assertNull(cache.get("[0]", gen("1"), "q1"));
+    assertEquals("r2", cache.get("[0]", gen("1"), "q2"));
+    assertEquals(60, cache.getBytes());
+
+    cache.put("[0]", gen("1"), "q3", "r3", 101);
+    assertNull(cache.get("[0]", gen("1"), "q3"));
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void testExpiresOldEntries() throws Exception {
+    SenseiResultCache cache = new SenseiResultCache(10, 100, 1);
+    cache.put("[0]", gen("1"), "q1", "r1", 10);
+    Thread.sleep(10);
+    assertNull(cache.get("[0]", gen("1"), "q1"));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testDropsStalePuts() {
+    SenseiResultCache cache = new SenseiResultCache(10, 1000, 0, VERSION_COMPARATOR);
+    cache.put("[0, 1]", gen("1", "2"), "q1", "r1", 10);
+    // a slow request computed against the previous generation must not evict the newer entries
+    cache.put("[0, 1]", gen("1", "1"), "q2", "r2", 10);
+    assertNull(cache.get("[0, 1]", gen("1", "1"), "q2"));
+    assertEquals("r1", cache.get("[0, 1]", gen("1", "2"), "q1"));
+
+    cache.put("[0, 1]", gen("2", "2"), "q2", "r3", 10);
+    assertNull(cache.get("[0, 1]", gen("1", "2"), "q1"));
+    assertEquals("r3", cache.get("[0, 1]", gen("2", "2"), "q2"));
+    assertEquals(1, cache.size());
+  }
+}
@@ -0,0 +1,88 @@
+package com.senseidb.svc.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class TestSenseiSearchScheduler {
+  private final CountDownLatch release = new CountDownLatch(1);
+  private final SenseiSearchScheduler scheduler = new SenseiSearchScheduler(1, 1, 200, 1, 1);
+
+  @After
+  public void tearDown() {
+    release.countDown();
+    scheduler.shutdown();
+  }
+
+  private Callable<Integer> blocking() {
+    return new Callable<Integer>() {
+      @Override
+      public Integer call() throws Exception {
+        release.await();
+        return 0;
+      }
+    };
+  }
+
+  @Test
+  public void testRejectsWhenQueueIsFull() {
+    scheduler.submit(blocking());
+    scheduler.submit(blocking());
+    try {
+      scheduler.submit(blocking());
+      fail("the third task should have been rejected");
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testQueuedTaskIsRunByWaitingThread() throws Exception {
+    scheduler.submit(blocking());
+    FutureTask<Thread> queued = scheduler.submit(new Callable<Thread>() {
+      @Override
+      public Thread call() throws Exception {
+        return Thread.currentThread();
+      }
+    });
+    assertSame(Thread.currentThread(), scheduler.await(queued, System.currentTimeMillis() + 1000));
+  }
+
+  @Test
+  public void testStragglerIsCancelledAtDeadline() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    FutureTask<Integer> straggler = scheduler.submit(new Callable<Integer>() {
+      @Override
+      public Integer call() throws Exception {
+        started.countDown();
+        release.await();
+        return 0;
+      }
+    });
+    // Make sure the searcher thread owns the task, so it is not run by the waiting thread.
+    started.await();
+    long start = System.currentTimeMillis();
+    try {
+      scheduler.await(straggler, start + 100);
+      fail("the task should have timed out");
+    } catch (TimeoutException e) {
+      assertTrue(straggler.isCancelled());
+      assertTrue(System.currentTimeMillis() - start < 1000);
+    }
+  }
+
+  @Test
+  public void testTimeout() {
+    assertEquals(200, scheduler.getTimeout());
+  }
+}
@@ -0,0 +1,168 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+package com.senseidb.test;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.senseidb.search.relevance.impl.CompiledModelCache;
+import com.senseidb.search.relevance.impl.CustomMathModel;
+import com.senseidb.search.relevance.impl.MFacetDouble;
+import com.senseidb.search.relevance.impl.MFacetFloat;
+import com.senseidb.search.relevance.impl.MFacetInt;
+import com.senseidb.search.relevance.impl.MFacetLong;
+import com.senseidb.search.relevance.impl.MFacetShort;
+import com.senseidb.search.relevance.impl.MFacetString;
+import com.senseidb.search.relevance.impl.RelevanceException;
+
+public class TestCompiledModelCache extends TestCase
+{
+  private static class ConstantModel implements CustomMathModel
+  {
+    @Override
+    public float score(short[] shorts, int[] ints, long[] longs, float[] floats, double[] doubles, boolean[] booleans, String[] strings, Set[] sets, Map[] maps,
+                       MFacetInt[] mFacetInts, MFacetLong[] mFacetLongs, MFacetFloat[] mFacetFloats, MFacetDouble[] mFacetDoubles, MFacetShort[] mFacetShorts, MFacetString[] mFacetStrings,
+                       Object[] objs)
+    {
+      return 1f;
+    }
+  }
+
+  private static Callable<CustomMathModel> compiler(final AtomicInteger compilations)
+  {
+    return new Callable<CustomMathModel>()
+    {
+      @Override
+      public CustomMathModel call() throws Exception
+      {
+        compilations.incrementAndGet();
+        return new ConstantModel();
+      }
+    };
+  }
+
+  public void testModelsAreCompiledOnceAndEvicted() throws Exception
+  {
+    CompiledModelCache cache = new CompiledModelCache(2);
+    AtomicInteger compilations = new AtomicInteger();
+    CustomMathModel a = cache.get("a", compiler(compilations));
+    assertSame(a, cache.get("a", compiler(compilations)));
+    assertEquals(1, compilations.get());
+
+    cache.get("b", compiler(compilations));
+    cache.get("a", compiler(compilations));
+    cache.get("c", compiler(compilations));
+    assertEquals(2, cache.size());
+    assertEquals(3, compilations.get());
+
+    // b was the least recently used model
+    assertSame(a, cache.get("a", compiler(compilations)));
+    cache.get("b", compiler(compilations));
+    assertEquals(4, compilations.get());
+  }
+
+  public void testConcurrentRequestsShareOneCompilation() throws Exception
+  {
+    final CompiledModelCache cache = new CompiledModelCache(10);
+    final AtomicInteger compilations = new AtomicInteger();
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final CustomMathModel[] models = new CustomMathModel[4];
+
+    Thread[] threads = new Thread[models.length];
+    for (int i = 0; i < threads.length; ++i)
+    {
+      final int index = i;
+      threads[i] = new Thread(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          try
+          {
+            models[index] = cache.get("slow", new Callable<CustomMathModel>()
+            {
+              @Override
+              public CustomMathModel call() throws Exception
+              {
+                compilations.incrementAndGet();
+                started.countDown();
+                release.await();
+                return new ConstantModel();
+              }
+            });
+          }
+          catch (Exception e)
+          {
+            throw new RuntimeException(e);
+          }
+        }
+      });
+      threads[i].start();
+    }
+
+    started.await();
+    // other models are not blocked by a compilation in progress
+    AtomicInteger otherCompilations = new AtomicInteger();
+    assertNotNull(cache.get("fast", compiler(otherCompilations)));
+    assertEquals(1, otherCompilations.get());
+
+    release.countDown();
+    for (Thread thread : threads)
+    {
+      thread.join();
+    }
+    assertEquals(1, compilations.get());
+    for (CustomMathModel model : models)
+    {
+      assertSame(models[0], model);
+    }
+  }
+
+  public void testFailedCompilationsAreNotCached() throws Exception
+  {
+    CompiledModelCache cache = new CompiledModelCache(10);
+    try
+    {
+      cache.get("broken", new Callable<CustomMathModel>()
+      {
+        @Override
+        public CustomMathModel call() throws Exception
+        {
+          throw new RelevanceException("does not compile");
+        }
+      });
+      fail("the compilation error should be thrown");
+    }
+    catch (RelevanceException e)
+    {
+      assertEquals("does not compile", e.getMessage());
+    }
+    assertEquals(0, cache.size());
+
+    AtomicInteger compilations = new AtomicInteger();
+    assertNotNull(cache.get("broken", compiler(compilations)));
+    assertEquals(1, compilations.get());
+  }
+}
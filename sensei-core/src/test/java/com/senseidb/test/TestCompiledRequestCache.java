@@ -0,0 +1,91 @@
+/**
+ * This software is licensed to you under the Apache License, Version 2.0 (the
+ * "Apache License").
+ *
+ * LinkedIn's contributions are made under the Apache License. If you contribute
+ * to the Software, the contributions will be deemed to have been made under the
+ * Apache License, unless you expressly indicate otherwise. Please do not make any
+ * contributions that would be inconsistent with the Apache License.
+ *
+ * You may obtain a copy of the Apache License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, this software
+ * distributed under the Apache License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the Apache
+ * License for the specific language governing permissions and limitations for the
+ * software governed under the Apache License.
+ *
+ * © 2012 LinkedIn Corp. All Rights Reserved.  
+ */
+package com.senseidb.test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.json.JSONObject;
+
+import com.senseidb.search.req.SenseiRequest;
+import com.senseidb.servlet.CompiledRequestCache;
+import com.senseidb.servlet.CompiledRequestCache.CompiledRequest;
+import com.senseidb.util.JSONUtil.FastJSONObject;
+
+public class TestCompiledRequestCache extends TestCase
+{
+  private final Map<String, String[]> facetInfoMap = new HashMap<String, String[]>();
+
+  public void testRequestsAreCopies() throws Exception
+  {
+    CompiledRequestCache cache = new CompiledRequestCache(10);
+    JSONObject json = new FastJSONObject().put("size", 5);
+    cache.put("select * from sensei limit 5", "", new CompiledRequest(json, null, facetInfoMap));
+    json.put("size", 10);
+
+    CompiledRequest compiled = cache.get("select * from sensei limit 5", "", facetInfoMap);
+    assertNotNull(compiled);
+    SenseiRequest request = compiled.newRequest(null);
+    assertEquals(5, request.getCount());
+    request.setCount(20);
+
+    SenseiRequest request1 = compiled.newRequest(null);
+    SenseiRequest request2 = compiled.newRequest(null);
+    assertNotSame(request1, request2);
+    assertEquals(5, request1.getCount());
+    request1.setCount(20);
+    assertEquals(5, compiled.newRequest(null).getCount());
+    // not routed by the statement, so every copy is routed randomly
+    String routeParam = compiled.newRequest(null).getRouteParam();
+    assertFalse(routeParam.equals(request1.getRouteParam()) && routeParam.equals(request2.getRouteParam()));
+  }
+
+  public void testVariablesAreBoundOnACopy() throws Exception
+  {
+    JSONObject json = new FastJSONObject().put("size", "$count").put("from", 2);
+    CompiledRequest compiled = new CompiledRequest(json, Collections.singletonList("count"), facetInfoMap);
+
+    SenseiRequest request = compiled.newRequest(new FastJSONObject().put("count", 5));
+    assertEquals(5, request.getCount());
+    assertEquals(2, request.getOffset());
+    request = compiled.newRequest(new FastJSONObject().put("count", 7));
+    assertEquals(7, request.getCount());
+    assertEquals(2, request.getOffset());
+  }
+
+  public void testEvictionAndFacetInfo() throws Exception
+  {
+    CompiledRequestCache cache = new CompiledRequestCache(2);
+    for (String bql : Arrays.asList("a", "b", "c"))
+    {
+      cache.put(bql, "", new CompiledRequest(new FastJSONObject(), Collections.singletonList("var"), facetInfoMap));
+    }
+    assertEquals(2, cache.size());
+    assertNull(cache.get("a", "", facetInfoMap));
+    assertEquals(Collections.singletonList("var"), cache.get("b", "", facetInfoMap).getVariables());
+    assertNull(cache.get("b", "x > 1", facetInfoMap));
+    assertNull(cache.get("b", "", new HashMap<String, String[]>()));
+    cache.clear();
+    assertEquals(0, cache.size());
+  }
+}
@@ -19,6 +19,7 @@
 package com.senseidb.test;
 
 
+import java.io.ByteArrayOutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URI;
@@ -58,6 +59,7 @@ import com.senseidb.search.req.SenseiResult;
 import com.senseidb.servlet.DefaultSenseiJSONServlet;
 import com.senseidb.svc.api.SenseiException;
 import com.senseidb.svc.impl.HttpRestSenseiServiceImpl;
+import com.senseidb.util.JSONStreamWriter;
 import com.senseidb.util.JSONUtil.FastJSONArray;
 import com.senseidb.util.JSONUtil.FastJSONObject;
 
@@ -84,6 +86,20 @@ public class TestHttpRestSenseiServiceImpl extends TestCase
     assertEquals(aResult, bResult);
   }
 
+  public void testStreamedSenseiResultParsing()
+      throws Exception
+  {
+    SenseiRequest aRequest = createNonRandomSenseiRequest();
+    SenseiResult aResult = createMockResultFromRequest(aRequest);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    JSONStreamWriter writer = new JSONStreamWriter(out, 64);
+    DefaultSenseiJSONServlet.writeJSONResult(writer, aRequest, aResult);
+    writer.flush();
+    JSONObject resultJSONObj = new FastJSONObject(new String(out.toByteArray(), "UTF-8"));
+    SenseiResult bResult = HttpRestSenseiServiceImpl.buildSenseiResult(resultJSONObj);
+    assertEquals(aResult, bResult);
+  }
+
   private SenseiResult createMockResultFromRequest(SenseiRequest request) {
     SenseiResult result = new SenseiResult();
 
@@ -5,6 +5,10 @@ import com.sensei.search.req.protobuf.SenseiProtos;
 import com.senseidb.search.req.*;
 import junit.framework.TestCase;
 
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
 public class TestSerialization extends TestCase {
   public void test() {
     SenseiSnappyProtoSerializer serializer = new SenseiSnappyProtoSerializer();
@@ -34,4 +38,27 @@ public class TestSerialization extends TestCase {
     SenseiResult serializedResult = serializer.responseFromBytes(serializer.responseToBytes(result));
     assertEquals(result, serializedResult);
   }
+
+  public void testSharedEncoding() {
+    SenseiSnappyProtoSerializer serializer = new SenseiSnappyProtoSerializer();
+    assertTrue(SharedRequestEncoding.isSupportedBy(serializer));
+
+    SenseiRequest request = new SenseiRequest();
+    request.setRouteParam("1");
+    request.setCount(20);
+    request.setQuery(new StringQuery("text"));
+    SharedRequestEncoding sharedEncoding = new SharedRequestEncoding((SenseiRequest) request.clone());
+    byte[] sharedBytes = serializer.requestToBytes(sharedEncoding.forPartitions(null));
+
+    for (int partition = 0; partition < 3; partition++) {
+      Set<Integer> partitions = new HashSet<Integer>(Arrays.asList(partition, partition + 3));
+      request.setPartitions(partitions);
+      byte[] bytes = serializer.requestToBytes(sharedEncoding.forPartitions(partitions));
+      SenseiRequest serializedRequest = serializer.requestFromBytes(bytes);
+      assertEquals(request, serializedRequest);
+      // the shared part is compressed once, and every sub-request starts with the same stream
+      assertTrue(bytes.length > sharedBytes.length);
+      assertTrue(Arrays.equals(sharedBytes, Arrays.copyOf(bytes, sharedBytes.length)));
+    }
+  }
 }
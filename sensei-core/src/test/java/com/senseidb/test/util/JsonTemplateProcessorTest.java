@@ -49,6 +49,20 @@ public class JsonTemplateProcessorTest extends TestCase {
 
   }
   @Test
+  public void testBindLeavesTheSourceUntouched() throws Exception{
+    JSONObject requestJson = new JSONObject(senseiRequestStr);
+    String original = requestJson.toString();
+    JSONObject bound = (JSONObject) jsonTemplateProcessor.bind(requestJson, jsonTemplateProcessor.getTemplates(requestJson));
+    assertEquals(original, requestJson.toString());
+    assertEquals(10, bound.getInt("count"));
+    assertEquals(1.0, bound.getDouble("boost"), 0.01);
+    assertEquals("prefix_$substitutedParam_$$substitutedParam_suffix$$routeParam", bound.getString("routeParam"));
+    assertEquals("red", bound.getJSONArray("selections").getJSONObject(1).getJSONObject("terms").getJSONObject("color").getJSONArray("values").get(0));
+    // the parts without templates are shared
+    assertSame(requestJson.get("sorts"), bound.get("sorts"));
+    assertSame(requestJson.getJSONArray("selections").get(0), bound.getJSONArray("selections").get(0));
+  }
+  @Test
   public void testSubstituteTemplatesNoMatch() throws Exception{
     JSONObject requestJson = new JSONObject(senseiRequestStr);
     System.out.println(requestJson.toString(1));